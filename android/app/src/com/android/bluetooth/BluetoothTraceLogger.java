@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothUtils;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Logger for hot paths, writing to the log and to a bounded in-memory trace printed by {@link
+ * #dump}.
+ *
+ * <p>Messages use {@code {}} placeholders, or {@code {x}} for hexadecimal numbers. Byte arrays are
+ * rendered with their content and Bluetooth addresses are anonymized. Messages are formatted on
+ * the calling thread in a per-thread buffer, and the fixed-arity overloads take numbers and
+ * booleans without boxing them. Messages are added to the trace without taking a lock.
+ *
+ * <p>Loggers created with {@link #forTag} share the trace of their parent, so that related
+ * components are dumped together, in order.
+ */
+public class BluetoothTraceLogger {
+    private static final DateTimeFormatter TIME_FORMATTER =
+            DateTimeFormatter.ofPattern("MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static final ThreadLocal<MessageFormatter> sFormatter =
+            ThreadLocal.withInitial(MessageFormatter::new);
+
+    private final String mTag;
+    private final Trace mTrace;
+
+    // The bounded trace shared by a logger and the loggers created with forTag()
+    private static class Trace {
+        private final String mTitle;
+        private final AtomicReferenceArray<Entry> mEntries;
+        private final AtomicLong mNumAdded = new AtomicLong();
+
+        Trace(String title, int size) {
+            mTitle = title;
+            mEntries = new AtomicReferenceArray<>(size);
+        }
+
+        void add(Entry entry) {
+            int size = mEntries.length();
+            if (size > 0) {
+                mEntries.set((int) (mNumAdded.getAndIncrement() % size), entry);
+            }
+        }
+    }
+
+    // A message captured in the trace
+    private static class Entry {
+        private final long mTimeMillis = System.currentTimeMillis();
+        private final int mLevel;
+        private final String mTag;
+        private final String mMessage;
+
+        Entry(int level, String tag, String message) {
+            mLevel = level;
+            mTag = tag;
+            mMessage = message;
+        }
+
+        @Override
+        public String toString() {
+            return TIME_FORMATTER.format(Instant.ofEpochMilli(mTimeMillis))
+                    + " "
+                    + levelToString(mLevel)
+                    + " "
+                    + mTag
+                    + ": "
+                    + mMessage;
+        }
+    }
+
+    public BluetoothTraceLogger(String tag, int size, String title) {
+        this(tag, new Trace(title, size));
+    }
+
+    private BluetoothTraceLogger(String tag, Trace trace) {
+        mTag = tag;
+        mTrace = trace;
+    }
+
+    /** Returns a logger using {@code tag}, whose messages are added to the trace of this one. */
+    public BluetoothTraceLogger forTag(String tag) {
+        return new BluetoothTraceLogger(tag, mTrace);
+    }
+
+    /** Log and trace a verbose message. */
+    public void v(String format) {
+        add(Log.VERBOSE, format(format).finish());
+    }
+
+    /** Log and trace a verbose message. */
+    public void v(String format, Object arg0) {
+        add(Log.VERBOSE, format(format).arg(arg0).finish());
+    }
+
+    /** Log and trace a verbose message. */
+    public void v(String format, Object arg0, Object arg1) {
+        add(Log.VERBOSE, format(format).arg(arg0).arg(arg1).finish());
+    }
+
+    /** Log and trace a verbose message. */
+    public void v(String format, Object arg0, Object arg1, Object arg2) {
+        add(Log.VERBOSE, format(format).arg(arg0).arg(arg1).arg(arg2).finish());
+    }
+
+    /** Log and trace a verbose message. */
+    public void v(String format, Object arg0, Object arg1, Object arg2, Object arg3) {
+        add(Log.VERBOSE, format(format).arg(arg0).arg(arg1).arg(arg2).arg(arg3).finish());
+    }
+
+    /** Log and trace a verbose message. */
+    public void v(String format, long arg0, long arg1) {
+        add(Log.VERBOSE, format(format).arg(arg0).arg(arg1).finish());
+    }
+
+    /** Log and trace a verbose message. */
+    public void v(String format, boolean arg0, boolean arg1) {
+        add(Log.VERBOSE, format(format).arg(arg0).arg(arg1).finish());
+    }
+
+    /** Log and trace a verbose message. */
+    public void v(String format, Object arg0, long arg1) {
+        add(Log.VERBOSE, format(format).arg(arg0).arg(arg1).finish());
+    }
+
+    /** Log and trace a verbose message. */
+    public void v(String format, Object arg0, long arg1, long arg2) {
+        add(Log.VERBOSE, format(format).arg(arg0).arg(arg1).arg(arg2).finish());
+    }
+
+    /** Log and trace a verbose message. */
+    public void v(String format, long arg0, Object arg1, long arg2, long arg3, long arg4) {
+        add(Log.VERBOSE, format(format).arg(arg0).arg(arg1).arg(arg2).arg(arg3).arg(arg4).finish());
+    }
+
+    /** Log and trace a verbose message. */
+    public void v(
+            String format, long arg0, Object arg1, long arg2, long arg3, boolean arg4, long arg5) {
+        add(
+                Log.VERBOSE,
+                format(format)
+                        .arg(arg0)
+                        .arg(arg1)
+                        .arg(arg2)
+                        .arg(arg3)
+                        .arg(arg4)
+                        .arg(arg5)
+                        .finish());
+    }
+
+    /** Log and trace a verbose message, with the arguments of an LE scan result. */
+    public void v(
+            String format,
+            long arg0,
+            long arg1,
+            Object arg2,
+            long arg3,
+            long arg4,
+            long arg5,
+            long arg6,
+            long arg7,
+            long arg8,
+            Object arg9) {
+        add(
+                Log.VERBOSE,
+                format(format)
+                        .arg(arg0)
+                        .arg(arg1)
+                        .arg(arg2)
+                        .arg(arg3)
+                        .arg(arg4)
+                        .arg(arg5)
+                        .arg(arg6)
+                        .arg(arg7)
+                        .arg(arg8)
+                        .arg(arg9)
+                        .finish());
+    }
+
+    /** Log and trace a verbose message. */
+    public void v(String format, Object... args) {
+        add(Log.VERBOSE, format(format, args));
+    }
+
+    /** Log and trace a debug message. */
+    public void d(String format, Object arg0) {
+        add(Log.DEBUG, format(format).arg(arg0).finish());
+    }
+
+    /** Log and trace a debug message. */
+    public void d(String format, Object arg0, Object arg1) {
+        add(Log.DEBUG, format(format).arg(arg0).arg(arg1).finish());
+    }
+
+    /** Log and trace a debug message. */
+    public void d(String format, long arg0, long arg1, long arg2, long arg3, long arg4) {
+        add(Log.DEBUG, format(format).arg(arg0).arg(arg1).arg(arg2).arg(arg3).arg(arg4).finish());
+    }
+
+    /** Log and trace a debug message. */
+    public void d(String format, Object... args) {
+        add(Log.DEBUG, format(format, args));
+    }
+
+    /**
+     * Dump the traced messages, oldest first. Messages added while dumping may be missing or out
+     * of order.
+     */
+    public void dump(StringBuilder sb) {
+        sb.append(mTrace.mTitle).append(":\n");
+        AtomicReferenceArray<Entry> entries = mTrace.mEntries;
+        int size = entries.length();
+        long end = mTrace.mNumAdded.get();
+        for (long i = Math.max(0, end - size); i < end; i++) {
+            Entry entry = entries.get((int) (i % size));
+            if (entry != null) {
+                sb.append("  ").append(entry).append("\n");
+            }
+        }
+    }
+
+    private void add(int level, String message) {
+        mTrace.add(new Entry(level, mTag, message));
+        Log.println(level, mTag, message);
+    }
+
+    private static MessageFormatter format(String format) {
+        return sFormatter.get().start(format);
+    }
+
+    @VisibleForTesting
+    static String format(String format, Object[] args) {
+        MessageFormatter formatter = format(format);
+        if (args != null) {
+            for (Object arg : args) {
+                formatter.arg(arg);
+            }
+        }
+        return formatter.finish();
+    }
+
+    // Formats one message at a time, reused by each thread. Extra arguments are ignored, and
+    // placeholders without an argument are kept as is.
+    private static class MessageFormatter {
+        private static final int NO_PLACEHOLDER = 0;
+        private static final int PLACEHOLDER = 1;
+        private static final int HEX_PLACEHOLDER = 2;
+
+        private final StringBuilder mBuilder = new StringBuilder();
+        private String mFormat;
+        private int mPosition;
+
+        MessageFormatter start(String format) {
+            mBuilder.setLength(0);
+            mFormat = format;
+            mPosition = 0;
+            return this;
+        }
+
+        MessageFormatter arg(long value) {
+            switch (next()) {
+                case PLACEHOLDER -> mBuilder.append(value);
+                case HEX_PLACEHOLDER -> mBuilder.append(Long.toHexString(value));
+                default -> {}
+            }
+            return this;
+        }
+
+        MessageFormatter arg(boolean value) {
+            if (next() != NO_PLACEHOLDER) {
+                mBuilder.append(value);
+            }
+            return this;
+        }
+
+        MessageFormatter arg(Object value) {
+            int placeholder = next();
+            if (placeholder != NO_PLACEHOLDER) {
+                appendArg(mBuilder, value, placeholder == HEX_PLACEHOLDER);
+            }
+            return this;
+        }
+
+        String finish() {
+            mBuilder.append(mFormat, mPosition, mFormat.length());
+            return mBuilder.toString();
+        }
+
+        // Appends the text up to the next placeholder and skips it
+        private int next() {
+            int i = mFormat.indexOf('{', mPosition);
+            while (i >= 0) {
+                if (mFormat.startsWith("{}", i)) {
+                    mBuilder.append(mFormat, mPosition, i);
+                    mPosition = i + 2;
+                    return PLACEHOLDER;
+                }
+                if (mFormat.startsWith("{x}", i)) {
+                    mBuilder.append(mFormat, mPosition, i);
+                    mPosition = i + 3;
+                    return HEX_PLACEHOLDER;
+                }
+                i = mFormat.indexOf('{', i + 1);
+            }
+            return NO_PLACEHOLDER;
+        }
+    }
+
+    private static void appendArg(StringBuilder sb, Object arg, boolean hex) {
+        if (arg instanceof byte[] bytes) {
+            sb.append(Arrays.toString(bytes));
+        } else if (hex && arg instanceof Integer value) {
+            sb.append(Integer.toHexString(value));
+        } else if (hex && arg instanceof Long value) {
+            sb.append(Long.toHexString(value));
+        } else if (arg instanceof String value && BluetoothAdapter.checkBluetoothAddress(value)) {
+            sb.append(BluetoothUtils.toAnonymizedAddress(value));
+        } else {
+            sb.append(arg);
+        }
+    }
+
+    private static String levelToString(int level) {
+        return switch (level) {
+            case Log.VERBOSE -> "V";
+            case Log.DEBUG -> "D";
+            case Log.INFO -> "I";
+            case Log.WARN -> "W";
+            default -> "E";
+        };
+    }
+}
@@ -1031,10 +1031,13 @@ public class MediaPlayerList {
             return;
         }
 
-        // Always have items in the queue
+        // Always have items in the queue. The queue may be shared with the player, replace it
+        // instead of adding to it.
         if (data.queue.size() == 0) {
             Log.i(TAG, "sendMediaUpdate: Creating a one item queue for a player with no queue");
-            data.queue.add(data.metadata);
+            List<Metadata> queue = new ArrayList<>();
+            queue.add(data.metadata);
+            data.queue = queue;
         }
 
         Log.d(TAG, "sendMediaUpdate state=" + data.state);
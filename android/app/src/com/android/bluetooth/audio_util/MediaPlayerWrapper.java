@@ -18,6 +18,7 @@ package com.android.bluetooth.audio_util;
 
 import android.annotation.Nullable;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.media.MediaMetadata;
 import android.media.session.MediaSession;
 import android.media.session.PlaybackState;
@@ -30,6 +31,7 @@ import com.android.bluetooth.BluetoothEventLogger;
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 
@@ -52,9 +54,15 @@ public class MediaPlayerWrapper {
     private String mPackageName;
     private Looper mLooper;
     private final BluetoothEventLogger mPlaybackStateChangeEventLogger;
+    private final NowPlayingQueueCache mQueueCache;
 
     private MediaData mCurrentData;
 
+    // The last queue returned by getCurrentQueue(), and what it was filled from
+    private List<Metadata> mFilledQueue;
+    private List<Metadata> mFilledQueueSource;
+    private Metadata mFilledQueueMetadata;
+
     @GuardedBy("mCallbackLock")
     private MediaControllerListener mControllerCallbacks = null;
 
@@ -94,9 +102,10 @@ public class MediaPlayerWrapper {
                 new BluetoothEventLogger(
                         PLAYBACK_STATE_CHANGE_EVENT_LOGGER_SIZE,
                         PLAYBACK_STATE_CHANGE_LOGGER_EVENT_TITLE);
+        mQueueCache = new NowPlayingQueueCache(context);
 
         mCurrentData = new MediaData(null, null, null);
-        mCurrentData.queue = Util.toMetadataList(mContext, getQueue());
+        mCurrentData.queue = mQueueCache.update(getQueue());
         mCurrentData.metadata = Util.toMetadata(mContext, getMetadata());
         mCurrentData.state = getPlaybackState();
     }
@@ -138,16 +147,29 @@ public class MediaPlayerWrapper {
         return state.getActiveQueueItemId();
     }
 
+    @SuppressWarnings("ReferenceEquality") // The cached queue is compared by instance on purpose
     List<Metadata> getCurrentQueue() {
         // MediaSession#QueueItem's MediaDescription doesn't necessarily include media duration,
         // so the playing media info metadata should be obtained by the MediaController.
         // MediaSession doesn't include the Playlist Metadata, only the current song one.
         Metadata mediaPlayingMetadata = getCurrentMetadata();
 
+        // The filled queue is returned again as long as neither the queue nor the playing media
+        // changed, so that the queue is only copied when the playing media needs to be filled in.
+        List<Metadata> queue = mCurrentData.queue;
+        if (queue == mFilledQueueSource
+                && isSameFillMetadata(mediaPlayingMetadata, mFilledQueueMetadata)) {
+            return mFilledQueue;
+        }
+        mFilledQueueSource = queue;
+        mFilledQueueMetadata = mediaPlayingMetadata;
+
         // The queue metadata is built with QueueId in place of MediaId, so we can't compare it.
         // MediaDescription is usually compared via its title, artist and album.
+        boolean copied = false;
         if (mediaPlayingMetadata != null) {
-            for (Metadata metadata : mCurrentData.queue) {
+            for (int i = 0; i < queue.size(); i++) {
+                Metadata metadata = queue.get(i);
                 if (metadata.title == null || metadata.artist == null || metadata.album == null) {
                     // if one of the informations is missing we can't assume it is the same media.
                     continue;
@@ -155,12 +177,34 @@ public class MediaPlayerWrapper {
                 if (metadata.title.equals(mediaPlayingMetadata.title)
                         && metadata.artist.equals(mediaPlayingMetadata.artist)
                         && metadata.album.equals(mediaPlayingMetadata.album)) {
-                    // Replace default values by MediaController non default values.
-                    metadata.replaceDefaults(mediaPlayingMetadata);
+                    // Replace default values by MediaController non default values. Queue items
+                    // are shared with the queue cache, so do it on copies.
+                    if (!copied) {
+                        queue = new ArrayList<>(queue);
+                        copied = true;
+                    }
+                    Metadata filledMetadata = metadata.clone();
+                    filledMetadata.replaceDefaults(mediaPlayingMetadata);
+                    queue.set(i, filledMetadata);
                 }
             }
         }
-        return mCurrentData.queue;
+        mFilledQueue = queue;
+        return queue;
+    }
+
+    // Returns true if both metadata fill in the queue the same way
+    @SuppressWarnings("ReferenceEquality")
+    private static boolean isSameFillMetadata(Metadata a, Metadata b) {
+        if (a == b) return true;
+        if (a == null || b == null) return false;
+        return a.equals(b)
+                && Objects.equals(a.mediaId, b.mediaId)
+                && NowPlayingQueueCache.isSameBitmap(getBitmap(a.image), getBitmap(b.image));
+    }
+
+    private static Bitmap getBitmap(Image image) {
+        return image != null ? image.getImage() : null;
     }
 
     // We don't return the cached info here in order to always provide the freshest data.
@@ -307,7 +351,7 @@ public class MediaPlayerWrapper {
                 new MediaData(
                         Util.toMetadata(mContext, getMetadata()),
                         getPlaybackState(),
-                        Util.toMetadataList(mContext, getQueue()));
+                        mQueueCache.update(getQueue()));
 
         synchronized (mCallbackLock) {
             mControllerCallbacks = new MediaControllerListener(mMediaController, mLooper);
@@ -344,7 +388,7 @@ public class MediaPlayerWrapper {
                     new MediaData(
                             Util.toMetadata(mContext, getMetadata()),
                             getPlaybackState(),
-                            Util.toMetadataList(mContext, getQueue()));
+                            mQueueCache.update(getQueue()));
 
             mControllerCallbacks = new MediaControllerListener(mMediaController, mLooper);
         }
@@ -356,7 +400,7 @@ public class MediaPlayerWrapper {
                 new MediaData(
                         Util.toMetadata(mContext, getMetadata()),
                         getPlaybackState(),
-                        Util.toMetadataList(mContext, getQueue()));
+                        mQueueCache.update(getQueue()));
 
         if (newData.equals(mCurrentData)) {
             // This may happen if the controller is fully synced by the time the
@@ -396,7 +440,7 @@ public class MediaPlayerWrapper {
             Log.e(TAG, "Timeout while waiting for metadata to sync for " + mPackageName);
             Log.e(TAG, "  └ Current Metadata: " + Util.toMetadata(mContext, getMetadata()));
             Log.e(TAG, "  └ Current Playstate: " + getPlaybackState());
-            List<Metadata> current_queue = Util.toMetadataList(mContext, getQueue());
+            List<Metadata> current_queue = mQueueCache.update(getQueue());
             for (int i = 0; i < current_queue.size(); i++) {
                 Log.e(TAG, "  └ QueueItem(" + i + "): " + current_queue.get(i));
             }
@@ -541,7 +585,7 @@ public class MediaPlayerWrapper {
                 e("The callback queue isn't the current queue");
             }
 
-            List<Metadata> current_queue = Util.toMetadataList(mContext, queue);
+            List<Metadata> current_queue = mQueueCache.update(queue);
             if (current_queue.equals(mCurrentData.queue)) {
                 Log.w(
                         TAG,
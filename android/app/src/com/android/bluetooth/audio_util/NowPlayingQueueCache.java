@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.audio_util;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.media.MediaDescription;
+import android.media.MediaMetadata;
+import android.media.session.MediaSession;
+import android.os.Bundle;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Converts the now playing queue of a player to a list of {@link Metadata}, as {@link
+ * Util#toMetadataList} does, but only converts the items that changed since the previous queue.
+ *
+ * <p>Items are identified by their queue ID. When no item changed, the previously returned list is
+ * returned again so that consumers can tell the queue is unchanged without comparing its items.
+ * Returned lists and items are shared and must not be modified.
+ */
+class NowPlayingQueueCache {
+    private static final String TAG = "AudioNowPlayingQueueCache";
+
+    // Keys of the description extras read by Metadata.Builder#fromBundle.
+    private static final String[] STRING_KEYS = {
+        MediaMetadata.METADATA_KEY_MEDIA_ID,
+        MediaMetadata.METADATA_KEY_TITLE,
+        MediaMetadata.METADATA_KEY_ARTIST,
+        MediaMetadata.METADATA_KEY_ALBUM,
+        MediaMetadata.METADATA_KEY_GENRE,
+        MediaMetadata.METADATA_KEY_ART_URI,
+        MediaMetadata.METADATA_KEY_ALBUM_ART_URI,
+        MediaMetadata.METADATA_KEY_DISPLAY_ICON_URI
+    };
+    private static final String[] LONG_KEYS = {
+        MediaMetadata.METADATA_KEY_TRACK_NUMBER,
+        MediaMetadata.METADATA_KEY_NUM_TRACKS,
+        MediaMetadata.METADATA_KEY_DURATION
+    };
+    private static final String[] BITMAP_KEYS = {
+        MediaMetadata.METADATA_KEY_ART,
+        MediaMetadata.METADATA_KEY_ALBUM_ART,
+        MediaMetadata.METADATA_KEY_DISPLAY_ICON
+    };
+
+    private static class Entry {
+        final MediaDescription mDescription;
+        final Metadata mMetadata;
+
+        Entry(MediaDescription description, Metadata metadata) {
+            mDescription = description;
+            mMetadata = metadata;
+        }
+    }
+
+    private final Context mContext;
+    private Map<Long, Entry> mEntries = new HashMap<>();
+    private List<Metadata> mQueue = new ArrayList<>();
+    private long mConvertedItemCount = 0;
+
+    NowPlayingQueueCache(Context context) {
+        mContext = context;
+    }
+
+    /** Returns the converted queue, the same list as last time if no item changed. */
+    @SuppressWarnings("ReferenceEquality") // Published items are compared by instance on purpose
+    List<Metadata> update(List<MediaSession.QueueItem> items) {
+        if (items == null || items.isEmpty()) {
+            return clear();
+        }
+
+        Map<Long, Entry> entries = new HashMap<>();
+        List<Metadata> queue = new ArrayList<>(items.size());
+        boolean changed = items.size() != mQueue.size();
+        String numTracks = "" + items.size();
+        for (int i = 0; i < items.size(); i++) {
+            MediaSession.QueueItem item = items.get(i);
+            String trackNum = "" + (i + 1);
+            Entry entry = item != null ? mEntries.get(item.getQueueId()) : null;
+            if (entry == null || !isSameDescription(entry.mDescription, item.getDescription())) {
+                mConvertedItemCount++;
+                Metadata data = Util.toMetadata(mContext, item);
+                if (Util.isEmptyData(data)) {
+                    Log.e(TAG, "Received an empty Metadata item in list. Returning an empty queue");
+                    return clear();
+                }
+                data.trackNum = trackNum;
+                data.numTracks = numTracks;
+                entry = new Entry(item.getDescription(), data);
+            } else if (!trackNum.equals(entry.mMetadata.trackNum)
+                    || !numTracks.equals(entry.mMetadata.numTracks)) {
+                // Moved in the queue: published items are never modified, update a copy
+                Metadata data = entry.mMetadata.clone();
+                data.trackNum = trackNum;
+                data.numTracks = numTracks;
+                entry = new Entry(entry.mDescription, data);
+            }
+            entries.put(item.getQueueId(), entry);
+            changed = changed || mQueue.get(i) != entry.mMetadata;
+            queue.add(entry.mMetadata);
+        }
+
+        mEntries = entries;
+        if (changed) {
+            mQueue = queue;
+        }
+        return mQueue;
+    }
+
+    private List<Metadata> clear() {
+        mEntries = new HashMap<>();
+        if (!mQueue.isEmpty()) {
+            mQueue = new ArrayList<>();
+        }
+        return mQueue;
+    }
+
+    @VisibleForTesting
+    long getConvertedItemCount() {
+        return mConvertedItemCount;
+    }
+
+    /** Returns true if both descriptions convert to the same {@link Metadata}. */
+    private static boolean isSameDescription(MediaDescription a, MediaDescription b) {
+        if (a == b) return true;
+        if (a == null || b == null) return false;
+
+        return TextUtils.equals(a.getTitle(), b.getTitle())
+                && TextUtils.equals(a.getSubtitle(), b.getSubtitle())
+                && TextUtils.equals(a.getDescription(), b.getDescription())
+                && Objects.equals(a.getMediaId(), b.getMediaId())
+                && Objects.equals(a.getIconUri(), b.getIconUri())
+                && isSameBitmap(a.getIconBitmap(), b.getIconBitmap())
+                && isSameExtras(a.getExtras(), b.getExtras());
+    }
+
+    private static boolean isSameExtras(Bundle a, Bundle b) {
+        if (a == b) return true;
+        if (a == null || b == null) return false;
+
+        for (String key : STRING_KEYS) {
+            if (!Objects.equals(a.getString(key), b.getString(key))) return false;
+        }
+        for (String key : LONG_KEYS) {
+            if (a.containsKey(key) != b.containsKey(key)) return false;
+            if (a.containsKey(key) && a.getLong(key) != b.getLong(key)) return false;
+        }
+        for (String key : BITMAP_KEYS) {
+            if (a.containsKey(key) != b.containsKey(key)) return false;
+            Bitmap bitmapA = a.getParcelable(key);
+            Bitmap bitmapB = b.getParcelable(key);
+            if (!isSameBitmap(bitmapA, bitmapB)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if both bitmaps have the same pixels. Their pixels are only compared when the
+     * bitmaps are distinct buffers of the same size, such as artwork unparceled on each update.
+     */
+    static boolean isSameBitmap(Bitmap a, Bitmap b) {
+        if (a == b) return true;
+        if (a == null || b == null) return false;
+        // Generation IDs are unique across pixel buffers and change when the pixels are modified
+        if (a.getGenerationId() == b.getGenerationId()) return true;
+        if (a.getWidth() != b.getWidth()
+                || a.getHeight() != b.getHeight()
+                || a.getConfig() != b.getConfig()) {
+            return false;
+        }
+        return a.sameAs(b);
+    }
+}
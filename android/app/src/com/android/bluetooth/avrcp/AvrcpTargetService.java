@@ -569,8 +569,9 @@ public class AvrcpTargetService extends ProfileService {
      * information then.
      */
     @VisibleForTesting
+    @SuppressWarnings("ReferenceEquality") // Unchanged queues are published as the same list
     public static boolean isQueueUpdated(List<Metadata> currentQueue, List<Metadata> newQueue) {
-        if (newQueue == null && currentQueue == null) {
+        if (newQueue == currentQueue) {
             return false;
         }
         if (newQueue == null || currentQueue == null || currentQueue.size() != newQueue.size()) {
@@ -25,10 +25,10 @@ import com.android.bluetooth.avrcpcontroller.BipImageDescriptor;
 import com.android.bluetooth.avrcpcontroller.BipImageFormat;
 import com.android.bluetooth.avrcpcontroller.BipImageProperties;
 import com.android.bluetooth.avrcpcontroller.BipPixel;
+import com.android.internal.annotations.GuardedBy;
 
 import java.io.ByteArrayOutputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
 
 /**
  * An object to represent a piece of cover artwork/
@@ -36,14 +36,26 @@ import java.security.NoSuchAlgorithmException;
  * <p>This object abstracts away the actual storage method and provides a means for others to
  * understand available formats and get the underlying image in a particular format.
  *
- * <p>All return values are ready to use by a BIP server.
+ * <p>All return values are ready to use by a BIP server. The image is encoded the first time it is
+ * requested and the same bytes are returned afterwards, so they must not be modified.
  */
 public class CoverArt {
     private static final String TAG = CoverArt.class.getSimpleName();
     private static final BipPixel PIXEL_THUMBNAIL = BipPixel.createFixed(200, 200);
 
+    // 64 bits FNV-1a parameters
+    private static final long HASH_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long HASH_PRIME = 0x100000001b3L;
+
     private String mImageHandle = null;
-    private Bitmap mImage = null;
+    private final Bitmap mImage;
+    private final String mImageHash;
+
+    private final Object mEncodedImageLock = new Object();
+
+    // The native format is the thumbnail format, so both are served from the same bytes
+    @GuardedBy("mEncodedImageLock")
+    private byte[] mEncodedImage = null;
 
     /** Create a CoverArt object from an audio_util Image abstraction */
     CoverArt(Image image) {
@@ -51,6 +63,7 @@ public class CoverArt {
         // anything larger than this at the moment. Also makes each image gathered
         // the same dimensions for hashing purposes.
         mImage = Bitmap.createScaledBitmap(image.getImage(), 200, 200, false);
+        mImageHash = computeImageHash(mImage);
     }
 
     /**
@@ -71,43 +84,54 @@ public class CoverArt {
         mImageHandle = handle;
     }
 
-    /** Covert a Bitmap to a byte array with an image format without lossy compression */
-    private byte[] toByteArray(Bitmap bitmap) {
+    /**
+     * Compute a fingerprint of the pixels of a Bitmap: its dimensions and the 64 bits FNV-1a hash
+     * of the bytes of its ARGB pixels.
+     *
+     * <p>This is much cheaper than encoding the Bitmap to hash the encoded bytes, and is enough to
+     * tell the images of a media session apart.
+     */
+    private static String computeImageHash(Bitmap bitmap) {
         if (bitmap == null) return null;
-        ByteArrayOutputStream buffer =
-                new ByteArrayOutputStream(bitmap.getWidth() * bitmap.getHeight());
-        bitmap.compress(Bitmap.CompressFormat.PNG, 100, buffer);
-        return buffer.toByteArray();
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+
+        long hash = HASH_OFFSET_BASIS;
+        for (int pixel : pixels) {
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                hash ^= (pixel >>> shift) & 0xff;
+                hash *= HASH_PRIME;
+            }
+        }
+        return String.format(Locale.US, "%dx%d-%016x", width, height, hash);
     }
 
     /** Get a hash code of this CoverArt image */
     public String getImageHash() {
-        byte[] image = toByteArray(mImage);
-        if (image == null) return null;
-        String hash = null;
-        try {
-            final MessageDigest digest = MessageDigest.getInstance("MD5");
-            digest.update(/* Bitmap to input stream */ image);
-            byte[] messageDigest = digest.digest();
-
-            StringBuilder hexString = new StringBuilder();
-            for (int i = 0; i < messageDigest.length; i++) {
-                hexString.append(Integer.toHexString(0xFF & messageDigest[i]));
+        return mImageHash;
+    }
+
+    /** Get the image encoded as a 200 x 200 JPEG, encoding it on the first call only */
+    private byte[] getEncodedImage() {
+        synchronized (mEncodedImageLock) {
+            if (mEncodedImage == null) {
+                debug("Encoding image");
+                ByteArrayOutputStream outputStream =
+                        new ByteArrayOutputStream(mImage.getWidth() * mImage.getHeight());
+                mImage.compress(Bitmap.CompressFormat.JPEG, 100, outputStream);
+                mEncodedImage = outputStream.toByteArray();
             }
-            hash = hexString.toString();
-        } catch (NoSuchAlgorithmException e) {
-            Log.e(TAG, "Failed to hash bitmap", e);
+            return mEncodedImage;
         }
-        return hash;
     }
 
     /** Get the cover artwork image bytes in the native format */
     public byte[] getImage() {
         debug("GetImage(native)");
         if (mImage == null) return null;
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        mImage.compress(Bitmap.CompressFormat.JPEG, 100, outputStream);
-        return outputStream.toByteArray();
+        return getEncodedImage();
     }
 
     /** Get the cover artwork image bytes in the given encoding and pixel size */
@@ -119,10 +143,7 @@ public class CoverArt {
             error("Given format isn't available for this image");
             return null;
         }
-
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        mImage.compress(Bitmap.CompressFormat.JPEG, 100, outputStream);
-        return outputStream.toByteArray();
+        return getEncodedImage();
     }
 
     /** Determine if a given image descriptor is valid */
@@ -143,9 +164,7 @@ public class CoverArt {
     public byte[] getThumbnail() {
         debug("GetImageThumbnail()");
         if (mImage == null) return null;
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        mImage.compress(Bitmap.CompressFormat.JPEG, 100, outputStream);
-        return outputStream.toByteArray();
+        return getEncodedImage();
     }
 
     /** Get the set of image properties that the cover artwork can be turned into */
@@ -171,9 +190,13 @@ public class CoverArt {
         return properties;
     }
 
-    /** Get the storage size of this image in bytes */
+    /** Get the storage size of this image in bytes, decoded and encoded */
     public int size() {
-        return mImage != null ? mImage.getAllocationByteCount() : 0;
+        int size = mImage != null ? mImage.getAllocationByteCount() : 0;
+        synchronized (mEncodedImageLock) {
+            if (mEncodedImage != null) size += mEncodedImage.length;
+        }
+        return size;
     }
 
     @Override
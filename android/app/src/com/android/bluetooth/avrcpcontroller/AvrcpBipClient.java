@@ -34,6 +34,8 @@ import com.android.obex.ResponseCodes;
 
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Iterator;
 
 /**
  * A client to a remote device's BIP Image Pull Server, as defined by a PSM passed in at
@@ -73,6 +75,7 @@ public class AvrcpBipClient {
     private static final int DISCONNECT = 1;
     private static final int REQUEST = 2;
     private static final int REFRESH_OBEX_SESSION = 3;
+    private static final int PREFETCH = 4;
 
     private final Handler mHandler;
     private final HandlerThread mThread;
@@ -85,6 +88,10 @@ public class AvrcpBipClient {
     private BluetoothObexTransport mTransport;
     private ClientSession mSession;
 
+    // Requests for images that are not needed yet, only executed when no other request is waiting.
+    // Each of them has a PREFETCH message in the handler queue.
+    private final ArrayDeque<BipRequest> mPrefetchRequests = new ArrayDeque<>();
+
     private final Callback mCallback;
 
     /** Callback object used to be notified of when a request has been completed. */
@@ -122,6 +129,16 @@ public class AvrcpBipClient {
      * <p>{@link connectAsync()} must be called separately.
      */
     public AvrcpBipClient(BluetoothDevice remoteDevice, int psm, Callback callback) {
+        this(remoteDevice, psm, callback, null);
+    }
+
+    /**
+     * Creates a BIP image pull client
+     *
+     * @param looper The looper to run the requests on, or null to start a dedicated thread
+     */
+    @VisibleForTesting
+    AvrcpBipClient(BluetoothDevice remoteDevice, int psm, Callback callback, Looper looper) {
         if (remoteDevice == null) {
             throw new NullPointerException("Remote device is null");
         }
@@ -133,10 +150,13 @@ public class AvrcpBipClient {
         mPsm = psm;
         mCallback = callback;
 
-        mThread = new HandlerThread("AvrcpBipClient");
-        mThread.start();
-
-        Looper looper = mThread.getLooper();
+        if (looper == null) {
+            mThread = new HandlerThread("AvrcpBipClient");
+            mThread.start();
+            looper = mThread.getLooper();
+        } else {
+            mThread = null;
+        }
 
         mHandler = new AvrcpBipClientHandler(looper, this);
     }
@@ -167,7 +187,9 @@ public class AvrcpBipClient {
             // always safe no matter the state.
             return;
         }
-        mThread.quitSafely();
+        if (mThread != null) {
+            mThread.quitSafely();
+        }
     }
 
     /**
@@ -199,19 +221,59 @@ public class AvrcpBipClient {
 
     /** Retrieve the image properties associated with the given imageHandle */
     public boolean getImageProperties(String imageHandle) {
-        RequestGetImageProperties request = new RequestGetImageProperties(imageHandle);
-        boolean status = mHandler.sendMessage(mHandler.obtainMessage(REQUEST, request));
-        if (!status) {
-            error("Adding messages failed, connection state: " + isConnected());
-            return false;
-        }
-        return true;
+        return getImageProperties(imageHandle, false);
+    }
+
+    /**
+     * Retrieve the image properties associated with the given imageHandle
+     *
+     * @param prefetch True if the image isn't needed yet, to wait for the other requests
+     */
+    public boolean getImageProperties(String imageHandle, boolean prefetch) {
+        return sendRequest(new RequestGetImageProperties(imageHandle), prefetch);
     }
 
     /** Download the image object associated with the given imageHandle */
     public boolean getImage(String imageHandle, BipImageDescriptor descriptor) {
-        RequestGetImage request = new RequestGetImage(imageHandle, descriptor);
-        boolean status = mHandler.sendMessage(mHandler.obtainMessage(REQUEST, request));
+        return getImage(imageHandle, descriptor, false);
+    }
+
+    /**
+     * Download the image object associated with the given imageHandle
+     *
+     * @param prefetch True if the image isn't needed yet, to wait for the other requests
+     */
+    public boolean getImage(String imageHandle, BipImageDescriptor descriptor, boolean prefetch) {
+        return sendRequest(new RequestGetImage(imageHandle, descriptor), prefetch);
+    }
+
+    /** Execute the waiting prefetch requests for the given imageHandle as regular requests */
+    public void prioritizeRequests(String imageHandle) {
+        synchronized (mPrefetchRequests) {
+            Iterator<BipRequest> it = mPrefetchRequests.iterator();
+            while (it.hasNext()) {
+                BipRequest request = it.next();
+                if (imageHandle.equals(getImageHandle(request))) {
+                    it.remove();
+                    mHandler.sendMessage(mHandler.obtainMessage(REQUEST, request));
+                }
+            }
+        }
+    }
+
+    private boolean sendRequest(BipRequest request, boolean prefetch) {
+        boolean status;
+        if (prefetch) {
+            synchronized (mPrefetchRequests) {
+                mPrefetchRequests.add(request);
+                status = mHandler.sendEmptyMessage(PREFETCH);
+                if (!status) {
+                    mPrefetchRequests.remove(request);
+                }
+            }
+        } else {
+            status = mHandler.sendMessage(mHandler.obtainMessage(REQUEST, request));
+        }
         if (!status) {
             error("Adding messages failed, connection state: " + isConnected());
             return false;
@@ -219,6 +281,16 @@ public class AvrcpBipClient {
         return true;
     }
 
+    private static String getImageHandle(BipRequest request) {
+        switch (request.getType()) {
+            case BipRequest.TYPE_GET_IMAGE_PROPERTIES:
+                return ((RequestGetImageProperties) request).getImageHandle();
+            case BipRequest.TYPE_GET_IMAGE:
+                return ((RequestGetImage) request).getImageHandle();
+        }
+        return null;
+    }
+
     /** Update our client's connection state and notify of the new status */
     @VisibleForTesting
     void setConnectionState(int state) {
@@ -344,7 +416,14 @@ public class AvrcpBipClient {
         setConnectionState(BluetoothProfile.STATE_DISCONNECTED);
     }
 
-    private void executeRequest(BipRequest request) {
+    private BipRequest pollPrefetchRequest() {
+        synchronized (mPrefetchRequests) {
+            return mPrefetchRequests.poll();
+        }
+    }
+
+    @VisibleForTesting
+    void executeRequest(BipRequest request) {
         if (!isConnected()) {
             error("Cannot execute request " + request.toString() + ", we're not connected");
             notifyCaller(request);
@@ -419,6 +498,19 @@ public class AvrcpBipClient {
                         inst.executeRequest((BipRequest) msg.obj);
                     }
                     break;
+
+                case PREFETCH:
+                    if (hasMessages(REQUEST)) {
+                        // Let the regular requests go first, and try again after them
+                        sendEmptyMessage(PREFETCH);
+                        break;
+                    }
+                    // The request may have been prioritized since it was queued
+                    BipRequest request = inst.pollPrefetchRequest();
+                    if (request != null && inst.isConnected()) {
+                        inst.executeRequest(request);
+                    }
+                    break;
             }
         }
     }
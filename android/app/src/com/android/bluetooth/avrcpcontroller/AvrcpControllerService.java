@@ -133,6 +133,15 @@ public class AvrcpControllerService extends ProfileService {
             stateMachine.sendMessage(
                     AvrcpControllerStateMachine.MESSAGE_PROCESS_IMAGE_DOWNLOADED, event);
         }
+
+        @Override
+        public void onImageEvicted(BluetoothDevice device, String imageUuid) {
+            Log.d(TAG, "Image evicted [device: " + device + ", uuid: " + imageUuid + "]");
+            AvrcpControllerStateMachine stateMachine = getStateMachine(device);
+            if (stateMachine == null) return;
+            stateMachine.sendMessage(
+                    AvrcpControllerStateMachine.MESSAGE_PROCESS_IMAGE_EVICTED, imageUuid);
+        }
     }
 
     public AvrcpControllerService(Context ctx) {
@@ -100,6 +100,7 @@ class AvrcpControllerStateMachine extends StateMachine {
 
     // 400->499 Events for Cover Artwork
     static final int MESSAGE_PROCESS_IMAGE_DOWNLOADED = 400;
+    static final int MESSAGE_PROCESS_IMAGE_EVICTED = 401;
 
     /*
      * Base value for absolute volume from JNI
@@ -587,7 +588,7 @@ class AvrcpControllerStateMachine extends StateMachine {
                 case MESSAGE_PROCESS_TRACK_CHANGED:
                     AvrcpItem track = (AvrcpItem) msg.obj;
                     AvrcpItem previousTrack = mAddressedPlayer.getCurrentTrack();
-                    downloadImageIfNeeded(track);
+                    downloadImageIfNeeded(track, false);
                     mAddressedPlayer.updateCurrentTrack(track);
                     if (isActive()) {
                         BluetoothMediaBrowserService.onTrackChanged(track);
@@ -748,6 +749,10 @@ class AvrcpControllerStateMachine extends StateMachine {
 
                     return true;
 
+                case MESSAGE_PROCESS_IMAGE_EVICTED:
+                    processImageEvicted((String) msg.obj);
+                    return true;
+
                 case DISCONNECT:
                     transitionTo(mDisconnecting);
                     return true;
@@ -757,6 +762,31 @@ class AvrcpControllerStateMachine extends StateMachine {
             }
         }
 
+        private void processImageEvicted(String uuid) {
+            debug("Connected: Image " + uuid + " was evicted from storage");
+            if (mCoverArtManager == null || mCoverArtManager.getImageUri(mDevice, uuid) != null) {
+                // Downloaded again since it was evicted
+                return;
+            }
+
+            // The current track needs its artwork right away, download it again
+            AvrcpItem track = mAddressedPlayer.getCurrentTrack();
+            if (track != null && uuid.equals(track.getCoverArtUuid())) {
+                track.setCoverArtLocation(null);
+                if (isActive()) {
+                    BluetoothMediaBrowserService.onTrackChanged(track);
+                }
+                downloadImageIfNeeded(track, false);
+            }
+
+            // Browsed items are left without artwork until their folder is fetched again.
+            // Downloading all of them again right away could keep them evicting each other.
+            Set<BrowseTree.BrowseNode> nodes = mBrowseTree.notifyImageEvicted(uuid);
+            for (BrowseTree.BrowseNode node : nodes) {
+                notifyNodeChanged(node);
+            }
+        }
+
         private void processPlayItem(BrowseTree.BrowseNode node) {
             if (node == null) {
                 warn("Connected: Invalid item to play");
@@ -886,11 +916,16 @@ class AvrcpControllerStateMachine extends StateMachine {
                     int endIndicator = mBrowseNode.getExpectedChildren() - 1;
                     debug("GetFolderList: End " + endIndicator + " received " + folderList.size());
 
-                    // Queue up image download if the item has an image and we don't have it yet
-                    // Only do this if the feature is enabled.
+                    // Queue up image prefetch if the item has an image and we don't have it yet
+                    // Only do this if the feature is enabled, or if this is the Now Playing list
+                    // and the images of its upcoming tracks are to be prefetched.
+                    boolean prefetchImages =
+                            shouldDownloadBrowsedImages()
+                                    || (mBrowseNode.isNowPlaying()
+                                            && shouldPrefetchNowPlayingImages());
                     for (AvrcpItem track : folderList) {
-                        if (shouldDownloadBrowsedImages()) {
-                            downloadImageIfNeeded(track);
+                        if (prefetchImages) {
+                            downloadImageIfNeeded(track, true);
                         } else {
                             track.setCoverArtUuid(null);
                         }
@@ -1265,7 +1300,15 @@ class AvrcpControllerStateMachine extends StateMachine {
         return mService.getResources().getBoolean(R.bool.avrcp_controller_cover_art_browsed_images);
     }
 
-    private void downloadImageIfNeeded(AvrcpItem track) {
+    private boolean shouldPrefetchNowPlayingImages() {
+        return mCoverArtManager != null && mCoverArtManager.shouldPrefetchNowPlayingImages();
+    }
+
+    /**
+     * Download the image of an item if it isn't stored yet. Prefetches wait for the images needed
+     * right away, such as the image of the current track.
+     */
+    private void downloadImageIfNeeded(AvrcpItem track, boolean prefetch) {
         if (mCoverArtManager == null) return;
         String uuid = track.getCoverArtUuid();
         Uri imageUri = null;
@@ -1273,6 +1316,8 @@ class AvrcpControllerStateMachine extends StateMachine {
             imageUri = mCoverArtManager.getImageUri(mDevice, uuid);
             if (imageUri != null) {
                 track.setCoverArtLocation(imageUri);
+            } else if (prefetch) {
+                mCoverArtManager.prefetchImage(mDevice, uuid);
             } else {
                 mCoverArtManager.downloadImage(mDevice, uuid);
             }
@@ -1512,6 +1557,8 @@ class AvrcpControllerStateMachine extends StateMachine {
                 return "MSG_AVRCP_SET_REPEAT";
             case MESSAGE_PROCESS_IMAGE_DOWNLOADED:
                 return "MESSAGE_PROCESS_IMAGE_DOWNLOADED";
+            case MESSAGE_PROCESS_IMAGE_EVICTED:
+                return "MESSAGE_PROCESS_IMAGE_EVICTED";
             default:
                 return "UNKNOWN_EVENT_ID_" + event;
         }
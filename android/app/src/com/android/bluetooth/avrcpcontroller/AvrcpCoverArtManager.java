@@ -23,8 +23,10 @@ import android.net.Uri;
 import android.os.SystemProperties;
 import android.util.Log;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.obex.ResponseCodes;
 
+import java.io.File;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -46,12 +48,17 @@ public class AvrcpCoverArtManager {
     public static final String SCHEME_NATIVE = "native";
     public static final String SCHEME_THUMBNAIL = "thumbnail";
 
+    // Whether the images of the Now Playing list are downloaded ahead of the tracks being played
+    public static final String AVRCP_CONTROLLER_COVER_ART_PREFETCH =
+            "persist.bluetooth.avrcpcontroller.BIP_PREFETCH_NOW_PLAYING";
+
     private final AvrcpControllerService mService;
     protected final Map<BluetoothDevice, AvrcpBipClient> mClients = new ConcurrentHashMap<>(1);
     private Map<BluetoothDevice, AvrcpBipSession> mBipSessions = new ConcurrentHashMap<>(1);
     private final AvrcpCoverArtStorage mCoverArtStorage;
     private final Callback mCallback;
     private final String mDownloadScheme;
+    private final boolean mPrefetchNowPlaying;
 
     /**
      * An object representing an image download event. Contains the information necessary to
@@ -83,17 +90,27 @@ public class AvrcpCoverArtManager {
          * @param event The download event, containing the downloaded image's information
          */
         void onImageDownloadComplete(BluetoothDevice device, DownloadEvent event);
+
+        /**
+         * Notify of a downloaded image dropped from storage to make room for other images
+         *
+         * @param device The device the image handle belongs to
+         * @param imageUuid The UUID of the image, which must be downloaded again to be used
+         */
+        void onImageEvicted(BluetoothDevice device, String imageUuid);
     }
 
     /**
      * A thread-safe collection of BIP connection specific imformation meant to be cleared each time
      * a client disconnects from the Target's BIP OBEX server.
      *
-     * <p>Currently contains the mapping of image handles seen to assigned UUIDs.
+     * <p>Currently contains the mapping of image handles seen to assigned UUIDs, and the downloads
+     * in progress.
      */
     private static class AvrcpBipSession {
         private Map<String, String> mUuids = new ConcurrentHashMap<>(1); /* handle -> UUID */
         private Map<String, String> mHandles = new ConcurrentHashMap<>(1); /* UUID -> handle */
+        private Map<String, Boolean> mDownloads = new ConcurrentHashMap<>(1); /* UUID -> prefetch */
 
         public String getHandleUuid(String handle) {
             if (!isValidImageHandle(handle)) return null;
@@ -111,6 +128,31 @@ public class AvrcpCoverArtManager {
         public void clearHandleUuids() {
             mUuids.clear();
             mHandles.clear();
+            mDownloads.clear();
+        }
+
+        /** Track a new download, returning false if the image is already being downloaded */
+        public boolean startDownload(String uuid, boolean prefetch) {
+            return mDownloads.putIfAbsent(uuid, prefetch) == null;
+        }
+
+        /** Turn a prefetch into a regular download, returning false if it isn't a prefetch */
+        public boolean prioritizeDownload(String uuid) {
+            return mDownloads.replace(uuid, true, false);
+        }
+
+        /** Returns whether the download is a prefetch, or null if it is not in progress */
+        public Boolean getDownload(String uuid) {
+            return mDownloads.get(uuid);
+        }
+
+        /** Returns whether the download was in progress */
+        public boolean finishDownload(String uuid) {
+            return mDownloads.remove(uuid) != null;
+        }
+
+        public int getDownloadCount() {
+            return mDownloads.size();
         }
 
         public Set<String> getSessionHandles() {
@@ -139,9 +181,17 @@ public class AvrcpCoverArtManager {
 
     public AvrcpCoverArtManager(AvrcpControllerService service, Callback callback) {
         mService = service;
-        mCoverArtStorage = new AvrcpCoverArtStorage(mService);
         mCallback = callback;
+        mCoverArtStorage =
+                new AvrcpCoverArtStorage(
+                        mService,
+                        (device, imageUuid) -> {
+                            debug(device + ": Image '" + imageUuid + "' evicted from storage");
+                            if (mCallback != null) mCallback.onImageEvicted(device, imageUuid);
+                        });
         mDownloadScheme = SystemProperties.get(AVRCP_CONTROLLER_COVER_ART_SCHEME, SCHEME_THUMBNAIL);
+        mPrefetchNowPlaying =
+                SystemProperties.getBoolean(AVRCP_CONTROLLER_COVER_ART_PREFETCH, false);
         mCoverArtStorage.clear();
     }
 
@@ -155,13 +205,18 @@ public class AvrcpCoverArtManager {
     public synchronized boolean connect(BluetoothDevice device, int psm) {
         debug("Connect " + device + ", psm: " + psm);
         if (mClients.containsKey(device)) return false;
-        AvrcpBipClient client = new AvrcpBipClient(device, psm, new BipClientCallback(device));
+        AvrcpBipClient client = createClient(device, psm);
         client.connectAsync();
         mClients.put(device, client);
         mBipSessions.put(device, new AvrcpBipSession());
         return true;
     }
 
+    @VisibleForTesting
+    AvrcpBipClient createClient(BluetoothDevice device, int psm) {
+        return new AvrcpBipClient(device, psm, new BipClientCallback(device));
+    }
+
     /**
      * Refresh the OBEX session of a connected client
      *
@@ -280,6 +335,14 @@ public class AvrcpCoverArtManager {
         return null;
     }
 
+    /**
+     * Whether the images of the Now Playing list should be downloaded before their tracks play,
+     * even when browsed images are not downloaded otherwise.
+     */
+    public boolean shouldPrefetchNowPlayingImages() {
+        return mPrefetchNowPlaying;
+    }
+
     /**
      * Download an image from a remote device and make it findable via the given uri
      *
@@ -295,7 +358,31 @@ public class AvrcpCoverArtManager {
      * @return A Uri that will be assign to the image once the download is complete
      */
     public Uri downloadImage(BluetoothDevice device, String imageUuid) {
-        debug("Download Image - device: " + device + ", Handle: " + imageUuid);
+        return requestImage(device, imageUuid, false);
+    }
+
+    /**
+     * Download an image ahead of it being needed, such as the image of an upcoming track
+     *
+     * <p>Prefetches are only sent to the remote device once no image is waited for, so they never
+     * delay the download of the image of the current track.
+     *
+     * @param device The remote Bluetooth device you wish to download from
+     * @param imageUuid The UUID associated with the image you wish to download
+     * @return A Uri that will be assign to the image once the download is complete
+     */
+    public Uri prefetchImage(BluetoothDevice device, String imageUuid) {
+        return requestImage(device, imageUuid, true);
+    }
+
+    private Uri requestImage(BluetoothDevice device, String imageUuid, boolean prefetch) {
+        debug(
+                "Download Image - device: "
+                        + device
+                        + ", Handle: "
+                        + imageUuid
+                        + ", prefetch: "
+                        + prefetch);
         AvrcpBipClient client = getClient(device);
         if (client == null) {
             error("Cannot download an image. No client is available.");
@@ -312,12 +399,28 @@ public class AvrcpCoverArtManager {
         // invokes the download image function after we're returned the properties. If we already
         // have the image, GetImageProperties returns true but does not start a download.
         String imageHandle = getHandleForUuid(device, imageUuid);
-        if (imageHandle == null) {
+        AvrcpBipSession session = getSession(device);
+        if (imageHandle == null || session == null) {
             warn("No handle for UUID");
             return null;
         }
-        boolean status = client.getImageProperties(imageHandle);
-        if (!status) return null;
+
+        // Only one download per image is in progress at a time. If the image is needed while it
+        // is being prefetched, the requests of the prefetch are sent ahead of the other ones.
+        synchronized (session) {
+            if (session.startDownload(imageUuid, prefetch)) {
+                boolean status = client.getImageProperties(imageHandle, prefetch);
+                if (!status) {
+                    session.finishDownload(imageUuid);
+                    return null;
+                }
+            } else if (!prefetch && session.prioritizeDownload(imageUuid)) {
+                debug("Image is being prefetched, prioritize it");
+                client.prioritizeRequests(imageHandle);
+            } else {
+                debug("Image is already being downloaded");
+            }
+        }
 
         // Return the Uri that the caller should use to retrieve the image
         return AvrcpCoverArtProvider.getImageUri(device, imageUuid);
@@ -333,6 +436,26 @@ public class AvrcpCoverArtManager {
         return mCoverArtStorage.getImage(device, imageUuid);
     }
 
+    /**
+     * Get the file a specific downloaded image is stored encoded in, if it exists
+     *
+     * @param device The remote Bluetooth device associated with the image
+     * @param imageUuid The UUID associated with the image you wish to retrieve
+     */
+    public File getImageFile(BluetoothDevice device, String imageUuid) {
+        return mCoverArtStorage.getImageFile(device, imageUuid);
+    }
+
+    /**
+     * Determine if a specific downloaded image exists, without decoding it
+     *
+     * @param device The remote Bluetooth device associated with the image
+     * @param imageUuid The UUID associated with the image
+     */
+    public boolean doesImageExist(BluetoothDevice device, String imageUuid) {
+        return mCoverArtStorage.doesImageExist(device, imageUuid);
+    }
+
     /**
      * Remove a specific downloaded image if it exists
      *
@@ -424,7 +547,15 @@ public class AvrcpCoverArtManager {
         @Override
         public void onGetImagePropertiesComplete(
                 int status, String imageHandle, BipImageProperties properties) {
+            AvrcpBipSession session = getSession(mDevice);
+            String imageUuid = getUuidForHandle(mDevice, imageHandle);
+            if (session == null || imageUuid == null || session.getDownload(imageUuid) == null) {
+                // The session was reset since the download started
+                debug(mDevice + ": Image for handle '" + imageHandle + "' no longer needed");
+                return;
+            }
             if (status != ResponseCodes.OBEX_HTTP_OK || properties == null) {
+                session.finishDownload(imageUuid);
                 warn(
                         mDevice
                                 + ": GetImageProperties() failed - Handle: "
@@ -443,13 +574,23 @@ public class AvrcpCoverArtManager {
                                 + ": Could not getImage() for "
                                 + imageHandle
                                 + " because client has disconnected.");
+                session.finishDownload(imageUuid);
                 return;
             }
-            client.getImage(imageHandle, descriptor);
+            synchronized (session) {
+                Boolean prefetch = session.getDownload(imageUuid);
+                if (prefetch == null
+                        || !client.getImage(imageHandle, descriptor, prefetch.booleanValue())) {
+                    session.finishDownload(imageUuid);
+                }
+            }
         }
 
         @Override
         public void onGetImageComplete(int status, String imageHandle, BipImage image) {
+            String imageUuid = getUuidForHandle(mDevice, imageHandle);
+            AvrcpBipSession session = getSession(mDevice);
+            if (session != null && imageUuid != null) session.finishDownload(imageUuid);
             if (status != ResponseCodes.OBEX_HTTP_OK) {
                 warn(
                         mDevice
@@ -459,7 +600,6 @@ public class AvrcpCoverArtManager {
                                 + status);
                 return;
             }
-            String imageUuid = getUuidForHandle(mDevice, imageHandle);
             debug(
                     mDevice
                             + ": Received image data for handle: "
@@ -482,11 +622,13 @@ public class AvrcpCoverArtManager {
     public String toString() {
         StringBuilder sb = new StringBuilder("CoverArtManager:\n");
         sb.append("    Download Scheme: ").append(mDownloadScheme).append("\n");
+        sb.append("    Prefetch Now Playing: ").append(mPrefetchNowPlaying).append("\n");
         for (BluetoothDevice device : mClients.keySet()) {
             AvrcpBipClient client = getClient(device);
             AvrcpBipSession session = getSession(device);
             sb.append("    ").append(device).append(":").append("\n");
             sb.append("      Client: ").append(client.toString()).append("\n");
+            sb.append("      Downloads: ").append(session.getDownloadCount()).append("\n");
             sb.append("      Handles: ").append("\n");
             for (String handle : session.getSessionHandles()) {
                 sb.append("        ")
@@ -497,6 +639,7 @@ public class AvrcpCoverArtManager {
             }
         }
         sb.append("  ").append(mCoverArtStorage.toString());
+        sb.append("  ").append(mCoverArtStorage.dumpCacheStats()).append("\n");
         return sb.toString();
     }
 
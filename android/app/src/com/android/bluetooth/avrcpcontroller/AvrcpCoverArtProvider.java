@@ -26,6 +26,7 @@ import android.net.Uri;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -89,9 +90,32 @@ public class AvrcpCoverArtProvider extends ContentProvider {
         return manager.getImage(device, imageUuid);
     }
 
+    private AvrcpCoverArtManager getCoverArtManager() {
+        AvrcpControllerService service = AvrcpControllerService.getAvrcpControllerService();
+        if (service == null) return null;
+        return service.getCoverArtManager();
+    }
+
+    private File getImageFile(BluetoothDevice device, String imageUuid) {
+        AvrcpCoverArtManager manager = getCoverArtManager();
+        if (manager == null) return null;
+        return manager.getImageFile(device, imageUuid);
+    }
+
     private ParcelFileDescriptor getImageDescriptor(BluetoothDevice device, String imageUuid)
             throws FileNotFoundException, IOException {
         debug("getImageDescriptor(" + device + ", " + imageUuid + ")");
+
+        // Images stored encoded are provided as is, without decoding and re-encoding them
+        File file = getImageFile(device, imageUuid);
+        if (file != null) {
+            try {
+                return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+            } catch (FileNotFoundException e) {
+                debug("Stored image was removed, fall back to the decoded image");
+            }
+        }
+
         Bitmap image = getImage(device, imageUuid);
         if (image == null) {
             debug("Could not get requested image");
@@ -105,7 +129,10 @@ public class AvrcpCoverArtProvider extends ContentProvider {
                         try {
                             FileOutputStream fout =
                                     new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
-                            image.compress(Bitmap.CompressFormat.PNG, 100, fout);
+                            image.compress(
+                                    AvrcpCoverArtStorage.IMAGE_FORMAT,
+                                    AvrcpCoverArtStorage.IMAGE_QUALITY,
+                                    fout);
                             fout.flush();
                             fout.close();
                         } catch (IOException e) {
@@ -179,7 +206,17 @@ public class AvrcpCoverArtProvider extends ContentProvider {
 
     @Override
     public String getType(Uri uri) {
-        return null;
+        if (uri == null || mAdapter == null) return null;
+        String address = uri.getQueryParameter("device");
+        String imageUuid = uri.getQueryParameter("uuid");
+        if (address == null || !BluetoothAdapter.checkBluetoothAddress(address)) return null;
+
+        AvrcpCoverArtManager manager = getCoverArtManager();
+        if (manager == null) return null;
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        return manager.doesImageExist(device, imageUuid)
+                ? AvrcpCoverArtStorage.IMAGE_MIME_TYPE
+                : null;
     }
 
     private static void debug(String msg) {
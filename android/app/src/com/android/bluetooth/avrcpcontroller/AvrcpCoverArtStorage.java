@@ -19,30 +19,149 @@ package com.android.bluetooth.avrcpcontroller;
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.util.Log;
+import android.util.LruCache;
 
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
-/** An abstraction of the cover art image storage mechanism. */
+/**
+ * An abstraction of the cover art image storage mechanism.
+ *
+ * <p>Images are stored in two tiers. Every image is written encoded to a cache directory on disk,
+ * and the most recently used images are also kept decoded in memory, up to a byte budget. Images
+ * that no longer fit in memory are decoded again from disk when requested. The disk tier has a
+ * budget as well, past which the least recently used images are dropped entirely.
+ *
+ * <p>Images are encoded as lossless WebP, rather than stored as they were received, so that only
+ * their pixels are kept: metadata and trailing data sent by the remote device are dropped.
+ */
 public class AvrcpCoverArtStorage {
     private static final String TAG = AvrcpCoverArtStorage.class.getSimpleName();
 
+    // About 50 thumbnails, or 5 native images of 600x600 pixels
+    @VisibleForTesting static final int MEMORY_CACHE_BYTES = 8 * 1024 * 1024;
+    @VisibleForTesting static final long DISK_CACHE_BYTES = 32 * 1024 * 1024;
+
+    private static final String CACHE_DIRECTORY = "avrcp_cover_art";
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+
+    static final Bitmap.CompressFormat IMAGE_FORMAT = Bitmap.CompressFormat.WEBP_LOSSLESS;
+    static final String IMAGE_MIME_TYPE = "image/webp";
+    // For lossless formats, trades encoding speed for a smaller file
+    static final int IMAGE_QUALITY = 75;
+
     private final Context mContext;
+    private final Callback mCallback;
+    private final File mCacheDirectory;
+    private final long mDiskCacheBytes;
 
     /* Each device gets its own place to land images. This makes it easier to clean things up on a
      * per device basis. This also allows us to be confident that acting on one device will not
      * impact the images of another.
      *
-     * The "landing place" is simply a map that will direct a given UUID to the proper bitmap image
+     * The "landing place" is simply the set of UUIDs of the images stored for the device, whether
+     * they are in memory, on disk or both.
      */
-    private final Map<BluetoothDevice, Map<String, Bitmap>> mDeviceImages =
-            new ConcurrentHashMap<>(1);
+    private final Map<BluetoothDevice, Set<String>> mDeviceImages = new ConcurrentHashMap<>(1);
+
+    private final LruCache<ImageKey, Bitmap> mMemoryCache;
+
+    private final Object mDiskLock = new Object();
+
+    /* Sizes of the images stored on disk, in access order */
+    @GuardedBy("mDiskLock")
+    private final LinkedHashMap<ImageKey, Long> mDiskImages = new LinkedHashMap<>(16, 0.75f, true);
+
+    @GuardedBy("mDiskLock")
+    private long mDiskBytes = 0;
+
+    /** Identifies an image across both storage tiers */
+    private static final class ImageKey {
+        final BluetoothDevice mDevice;
+        final String mUuid;
+
+        ImageKey(BluetoothDevice device, String uuid) {
+            mDevice = device;
+            mUuid = uuid;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ImageKey)) return false;
+            ImageKey other = (ImageKey) o;
+            return mDevice.equals(other.mDevice) && mUuid.equals(other.mUuid);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mDevice, mUuid);
+        }
+
+        @Override
+        public String toString() {
+            return mDevice + "/" + mUuid;
+        }
+    }
+
+    interface Callback {
+        /**
+         * Notify of an image dropped from storage because it no longer fit in the cache budgets.
+         * Items still pointing at the image can no longer be resolved by the provider.
+         *
+         * @param device The device the image belongs to
+         * @param imageUuid The UUID that identifies the image
+         */
+        void onImageEvicted(BluetoothDevice device, String imageUuid);
+    }
 
     /** Create and initialize this Cover Art storage interface */
     public AvrcpCoverArtStorage(Context context) {
+        this(context, null);
+    }
+
+    /** Create and initialize this Cover Art storage interface */
+    public AvrcpCoverArtStorage(Context context, Callback callback) {
+        this(context, callback, MEMORY_CACHE_BYTES, DISK_CACHE_BYTES);
+    }
+
+    @VisibleForTesting
+    AvrcpCoverArtStorage(
+            Context context, Callback callback, int memoryCacheBytes, long diskCacheBytes) {
         mContext = context;
+        mCallback = callback;
+        mCacheDirectory = new File(context.getCacheDir(), CACHE_DIRECTORY);
+        mDiskCacheBytes = diskCacheBytes;
+        mMemoryCache =
+                new LruCache<ImageKey, Bitmap>(memoryCacheBytes) {
+                    @Override
+                    protected int sizeOf(ImageKey key, Bitmap image) {
+                        return image.getAllocationByteCount();
+                    }
+
+                    @Override
+                    protected void entryRemoved(
+                            boolean evicted, ImageKey key, Bitmap oldImage, Bitmap newImage) {
+                        if (evicted && !isOnDisk(key)) {
+                            debug("Image '" + key + "' evicted from memory and not on disk");
+                            forgetImage(key);
+                        }
+                    }
+                };
     }
 
     /**
@@ -53,23 +172,55 @@ public class AvrcpCoverArtStorage {
      */
     public boolean doesImageExist(BluetoothDevice device, String imageUuid) {
         if (device == null || imageUuid == null || "".equals(imageUuid)) return false;
-        Map<String, Bitmap> images = mDeviceImages.get(device);
+        Set<String> images = mDeviceImages.get(device);
         if (images == null) return false;
-        return images.containsKey(imageUuid);
+        return images.contains(imageUuid);
     }
 
     /**
      * Retrieve an image file from storage
      *
+     * <p>If the image is no longer held in memory, it is decoded from disk.
+     *
      * @param device - The device the images was downloaded from
      * @param imageUuid - The UUID that identifies the image
      * @return A Bitmap object of the image
      */
     public Bitmap getImage(BluetoothDevice device, String imageUuid) {
-        if (device == null || imageUuid == null || "".equals(imageUuid)) return null;
-        Map<String, Bitmap> images = mDeviceImages.get(device);
-        if (images == null) return null;
-        return images.get(imageUuid);
+        if (!doesImageExist(device, imageUuid)) return null;
+        ImageKey key = new ImageKey(device, imageUuid);
+        Bitmap image = mMemoryCache.get(key);
+        if (image != null) return image;
+
+        image = readImageFromDisk(key);
+        if (image == null) {
+            warn("Image '" + key + "' is neither in memory nor on disk");
+            forgetImage(key);
+            return null;
+        }
+        mMemoryCache.put(key, image);
+
+        // The image may have been removed while it was being decoded
+        if (!doesImageExist(device, imageUuid)) {
+            mMemoryCache.remove(key);
+        }
+        return image;
+    }
+
+    /**
+     * Retrieve the file an image is stored encoded in
+     *
+     * @param device - The device the images was downloaded from
+     * @param imageUuid - The UUID that identifies the image
+     * @return The file holding the encoded image, or null if the image is not stored on disk
+     */
+    public File getImageFile(BluetoothDevice device, String imageUuid) {
+        if (!doesImageExist(device, imageUuid)) return null;
+        ImageKey key = new ImageKey(device, imageUuid);
+        synchronized (mDiskLock) {
+            if (mDiskImages.get(key) == null) return null;
+        }
+        return getFile(key);
     }
 
     /**
@@ -86,16 +237,19 @@ public class AvrcpCoverArtStorage {
             return null;
         }
 
-        // A Thread safe way of creating a new UUID->Image set for a device. The putIfAbsent()
-        // function will return the value of the key if it wasn't absent. If it returns null, then
-        // there was no value there and we are to assume the reference we passed in was added.
-        Map<String, Bitmap> newImageSet = new ConcurrentHashMap<String, Bitmap>(1);
-        Map<String, Bitmap> images = mDeviceImages.putIfAbsent(device, newImageSet);
+        // A Thread safe way of creating a new UUID set for a device. The putIfAbsent() function
+        // will return the value of the key if it wasn't absent. If it returns null, then there was
+        // no value there and we are to assume the reference we passed in was added.
+        Set<String> newImageSet = ConcurrentHashMap.newKeySet(1);
+        Set<String> images = mDeviceImages.putIfAbsent(device, newImageSet);
         if (images == null) {
-            newImageSet.put(imageUuid, image);
-        } else {
-            images.put(imageUuid, image);
+            images = newImageSet;
         }
+        images.add(imageUuid);
+
+        ImageKey key = new ImageKey(device, imageUuid);
+        writeImageToDisk(key, image);
+        mMemoryCache.put(key, image);
 
         Uri uri = AvrcpCoverArtProvider.getImageUri(device, imageUuid);
         mContext.getContentResolver().notifyChange(uri, null);
@@ -113,7 +267,7 @@ public class AvrcpCoverArtStorage {
         debug("Removing image '" + imageUuid + "' from device " + device);
         if (device == null || imageUuid == null || "".equals(imageUuid)) return;
 
-        Map<String, Bitmap> images = mDeviceImages.get(device);
+        Set<String> images = mDeviceImages.get(device);
         if (images == null) {
             return;
         }
@@ -123,6 +277,10 @@ public class AvrcpCoverArtStorage {
             mDeviceImages.remove(device);
         }
 
+        ImageKey key = new ImageKey(device, imageUuid);
+        mMemoryCache.remove(key);
+        deleteImageFromDisk(key);
+
         debug("Image '" + imageUuid + "' removed for device '" + device + "'");
     }
 
@@ -134,22 +292,48 @@ public class AvrcpCoverArtStorage {
     public void removeImagesForDevice(BluetoothDevice device) {
         if (device == null) return;
         debug("Remove cover art for device " + device);
-        mDeviceImages.remove(device);
+        Set<String> images = mDeviceImages.remove(device);
+        if (images == null) return;
+        for (String uuid : images) {
+            ImageKey key = new ImageKey(device, uuid);
+            mMemoryCache.remove(key);
+            deleteImageFromDisk(key);
+        }
+        deleteRecursively(getDeviceDirectory(device));
     }
 
     /** Clear the entirety of storage */
     public void clear() {
         debug("Clearing all images");
         mDeviceImages.clear();
+        mMemoryCache.evictAll();
+        synchronized (mDiskLock) {
+            mDiskImages.clear();
+            mDiskBytes = 0;
+            // Also drops the images left over by a previous run
+            deleteRecursively(mCacheDirectory);
+        }
+    }
+
+    @VisibleForTesting
+    boolean isInMemory(BluetoothDevice device, String imageUuid) {
+        return mMemoryCache.snapshot().containsKey(new ImageKey(device, imageUuid));
+    }
+
+    @VisibleForTesting
+    long getDiskBytes() {
+        synchronized (mDiskLock) {
+            return mDiskBytes;
+        }
     }
 
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder("CoverArtStorage:\n");
         for (BluetoothDevice device : mDeviceImages.keySet()) {
-            Map<String, Bitmap> images = mDeviceImages.get(device);
+            Set<String> images = mDeviceImages.get(device);
             sb.append("  ").append(device).append(" (").append(images.size()).append("):");
-            for (String uuid : images.keySet()) {
+            for (String uuid : images) {
                 sb.append("\n    ").append(uuid);
             }
             sb.append("\n");
@@ -157,7 +341,132 @@ public class AvrcpCoverArtStorage {
         return sb.toString();
     }
 
+    /** Dump the usage of the storage tiers */
+    public String dumpCacheStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Memory: ")
+                .append(mMemoryCache.size())
+                .append("/")
+                .append(mMemoryCache.maxSize())
+                .append(" bytes, hits=")
+                .append(mMemoryCache.hitCount())
+                .append(", misses=")
+                .append(mMemoryCache.missCount())
+                .append(", evictions=")
+                .append(mMemoryCache.evictionCount());
+        synchronized (mDiskLock) {
+            sb.append("\nDisk: ")
+                    .append(mDiskBytes)
+                    .append("/")
+                    .append(mDiskCacheBytes)
+                    .append(" bytes, images=")
+                    .append(mDiskImages.size());
+        }
+        return sb.toString();
+    }
+
+    private File getDeviceDirectory(BluetoothDevice device) {
+        return new File(mCacheDirectory, device.getAddress());
+    }
+
+    private File getFile(ImageKey key) {
+        return new File(getDeviceDirectory(key.mDevice), key.mUuid);
+    }
+
+    private boolean isOnDisk(ImageKey key) {
+        synchronized (mDiskLock) {
+            return mDiskImages.containsKey(key);
+        }
+    }
+
+    /** Drop an image from the index once it is neither in memory nor on disk */
+    private void forgetImage(ImageKey key) {
+        Set<String> images = mDeviceImages.get(key.mDevice);
+        if (images != null && images.remove(key.mUuid) && mCallback != null) {
+            mCallback.onImageEvicted(key.mDevice, key.mUuid);
+        }
+    }
+
+    private Bitmap readImageFromDisk(ImageKey key) {
+        File file = getFile(key);
+        synchronized (mDiskLock) {
+            // Refresh the position of the image in the disk tier
+            if (mDiskImages.get(key) == null) return null;
+        }
+        return BitmapFactory.decodeFile(file.getPath());
+    }
+
+    private void writeImageToDisk(ImageKey key, Bitmap image) {
+        File file = getFile(key);
+        File temporaryFile = new File(file.getPath() + TEMPORARY_FILE_SUFFIX);
+        file.getParentFile().mkdirs();
+
+        // Written aside and renamed so that a reader never decodes a partially written image
+        try (FileOutputStream out = new FileOutputStream(temporaryFile)) {
+            if (!image.compress(IMAGE_FORMAT, IMAGE_QUALITY, out)) {
+                throw new IOException("Could not encode image");
+            }
+        } catch (IOException e) {
+            warn("Image '" + key + "' kept in memory only, could not write it: " + e);
+            temporaryFile.delete();
+            deleteImageFromDisk(key);
+            return;
+        }
+
+        List<ImageKey> evictedImages = new ArrayList<>();
+        synchronized (mDiskLock) {
+            if (!temporaryFile.renameTo(file)) {
+                warn("Image '" + key + "' kept in memory only, could not rename it");
+                temporaryFile.delete();
+                return;
+            }
+            Long previousSize = mDiskImages.put(key, file.length());
+            mDiskBytes += file.length() - (previousSize != null ? previousSize : 0);
+
+            // Evict the least recently used images, but always keep the newest one
+            Iterator<Map.Entry<ImageKey, Long>> it = mDiskImages.entrySet().iterator();
+            while (mDiskBytes > mDiskCacheBytes && mDiskImages.size() > 1) {
+                Map.Entry<ImageKey, Long> eldest = it.next();
+                it.remove();
+                mDiskBytes -= eldest.getValue();
+                getFile(eldest.getKey()).delete();
+                evictedImages.add(eldest.getKey());
+            }
+        }
+
+        for (ImageKey evictedKey : evictedImages) {
+            debug("Image '" + evictedKey + "' evicted from disk");
+            if (!mMemoryCache.snapshot().containsKey(evictedKey)) {
+                forgetImage(evictedKey);
+            }
+        }
+    }
+
+    private void deleteImageFromDisk(ImageKey key) {
+        synchronized (mDiskLock) {
+            Long size = mDiskImages.remove(key);
+            if (size != null) {
+                mDiskBytes -= size;
+            }
+            getFile(key).delete();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
     private void debug(String msg) {
         Log.d(TAG, msg);
     }
+
+    private void warn(String msg) {
+        Log.w(TAG, msg);
+    }
 }
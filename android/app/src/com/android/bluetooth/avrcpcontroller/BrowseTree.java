@@ -497,6 +497,20 @@ public class BrowseTree {
      */
     synchronized Set<BrowseNode> notifyImageDownload(String uuid, Uri uri) {
         Log.d(TAG, "Received downloaded image handle to cascade to BrowseNodes using it");
+        return setCoverArtUri(uuid, uri);
+    }
+
+    /**
+     * Removes the Uri of an image dropped from storage from all tree nodes using that specific
+     * handle, so that clients do not try to load it. Returns the set of parent nodes that have
+     * children impacted so clients can be notified of the change.
+     */
+    synchronized Set<BrowseNode> notifyImageEvicted(String uuid) {
+        Log.d(TAG, "Received evicted image handle to cascade to BrowseNodes using it");
+        return setCoverArtUri(uuid, null);
+    }
+
+    private synchronized Set<BrowseNode> setCoverArtUri(String uuid, Uri uri) {
         List<String> nodes = getNodesUsingCoverArt(uuid);
         HashSet<BrowseNode> parents = new HashSet<BrowseNode>();
         for (String nodeId : nodes) {
@@ -22,7 +22,6 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothProfile;
 import android.bluetooth.BluetoothUuid;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.ParcelUuid;
 import android.sysprop.BluetoothProperties;
@@ -31,6 +30,8 @@ import android.util.Log;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.btservice.ProfileService;
+import com.android.bluetooth.btservice.SerialQueuePool;
+import com.android.bluetooth.btservice.SerialQueuePool.SerialQueue;
 import com.android.bluetooth.btservice.storage.DatabaseManager;
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
@@ -44,14 +45,11 @@ import java.util.Map;
 public class BatteryService extends ProfileService {
     private static final String TAG = BatteryService.class.getSimpleName();
 
-    // Timeout for state machine thread join, to prevent potential ANR.
-    private static final int SM_THREAD_JOIN_TIMEOUT_MS = 1_000;
-
     private static BatteryService sBatteryService;
 
     private final AdapterService mAdapterService;
     private final DatabaseManager mDatabaseManager;
-    private final HandlerThread mStateMachinesThread;
+    private final SerialQueue mStateMachinesQueue;
     private final Handler mHandler;
 
     @GuardedBy("mStateMachines")
@@ -68,8 +66,8 @@ public class BatteryService extends ProfileService {
         mDatabaseManager = requireNonNull(mAdapterService.getDatabase());
         mHandler = new Handler(requireNonNull(looper));
 
-        mStateMachinesThread = new HandlerThread("BatteryService.StateMachines");
-        mStateMachinesThread.start();
+        mStateMachinesQueue =
+                SerialQueuePool.getInstance().acquire("BatteryService.StateMachines");
         setBatteryService(this);
     }
 
@@ -96,12 +94,7 @@ public class BatteryService extends ProfileService {
             mStateMachines.clear();
         }
 
-        try {
-            mStateMachinesThread.quitSafely();
-            mStateMachinesThread.join(SM_THREAD_JOIN_TIMEOUT_MS);
-        } catch (InterruptedException e) {
-            // Do not rethrow as we are shutting down anyway
-        }
+        mStateMachinesQueue.release();
 
         mHandler.removeCallbacksAndMessages(null);
     }
@@ -350,7 +343,7 @@ public class BatteryService extends ProfileService {
             }
 
             Log.d(TAG, "Creating a new state machine for " + device);
-            sm = new BatteryStateMachine(this, device, mStateMachinesThread.getLooper());
+            sm = new BatteryStateMachine(this, device, mStateMachinesQueue.getLooper());
             mStateMachines.put(device, sm);
             return sm;
         }
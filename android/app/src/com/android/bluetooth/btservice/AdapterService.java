@@ -108,6 +108,7 @@ import android.os.Process;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.DeviceConfig;
@@ -211,6 +212,7 @@ public class AdapterService extends Service {
     private static final int MESSAGE_PROFILE_SERVICE_REGISTERED = 2;
     private static final int MESSAGE_PROFILE_SERVICE_UNREGISTERED = 3;
     private static final int MESSAGE_PREFERRED_AUDIO_PROFILES_AUDIO_FRAMEWORK_TIMEOUT = 4;
+    private static final int MESSAGE_START_DEFERRED_PROFILE_SERVICES = 5;
 
     private static final int CONTROLLER_ENERGY_UPDATE_TIMEOUT_MILLIS = 100;
     private static final int MIN_ADVT_INSTANCES_FOR_MA = 5;
@@ -247,6 +249,10 @@ public class AdapterService extends Service {
     private final Map<Integer, ProfileService> mStartedProfiles = new HashMap<>();
     private final List<ProfileService> mRegisteredProfiles = new ArrayList<>();
     private final List<ProfileService> mRunningProfiles = new ArrayList<>();
+    private final ProfileStartupOrchestrator mProfileStartup =
+            new ProfileStartupOrchestrator(
+                    SystemProperties.getBoolean(
+                            ProfileStartupOrchestrator.PARALLEL_START_ENABLED_PROPERTY, false));
 
     private final List<DiscoveringPackage> mDiscoveringPackages = new ArrayList<>();
 
@@ -507,6 +513,10 @@ public class AdapterService extends Service {
                                 BluetoothStatusCodes.ERROR_TIMEOUT);
                     }
                     break;
+                case MESSAGE_START_DEFERRED_PROFILE_SERVICES:
+                    Log.v(TAG, "handleMessage() - MESSAGE_START_DEFERRED_PROFILE_SERVICES");
+                    startDeferredProfileServices();
+                    break;
             }
         }
 
@@ -543,7 +553,7 @@ public class AdapterService extends Service {
                     if (GattService.class.getSimpleName().equals(profile.getName())
                             && !Flags.scanManagerRefactor()) {
                         mNativeInterface.enable();
-                    } else if (mRegisteredProfiles.size() == Config.getSupportedProfiles().length
+                    } else if (mRegisteredProfiles.size() == getNumOfProfilesStartedWithAdapter()
                             && mRegisteredProfiles.size() == mRunningProfiles.size()) {
                         mAdapterProperties.onBluetoothReady();
                         setScanMode(SCAN_MODE_CONNECTABLE, "processProfileServiceStateChanged");
@@ -934,6 +944,16 @@ public class AdapterService extends Service {
         return true;
     }
 
+    /**
+     * Drops the SDP records of {@code device} for {@code uuid} cached by {@link #sdpSearch}.
+     * Profiles call it when connecting with these records failed.
+     */
+    public void invalidateSdpCache(BluetoothDevice device, ParcelUuid uuid) {
+        if (mSdpManager != null) {
+            mSdpManager.invalidateCache(device, uuid);
+        }
+    }
+
     @RequiresPermission(BLUETOOTH_CONNECT)
     void bringUpBle() {
         Log.d(TAG, "bleOnProcessStart()");
@@ -1485,6 +1505,8 @@ public class AdapterService extends Service {
             mAdapterSuspend = null;
         }
 
+        mProfileStartup.cleanup();
+
         mPreferredAudioProfilesCallbacks.kill();
 
         mBluetoothQualityReportReadyCallbacks.kill();
@@ -1546,18 +1568,9 @@ public class AdapterService extends Service {
     void setProfileServiceState(int profileId, int state) {
         if (state == BluetoothAdapter.STATE_ON) {
             if (!mStartedProfiles.containsKey(profileId)) {
-                ProfileService profileService = PROFILE_CONSTRUCTORS.get(profileId).apply(this);
-                mStartedProfiles.put(profileId, profileService);
-                addProfile(profileService);
+                ProfileService profileService = createProfileService(profileId);
                 profileService.start();
-                profileService.setAvailable(true);
-                // With `Flags.scanManagerRefactor()` GattService initialization is pushed back to
-                // `ON` state instead of `BLE_ON`. Here we ensure mGattService is set prior
-                // to other Profiles using it.
-                if (profileId == BluetoothProfile.GATT && Flags.scanManagerRefactor()) {
-                    mGattService = GattService.getGattService();
-                }
-                onProfileServiceStateChanged(profileService, BluetoothAdapter.STATE_ON);
+                onProfileServiceStarted(profileId, profileService);
             } else {
                 Log.e(
                         TAG,
@@ -1586,7 +1599,56 @@ public class AdapterService extends Service {
         }
     }
 
+    private final ProfileStartupOrchestrator.ProfileStarter mProfileStarter =
+            new ProfileStartupOrchestrator.ProfileStarter() {
+                @Override
+                public ProfileService create(int profileId) {
+                    return createProfileService(profileId);
+                }
+
+                @Override
+                public void start(ProfileService profileService) {
+                    profileService.start();
+                }
+
+                @Override
+                public void onStarted(int profileId, ProfileService profileService) {
+                    onProfileServiceStarted(profileId, profileService);
+                }
+
+                @Override
+                public void abort(int profileId, ProfileService profileService) {
+                    mStartedProfiles.remove(profileId);
+                    profileService.stop();
+                    removeProfile(profileService);
+                    profileService.cleanup();
+                    if (profileService.getBinder() != null) {
+                        profileService.getBinder().cleanup();
+                    }
+                }
+            };
+
+    // Constructs and registers a profile service, which is then started
+    private ProfileService createProfileService(int profileId) {
+        ProfileService profileService = PROFILE_CONSTRUCTORS.get(profileId).apply(this);
+        mStartedProfiles.put(profileId, profileService);
+        addProfile(profileService);
+        return profileService;
+    }
+
+    private void onProfileServiceStarted(int profileId, ProfileService profileService) {
+        profileService.setAvailable(true);
+        // With `Flags.scanManagerRefactor()` GattService initialization is pushed back to
+        // `ON` state instead of `BLE_ON`. Here we ensure mGattService is set prior
+        // to other Profiles using it.
+        if (profileId == BluetoothProfile.GATT && Flags.scanManagerRefactor()) {
+            mGattService = GattService.getGattService();
+        }
+        onProfileServiceStateChanged(profileService, BluetoothAdapter.STATE_ON);
+    }
+
     private void setAllProfileServiceStates(int[] profileIds, int state) {
+        List<Integer> profilesToStart = new ArrayList<>();
         for (int profileId : profileIds) {
             if (!Flags.scanManagerRefactor()) {
                 // TODO(b/228875190): GATT is assumed supported and treated differently as part of
@@ -1595,7 +1657,49 @@ public class AdapterService extends Service {
                     continue;
                 }
             }
-            setProfileServiceState(profileId, state);
+            if (mProfileStartup.isDeferred(profileId) && !mStartedProfiles.containsKey(profileId)) {
+                // Started after the others, see startDeferredProfileServices()
+                continue;
+            }
+            if (state == BluetoothAdapter.STATE_ON && !mStartedProfiles.containsKey(profileId)) {
+                profilesToStart.add(profileId);
+            } else {
+                setProfileServiceState(profileId, state);
+            }
+        }
+        if (!profilesToStart.isEmpty()) {
+            mProfileStartup.startProfiles(profilesToStart, mProfileStarter);
+            // Handled after the state changes of the profile services just started
+            mHandler.sendEmptyMessage(MESSAGE_START_DEFERRED_PROFILE_SERVICES);
+        }
+    }
+
+    // Number of supported profile services started when the adapter turns on.
+    private int getNumOfProfilesStartedWithAdapter() {
+        int count = 0;
+        for (int profileId : Config.getSupportedProfiles()) {
+            if (!mProfileStartup.isDeferred(profileId)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Starts the deferred profile services, once the ones started with the adapter are.
+    private void startDeferredProfileServices() {
+        int state = getState();
+        if (state != BluetoothAdapter.STATE_TURNING_ON && state != BluetoothAdapter.STATE_ON) {
+            return;
+        }
+        boolean started = false;
+        for (int profileId : Config.getSupportedProfiles()) {
+            if (mProfileStartup.isDeferred(profileId) && !mStartedProfiles.containsKey(profileId)) {
+                mProfileStartup.startDeferredProfile(profileId, mProfileStarter);
+                started = true;
+            }
+        }
+        if (started) {
+            initProfileServices();
         }
     }
 
@@ -1972,7 +2076,7 @@ public class AdapterService extends Service {
      * @return true if all bluetooth profile services running, false otherwise
      */
     private boolean profileServicesRunning() {
-        if (mRegisteredProfiles.size() == Config.getSupportedProfiles().length
+        if (mRegisteredProfiles.size() >= getNumOfProfilesStartedWithAdapter()
                 && mRegisteredProfiles.size() == mRunningProfiles.size()) {
             return true;
         }
@@ -5118,6 +5222,9 @@ public class AdapterService extends Service {
      * @param device remote device of interest
      */
     public void deviceUuidUpdated(BluetoothDevice device) {
+        if (mSdpManager != null) {
+            mSdpManager.invalidateCache(device);
+        }
         // Notify BondStateMachine for SDP complete / UUID changed.
         Message msg = mBondStateMachine.obtainMessage(BondStateMachine.UUID_UPDATE);
         msg.obj = device;
@@ -6262,6 +6369,9 @@ public class AdapterService extends Service {
 
     /** Handle Bluetooth profiles when bond state changes with a {@link BluetoothDevice} */
     public void handleBondStateChanged(BluetoothDevice device, int fromState, int toState) {
+        if (mSdpManager != null) {
+            mSdpManager.invalidateCache(device);
+        }
         if (mA2dpService != null && mA2dpService.isAvailable()) {
             mA2dpService.handleBondStateChanged(device, fromState, toState);
         }
@@ -6562,6 +6672,10 @@ public class AdapterService extends Service {
             writer.println("  " + BluetoothProfile.getProfileName(profileId));
         }
         writer.println();
+        mProfileStartup.dump(writer);
+        writer.println();
+        SerialQueuePool.getInstance().dump(writer);
+        writer.println();
 
         mAdapterStateMachine.dump(fd, writer, args);
 
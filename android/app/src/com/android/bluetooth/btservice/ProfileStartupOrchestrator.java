@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.bluetooth.BluetoothProfile;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Starts the profile services when the adapter turns on.
+ *
+ * <p>Profiles are started in waves: a profile is only started once the profiles it relies on are
+ * started. When enabled, the profiles of a wave known to bind their handlers to an explicit looper
+ * are started in parallel, the others on the calling thread. Rarely used client profiles are
+ * started after the others. Profiles are always constructed, registered and made available on the
+ * calling thread, in this order around their start.
+ *
+ * <p>When disabled, profiles are started one after the other in the given order, as before.
+ * Start latencies are recorded in both cases.
+ */
+class ProfileStartupOrchestrator {
+    private static final String TAG = ProfileStartupOrchestrator.class.getSimpleName();
+
+    static final String PARALLEL_START_ENABLED_PROPERTY =
+            "bluetooth.profile.parallel_start.enabled";
+
+    private static final int MAX_STARTUP_THREADS = 4;
+
+    // Profiles started once all the listed profiles, when part of the same startup, are started.
+    private static final Map<Integer, int[]> DEPENDENCIES =
+            Map.ofEntries(
+                    Map.entry(BluetoothProfile.AVRCP, new int[] {BluetoothProfile.A2DP}),
+                    Map.entry(
+                            BluetoothProfile.AVRCP_CONTROLLER,
+                            new int[] {BluetoothProfile.A2DP_SINK}),
+                    Map.entry(BluetoothProfile.BATTERY, new int[] {BluetoothProfile.GATT}),
+                    Map.entry(
+                            BluetoothProfile.CSIP_SET_COORDINATOR,
+                            new int[] {BluetoothProfile.GATT}),
+                    Map.entry(
+                            BluetoothProfile.HAP_CLIENT,
+                            new int[] {
+                                BluetoothProfile.GATT, BluetoothProfile.CSIP_SET_COORDINATOR
+                            }),
+                    Map.entry(BluetoothProfile.HEARING_AID, new int[] {BluetoothProfile.GATT}),
+                    Map.entry(
+                            BluetoothProfile.LE_AUDIO,
+                            new int[] {
+                                BluetoothProfile.GATT,
+                                BluetoothProfile.CSIP_SET_COORDINATOR,
+                                BluetoothProfile.VOLUME_CONTROL
+                            }),
+                    Map.entry(
+                            BluetoothProfile.LE_AUDIO_BROADCAST_ASSISTANT,
+                            new int[] {BluetoothProfile.GATT, BluetoothProfile.LE_AUDIO}),
+                    Map.entry(BluetoothProfile.LE_CALL_CONTROL, new int[] {BluetoothProfile.GATT}),
+                    Map.entry(BluetoothProfile.MCP_SERVER, new int[] {BluetoothProfile.GATT}),
+                    Map.entry(BluetoothProfile.VOLUME_CONTROL, new int[] {BluetoothProfile.GATT}));
+
+    // Profiles which can be started on a worker thread: their handlers are bound
+    // to an explicit looper, never to the one of the thread starting them. Any other profile,
+    // including a new one, is started on the calling thread. The worker threads have no looper,
+    // so a profile of this list starting to create a Handler on its starting thread fails right
+    // away instead of running its messages on a startup thread.
+    private static final Set<Integer> WORKER_THREAD_PROFILES =
+            Set.of(
+                    BluetoothProfile.A2DP,
+                    BluetoothProfile.A2DP_SINK,
+                    BluetoothProfile.AVRCP_CONTROLLER,
+                    BluetoothProfile.BATTERY,
+                    BluetoothProfile.CSIP_SET_COORDINATOR,
+                    BluetoothProfile.GATT,
+                    BluetoothProfile.HAP_CLIENT,
+                    BluetoothProfile.HEADSET,
+                    BluetoothProfile.HEADSET_CLIENT,
+                    BluetoothProfile.HEARING_AID,
+                    BluetoothProfile.HID_DEVICE,
+                    BluetoothProfile.LE_AUDIO,
+                    BluetoothProfile.LE_AUDIO_BROADCAST_ASSISTANT,
+                    BluetoothProfile.LE_CALL_CONTROL,
+                    BluetoothProfile.MAP_CLIENT,
+                    BluetoothProfile.PAN,
+                    BluetoothProfile.PBAP_CLIENT,
+                    BluetoothProfile.VOLUME_CONTROL);
+
+    // Profiles started once the others are, off the path of the adapter turning on. Only client
+    // profiles, which are not used before the application connects them: server profiles have to
+    // accept incoming connections as soon as the adapter is on.
+    private static final Set<Integer> DEFERRED_PROFILES = Set.of(BluetoothProfile.MAP_CLIENT);
+
+    private final boolean mEnabled;
+
+    @GuardedBy("mStartLatencies")
+    private final Map<Integer, Long> mStartLatencies = new LinkedHashMap<>();
+
+    @GuardedBy("mStartLatencies")
+    private long mLastStartupMillis = -1;
+
+    private ExecutorService mExecutor;
+
+    /**
+     * The steps of starting a profile service. All but {@link #start} run on the calling thread.
+     */
+    interface ProfileStarter {
+        /** Constructs and registers a profile service. */
+        ProfileService create(int profileId);
+
+        /** Starts a profile service. May be called on a worker thread. */
+        void start(ProfileService profileService);
+
+        /** Makes a started profile service available. */
+        void onStarted(int profileId, ProfileService profileService);
+
+        /** Stops and unregisters a profile service started with one which failed to start. */
+        void abort(int profileId, ProfileService profileService);
+    }
+
+    ProfileStartupOrchestrator(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /** Returns true if {@code profileId} is started after the profiles started with the adapter. */
+    boolean isDeferred(int profileId) {
+        return mEnabled && DEFERRED_PROFILES.contains(profileId);
+    }
+
+    /**
+     * Starts the given profiles. Started profiles are made available in the order of {@code
+     * profileIds} within a wave.
+     *
+     * <p>If a profile fails to start, its failure is thrown once the other profiles of its wave
+     * started in parallel with it are aborted.
+     */
+    void startProfiles(List<Integer> profileIds, ProfileStarter starter) {
+        long startMillis = SystemClock.uptimeMillis();
+        if (!mEnabled) {
+            for (int profileId : profileIds) {
+                startOnCallingThread(profileId, starter);
+            }
+        } else {
+            for (List<Integer> wave : getWaves(profileIds)) {
+                startWave(wave, starter);
+            }
+        }
+        synchronized (mStartLatencies) {
+            mLastStartupMillis = SystemClock.uptimeMillis() - startMillis;
+        }
+    }
+
+    /** Starts a deferred profile, on the calling thread. */
+    void startDeferredProfile(int profileId, ProfileStarter starter) {
+        Log.i(TAG, "Starting deferred " + BluetoothProfile.getProfileName(profileId));
+        startOnCallingThread(profileId, starter);
+    }
+
+    void cleanup() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    private void startOnCallingThread(int profileId, ProfileStarter starter) {
+        ProfileService profileService = starter.create(profileId);
+        timedStart(profileId, profileService, starter);
+        starter.onStarted(profileId, profileService);
+    }
+
+    private void startWave(List<Integer> wave, ProfileStarter starter) {
+        Map<Integer, ProfileService> profileServices = new HashMap<>();
+        Map<Integer, Future<?>> futures = new LinkedHashMap<>();
+        Set<Integer> started = new HashSet<>();
+        RuntimeException failure = null;
+        for (int profileId : wave) {
+            try {
+                ProfileService profileService = starter.create(profileId);
+                profileServices.put(profileId, profileService);
+                if (WORKER_THREAD_PROFILES.contains(profileId)) {
+                    futures.put(
+                            profileId,
+                            getExecutor()
+                                    .submit(() -> timedStart(profileId, profileService, starter)));
+                } else {
+                    timedStart(profileId, profileService, starter);
+                    started.add(profileId);
+                }
+            } catch (RuntimeException e) {
+                // Same outcome as when starting one after the other: the next ones are not
+                // constructed
+                failure = e;
+                break;
+            }
+        }
+        for (Map.Entry<Integer, Future<?>> entry : futures.entrySet()) {
+            try {
+                waitFor(entry.getValue());
+                started.add(entry.getKey());
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            for (int profileId : wave) {
+                if (started.contains(profileId)) {
+                    starter.abort(profileId, profileServices.get(profileId));
+                }
+            }
+            throw failure;
+        }
+        for (int profileId : wave) {
+            starter.onStarted(profileId, profileServices.get(profileId));
+        }
+    }
+
+    private static void waitFor(Future<?> future) {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            // Same outcome as a profile failing to start on the calling thread
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void timedStart(int profileId, ProfileService profileService, ProfileStarter starter) {
+        long startMillis = SystemClock.uptimeMillis();
+        starter.start(profileService);
+        long latency = SystemClock.uptimeMillis() - startMillis;
+        Log.d(TAG, BluetoothProfile.getProfileName(profileId) + " started in " + latency + "ms");
+        synchronized (mStartLatencies) {
+            mStartLatencies.put(profileId, latency);
+        }
+    }
+
+    private ExecutorService getExecutor() {
+        if (mExecutor == null) {
+            int threads =
+                    Math.min(MAX_STARTUP_THREADS, Runtime.getRuntime().availableProcessors());
+            mExecutor =
+                    Executors.newFixedThreadPool(
+                            Math.max(1, threads), r -> new Thread(r, "BluetoothProfileStartup"));
+        }
+        return mExecutor;
+    }
+
+    /**
+     * Splits {@code profileIds} in waves, each profile coming after the profiles of the list it
+     * depends on. Profiles keep their relative order within a wave.
+     */
+    @VisibleForTesting
+    static List<List<Integer>> getWaves(List<Integer> profileIds) {
+        List<List<Integer>> waves = new ArrayList<>();
+        Set<Integer> started = new HashSet<>();
+        List<Integer> pending = new ArrayList<>(profileIds);
+        while (!pending.isEmpty()) {
+            List<Integer> wave = new ArrayList<>();
+            for (int profileId : pending) {
+                if (areDependenciesStarted(profileId, profileIds, started)) {
+                    wave.add(profileId);
+                }
+            }
+            if (wave.isEmpty()) {
+                // Dependency cycle, should never happen: start what is left one by one
+                Log.e(TAG, "Dependency cycle between " + pending);
+                wave.add(pending.get(0));
+            }
+            pending.removeAll(wave);
+            started.addAll(wave);
+            waves.add(wave);
+        }
+        return waves;
+    }
+
+    private static boolean areDependenciesStarted(
+            int profileId, List<Integer> profileIds, Set<Integer> started) {
+        for (int dependency : DEPENDENCIES.getOrDefault(profileId, new int[0])) {
+            if (profileIds.contains(dependency) && !started.contains(dependency)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("Profile Service Startup:");
+        writer.println("  Parallel: " + mEnabled);
+        synchronized (mStartLatencies) {
+            writer.println("  Last startup: " + mLastStartupMillis + "ms");
+            for (Map.Entry<Integer, Long> entry : mStartLatencies.entrySet()) {
+                writer.println(
+                        "  "
+                                + BluetoothProfile.getProfileName(entry.getKey())
+                                + ": "
+                                + entry.getValue()
+                                + "ms");
+            }
+        }
+        if (mEnabled) {
+            StringBuilder deferred = new StringBuilder("  Deferred:");
+            for (int profileId : DEFERRED_PROFILES) {
+                deferred.append(' ').append(BluetoothProfile.getProfileName(profileId));
+            }
+            writer.println(deferred);
+        }
+    }
+}
@@ -60,6 +60,7 @@ import com.android.modules.utils.build.SdkLevel;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -103,6 +104,13 @@ public class RemoteDevices {
     private static final int HFP_BATTERY_CHARGE_INDICATOR_4 = 88;
     private static final int HFP_BATTERY_CHARGE_INDICATOR_5 = 100;
 
+    // Device properties cached by the getters of BluetoothDevice, see invalidatePropertyCaches()
+    private static final int PROPERTY_NAME = 1 << 0;
+    private static final int PROPERTY_TYPE = 1 << 1;
+    private static final int PROPERTY_ALIAS = 1 << 2;
+    private static final int PROPERTY_BLUETOOTH_CLASS = 1 << 3;
+    private static final int PROPERTY_UUIDS = 1 << 4;
+
     private final Handler mHandler;
     private final Handler mMainHandler;
 
@@ -181,9 +189,14 @@ public class RemoteDevices {
         // Unregister Handler and stop all queued messages.
         mMainHandler.removeCallbacksAndMessages(null);
 
+        int changedProperties = 0;
         synchronized (mDevices) {
             debugLog("reset(): Broadcasting ACL_DISCONNECTED");
 
+            for (DeviceProperties deviceProperties : mDevices.values()) {
+                changedProperties |= getChangedProperties(deviceProperties, null);
+            }
+
             mDevices.forEach(
                     (address, deviceProperties) -> {
                         BluetoothDevice bluetoothDevice = deviceProperties.getDevice();
@@ -215,6 +228,7 @@ public class RemoteDevices {
 
         mDualDevicesMap.clear();
         mDeviceQueue.clear();
+        invalidatePropertyCaches(changedProperties);
     }
 
     @Override
@@ -227,11 +241,15 @@ public class RemoteDevices {
             return null;
         }
 
+        return getDeviceProperties(device.getAddress());
+    }
+
+    private DeviceProperties getDeviceProperties(String deviceAddress) {
         synchronized (mDevices) {
-            String address = mDualDevicesMap.get(device.getAddress());
+            String address = mDualDevicesMap.get(deviceAddress);
             // If the device is not in the dual map, use its original address
             if (address == null || mDevices.get(address) == null) {
-                address = device.getAddress();
+                address = deviceAddress;
             }
             return mDevices.get(address);
         }
@@ -317,9 +335,11 @@ public class RemoteDevices {
                         }
                     }
                     debugLog("Removing device " + deleteKey + " from property map");
-                    mDevices.remove(deleteKey);
+                    invalidatePropertyCaches(
+                            getChangedProperties(mDevices.remove(deleteKey), null));
                 }
             }
+            // The properties of a new device are the ones of an unknown device, no cache changes
             return prop;
         }
     }
@@ -366,8 +386,12 @@ public class RemoteDevices {
          */
         void setName(String name) {
             synchronized (mObject) {
+                if (Objects.equals(mName, name)) {
+                    return;
+                }
                 this.mName = name;
             }
+            BluetoothDevice.invalidateBluetoothGetNameCache();
         }
 
         /**
@@ -469,8 +493,12 @@ public class RemoteDevices {
          */
         void setBluetoothClass(int bluetoothClass) {
             synchronized (mObject) {
+                if (mBluetoothClass == bluetoothClass) {
+                    return;
+                }
                 this.mBluetoothClass = bluetoothClass;
             }
+            BluetoothDevice.invalidateBluetoothGetBluetoothClassCache();
         }
 
         /**
@@ -519,8 +547,12 @@ public class RemoteDevices {
          */
         void setUuids(ParcelUuid[] uuids) {
             synchronized (mObject) {
+                if (Arrays.equals(mUuids, uuids)) {
+                    return;
+                }
                 this.mUuids = uuids;
             }
+            BluetoothDevice.invalidateBluetoothGetUuidsCache();
         }
 
         /**
@@ -592,8 +624,12 @@ public class RemoteDevices {
         @VisibleForTesting
         void setDeviceType(int deviceType) {
             synchronized (mObject) {
+                if (mDeviceType == deviceType) {
+                    return;
+                }
                 this.mDeviceType = deviceType;
             }
+            BluetoothDevice.invalidateBluetoothGetTypeCache();
         }
 
         /**
@@ -610,7 +646,12 @@ public class RemoteDevices {
          */
         void setAlias(BluetoothDevice device, String mAlias) {
             synchronized (mObject) {
+                boolean changed = !Objects.equals(this.mAlias, mAlias);
                 this.mAlias = mAlias;
+                // Before the broadcast, so that receivers read the new alias
+                if (changed) {
+                    BluetoothDevice.invalidateBluetoothGetAliasCache();
+                }
                 mAdapterService
                         .getNative()
                         .setDeviceProperty(
@@ -629,9 +670,13 @@ public class RemoteDevices {
          * @param newBondState the mBondState to set
          */
         void setBondState(int newBondState) {
+            int changedProperties = 0;
             synchronized (mObject) {
                 this.mBondState = newBondState;
                 if (newBondState == BluetoothDevice.BOND_NONE) {
+                    changedProperties =
+                            (mUuids != null ? PROPERTY_UUIDS : 0)
+                                    | (mAlias != null ? PROPERTY_ALIAS : 0);
                     /* Clearing the Uuids local copy when the device is unpaired. If not cleared,
                     cachedBluetoothDevice issued a connect using the local cached copy of uuids,
                     without waiting for the ACTION_UUID intent.
@@ -640,6 +685,7 @@ public class RemoteDevices {
                     mAlias = null;
                 }
             }
+            invalidatePropertyCaches(changedProperties);
         }
 
         /**
@@ -1210,8 +1256,12 @@ public class RemoteDevices {
         deviceProperties.setIsConsolidated(true);
         deviceProperties.setDeviceType(BluetoothDevice.DEVICE_TYPE_DUAL);
         deviceProperties.setIdentityAddress(Utils.getAddressStringFromByte(secondaryAddress));
-        mDualDevicesMap.put(
-                deviceProperties.getIdentityAddress(), Utils.getAddressStringFromByte(mainAddress));
+        // The identity address now resolves to the properties of the device
+        String identityAddress = deviceProperties.getIdentityAddress();
+        DeviceProperties identityProperties = getDeviceProperties(identityAddress);
+        mDualDevicesMap.put(identityAddress, Utils.getAddressStringFromByte(mainAddress));
+        invalidatePropertyCaches(
+                getChangedProperties(identityProperties, getDeviceProperties(identityAddress)));
     }
 
     /**
@@ -1446,14 +1496,85 @@ public class RemoteDevices {
             }
         }
 
+        DeviceProperties removed;
         synchronized (mDevices) {
-            mDevices.remove(address);
+            removed = mDevices.remove(address);
             mDeviceQueue.remove(address); // Remove from LRU cache
 
             // Remove from dual mode device mappings
             mDualDevicesMap.values().remove(address);
             mDualDevicesMap.remove(address);
         }
+        invalidatePropertyCaches(getChangedProperties(removed, null));
+    }
+
+    /**
+     * Returns the properties cached by {@link BluetoothDevice} which differ between two devices,
+     * either of which is null when not known.
+     */
+    private static int getChangedProperties(DeviceProperties before, DeviceProperties after) {
+        if (before == after) {
+            return 0;
+        }
+        int changed = 0;
+        if (!Objects.equals(nameOf(before), nameOf(after))) {
+            changed |= PROPERTY_NAME;
+        }
+        if (typeOf(before) != typeOf(after)) {
+            changed |= PROPERTY_TYPE;
+        }
+        if (!Objects.equals(aliasOf(before), aliasOf(after))) {
+            changed |= PROPERTY_ALIAS;
+        }
+        if (bluetoothClassOf(before) != bluetoothClassOf(after)) {
+            changed |= PROPERTY_BLUETOOTH_CLASS;
+        }
+        if (!Arrays.equals(uuidsOf(before), uuidsOf(after))) {
+            changed |= PROPERTY_UUIDS;
+        }
+        return changed;
+    }
+
+    // The values returned by the getters of this class for a device, or for an unknown one if null
+    private static String nameOf(DeviceProperties deviceProp) {
+        return deviceProp != null ? deviceProp.getName() : null;
+    }
+
+    private static int typeOf(DeviceProperties deviceProp) {
+        return deviceProp != null
+                ? deviceProp.getDeviceType()
+                : BluetoothDevice.DEVICE_TYPE_UNKNOWN;
+    }
+
+    private static String aliasOf(DeviceProperties deviceProp) {
+        return deviceProp != null ? deviceProp.getAlias() : null;
+    }
+
+    private static int bluetoothClassOf(DeviceProperties deviceProp) {
+        return deviceProp != null ? deviceProp.getBluetoothClass() : 0;
+    }
+
+    private static ParcelUuid[] uuidsOf(DeviceProperties deviceProp) {
+        return deviceProp != null ? deviceProp.getUuids() : null;
+    }
+
+    /** Invalidates the {@link BluetoothDevice} caches of the given {@code PROPERTY_*} flags. */
+    private static void invalidatePropertyCaches(int properties) {
+        if ((properties & PROPERTY_NAME) != 0) {
+            BluetoothDevice.invalidateBluetoothGetNameCache();
+        }
+        if ((properties & PROPERTY_TYPE) != 0) {
+            BluetoothDevice.invalidateBluetoothGetTypeCache();
+        }
+        if ((properties & PROPERTY_ALIAS) != 0) {
+            BluetoothDevice.invalidateBluetoothGetAliasCache();
+        }
+        if ((properties & PROPERTY_BLUETOOTH_CLASS) != 0) {
+            BluetoothDevice.invalidateBluetoothGetBluetoothClassCache();
+        }
+        if ((properties & PROPERTY_UUIDS) != 0) {
+            BluetoothDevice.invalidateBluetoothGetUuidsCache();
+        }
     }
 
     void onBondStateChange(BluetoothDevice device, int newState) {
@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.Log;
+import android.util.Printer;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out the serial queues used by profile services and their state machines.
+ *
+ * <p>Each queue runs its work in order, on a single thread at a time. By default every queue gets
+ * a dedicated {@link HandlerThread}, as the profiles used to create. When {@link
+ * #SHARED_QUEUES_ENABLED_PROPERTY} is set, queues are instead spread over at most {@link
+ * #MAX_SHARED_THREADS} threads, so that idle profiles do not each pin a thread.
+ *
+ * <p>The latency of the work posted to a queue, i.e. how late it runs compared to when it was
+ * posted, and its backlog are reported in dumpsys. As state machines post to the looper of a queue
+ * through handlers of their own, the threads of shared queues also account for all the messages
+ * they run, see {@link LooperStats}. So do dedicated threads when {@link
+ * #LOOPER_STATS_ENABLED_PROPERTY} is set.
+ */
+public class SerialQueuePool {
+    private static final String TAG = SerialQueuePool.class.getSimpleName();
+
+    public static final String SHARED_QUEUES_ENABLED_PROPERTY =
+            "bluetooth.profile.shared_queues.enabled";
+
+    public static final String LOOPER_STATS_ENABLED_PROPERTY =
+            "bluetooth.profile.serial_queue_stats.enabled";
+
+    @VisibleForTesting static final int MAX_SHARED_THREADS = 3;
+
+    private static final long THREAD_JOIN_TIMEOUT_MS = 1000;
+
+    @VisibleForTesting static final long PROBE_INTERVAL_MS = 1000;
+
+    private static SerialQueuePool sInstance;
+
+    private final boolean mShared;
+    private final boolean mLooperStatsEnabled;
+    private final int mMaxSharedThreads;
+
+    @GuardedBy("mQueues")
+    private final List<SerialQueue> mQueues = new ArrayList<>();
+
+    @GuardedBy("mQueues")
+    private final List<HandlerThread> mSharedThreads = new ArrayList<>();
+
+    @GuardedBy("mQueues")
+    private final Map<HandlerThread, LooperStats> mLooperStats = new LinkedHashMap<>();
+
+    @GuardedBy("mQueues")
+    private int mNextSharedThreadId = 0;
+
+    /** Returns the pool shared by the whole Bluetooth process. */
+    public static synchronized SerialQueuePool getInstance() {
+        if (sInstance == null) {
+            sInstance =
+                    new SerialQueuePool(
+                            SystemProperties.getBoolean(SHARED_QUEUES_ENABLED_PROPERTY, false),
+                            SystemProperties.getBoolean(LOOPER_STATS_ENABLED_PROPERTY, false),
+                            MAX_SHARED_THREADS);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    SerialQueuePool(boolean shared, boolean looperStatsEnabled, int maxSharedThreads) {
+        mShared = shared;
+        mLooperStatsEnabled = shared || looperStatsEnabled;
+        mMaxSharedThreads = maxSharedThreads;
+    }
+
+    /**
+     * Creates a serial queue. The queue must be given back with {@link SerialQueue#release()} once
+     * no longer needed.
+     */
+    public SerialQueue acquire(String name) {
+        synchronized (mQueues) {
+            HandlerThread thread;
+            if (mShared) {
+                thread = getLeastUsedSharedThread();
+            } else {
+                thread = startThread(name);
+            }
+            SerialQueue queue = new SerialQueue(name, thread, mLooperStats.get(thread));
+            mQueues.add(queue);
+            Log.d(TAG, "acquire(" + name + ") on " + thread.getName());
+            return queue;
+        }
+    }
+
+    @GuardedBy("mQueues")
+    private HandlerThread getLeastUsedSharedThread() {
+        if (mSharedThreads.size() < mMaxSharedThreads) {
+            HandlerThread thread = startThread("BluetoothSerialQueue-" + mNextSharedThreadId++);
+            mSharedThreads.add(thread);
+            return thread;
+        }
+        HandlerThread leastUsed = null;
+        int leastUsers = Integer.MAX_VALUE;
+        for (HandlerThread thread : mSharedThreads) {
+            int users = getUserCount(thread);
+            if (users < leastUsers) {
+                leastUsed = thread;
+                leastUsers = users;
+            }
+        }
+        return leastUsed;
+    }
+
+    @GuardedBy("mQueues")
+    private HandlerThread startThread(String name) {
+        HandlerThread thread = new HandlerThread(name);
+        thread.start();
+        if (mLooperStatsEnabled) {
+            mLooperStats.put(thread, new LooperStats(thread.getLooper()));
+        }
+        return thread;
+    }
+
+    @GuardedBy("mQueues")
+    private int getUserCount(HandlerThread thread) {
+        int users = 0;
+        for (SerialQueue queue : mQueues) {
+            if (queue.mThread == thread) {
+                users++;
+            }
+        }
+        return users;
+    }
+
+    private void release(SerialQueue queue) {
+        HandlerThread threadToQuit = null;
+        synchronized (mQueues) {
+            if (!mQueues.remove(queue)) {
+                Log.w(TAG, "release(" + queue.mName + "): already released");
+                return;
+            }
+            queue.mReleased = true;
+            queue.mHandler.removeCallbacksAndMessages(null);
+            if (!mShared) {
+                threadToQuit = queue.mThread;
+                mLooperStats.remove(queue.mThread);
+            } else if (getUserCount(queue.mThread) == 0) {
+                mSharedThreads.remove(queue.mThread);
+                mLooperStats.remove(queue.mThread);
+                queue.mThread.quitSafely();
+            }
+        }
+        if (threadToQuit != null) {
+            threadToQuit.quitSafely();
+            try {
+                threadToQuit.join(THREAD_JOIN_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                // Do not rethrow as we are shutting down anyway
+            }
+        }
+    }
+
+    @VisibleForTesting
+    int getThreadCount() {
+        synchronized (mQueues) {
+            return mShared ? mSharedThreads.size() : mQueues.size();
+        }
+    }
+
+    public void dump(PrintWriter writer) {
+        synchronized (mQueues) {
+            writer.println("Serial Queues:");
+            writer.println("  Shared threads: " + (mShared ? mSharedThreads.size() : "disabled"));
+            for (SerialQueue queue : mQueues) {
+                queue.dump(writer);
+            }
+            for (Map.Entry<HandlerThread, LooperStats> entry : mLooperStats.entrySet()) {
+                entry.getValue().dump(writer, entry.getKey().getName());
+            }
+        }
+    }
+
+    /** Queue of work run in order. Also an {@link Executor} running on the queue. */
+    public final class SerialQueue implements Executor {
+        private final String mName;
+        private final HandlerThread mThread;
+        private final Handler mHandler;
+        private final LooperStats mLooperStats;
+
+        private final AtomicInteger mBacklog = new AtomicInteger();
+        private final AtomicInteger mMaxBacklog = new AtomicInteger();
+        private final AtomicLong mTaskCount = new AtomicLong();
+        private final AtomicLong mTotalLatencyMillis = new AtomicLong();
+        private final AtomicLong mMaxLatencyMillis = new AtomicLong();
+
+        private volatile boolean mReleased = false;
+
+        private SerialQueue(String name, HandlerThread thread, LooperStats looperStats) {
+            mName = name;
+            mThread = thread;
+            mHandler = new Handler(thread.getLooper());
+            mLooperStats = looperStats;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Returns the looper running the queue, to be used by the state machines of the profile.
+         * It may be shared with other queues: it must not be quit. The messages it runs are
+         * accounted for in the stats of the thread.
+         */
+        public Looper getLooper() {
+            return mThread.getLooper();
+        }
+
+        /**
+         * Returns a handler posting to the queue. Unlike the work given to {@link #execute}, its
+         * messages are only accounted for in the stats of the thread, if enabled.
+         */
+        public Handler getHandler() {
+            return mHandler;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            if (mReleased) {
+                throw new RejectedExecutionException(mName + " is released");
+            }
+            int backlog = mBacklog.incrementAndGet();
+            mMaxBacklog.accumulateAndGet(backlog, Math::max);
+            long postedMillis = SystemClock.uptimeMillis();
+            boolean posted =
+                    mHandler.post(
+                            () -> {
+                                long latency = SystemClock.uptimeMillis() - postedMillis;
+                                mBacklog.decrementAndGet();
+                                mTaskCount.incrementAndGet();
+                                mTotalLatencyMillis.addAndGet(latency);
+                                mMaxLatencyMillis.accumulateAndGet(latency, Math::max);
+                                task.run();
+                            });
+            if (!posted) {
+                mBacklog.decrementAndGet();
+                throw new RejectedExecutionException(mName + " is released");
+            }
+        }
+
+        /** Drops the pending work of the queue and releases its thread if no longer used. */
+        public void release() {
+            SerialQueuePool.this.release(this);
+        }
+
+        @VisibleForTesting
+        long getTaskCount() {
+            return mTaskCount.get();
+        }
+
+        /**
+         * Returns the stats of all the messages run by the thread of the queue, or null if not
+         * enabled.
+         */
+        @VisibleForTesting
+        LooperStats getLooperStats() {
+            return mLooperStats;
+        }
+
+        private void dump(PrintWriter writer) {
+            long tasks = mTaskCount.get();
+            writer.println(
+                    "  "
+                            + mName
+                            + " ("
+                            + mThread.getName()
+                            + "): tasks="
+                            + tasks
+                            + ", backlog="
+                            + mBacklog.get()
+                            + ", max backlog="
+                            + mMaxBacklog.get()
+                            + ", avg latency="
+                            + (tasks == 0 ? 0 : mTotalLatencyMillis.get() / tasks)
+                            + "ms, max latency="
+                            + mMaxLatencyMillis.get()
+                            + "ms");
+        }
+    }
+
+    /**
+     * Accounts for all the messages run by a thread, whichever handler posted them, using the
+     * message logging of its looper.
+     *
+     * <p>The looper does not tell when a message was due, so the latency is sampled instead: while
+     * the thread runs a message, a probe is posted at most every {@link #PROBE_INTERVAL_MS}, and
+     * how long it waits is the latency any message posted at that time gets. No probe is posted to
+     * an idle thread, so that it is not woken up.
+     */
+    @VisibleForTesting
+    static final class LooperStats implements Printer {
+        private final Handler mProbeHandler;
+
+        private final AtomicLong mMessageCount = new AtomicLong();
+        private final AtomicLong mBusyMillis = new AtomicLong();
+        private final AtomicLong mMaxMessageMillis = new AtomicLong();
+        private final AtomicLong mProbeCount = new AtomicLong();
+        private final AtomicLong mTotalLatencyMillis = new AtomicLong();
+        private final AtomicLong mMaxLatencyMillis = new AtomicLong();
+
+        // Only used on the thread of the looper
+        private long mDispatchStartMillis = -1;
+        private long mLastProbeMillis = Long.MIN_VALUE;
+        private boolean mProbePending = false;
+
+        LooperStats(Looper looper) {
+            mProbeHandler = new Handler(looper);
+            looper.setMessageLogging(this);
+        }
+
+        @Override
+        public void println(String x) {
+            long now = SystemClock.uptimeMillis();
+            if (x.startsWith(">>>>>")) {
+                mDispatchStartMillis = now;
+                maybePostProbe(now);
+            } else if (x.startsWith("<<<<<") && mDispatchStartMillis >= 0) {
+                long duration = now - mDispatchStartMillis;
+                mDispatchStartMillis = -1;
+                mMessageCount.incrementAndGet();
+                mBusyMillis.addAndGet(duration);
+                mMaxMessageMillis.accumulateAndGet(duration, Math::max);
+            }
+        }
+
+        private void maybePostProbe(long now) {
+            if (mProbePending
+                    || (mLastProbeMillis != Long.MIN_VALUE
+                            && now - mLastProbeMillis < PROBE_INTERVAL_MS)) {
+                return;
+            }
+            mProbePending = true;
+            mLastProbeMillis = now;
+            mProbeHandler.post(
+                    () -> {
+                        long latency = SystemClock.uptimeMillis() - now;
+                        mProbePending = false;
+                        mProbeCount.incrementAndGet();
+                        mTotalLatencyMillis.addAndGet(latency);
+                        mMaxLatencyMillis.accumulateAndGet(latency, Math::max);
+                    });
+        }
+
+        @VisibleForTesting
+        long getMessageCount() {
+            return mMessageCount.get();
+        }
+
+        @VisibleForTesting
+        long getProbeCount() {
+            return mProbeCount.get();
+        }
+
+        private void dump(PrintWriter writer, String threadName) {
+            long probes = mProbeCount.get();
+            writer.println(
+                    "  Thread "
+                            + threadName
+                            + ": messages="
+                            + mMessageCount.get()
+                            + ", busy="
+                            + mBusyMillis.get()
+                            + "ms, max message="
+                            + mMaxMessageMillis.get()
+                            + "ms, avg latency="
+                            + (probes == 0 ? 0 : mTotalLatencyMillis.get() / probes)
+                            + "ms, max latency="
+                            + mMaxLatencyMillis.get()
+                            + "ms");
+        }
+    }
+}
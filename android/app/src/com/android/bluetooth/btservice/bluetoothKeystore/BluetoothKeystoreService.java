@@ -23,6 +23,7 @@ import android.security.keystore.KeyProperties;
 import android.util.Log;
 
 import com.android.bluetooth.BluetoothKeystoreProto;
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 
 import com.google.protobuf.ByteString;
@@ -43,10 +44,12 @@ import java.security.UnrecoverableEntryException;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
 import java.util.Base64;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import javax.crypto.BadPaddingException;
@@ -84,18 +87,41 @@ public class BluetoothKeystoreService {
 
     private static final int BUFFER_SIZE = 400 * 10;
 
+    // Number of threads encrypting, and decrypting, the keys.
+    private static final int COMPUTE_THREAD_COUNT =
+            Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() / 2));
+    // Maximum number of keys a thread takes from its queue at once.
+    private static final int COMPUTE_BATCH_SIZE = 16;
+    // Queued once per compute thread to stop it. Compared by reference, so that it cannot be
+    // mistaken for a key.
+    private static final String STOP_COMPUTE = new String("stop");
+
     private static final int CONFIG_COMPARE_INIT = 0b00;
     private static final int CONFIG_FILE_COMPARE_PASS = 0b01;
     private int mCompareResult;
 
     private final BluetoothKeystoreNativeInterface mBluetoothKeystoreNativeInterface;
 
-    private ComputeDataThread mEncryptDataThread;
-    private ComputeDataThread mDecryptDataThread;
-    private Map<String, String> mNameEncryptKey = new HashMap<>();
-    private Map<String, String> mNameDecryptKey = new HashMap<>();
+    // Accessed by the compute threads as well, and only written with mKeyUpdateLock held.
+    private Map<String, String> mNameEncryptKey = new ConcurrentHashMap<>();
+    private Map<String, String> mNameDecryptKey = new ConcurrentHashMap<>();
+    // Held to write the key maps, so that a compute thread checking its source value and storing
+    // its result cannot interleave with an update.
+    private final Object mKeyUpdateLock = new Object();
     private BlockingQueue<String> mPendingDecryptKey = new LinkedBlockingQueue<>();
     private BlockingQueue<String> mPendingEncryptKey = new LinkedBlockingQueue<>();
+    private final ComputeDataThreads mEncryptDataThreads;
+    private final ComputeDataThreads mDecryptDataThreads;
+
+    // Lines last written to the encryption files, to skip rewriting them when unchanged.
+    private List<String> mSavedConfigEncryptedLines;
+    private List<String> mSavedKeyEncryptedLines;
+
+    @GuardedBy("this")
+    private SecretKey mSecretKey;
+
+    // Cipher instances are not thread safe, each compute thread keeps its own.
+    private final ThreadLocal<Cipher> mCipher = new ThreadLocal<>();
     private final List<String> mEncryptKeyNameList =
             List.of(
                     "LinkKey",
@@ -115,6 +141,8 @@ public class BluetoothKeystoreService {
         mBluetoothKeystoreNativeInterface = nativeInterface;
         mIsCommonCriteriaMode = isCommonCriteriaMode;
         mCompareResult = CONFIG_COMPARE_INIT;
+        mEncryptDataThreads = new ComputeDataThreads(true);
+        mDecryptDataThreads = new ComputeDataThreads(false);
         startThread();
     }
 
@@ -197,8 +225,10 @@ public class BluetoothKeystoreService {
     /** Clean up if Common Criteria mode is disabled. */
     @VisibleForTesting
     public void cleanupForCommonCriteriaModeDisable() {
-        mNameDecryptKey.clear();
-        mNameEncryptKey.clear();
+        synchronized (mKeyUpdateLock) {
+            mNameDecryptKey.clear();
+            mNameEncryptKey.clear();
+        }
     }
 
     /** Load decryption data from file. */
@@ -287,7 +317,7 @@ public class BluetoothKeystoreService {
                 cleanupAll();
             } else if (decryptedString.equals(CONFIG_FILE_HASH)) {
                 readHashFile(CONFIG_FILE_PATH, CONFIG_FILE_PREFIX);
-                mPendingEncryptKey.put(CONFIG_FILE_PREFIX);
+                mEncryptDataThreads.queue(CONFIG_FILE_PREFIX);
                 saveEncryptedKey();
             }
             return;
@@ -295,11 +325,15 @@ public class BluetoothKeystoreService {
 
         if (decryptedString.isEmpty()) {
             // clear the item by prefixString.
-            mNameDecryptKey.remove(prefixString);
-            mNameEncryptKey.remove(prefixString);
+            synchronized (mKeyUpdateLock) {
+                mNameDecryptKey.remove(prefixString);
+                mNameEncryptKey.remove(prefixString);
+            }
         } else {
-            mNameDecryptKey.put(prefixString, decryptedString);
-            mPendingEncryptKey.put(prefixString);
+            synchronized (mKeyUpdateLock) {
+                mNameDecryptKey.put(prefixString, decryptedString);
+            }
+            mEncryptDataThreads.queue(prefixString);
         }
     }
 
@@ -313,85 +347,88 @@ public class BluetoothKeystoreService {
     private void cleanupFile() throws IOException {
         Files.deleteIfExists(Paths.get(CONFIG_CHECKSUM_ENCRYPTION_PATH));
         Files.deleteIfExists(Paths.get(CONFIG_FILE_ENCRYPTION_PATH));
+        mSavedConfigEncryptedLines = null;
+        mSavedKeyEncryptedLines = null;
     }
 
     /** Clean up memory. */
     @VisibleForTesting
     public void cleanupMemory() {
         stopThread();
-        mNameEncryptKey.clear();
-        mNameDecryptKey.clear();
+        synchronized (mKeyUpdateLock) {
+            mNameEncryptKey.clear();
+            mNameDecryptKey.clear();
+        }
         startThread();
     }
 
-    /** Stop encrypt/decrypt thread. */
+    /** Stop encrypt/decrypt threads once their queue is empty. */
     @VisibleForTesting
     public void stopThread() {
         try {
-            if (mEncryptDataThread != null) {
-                mEncryptDataThread.setWaitQueueEmptyForStop();
-                mEncryptDataThread.join();
-            }
-            if (mDecryptDataThread != null) {
-                mDecryptDataThread.setWaitQueueEmptyForStop();
-                mDecryptDataThread.join();
-            }
+            mEncryptDataThreads.stop();
+            mDecryptDataThreads.stop();
         } catch (InterruptedException e) {
             reportBluetoothKeystoreException(e, "Interrupted while operating.");
         }
     }
 
     private void startThread() {
-        mEncryptDataThread = new ComputeDataThread(true);
-        mDecryptDataThread = new ComputeDataThread(false);
-        mEncryptDataThread.start();
-        mDecryptDataThread.start();
+        mEncryptDataThreads.start();
+        mDecryptDataThreads.start();
     }
 
     /** Get key value from the mNameDecryptKey. */
     public String getKey(String prefixString) {
         infoLog("getKey: prefix: " + prefixString);
-        if (!mNameDecryptKey.containsKey(prefixString)) {
+        if (prefixString == null || !mNameDecryptKey.containsKey(prefixString)) {
             return null;
         }
 
         return mNameDecryptKey.get(prefixString);
     }
 
-    /** Save encryption key into the encryption file. */
+    /**
+     * Save encryption key into the encryption file. Files whose content did not change since they
+     * were last written are not rewritten.
+     */
     @VisibleForTesting
     public void saveEncryptedKey() {
-        stopThread();
+        try {
+            mEncryptDataThreads.waitForIdle();
+        } catch (InterruptedException e) {
+            reportBluetoothKeystoreException(e, "Interrupted while operating.");
+        }
         List<String> configEncryptedLines = new ArrayList<>();
         List<String> keyEncryptedLines = new ArrayList<>();
-        for (String key : mNameEncryptKey.keySet()) {
-            if (key.equals(CONFIG_FILE_PREFIX)) {
-                configEncryptedLines.add(getEncryptedKeyData(key));
+        // Sorted so that the same keys always give the same lines
+        for (Map.Entry<String, String> entry : new TreeMap<>(mNameEncryptKey).entrySet()) {
+            String line = entry.getKey().concat("-").concat(entry.getValue());
+            if (entry.getKey().equals(CONFIG_FILE_PREFIX)) {
+                configEncryptedLines.add(line);
             } else {
-                keyEncryptedLines.add(getEncryptedKeyData(key));
+                keyEncryptedLines.add(line);
             }
         }
-        startThread();
 
         try {
-            if (!configEncryptedLines.isEmpty()) {
+            if (!configEncryptedLines.isEmpty()
+                    && !configEncryptedLines.equals(mSavedConfigEncryptedLines)) {
                 Files.write(Paths.get(CONFIG_CHECKSUM_ENCRYPTION_PATH), configEncryptedLines);
+                mSavedConfigEncryptedLines = configEncryptedLines;
             }
-            if (!keyEncryptedLines.isEmpty()) {
+            if (!keyEncryptedLines.isEmpty()
+                    && !keyEncryptedLines.equals(mSavedKeyEncryptedLines)) {
                 Files.write(Paths.get(CONFIG_FILE_ENCRYPTION_PATH), keyEncryptedLines);
+                mSavedKeyEncryptedLines = keyEncryptedLines;
+            } else if (!keyEncryptedLines.isEmpty()) {
+                debugLog("saveEncryptedKey: keys unchanged, skip writing");
             }
         } catch (IOException e) {
             throw new RuntimeException("write encryption file fail");
         }
     }
 
-    private String getEncryptedKeyData(String prefixString) {
-        if (prefixString == null) {
-            return null;
-        }
-        return prefixString.concat("-").concat(mNameEncryptKey.get(prefixString));
-    }
-
     /*
      * Get the mNameEncryptKey hashMap.
      */
@@ -471,7 +508,9 @@ public class BluetoothKeystoreService {
                     hashString.append(hash);
                 }
 
-                mNameDecryptKey.put(prefixString, hashString.toString());
+                synchronized (mKeyUpdateLock) {
+                    mNameDecryptKey.put(prefixString, hashString.toString());
+                }
                 successful = true;
             } catch (IOException e) {
                 infoLog("Fail to open file, try again. counter: " + counter);
@@ -523,8 +562,10 @@ public class BluetoothKeystoreService {
                 continue;
             }
 
-            mNameDecryptKey.put(prefixString, dataString);
-            mPendingEncryptKey.put(prefixString);
+            synchronized (mKeyUpdateLock) {
+                mNameDecryptKey.put(prefixString, dataString);
+            }
+            mEncryptDataThreads.queue(prefixString);
         }
     }
 
@@ -545,9 +586,11 @@ public class BluetoothKeystoreService {
                 String prefixString = line.substring(0, index);
                 String encryptedString = line.substring(index + 1);
 
-                mNameEncryptKey.put(prefixString, encryptedString);
+                synchronized (mKeyUpdateLock) {
+                    mNameEncryptKey.put(prefixString, encryptedString);
+                }
                 if (doDecrypt) {
-                    mPendingDecryptKey.put(prefixString);
+                    mDecryptDataThreads.queue(prefixString);
                 }
             }
         } catch (IOException e) {
@@ -591,7 +634,7 @@ public class BluetoothKeystoreService {
                 errorLog("encrypt: data is null");
                 return outputBase64;
             }
-            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            Cipher cipher = getCipher();
             SecretKey secretKeyReference = getOrCreateSecretKey();
 
             if (secretKeyReference != null) {
@@ -617,6 +660,7 @@ public class BluetoothKeystoreService {
         } catch (NoSuchPaddingException e) {
             reportKeystoreException(e, "encrypt had a padding exception");
         } catch (InvalidKeyException e) {
+            clearSecretKey();
             reportKeystoreException(e, "encrypt received an invalid key");
         } catch (BadPaddingException e) {
             reportKeystoreException(e, "encrypt had a padding problem");
@@ -645,7 +689,7 @@ public class BluetoothKeystoreService {
             }
             encryptedDataBytes = mDecoder.decode(encryptedDataBase64);
             protobuf = BluetoothKeystoreProto.EncryptedData.parser().parseFrom(encryptedDataBytes);
-            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            Cipher cipher = getCipher();
             GCMParameterSpec spec =
                     new GCMParameterSpec(GCM_TAG_LENGTH, protobuf.getInitVector().toByteArray());
             SecretKey secretKeyReference = getOrCreateSecretKey();
@@ -669,6 +713,7 @@ public class BluetoothKeystoreService {
         } catch (BadPaddingException e) {
             reportKeystoreException(e, "decrypt had bad padding");
         } catch (InvalidKeyException e) {
+            clearSecretKey();
             reportKeystoreException(e, "decrypt had an invalid key");
         } catch (InvalidAlgorithmParameterException e) {
             reportKeystoreException(e, "decrypt had an invalid algorithm parameter");
@@ -695,8 +740,21 @@ public class BluetoothKeystoreService {
         return keyStore;
     }
 
+    private Cipher getCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Cipher cipher = mCipher.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            mCipher.set(cipher);
+        }
+        return cipher;
+    }
+
     // The getOrGenerate semantic on keystore is not thread safe, need to synchronized it.
+    // The key is looked up in the keystore once, then kept until it is reported invalid.
     private synchronized SecretKey getOrCreateSecretKey() {
+        if (mSecretKey != null) {
+            return mSecretKey;
+        }
         SecretKey secretKey = null;
         try {
             KeyStore keyStore = getKeyStore();
@@ -741,9 +799,14 @@ public class BluetoothKeystoreService {
         } catch (ProviderException e) {
             reportKeystoreException(e, "getOrCreateSecretKey had a provider exception.");
         }
+        mSecretKey = secretKey;
         return secretKey;
     }
 
+    private synchronized void clearSecretKey() {
+        mSecretKey = null;
+    }
+
     private static void reportKeystoreException(Exception exception, String error) {
         Log.wtf(TAG, "A keystore error was encountered: " + error, exception);
     }
@@ -764,18 +827,22 @@ public class BluetoothKeystoreService {
         Log.e(TAG, msg);
     }
 
-    /** A thread that decrypt data if the queue has new decrypt task. */
-    private class ComputeDataThread extends Thread {
-        private Map<String, String> mSourceDataMap;
-        private Map<String, String> mTargetDataMap;
-        private BlockingQueue<String> mSourceQueue;
-        private boolean mDoEncrypt;
-
-        private boolean mWaitQueueEmptyForStop;
-
-        ComputeDataThread(boolean doEncrypt) {
-            infoLog("ComputeDataThread: create, doEncrypt: " + doEncrypt);
-            mWaitQueueEmptyForStop = false;
+    /**
+     * Threads encrypting or decrypting the keys queued, a batch of keys at a time. Keys are
+     * computed in parallel, a result is only kept if its source did not change meanwhile.
+     */
+    private class ComputeDataThreads {
+        private final Map<String, String> mSourceDataMap;
+        private final Map<String, String> mTargetDataMap;
+        private final BlockingQueue<String> mSourceQueue;
+        private final boolean mDoEncrypt;
+        private final List<Thread> mThreads = new ArrayList<>();
+
+        // Number of keys queued or being computed.
+        @GuardedBy("this")
+        private int mPendingCount = 0;
+
+        ComputeDataThreads(boolean doEncrypt) {
             mDoEncrypt = doEncrypt;
 
             if (mDoEncrypt) {
@@ -789,39 +856,104 @@ public class BluetoothKeystoreService {
             }
         }
 
-        @Override
-        public void run() {
-            infoLog("ComputeDataThread: run, doEncrypt: " + mDoEncrypt);
-            String prefixString;
-            String sourceData;
-            String targetData;
-            while (!mSourceQueue.isEmpty() || !mWaitQueueEmptyForStop) {
+        void queue(String prefixString) throws InterruptedException {
+            synchronized (this) {
+                mPendingCount++;
+            }
+            mSourceQueue.put(prefixString);
+        }
+
+        void start() {
+            if (!mThreads.isEmpty()) {
+                return;
+            }
+            infoLog("ComputeDataThreads: start, doEncrypt: " + mDoEncrypt);
+            for (int i = 0; i < COMPUTE_THREAD_COUNT; i++) {
+                Thread thread =
+                        new Thread(
+                                this::run,
+                                "BluetoothKeystore" + (mDoEncrypt ? "Encrypt" : "Decrypt") + i);
+                mThreads.add(thread);
+                thread.start();
+            }
+        }
+
+        /** Stops the threads once they computed the keys queued so far. */
+        @SuppressWarnings("ReferenceEquality") // STOP_COMPUTE is compared by reference on purpose
+        void stop() throws InterruptedException {
+            if (mThreads.isEmpty()) {
+                return;
+            }
+            for (int i = 0; i < mThreads.size(); i++) {
+                mSourceQueue.put(STOP_COMPUTE);
+            }
+            for (Thread thread : mThreads) {
+                thread.join();
+            }
+            mThreads.clear();
+            // Threads that exited on interrupt left their stop request behind
+            mSourceQueue.removeIf(prefixString -> prefixString == STOP_COMPUTE);
+        }
+
+        /** Waits for the keys queued to be computed, if the threads are running. */
+        synchronized void waitForIdle() throws InterruptedException {
+            while (mPendingCount > 0 && !mThreads.isEmpty()) {
+                wait();
+            }
+        }
+
+        @SuppressWarnings("ReferenceEquality") // STOP_COMPUTE is compared by reference on purpose
+        private void run() {
+            List<String> batch = new ArrayList<>(COMPUTE_BATCH_SIZE);
+            int stopCount = 0;
+            while (stopCount == 0) {
                 try {
-                    prefixString = mSourceQueue.take();
-                    if (mSourceDataMap.containsKey(prefixString)) {
-                        sourceData = mSourceDataMap.get(prefixString);
-                        targetData = tryCompute(sourceData, mDoEncrypt);
-                        if (targetData != null) {
-                            mTargetDataMap.put(prefixString, targetData);
-                        } else {
-                            errorLog(
-                                    "Computing of Data failed with prefixString: "
-                                            + prefixString
-                                            + ", doEncrypt: "
-                                            + mDoEncrypt);
-                        }
-                    }
+                    batch.add(mSourceQueue.take());
                 } catch (InterruptedException e) {
-                    infoLog("Interrupted while operating.");
+                    infoLog("ComputeDataThreads: interrupted, doEncrypt: " + mDoEncrypt);
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                mSourceQueue.drainTo(batch, COMPUTE_BATCH_SIZE - 1);
+                for (String prefixString : batch) {
+                    if (prefixString == STOP_COMPUTE) {
+                        stopCount++;
+                    } else {
+                        compute(prefixString);
+                    }
+                }
+                // Give back the stop requests of the other threads
+                for (int i = 1; i < stopCount; i++) {
+                    mSourceQueue.add(STOP_COMPUTE);
                 }
+                synchronized (this) {
+                    mPendingCount -= batch.size() - stopCount;
+                    notifyAll();
+                }
+                batch.clear();
             }
-            infoLog("ComputeDataThread: Stop, doEncrypt: " + mDoEncrypt);
+            infoLog("ComputeDataThreads: stop, doEncrypt: " + mDoEncrypt);
         }
 
-        public void setWaitQueueEmptyForStop() {
-            mWaitQueueEmptyForStop = true;
-            if (mPendingEncryptKey.isEmpty()) {
-                interrupt();
+        private void compute(String prefixString) {
+            String sourceData = mSourceDataMap.get(prefixString);
+            if (sourceData == null) {
+                return;
+            }
+            String targetData = tryCompute(sourceData, mDoEncrypt);
+            if (targetData == null) {
+                errorLog(
+                        "Computing of Data failed with prefixString: "
+                                + prefixString
+                                + ", doEncrypt: "
+                                + mDoEncrypt);
+                return;
+            }
+            // The key may have been updated or removed while it was computed
+            synchronized (mKeyUpdateLock) {
+                if (Objects.equals(sourceData, mSourceDataMap.get(prefixString))) {
+                    mTargetDataMap.put(prefixString, targetData);
+                }
             }
         }
     }
@@ -52,6 +52,7 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -74,11 +75,25 @@ public class DatabaseManager {
     private boolean mMigratedFromSettingsGlobal = false;
 
     @VisibleForTesting final Map<String, Metadata> mMetadataCache = new HashMap<>();
+
+    /**
+     * Metadata waiting to be written, by address. All the updates made within {@link
+     * #mWriteCoalescingDelayMs} of the first one are written in a single transaction. Flushed
+     * before a deletion so that later updates are written after it.
+     */
+    private final Object mPendingWritesLock = new Object();
+
+    @GuardedBy("mPendingWritesLock")
+    private Map<String, Metadata> mPendingWrites = null;
+
+    @VisibleForTesting long mWriteCoalescingDelayMs = WRITE_COALESCING_DELAY_MS;
+
     private final Semaphore mSemaphore = new Semaphore(1);
     private static final int METADATA_CHANGED_LOG_MAX_SIZE = 20;
     private final EvictingQueue<String> mMetadataChangedLog;
 
     private static final int LOAD_DATABASE_TIMEOUT = 500; // milliseconds
+    private static final long WRITE_COALESCING_DELAY_MS = 200;
     private static final int MSG_LOAD_DATABASE = 0;
     private static final int MSG_UPDATE_DATABASE = 1;
     private static final int MSG_DELETE_DATABASE = 2;
@@ -138,7 +153,16 @@ public class DatabaseManager {
                     }
                 case MSG_UPDATE_DATABASE:
                     {
-                        Metadata data = (Metadata) msg.obj;
+                        @SuppressWarnings("unchecked")
+                        Map<String, Metadata> writes = (Map<String, Metadata>) msg.obj;
+                        Metadata[] data;
+                        synchronized (mPendingWritesLock) {
+                            if (mPendingWrites == writes) {
+                                mPendingWrites = null;
+                            }
+                            data = writes.values().toArray(new Metadata[0]);
+                        }
+                        Log.d(TAG, "updateDatabase: writing " + data.length + " device(s)");
                         synchronized (mDatabaseLock) {
                             mDatabase.insert(data);
                         }
@@ -211,6 +235,7 @@ public class DatabaseManager {
                 if (metadata != null) {
                     mMetadataCache.remove(address);
                     deleteDatabase(metadata);
+                    BluetoothDevice.invalidateBluetoothGetMetadataCache();
                 }
             }
         }
@@ -253,6 +278,7 @@ public class DatabaseManager {
 
             updateDatabase(data);
         }
+        BluetoothDevice.invalidateBluetoothGetMetadataCache();
         mAdapterService.onMetadataChanged(device, key, newValue);
         return true;
     }
@@ -1190,6 +1216,7 @@ public class DatabaseManager {
     /** Clear all persistence data in database */
     public void factoryReset() {
         Log.w(TAG, "factoryReset");
+        discardPendingWrites();
         Message message = mHandler.obtainMessage(MSG_CLEAR_DATABASE);
         mHandler.sendMessage(message);
     }
@@ -1205,10 +1232,13 @@ public class DatabaseManager {
         removeUnusedMetadata();
         mAdapterService.unregisterReceiver(mReceiver);
         if (mHandlerThread != null) {
-            mHandlerThread.quit();
+            // Let the pending writes and deletions complete.
+            flushPendingWrites(null);
+            mHandlerThread.quitSafely();
             mHandlerThread = null;
         }
         mMetadataCache.clear();
+        BluetoothDevice.invalidateBluetoothGetMetadataCache();
     }
 
     void createMetadata(String address, boolean isActiveA2dpDevice) {
@@ -1257,6 +1287,7 @@ public class DatabaseManager {
                         }
                     });
         }
+        BluetoothDevice.invalidateBluetoothGetMetadataCache();
     }
 
     void cacheMetadata(List<Metadata> list) {
@@ -1278,6 +1309,7 @@ public class DatabaseManager {
             }
             Log.i(TAG, "cacheMetadata: Database is ready");
         }
+        BluetoothDevice.invalidateBluetoothGetMetadataCache();
     }
 
     boolean isMigrated(List<Metadata> list) {
@@ -1484,9 +1516,53 @@ public class DatabaseManager {
             return;
         }
         Log.d(TAG, "updateDatabase " + data.getAnonymizedAddress());
-        Message message = mHandler.obtainMessage(MSG_UPDATE_DATABASE);
-        message.obj = data;
-        mHandler.sendMessage(message);
+        synchronized (mPendingWritesLock) {
+            if (mPendingWrites == null) {
+                mPendingWrites = new LinkedHashMap<>();
+                Message message = mHandler.obtainMessage(MSG_UPDATE_DATABASE);
+                message.obj = mPendingWrites;
+                if (!mHandler.sendMessageDelayed(message, mWriteCoalescingDelayMs)) {
+                    Log.e(TAG, "updateDatabase: database thread is gone, write dropped");
+                    mPendingWrites = null;
+                    return;
+                }
+            }
+            mPendingWrites.put(data.getAddress(), data);
+        }
+    }
+
+    /**
+     * Drops the pending write for {@code address}, if any, queues the rest of the batch right away
+     * and makes the next updates go to a new batch.
+     */
+    private void flushPendingWrites(String address) {
+        synchronized (mPendingWritesLock) {
+            if (mPendingWrites == null) {
+                return;
+            }
+            if (address != null) {
+                mPendingWrites.remove(address);
+            }
+            mHandler.removeMessages(MSG_UPDATE_DATABASE, mPendingWrites);
+            if (!mPendingWrites.isEmpty()) {
+                Message message = mHandler.obtainMessage(MSG_UPDATE_DATABASE);
+                message.obj = mPendingWrites;
+                if (!mHandler.sendMessage(message)) {
+                    Log.e(TAG, "flushPendingWrites: database thread is gone, writes dropped");
+                }
+            }
+            mPendingWrites = null;
+        }
+    }
+
+    /** Drops the pending batch, if any. */
+    private void discardPendingWrites() {
+        synchronized (mPendingWritesLock) {
+            if (mPendingWrites != null) {
+                mHandler.removeMessages(MSG_UPDATE_DATABASE, mPendingWrites);
+                mPendingWrites = null;
+            }
+        }
     }
 
     @VisibleForTesting
@@ -1497,6 +1573,7 @@ public class DatabaseManager {
             return;
         }
         logMetadataChange(data, "Metadata deleted");
+        flushPendingWrites(address);
         Message message = mHandler.obtainMessage(MSG_DELETE_DATABASE);
         message.obj = data.getAddress();
         mHandler.sendMessage(message);
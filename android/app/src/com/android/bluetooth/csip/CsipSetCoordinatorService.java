@@ -37,7 +37,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
@@ -48,6 +47,8 @@ import android.util.Pair;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.btservice.ProfileService;
+import com.android.bluetooth.btservice.SerialQueuePool;
+import com.android.bluetooth.btservice.SerialQueuePool.SerialQueue;
 import com.android.bluetooth.btservice.ServiceFactory;
 import com.android.bluetooth.btservice.storage.DatabaseManager;
 import com.android.bluetooth.le_audio.LeAudioService;
@@ -71,9 +72,6 @@ import java.util.stream.Collectors;
 public class CsipSetCoordinatorService extends ProfileService {
     private static final String TAG = "CsipSetCoordinatorService";
 
-    // Timeout for state machine thread join, to prevent potential ANR.
-    private static final int SM_THREAD_JOIN_TIMEOUT_MS = 1000;
-
     private static CsipSetCoordinatorService sCsipSetCoordinatorService;
 
     private Handler mHandler = null;
@@ -81,7 +79,7 @@ public class CsipSetCoordinatorService extends ProfileService {
     private AdapterService mAdapterService;
     private LeAudioService mLeAudioService;
     private DatabaseManager mDatabaseManager;
-    private HandlerThread mStateMachinesThread;
+    private SerialQueue mStateMachinesQueue;
     @VisibleForTesting ServiceFactory mServiceFactory = new ServiceFactory();
 
     @VisibleForTesting CsipSetCoordinatorNativeInterface mCsipSetCoordinatorNativeInterface;
@@ -150,8 +148,8 @@ public class CsipSetCoordinatorService extends ProfileService {
         }
 
         // Start handler thread for state machines
-        mStateMachinesThread = new HandlerThread("CsipSetCoordinatorService.StateMachines");
-        mStateMachinesThread.start();
+        mStateMachinesQueue =
+                SerialQueuePool.getInstance().acquire("CsipSetCoordinatorService.StateMachines");
 
         // Setup broadcast receivers
         IntentFilter filter = new IntentFilter();
@@ -189,14 +187,9 @@ public class CsipSetCoordinatorService extends ProfileService {
             mStateMachines.clear();
         }
 
-        if (mStateMachinesThread != null) {
-            try {
-                mStateMachinesThread.quitSafely();
-                mStateMachinesThread.join(SM_THREAD_JOIN_TIMEOUT_MS);
-                mStateMachinesThread = null;
-            } catch (InterruptedException e) {
-                // Do not rethrow as we are shutting down anyway
-            }
+        if (mStateMachinesQueue != null) {
+            mStateMachinesQueue.release();
+            mStateMachinesQueue = null;
         }
 
         // Unregister Handler and stop all queued messages.
@@ -903,7 +896,7 @@ public class CsipSetCoordinatorService extends ProfileService {
                             device,
                             this,
                             mCsipSetCoordinatorNativeInterface,
-                            mStateMachinesThread.getLooper());
+                            mStateMachinesQueue.getLooper());
             mStateMachines.put(device, sm);
             return sm;
         }
@@ -29,6 +29,7 @@ import android.os.IBinder;
 import android.os.IInterface;
 import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemProperties;
 import android.util.Log;
 
 import com.android.bluetooth.btservice.AdapterService;
@@ -48,6 +49,7 @@ public class AdvertiseManager {
     private final GattService mService;
     private final AdvertiseManagerNativeInterface mNativeInterface;
     private final AdvertiserMap mAdvertiserMap;
+    private final AdvertiseVirtualizer mVirtualizer;
 
     @GuardedBy("itself")
     private final Map<IBinder, AdvertiserInfo> mAdvertisers = new HashMap<>();
@@ -64,6 +66,20 @@ public class AdvertiseManager {
             GattService service,
             AdvertiseManagerNativeInterface nativeInterface,
             AdvertiserMap advertiserMap) {
+        this(
+                service,
+                nativeInterface,
+                advertiserMap,
+                SystemProperties.getBoolean(
+                        AdvertiseVirtualizer.VIRTUALIZATION_ENABLED_PROPERTY, false));
+    }
+
+    @VisibleForTesting
+    AdvertiseManager(
+            GattService service,
+            AdvertiseManagerNativeInterface nativeInterface,
+            AdvertiserMap advertiserMap,
+            boolean virtualizationEnabled) {
         Log.d(TAG, "advertise manager created");
         mService = service;
         mNativeInterface = nativeInterface;
@@ -74,6 +90,13 @@ public class AdvertiseManager {
         HandlerThread thread = new HandlerThread("BluetoothAdvertiseManager");
         thread.start();
         mHandler = new Handler(thread.getLooper());
+        mVirtualizer =
+                new AdvertiseVirtualizer(
+                        mNativeInterface,
+                        mAdvertiserMap,
+                        mHandler,
+                        this::onAdvertisingDisabledByVirtualizer,
+                        virtualizationEnabled);
     }
 
     // TODO(b/327849650): We shouldn't need this, it should be safe to do in the cleanup method. But
@@ -88,6 +111,7 @@ public class AdvertiseManager {
         synchronized (mAdvertisers) {
             mAdvertisers.clear();
         }
+        mVirtualizer.clear();
         sTempRegistrationId = -1;
 
         if (mHandler != null) {
@@ -171,10 +195,25 @@ public class AdvertiseManager {
         if (entry == null) {
             Log.i(TAG, "onAdvertisingSetStarted() - no callback found for regId " + regId);
             // Advertising set was stopped before it was properly registered.
+            mVirtualizer.cancelStartRequest(regId);
             mNativeInterface.stopAdvertisingSet(advertiserId);
             return;
         }
 
+        if (status == AdvertiseCallback.ADVERTISE_FAILED_TOO_MANY_ADVERTISERS) {
+            // Share the instance of a running set rather than failing
+            int virtualId = mVirtualizer.startVirtualSet(regId);
+            if (virtualId != AdvertiseVirtualizer.INVALID_ID) {
+                advertiserId = virtualId;
+                txPower = mVirtualizer.getTxPowerLevel(virtualId);
+                status = AdvertiseCallback.ADVERTISE_SUCCESS;
+            }
+        } else if (status == 0) {
+            mVirtualizer.onAdvertisingSetStarted(regId, advertiserId);
+        } else {
+            mVirtualizer.cancelStartRequest(regId);
+        }
+
         IAdvertisingSetCallback callback = entry.getValue().callback;
         if (status == 0) {
             entry.setValue(
@@ -214,6 +253,24 @@ public class AdvertiseManager {
                         + ", status="
                         + status);
 
+        if (mVirtualizer.consumeEnableCallback(advertiserId, enable, status)) {
+            return;
+        }
+        notifyAdvertisingEnabled(advertiserId, enable, status);
+    }
+
+    /* Sets sharing an instance reaching their duration or event limit, or failing to be
+     * programmed, are disabled by the virtualizer rather than by the controller */
+    private void onAdvertisingDisabledByVirtualizer(int advertiserId, int status) {
+        try {
+            notifyAdvertisingEnabled(advertiserId, false, status);
+        } catch (RemoteException exception) {
+            Log.e(TAG, "Failed to callback:" + Log.getStackTraceString(exception));
+        }
+    }
+
+    private void notifyAdvertisingEnabled(int advertiserId, boolean enable, int status)
+            throws RemoteException {
         Map.Entry<IBinder, AdvertiserInfo> entry = findAdvertiser(advertiserId);
         if (entry == null) {
             Log.i(
@@ -307,6 +364,13 @@ public class AdvertiseManager {
                     duration,
                     maxExtAdvEvents);
 
+            if (serverIf == 0
+                    && periodicParameters == null
+                    && duration == 0
+                    && maxExtAdvEvents == 0) {
+                mVirtualizer.onStartRequested(cbId, parameters, advDataBytes, scanResponseBytes);
+            }
+
             mNativeInterface.startAdvertisingSet(
                     parameters,
                     advDataBytes,
@@ -334,6 +398,8 @@ public class AdvertiseManager {
             throws RemoteException {
         Log.d(TAG, "onOwnAddressRead() advertiserId=" + advertiserId);
 
+        // The address of a virtual set is the one of the instance hosting it
+        advertiserId = mVirtualizer.consumeOwnAddressRead(advertiserId);
         Map.Entry<IBinder, AdvertiserInfo> entry = findAdvertiser(advertiserId);
         if (entry == null) {
             Log.w(TAG, "onOwnAddressRead() - bad advertiserId " + advertiserId);
@@ -350,6 +416,9 @@ public class AdvertiseManager {
             Log.w(TAG, "getOwnAddress() - bad advertiserId " + advertiserId);
             return;
         }
+        if (mVirtualizer.getOwnAddress(advertiserId)) {
+            return;
+        }
         mNativeInterface.getOwnAddress(advertiserId);
     }
 
@@ -375,7 +444,9 @@ public class AdvertiseManager {
             return;
         }
 
-        mNativeInterface.stopAdvertisingSet(advertiserId);
+        if (!mVirtualizer.stopAdvertisingSet(advertiserId)) {
+            mNativeInterface.stopAdvertisingSet(advertiserId);
+        }
 
         try {
             callback.onAdvertisingSetStopped(advertiserId);
@@ -392,7 +463,18 @@ public class AdvertiseManager {
             Log.w(TAG, "enableAdvertisingSet() - bad advertiserId " + advertiserId);
             return;
         }
-        mNativeInterface.enableAdvertisingSet(advertiserId, enable, duration, maxExtAdvEvents);
+        if (mVirtualizer.enableAdvertisingSet(advertiserId, enable, duration, maxExtAdvEvents)) {
+            try {
+                entry.getValue()
+                        .callback
+                        .onAdvertisingEnabled(
+                                advertiserId, enable, AdvertiseCallback.ADVERTISE_SUCCESS);
+            } catch (RemoteException exception) {
+                Log.e(TAG, "Failed to callback:" + Log.getStackTraceString(exception));
+            }
+        } else {
+            mNativeInterface.enableAdvertisingSet(advertiserId, enable, duration, maxExtAdvEvents);
+        }
 
         mAdvertiserMap.enableAdvertisingSet(advertiserId, enable, duration, maxExtAdvEvents);
     }
@@ -405,8 +487,19 @@ public class AdvertiseManager {
         }
         String deviceName = AdapterService.getAdapterService().getName();
         try {
-            mNativeInterface.setAdvertisingData(
-                    advertiserId, AdvertiseHelper.advertiseDataToBytes(data, deviceName));
+            byte[] dataBytes = AdvertiseHelper.advertiseDataToBytes(data, deviceName);
+            if (mVirtualizer.setAdvertisingData(advertiserId, dataBytes)) {
+                try {
+                    entry.getValue()
+                            .callback
+                            .onAdvertisingDataSet(
+                                    advertiserId, AdvertiseCallback.ADVERTISE_SUCCESS);
+                } catch (RemoteException exception) {
+                    Log.e(TAG, "Failed to callback:" + Log.getStackTraceString(exception));
+                }
+            } else {
+                mNativeInterface.setAdvertisingData(advertiserId, dataBytes);
+            }
 
             mAdvertiserMap.setAdvertisingData(advertiserId, data);
         } catch (IllegalArgumentException e) {
@@ -427,8 +520,19 @@ public class AdvertiseManager {
         }
         String deviceName = AdapterService.getAdapterService().getName();
         try {
-            mNativeInterface.setScanResponseData(
-                    advertiserId, AdvertiseHelper.advertiseDataToBytes(data, deviceName));
+            byte[] dataBytes = AdvertiseHelper.advertiseDataToBytes(data, deviceName);
+            if (mVirtualizer.setScanResponseData(advertiserId, dataBytes)) {
+                try {
+                    entry.getValue()
+                            .callback
+                            .onScanResponseDataSet(
+                                    advertiserId, AdvertiseCallback.ADVERTISE_SUCCESS);
+                } catch (RemoteException exception) {
+                    Log.e(TAG, "Failed to callback:" + Log.getStackTraceString(exception));
+                }
+            } else {
+                mNativeInterface.setScanResponseData(advertiserId, dataBytes);
+            }
 
             mAdvertiserMap.setScanResponseData(advertiserId, data);
         } catch (IllegalArgumentException e) {
@@ -447,7 +551,34 @@ public class AdvertiseManager {
             Log.w(TAG, "setAdvertisingParameters() - bad advertiserId " + advertiserId);
             return;
         }
-        mNativeInterface.setAdvertisingParameters(advertiserId, parameters);
+        if (parameters.isConnectable() && mVirtualizer.isSharingInstance(advertiserId)) {
+            // A connection would stop the instance under the other sets sharing it
+            try {
+                entry.getValue()
+                        .callback
+                        .onAdvertisingParametersUpdated(
+                                advertiserId,
+                                0,
+                                AdvertiseCallback.ADVERTISE_FAILED_FEATURE_UNSUPPORTED);
+            } catch (RemoteException exception) {
+                Log.e(TAG, "Failed to callback:" + Log.getStackTraceString(exception));
+            }
+            return;
+        }
+        if (mVirtualizer.setAdvertisingParameters(advertiserId, parameters)) {
+            try {
+                entry.getValue()
+                        .callback
+                        .onAdvertisingParametersUpdated(
+                                advertiserId,
+                                parameters.getTxPowerLevel(),
+                                AdvertiseCallback.ADVERTISE_SUCCESS);
+            } catch (RemoteException exception) {
+                Log.e(TAG, "Failed to callback:" + Log.getStackTraceString(exception));
+            }
+        } else {
+            mNativeInterface.setAdvertisingParameters(advertiserId, parameters);
+        }
 
         mAdvertiserMap.setAdvertisingParameters(advertiserId, parameters);
     }
@@ -459,6 +590,19 @@ public class AdvertiseManager {
             Log.w(TAG, "setPeriodicAdvertisingParameters() - bad advertiserId " + advertiserId);
             return;
         }
+        if (mVirtualizer.isVirtualSet(advertiserId)) {
+            // Periodic advertising needs an instance of its own
+            try {
+                entry.getValue()
+                        .callback
+                        .onPeriodicAdvertisingParametersUpdated(
+                                advertiserId,
+                                AdvertiseCallback.ADVERTISE_FAILED_FEATURE_UNSUPPORTED);
+            } catch (RemoteException exception) {
+                Log.e(TAG, "Failed to callback:" + Log.getStackTraceString(exception));
+            }
+            return;
+        }
         mNativeInterface.setPeriodicAdvertisingParameters(advertiserId, parameters);
 
         mAdvertiserMap.setPeriodicAdvertisingParameters(advertiserId, parameters);
@@ -470,6 +614,19 @@ public class AdvertiseManager {
             Log.w(TAG, "setPeriodicAdvertisingData() - bad advertiserId " + advertiserId);
             return;
         }
+        if (mVirtualizer.isVirtualSet(advertiserId)) {
+            // Periodic advertising needs an instance of its own
+            try {
+                entry.getValue()
+                        .callback
+                        .onPeriodicAdvertisingDataSet(
+                                advertiserId,
+                                AdvertiseCallback.ADVERTISE_FAILED_FEATURE_UNSUPPORTED);
+            } catch (RemoteException exception) {
+                Log.e(TAG, "Failed to callback:" + Log.getStackTraceString(exception));
+            }
+            return;
+        }
         String deviceName = AdapterService.getAdapterService().getName();
         try {
             mNativeInterface.setPeriodicAdvertisingData(
@@ -492,12 +649,30 @@ public class AdvertiseManager {
             Log.w(TAG, "setPeriodicAdvertisingEnable() - bad advertiserId " + advertiserId);
             return;
         }
+        if (mVirtualizer.isVirtualSet(advertiserId)) {
+            // Periodic advertising needs an instance of its own
+            try {
+                entry.getValue()
+                        .callback
+                        .onPeriodicAdvertisingEnabled(
+                                advertiserId,
+                                enable,
+                                AdvertiseCallback.ADVERTISE_FAILED_FEATURE_UNSUPPORTED);
+            } catch (RemoteException exception) {
+                Log.e(TAG, "Failed to callback:" + Log.getStackTraceString(exception));
+            }
+            return;
+        }
         mNativeInterface.setPeriodicAdvertisingEnable(advertiserId, enable);
     }
 
     void onAdvertisingDataSet(int advertiserId, int status) throws Exception {
         Log.d(TAG, "onAdvertisingDataSet() advertiserId=" + advertiserId + ", status=" + status);
 
+        if (mVirtualizer.consumeCallback(advertiserId, status)) {
+            return;
+        }
+
         Map.Entry<IBinder, AdvertiserInfo> entry = findAdvertiser(advertiserId);
         if (entry == null) {
             Log.i(TAG, "onAdvertisingDataSet() - bad advertiserId " + advertiserId);
@@ -511,6 +686,10 @@ public class AdvertiseManager {
     void onScanResponseDataSet(int advertiserId, int status) throws Exception {
         Log.d(TAG, "onScanResponseDataSet() advertiserId=" + advertiserId + ", status=" + status);
 
+        if (mVirtualizer.consumeCallback(advertiserId, status)) {
+            return;
+        }
+
         Map.Entry<IBinder, AdvertiserInfo> entry = findAdvertiser(advertiserId);
         if (entry == null) {
             Log.i(TAG, "onScanResponseDataSet() - bad advertiserId " + advertiserId);
@@ -532,6 +711,10 @@ public class AdvertiseManager {
                         + ", status="
                         + status);
 
+        if (mVirtualizer.consumeCallback(advertiserId, status)) {
+            return;
+        }
+
         Map.Entry<IBinder, AdvertiserInfo> entry = findAdvertiser(advertiserId);
         if (entry == null) {
             Log.i(TAG, "onAdvertisingParametersUpdated() - bad advertiserId " + advertiserId);
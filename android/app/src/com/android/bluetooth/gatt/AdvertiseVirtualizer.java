@@ -0,0 +1,851 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.AdvertiseCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Time-slices more advertising sets than the controller has advertising instances.
+ *
+ * <p>When the controller runs out of instances, a new set is not failed but hosted on the instance
+ * of a compatible running set: same PDU type and own address type. The sets of a host take turns
+ * on its instance, each for {@link #SLOT_ADVERTISING_EVENTS} advertising events at its requested
+ * interval. When switching, only the parameters and payloads which differ from the ones programmed
+ * in the instance are written to the controller.
+ *
+ * <p>Sets hosted this way get an id above the range of the controller advertising handles. Only
+ * non connectable sets started without duration, event limit, periodic advertising or isolated
+ * GATT server take part: a connection terminates the instance in the controller. The duration and
+ * event limit given when enabling a set sharing an instance are enforced here, as the controller
+ * only sees the instance.
+ *
+ * <p>When the owner of a shared instance stops, the instance is not stopped but handed over to the
+ * first set it hosts, which advertises on it alone as a set of its own would. The other sets look
+ * for a host again, or wait for one.
+ */
+class AdvertiseVirtualizer {
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "AdvertiseVirtualizer";
+
+    static final String VIRTUALIZATION_ENABLED_PROPERTY =
+            "bluetooth.le.advertising_virtualization.enabled";
+
+    static final int INVALID_ID = -1;
+
+    /* Statuses reported by the native stack when an advertising set terminates on its own */
+    @VisibleForTesting static final int STATUS_TIMEOUT = 6;
+
+    @VisibleForTesting
+    static final int STATUS_LIMIT_REACHED = AdvertiseCallback.ADVERTISE_FAILED_TOO_MANY_ADVERTISERS;
+
+    /* Above the controller advertising handles, 0x00-0xEF */
+    @VisibleForTesting static final int VIRTUAL_ID_BASE = 0x100;
+
+    @VisibleForTesting static final int SLOT_ADVERTISING_EVENTS = 10;
+    @VisibleForTesting static final long MIN_SLOT_DURATION_MS = 1000;
+
+    private final AdvertiseManagerNativeInterface mNativeInterface;
+    private final AdvertiserMap mAdvertiserMap;
+    private final Handler mHandler;
+    private final Callback mCallback;
+    private final boolean mEnabled;
+
+    /* Start requests waiting for the controller, by registration id */
+    @GuardedBy("this")
+    private final Map<Integer, LogicalSet> mPendingStarts = new HashMap<>();
+
+    /* Running sets which take part in virtualization, by advertiser id */
+    @GuardedBy("this")
+    private final Map<Integer, LogicalSet> mSets = new HashMap<>();
+
+    /* Instances shared by several sets or handed over to a virtual set, by advertiser id of the
+     * instance */
+    @GuardedBy("this")
+    private final Map<Integer, Host> mHosts = new HashMap<>();
+
+    /* Virtual sets whose host stopped, waiting for a new one */
+    @GuardedBy("this")
+    private final List<LogicalSet> mParkedSets = new ArrayList<>();
+
+    /* Controller callbacks caused by switching, by advertiser id. Each one holds the id of the
+     * set the request was made for, or INVALID_ID when turning the instance off. */
+    @GuardedBy("this")
+    private final Map<Integer, ArrayDeque<Integer>> mPendingCallbacks = new HashMap<>();
+
+    /* Own address reads made for virtual sets, by advertiser id of their host owner */
+    @GuardedBy("this")
+    private final Map<Integer, ArrayDeque<Integer>> mPendingAddressReads = new HashMap<>();
+
+    @GuardedBy("this")
+    private int mNextVirtualId = VIRTUAL_ID_BASE;
+
+    /** Reports the sets disabled here rather than by the controller. */
+    interface Callback {
+        void onAdvertisingDisabled(int advertiserId, int status);
+    }
+
+    private class LogicalSet {
+        int mId;
+        AdvertisingSetParameters mParameters;
+        byte[] mAdvertiseData;
+        byte[] mScanResponse;
+        boolean mEnabled = true;
+        Host mHost;
+        long mStartTimeMs;
+        long mOnAirMs;
+        long mOnAirSinceMs = -1;
+        /* On air time left before the event limit is reached, -1 if there is no limit */
+        long mEventBudgetMs = -1;
+        /* Owner whose instance is not shared, enabled with a limit the controller enforces */
+        boolean mControllerLimited;
+        boolean mAddressReadPending;
+        final Runnable mDurationReached = () -> onLimitReached(this, STATUS_TIMEOUT);
+        final Runnable mEventLimitReached = () -> onLimitReached(this, STATUS_LIMIT_REACHED);
+
+        LogicalSet(
+                int id,
+                AdvertisingSetParameters parameters,
+                byte[] advertiseData,
+                byte[] scanResponse) {
+            mId = id;
+            mParameters = parameters;
+            mAdvertiseData = advertiseData;
+            mScanResponse = scanResponse;
+        }
+
+        boolean isVirtual() {
+            return mId >= VIRTUAL_ID_BASE;
+        }
+    }
+
+    /* A controller instance and the sets taking turns on it, its owner first */
+    private class Host {
+        final int mInstanceId;
+        final List<LogicalSet> mSets = new ArrayList<>();
+        final Runnable mRotate = this::rotate;
+
+        /* The set which started the instance, or the virtual set it was handed over to */
+        LogicalSet mOwner;
+
+        /* What is currently programmed in the controller instance */
+        LogicalSet mOnAir;
+        AdvertisingSetParameters mProgrammedParameters;
+        byte[] mProgrammedAdvertiseData;
+        byte[] mProgrammedScanResponse;
+        boolean mInstanceEnabled;
+
+        Host(LogicalSet owner) {
+            mInstanceId = owner.mId;
+            mOwner = owner;
+            mSets.add(owner);
+            mOnAir = owner;
+            mProgrammedParameters = owner.mParameters;
+            mProgrammedAdvertiseData = owner.mAdvertiseData;
+            mProgrammedScanResponse = owner.mScanResponse;
+            mInstanceEnabled = owner.mEnabled;
+        }
+
+        void add(LogicalSet set) {
+            mSets.add(set);
+            set.mHost = this;
+            if (mSets.size() == 2) {
+                mHandler.postDelayed(mRotate, getSlotDurationMs(mOnAir));
+            }
+            if (set.mAddressReadPending) {
+                set.mAddressReadPending = false;
+                readOwnAddress(this, set);
+            }
+        }
+
+        void rotate() {
+            synchronized (AdvertiseVirtualizer.this) {
+                if (mHosts.get(mInstanceId) != this) {
+                    return;
+                }
+                switchTo(getNextEnabled());
+                mHandler.postDelayed(mRotate, getSlotDurationMs(mOnAir));
+            }
+        }
+
+        LogicalSet getNextEnabled() {
+            int index = mSets.indexOf(mOnAir);
+            for (int i = 1; i <= mSets.size(); i++) {
+                LogicalSet set = mSets.get((index + i) % mSets.size());
+                if (set.mEnabled) {
+                    return set;
+                }
+            }
+            return null;
+        }
+
+        /* Programs the instance with the given set, or disables it if null */
+        void switchTo(LogicalSet next) {
+            long now = SystemClock.elapsedRealtime();
+            stopOnAirTime(mOnAir, now);
+            int id = mInstanceId;
+            if (next == null) {
+                if (mInstanceEnabled) {
+                    mNativeInterface.enableAdvertisingSet(id, false, 0, 0);
+                    addPendingCallback(id, INVALID_ID);
+                    mInstanceEnabled = false;
+                }
+                reportDutyCycles(now);
+                return;
+            }
+            boolean parametersChanged =
+                    mProgrammedParameters == null
+                            || !isSameParameters(mProgrammedParameters, next.mParameters);
+            if (parametersChanged) {
+                if (mInstanceEnabled) {
+                    mNativeInterface.enableAdvertisingSet(id, false, 0, 0);
+                    addPendingCallback(id, next.mId);
+                    mInstanceEnabled = false;
+                }
+                mNativeInterface.setAdvertisingParameters(id, next.mParameters);
+                addPendingCallback(id, next.mId);
+                mProgrammedParameters = next.mParameters;
+            }
+            if (!Arrays.equals(mProgrammedAdvertiseData, next.mAdvertiseData)) {
+                mNativeInterface.setAdvertisingData(id, next.mAdvertiseData);
+                addPendingCallback(id, next.mId);
+                mProgrammedAdvertiseData = next.mAdvertiseData;
+            }
+            if (!Arrays.equals(mProgrammedScanResponse, next.mScanResponse)) {
+                mNativeInterface.setScanResponseData(id, next.mScanResponse);
+                addPendingCallback(id, next.mId);
+                mProgrammedScanResponse = next.mScanResponse;
+            }
+            if (!mInstanceEnabled && next.mEnabled) {
+                // Duration and event limit of the sets are enforced here, not by the controller
+                mNativeInterface.enableAdvertisingSet(id, true, 0, 0);
+                addPendingCallback(id, next.mId);
+                mInstanceEnabled = true;
+            }
+            if (next != mOnAir) {
+                Log.d(TAG, "Advertiser " + id + " now advertising set " + next.mId);
+            }
+            mOnAir = next;
+            if (next.mEnabled) {
+                startOnAirTime(next, now);
+            }
+            reportDutyCycles(now);
+        }
+
+        /* A write failed, the instance content is unknown: rewrite everything on next switch */
+        void forgetProgrammedState() {
+            mProgrammedParameters = null;
+            mProgrammedAdvertiseData = null;
+            mProgrammedScanResponse = null;
+        }
+
+        void reportDutyCycles(long now) {
+            for (LogicalSet set : mSets) {
+                reportDutyCycle(set, now);
+            }
+        }
+    }
+
+    AdvertiseVirtualizer(
+            AdvertiseManagerNativeInterface nativeInterface,
+            AdvertiserMap advertiserMap,
+            Handler handler,
+            Callback callback,
+            boolean enabled) {
+        mNativeInterface = nativeInterface;
+        mAdvertiserMap = advertiserMap;
+        mHandler = handler;
+        mCallback = callback;
+        mEnabled = enabled;
+        Log.d(TAG, "Advertising set virtualization enabled: " + enabled);
+    }
+
+    synchronized void clear() {
+        for (Host host : mHosts.values()) {
+            mHandler.removeCallbacks(host.mRotate);
+        }
+        for (LogicalSet set : mSets.values()) {
+            clearLimits(set);
+        }
+        mPendingStarts.clear();
+        mSets.clear();
+        mHosts.clear();
+        mParkedSets.clear();
+        mPendingCallbacks.clear();
+        mPendingAddressReads.clear();
+    }
+
+    /** Records a start request which can take part in virtualization. */
+    synchronized void onStartRequested(
+            int regId,
+            AdvertisingSetParameters parameters,
+            byte[] advertiseData,
+            byte[] scanResponse) {
+        if (!mEnabled || parameters.isConnectable()) {
+            return;
+        }
+        mPendingStarts.put(regId, new LogicalSet(regId, parameters, advertiseData, scanResponse));
+    }
+
+    /** Drops a start request which has been stopped before the controller answered. */
+    synchronized void cancelStartRequest(int regId) {
+        mPendingStarts.remove(regId);
+    }
+
+    /** Called when the controller started the set of a start request. */
+    synchronized void onAdvertisingSetStarted(int regId, int advertiserId) {
+        LogicalSet set = mPendingStarts.remove(regId);
+        if (set == null) {
+            return;
+        }
+        set.mId = advertiserId;
+        set.mStartTimeMs = SystemClock.elapsedRealtime();
+        set.mOnAirSinceMs = set.mStartTimeMs;
+        mSets.put(advertiserId, set);
+
+        // A new instance may host the sets left without one
+        List<LogicalSet> parked = new ArrayList<>(mParkedSets);
+        mParkedSets.clear();
+        for (LogicalSet parkedSet : parked) {
+            hostOrPark(parkedSet);
+        }
+    }
+
+    /**
+     * Called when the controller has no instance left for a start request.
+     *
+     * @return the id of the virtual set hosting the request, or {@link #INVALID_ID} if it cannot
+     *     be virtualized
+     */
+    synchronized int startVirtualSet(int regId) {
+        LogicalSet set = mPendingStarts.remove(regId);
+        if (set == null) {
+            return INVALID_ID;
+        }
+        LogicalSet owner = findHostOwner(set);
+        if (owner == null) {
+            Log.d(TAG, "startVirtualSet() - no compatible advertiser for regId " + regId);
+            return INVALID_ID;
+        }
+        set.mId = mNextVirtualId++;
+        set.mStartTimeMs = SystemClock.elapsedRealtime();
+        mSets.put(set.mId, set);
+        getOrCreateHost(owner).add(set);
+        Log.i(TAG, "regId " + regId + " virtualized as " + set.mId + " on " + owner.mId);
+        return set.mId;
+    }
+
+    synchronized boolean isVirtualSet(int advertiserId) {
+        return mEnabled && advertiserId >= VIRTUAL_ID_BASE && mSets.containsKey(advertiserId);
+    }
+
+    synchronized int getTxPowerLevel(int advertiserId) {
+        LogicalSet set = mSets.get(advertiserId);
+        return set != null ? set.mParameters.getTxPowerLevel() : 0;
+    }
+
+    /**
+     * Called when a set is stopped.
+     *
+     * @return true if the caller must not stop the controller instance of the set: it is a
+     *     virtual set, or its instance was handed over to a set it hosted
+     */
+    synchronized boolean stopAdvertisingSet(int advertiserId) {
+        LogicalSet set = mSets.remove(advertiserId);
+        if (set == null) {
+            return false;
+        }
+        long now = SystemClock.elapsedRealtime();
+        stopOnAirTime(set, now);
+        reportDutyCycle(set, now);
+        clearLimits(set);
+        if (!ownsInstance(set)) {
+            if (set.mHost != null) {
+                removeFromHost(set);
+            } else {
+                mParkedSets.remove(set);
+            }
+            return true;
+        }
+        Host host = set.mHost;
+        set.mHost = null;
+        if (host != null) {
+            host.mSets.remove(set);
+            if (!host.mSets.isEmpty()) {
+                handOver(host, now);
+                return true;
+            }
+            mHandler.removeCallbacks(host.mRotate);
+            mHosts.remove(host.mInstanceId);
+        }
+        // Late answers to switching requests must not be taken for the ones of a new set which
+        // gets the same advertiser id
+        int instanceId = host != null ? host.mInstanceId : advertiserId;
+        mPendingCallbacks.remove(instanceId);
+        mPendingAddressReads.remove(instanceId);
+        if (set.isVirtual()) {
+            // Last set of an instance it was handed over to
+            mNativeInterface.stopAdvertisingSet(instanceId);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Enables or disables a set sharing an instance. The duration, in 10ms units, and the maximum
+     * number of advertising events are counted from now on, 0 meaning no limit.
+     *
+     * @return true if handled here, the caller must not forward the request to the controller
+     */
+    synchronized boolean enableAdvertisingSet(
+            int advertiserId, boolean enable, int duration, int maxExtAdvEvents) {
+        LogicalSet set = mSets.get(advertiserId);
+        if (set == null) {
+            return false;
+        }
+        clearLimits(set);
+        boolean limited = enable && (duration > 0 || maxExtAdvEvents > 0);
+        if (set.mHost == null && !set.isVirtual()) {
+            // The instance is not shared, the controller enforces the limits. Do not share it
+            // until they are lifted, guests would keep it enabled past them.
+            set.mEnabled = enable;
+            set.mControllerLimited = limited;
+            return false;
+        }
+        set.mEnabled = enable;
+        Host host = set.mHost;
+        if (host != null) {
+            if (host.mOnAir == set && !enable) {
+                host.switchTo(host.getNextEnabled());
+            } else if (enable && (host.mOnAir == set || !host.mInstanceEnabled)) {
+                host.switchTo(set);
+            }
+        }
+        if (limited) {
+            if (duration > 0) {
+                mHandler.postDelayed(set.mDurationReached, duration * 10L);
+            }
+            if (maxExtAdvEvents > 0) {
+                // One advertising event per interval while the set is on air
+                set.mEventBudgetMs = maxExtAdvEvents * getIntervalMs(set);
+                if (set.mOnAirSinceMs >= 0) {
+                    mHandler.postDelayed(set.mEventLimitReached, set.mEventBudgetMs);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Updates the advertising data of a set sharing an instance.
+     *
+     * @return true if handled here, the caller must not forward the request to the controller
+     */
+    synchronized boolean setAdvertisingData(int advertiserId, byte[] data) {
+        LogicalSet set = mSets.get(advertiserId);
+        if (set == null) {
+            return false;
+        }
+        set.mAdvertiseData = data;
+        return updateIfOnAir(set);
+    }
+
+    /**
+     * Updates the scan response of a set sharing an instance.
+     *
+     * @return true if handled here, the caller must not forward the request to the controller
+     */
+    synchronized boolean setScanResponseData(int advertiserId, byte[] data) {
+        LogicalSet set = mSets.get(advertiserId);
+        if (set == null) {
+            return false;
+        }
+        set.mScanResponse = data;
+        return updateIfOnAir(set);
+    }
+
+    /**
+     * Updates the parameters of a set sharing an instance.
+     *
+     * @return true if handled here, the caller must not forward the request to the controller
+     */
+    synchronized boolean setAdvertisingParameters(
+            int advertiserId, AdvertisingSetParameters parameters) {
+        LogicalSet set = mSets.get(advertiserId);
+        if (set == null) {
+            return false;
+        }
+        if (parameters.isConnectable() && set.mHost == null && !set.isVirtual()) {
+            // Not sharing its instance, it no longer can
+            clearLimits(set);
+            mSets.remove(advertiserId);
+            return false;
+        }
+        set.mParameters = parameters;
+        return updateIfOnAir(set);
+    }
+
+    /** Whether a set shares its controller instance, or waits for one, with other sets. */
+    synchronized boolean isSharingInstance(int advertiserId) {
+        LogicalSet set = mSets.get(advertiserId);
+        return set != null && (set.mHost != null || set.isVirtual());
+    }
+
+    /**
+     * Reads the own address of a virtual set, which is the one of its host instance. The answer
+     * comes through {@link #consumeOwnAddressRead}, or once hosted for a set waiting for a host.
+     *
+     * @return true if handled here, the caller must not forward the request to the controller
+     */
+    synchronized boolean getOwnAddress(int advertiserId) {
+        LogicalSet set = mSets.get(advertiserId);
+        if (set == null || !set.isVirtual()) {
+            return false;
+        }
+        if (set.mHost != null) {
+            readOwnAddress(set.mHost, set);
+        } else {
+            set.mAddressReadPending = true;
+        }
+        return true;
+    }
+
+    /**
+     * Called for each own address read by the controller.
+     *
+     * @return the id of the set which asked for it
+     */
+    synchronized int consumeOwnAddressRead(int advertiserId) {
+        ArrayDeque<Integer> reads = mPendingAddressReads.get(advertiserId);
+        if (reads == null) {
+            return advertiserId;
+        }
+        int setId = reads.poll();
+        if (reads.isEmpty()) {
+            mPendingAddressReads.remove(advertiserId);
+        }
+        return setId;
+    }
+
+    /**
+     * Called for each controller callback of an advertiser, but the enable ones.
+     *
+     * @return true if the callback answers a request made when switching sets, and must not be
+     *     forwarded to the application
+     */
+    synchronized boolean consumeCallback(int advertiserId, int status) {
+        Integer setId = pollPendingCallback(advertiserId);
+        if (setId == null) {
+            return false;
+        }
+        if (status != AdvertiseCallback.ADVERTISE_SUCCESS) {
+            onSwitchFailed(advertiserId, setId, status);
+        }
+        return true;
+    }
+
+    /**
+     * Called for each enable callback of an advertiser.
+     *
+     * @return true if the callback answers a request made when switching sets, and must not be
+     *     forwarded to the application
+     */
+    synchronized boolean consumeEnableCallback(int advertiserId, boolean enable, int status) {
+        Integer setId = pollPendingCallback(advertiserId);
+        if (setId == null) {
+            return false;
+        }
+        if (status != AdvertiseCallback.ADVERTISE_SUCCESS) {
+            Host host = mHosts.get(advertiserId);
+            if (host != null) {
+                // The controller kept the instance as it was
+                host.mInstanceEnabled = !enable;
+            }
+            onSwitchFailed(advertiserId, setId, status);
+        }
+        return true;
+    }
+
+    @GuardedBy("this")
+    private Integer pollPendingCallback(int advertiserId) {
+        ArrayDeque<Integer> pending = mPendingCallbacks.get(advertiserId);
+        if (pending == null) {
+            return null;
+        }
+        Integer setId = pending.poll();
+        if (pending.isEmpty()) {
+            mPendingCallbacks.remove(advertiserId);
+        }
+        return setId;
+    }
+
+    /* Stops the set a failed switching request was made for, as the controller would have
+     * failed the request of the application */
+    @GuardedBy("this")
+    private void onSwitchFailed(int advertiserId, int setId, int status) {
+        Log.e(
+                TAG,
+                "Advertiser "
+                        + advertiserId
+                        + " failed switching to set "
+                        + setId
+                        + ", status="
+                        + status);
+        Host host = mHosts.get(advertiserId);
+        if (host != null) {
+            host.forgetProgrammedState();
+        }
+        LogicalSet set = mSets.get(setId);
+        if (set != null && set.mEnabled) {
+            disable(set, status);
+        }
+    }
+
+    private void onLimitReached(LogicalSet set, int status) {
+        synchronized (this) {
+            if (mSets.get(set.mId) != set || !set.mEnabled) {
+                return;
+            }
+            Log.d(TAG, "Set " + set.mId + " reached its limit, status=" + status);
+            disable(set, status);
+        }
+    }
+
+    /* Disables a set and reports it, as the controller does when a set terminates on its own */
+    @GuardedBy("this")
+    private void disable(LogicalSet set, int status) {
+        clearLimits(set);
+        set.mEnabled = false;
+        Host host = set.mHost;
+        if (host != null) {
+            if (host.mOnAir == set) {
+                host.switchTo(host.getNextEnabled());
+            }
+        } else if (!set.isVirtual()) {
+            // Owner which got its instance back while enabled with a limit enforced here
+            stopOnAirTime(set, SystemClock.elapsedRealtime());
+            mNativeInterface.enableAdvertisingSet(set.mId, false, 0, 0);
+            addPendingCallback(set.mId, set.mId);
+        }
+        int id = set.mId;
+        mHandler.post(() -> mCallback.onAdvertisingDisabled(id, status));
+    }
+
+    @GuardedBy("this")
+    private void clearLimits(LogicalSet set) {
+        mHandler.removeCallbacks(set.mDurationReached);
+        mHandler.removeCallbacks(set.mEventLimitReached);
+        set.mEventBudgetMs = -1;
+        set.mControllerLimited = false;
+    }
+
+    @GuardedBy("this")
+    private void readOwnAddress(Host host, LogicalSet set) {
+        mNativeInterface.getOwnAddress(host.mInstanceId);
+        mPendingAddressReads
+                .computeIfAbsent(host.mInstanceId, k -> new ArrayDeque<>())
+                .add(set.mId);
+    }
+
+    @GuardedBy("this")
+    private boolean updateIfOnAir(LogicalSet set) {
+        if (set.mHost == null) {
+            // Owner of an instance which is not shared, or parked virtual set
+            if (!set.isVirtual()) {
+                return false;
+            }
+            return true;
+        }
+        if (set.mHost.mOnAir == set) {
+            set.mHost.switchTo(set);
+        }
+        return true;
+    }
+
+    @GuardedBy("this")
+    private void hostOrPark(LogicalSet set) {
+        LogicalSet owner = findHostOwner(set);
+        if (owner == null) {
+            Log.d(TAG, "No advertiser left for virtual set " + set.mId);
+            mParkedSets.add(set);
+            return;
+        }
+        getOrCreateHost(owner).add(set);
+    }
+
+    @GuardedBy("this")
+    private Host getOrCreateHost(LogicalSet owner) {
+        Host host = owner.mHost;
+        if (host == null) {
+            host = new Host(owner);
+            owner.mHost = host;
+            mHosts.put(host.mInstanceId, host);
+        }
+        return host;
+    }
+
+    /* Gives the instance of a stopped owner to the first set it hosted, which advertises on it
+     * alone. The other sets are hosted again, on it or on another instance, or parked. */
+    @GuardedBy("this")
+    private void handOver(Host host, long now) {
+        mHandler.removeCallbacks(host.mRotate);
+        List<LogicalSet> others = new ArrayList<>(host.mSets.subList(1, host.mSets.size()));
+        host.mSets.removeAll(others);
+        host.mOwner = host.mSets.get(0);
+        for (LogicalSet other : others) {
+            stopOnAirTime(other, now);
+            other.mHost = null;
+        }
+        host.switchTo(host.mOwner.mEnabled ? host.mOwner : null);
+        Log.i(TAG, "Advertiser " + host.mInstanceId + " handed over to set " + host.mOwner.mId);
+        for (LogicalSet other : others) {
+            hostOrPark(other);
+        }
+    }
+
+    @GuardedBy("this")
+    private void removeFromHost(LogicalSet set) {
+        Host host = set.mHost;
+        set.mHost = null;
+        boolean wasOnAir = host.mOnAir == set;
+        host.mSets.remove(set);
+        if (host.mSets.size() > 1) {
+            if (wasOnAir) {
+                host.mOnAir = host.mOwner;
+                host.switchTo(host.getNextEnabled());
+            }
+            return;
+        }
+        // Only the owner is left, give it back its instance
+        mHandler.removeCallbacks(host.mRotate);
+        host.switchTo(host.mOwner.mEnabled ? host.mOwner : null);
+        if (!host.mOwner.isVirtual()) {
+            host.mOwner.mHost = null;
+            mHosts.remove(host.mInstanceId);
+        }
+    }
+
+    /* Whether a set has a controller instance: a set started by the controller, or a virtual set
+     * an instance was handed over to, which keeps its host even when alone on it */
+    private static boolean ownsInstance(LogicalSet set) {
+        return !set.isVirtual() || (set.mHost != null && set.mHost.mOwner == set);
+    }
+
+    /* The running set owning an instance with the same PDU and address type sharing it
+     * with the fewest sets. Ties go to the set with the same interval and TX power, which
+     * saves reprogramming the parameters when switching. */
+    @GuardedBy("this")
+    private LogicalSet findHostOwner(LogicalSet set) {
+        LogicalSet best = null;
+        int bestScore = Integer.MAX_VALUE;
+        for (LogicalSet candidate : mSets.values()) {
+            if (!ownsInstance(candidate)
+                    || candidate == set
+                    || candidate.mControllerLimited
+                    || !isCompatible(candidate.mParameters, set.mParameters)) {
+                continue;
+            }
+            int sharing = candidate.mHost != null ? candidate.mHost.mSets.size() : 1;
+            int score = 2 * sharing;
+            if (candidate.mParameters.getInterval() != set.mParameters.getInterval()
+                    || candidate.mParameters.getTxPowerLevel()
+                            != set.mParameters.getTxPowerLevel()) {
+                score++;
+            }
+            if (score < bestScore) {
+                best = candidate;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    @GuardedBy("this")
+    private void addPendingCallback(int advertiserId, int setId) {
+        mPendingCallbacks.computeIfAbsent(advertiserId, k -> new ArrayDeque<>()).add(setId);
+    }
+
+    @GuardedBy("this")
+    private void startOnAirTime(LogicalSet set, long now) {
+        set.mOnAirSinceMs = now;
+        if (set.mEventBudgetMs >= 0) {
+            mHandler.postDelayed(set.mEventLimitReached, set.mEventBudgetMs);
+        }
+    }
+
+    @GuardedBy("this")
+    private void stopOnAirTime(LogicalSet set, long now) {
+        if (set.mOnAirSinceMs >= 0) {
+            long onAirMs = now - set.mOnAirSinceMs;
+            set.mOnAirMs += onAirMs;
+            set.mOnAirSinceMs = -1;
+            if (set.mEventBudgetMs >= 0) {
+                mHandler.removeCallbacks(set.mEventLimitReached);
+                set.mEventBudgetMs = Math.max(0, set.mEventBudgetMs - onAirMs);
+            }
+        }
+    }
+
+    private void reportDutyCycle(LogicalSet set, long now) {
+        long elapsedMs = now - set.mStartTimeMs;
+        if (elapsedMs <= 0) {
+            return;
+        }
+        long onAirMs = set.mOnAirMs + (set.mOnAirSinceMs >= 0 ? now - set.mOnAirSinceMs : 0);
+        mAdvertiserMap.setEffectiveDutyCycle(set.mId, (int) (100 * onAirMs / elapsedMs));
+    }
+
+    private static long getSlotDurationMs(LogicalSet set) {
+        return Math.max(MIN_SLOT_DURATION_MS, SLOT_ADVERTISING_EVENTS * getIntervalMs(set));
+    }
+
+    private static long getIntervalMs(LogicalSet set) {
+        // Advertising interval is in 0.625ms units
+        return set.mParameters.getInterval() * 5L / 8;
+    }
+
+    /* Sets sharing an instance share its PDU type and address */
+    private static boolean isCompatible(
+            AdvertisingSetParameters a, AdvertisingSetParameters b) {
+        return a.isConnectable() == b.isConnectable()
+                && a.isScannable() == b.isScannable()
+                && a.isLegacy() == b.isLegacy()
+                && a.isAnonymous() == b.isAnonymous()
+                && a.getOwnAddressType() == b.getOwnAddressType();
+    }
+
+    private static boolean isSameParameters(
+            AdvertisingSetParameters a, AdvertisingSetParameters b) {
+        return isCompatible(a, b)
+                && a.includeTxPower() == b.includeTxPower()
+                && a.getPrimaryPhy() == b.getPrimaryPhy()
+                && a.getSecondaryPhy() == b.getSecondaryPhy()
+                && a.getInterval() == b.getInterval()
+                && a.getTxPowerLevel() == b.getTxPowerLevel();
+    }
+}
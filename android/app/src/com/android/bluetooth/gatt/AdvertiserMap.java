@@ -182,6 +182,14 @@ class AdvertiserMap {
         stats.onPeriodicAdvertiseEnabled(enable);
     }
 
+    synchronized void setEffectiveDutyCycle(int id, int percent) {
+        AppAdvertiseStats stats = mAppAdvertiseStats.get(id);
+        if (stats == null) {
+            return;
+        }
+        stats.setEffectiveDutyCycle(percent);
+    }
+
     /** Erases all entries. */
     synchronized void clear() {
         mAppAdvertiseStats.clear();
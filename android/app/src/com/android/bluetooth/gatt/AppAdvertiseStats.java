@@ -103,6 +103,8 @@ class AppAdvertiseStats {
     @Nullable private AppAdvertiserData mPeriodicAdvertisingData = null;
     private boolean mPeriodicIncludeTxPower = false;
     private int mPeriodicInterval = 0;
+    /* Share of time on air, below 100 when sharing an advertising instance with other sets */
+    private int mEffectiveDutyCycle = 100;
     public ArrayList<AppAdvertiserRecord> mAdvertiserRecords = new ArrayList<AppAdvertiserRecord>();
 
     AppAdvertiseStats(int appUid, int id, String name, AttributionSource attrSource) {
@@ -341,6 +343,10 @@ class AppAdvertiseStats {
         mPeriodicAdvertisingEnabled = enable;
     }
 
+    void setEffectiveDutyCycle(int percent) {
+        mEffectiveDutyCycle = percent;
+    }
+
     void setId(int id) {
         this.mId = id;
     }
@@ -527,6 +533,8 @@ class AppAdvertiseStats {
                 .append(stats.mConnectable);
         sb.append("\n        └Scannable                                      : ")
                 .append(stats.mScannable);
+        sb.append("\n        └Effective duty cycle(%)                        : ")
+                .append(stats.mEffectiveDutyCycle);
 
         if (stats.mAdvertisingData != null) {
             sb.append("\n        └Advertise Data:");
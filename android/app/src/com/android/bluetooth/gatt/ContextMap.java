@@ -31,10 +31,12 @@ import com.android.bluetooth.flags.Flags;
 import com.android.internal.annotations.GuardedBy;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
@@ -142,17 +144,62 @@ public class ContextMap<C> {
         }
     }
 
-    /** Our internal application list */
-    private final Object mAppsLock = new Object();
+    /**
+     * Immutable view of the registered applications, indexed by ID and UUID. Replaced on every
+     * change so that lookups don't need to take {@link #mAppsLock}.
+     */
+    private class AppIndex {
+        final List<App> mApps;
+        final Map<Integer, App> mById = new HashMap<>();
+        final Map<UUID, App> mByUuid = new HashMap<>();
+
+        AppIndex(List<App> apps) {
+            mApps = apps;
+            // Keep the first match, as a lookup walking the list would.
+            for (App app : apps) {
+                mById.putIfAbsent(app.id, app);
+                mByUuid.putIfAbsent(app.uuid, app);
+            }
+        }
+    }
 
-    @GuardedBy("mAppsLock")
-    private List<App> mApps = new ArrayList<>();
+    /**
+     * Immutable view of the connections, indexed by connection ID and by application ID and
+     * address. Replaced on every change so that lookups don't need to take {@link
+     * #mConnectionsLock}.
+     */
+    private static class ConnectionIndex {
+        final List<Connection> mConnections;
+        final Map<Integer, Connection> mByConnId = new HashMap<>();
+
+        /** Connections per application ID, keyed by upper case address. */
+        final Map<Integer, Map<String, Connection>> mByAppAddress = new HashMap<>();
+
+        ConnectionIndex(List<Connection> connections) {
+            mConnections = connections;
+            for (Connection connection : connections) {
+                mByConnId.putIfAbsent(connection.connId, connection);
+                if (connection.address == null) {
+                    continue;
+                }
+                mByAppAddress
+                        .computeIfAbsent(connection.appId, k -> new HashMap<>())
+                        .putIfAbsent(connection.address.toUpperCase(Locale.ROOT), connection);
+            }
+        }
+    }
+
+    /** Our internal application list, only replaced while holding the lock. */
+    private final Object mAppsLock = new Object();
 
-    /** Internal list of connected devices */
-    private List<Connection> mConnections = new ArrayList<>();
+    private volatile AppIndex mAppIndex = new AppIndex(Collections.emptyList());
 
+    /** Internal list of connected devices, only replaced while holding the lock. */
     private final Object mConnectionsLock = new Object();
 
+    private volatile ConnectionIndex mConnectionIndex =
+            new ConnectionIndex(Collections.emptyList());
+
     /** Add an entry to the application context list. */
     public App add(UUID uuid, C callback, Context context, AttributionSource attrSource) {
         int appUid = Binder.getCallingUid();
@@ -163,7 +210,9 @@ public class ContextMap<C> {
         }
         synchronized (mAppsLock) {
             App app = new App(uuid, callback, appUid, appName, attrSource);
-            mApps.add(app);
+            List<App> apps = new ArrayList<>(mAppIndex.mApps);
+            apps.add(app);
+            mAppIndex = new AppIndex(apps);
             return app;
         }
     }
@@ -171,44 +220,41 @@ public class ContextMap<C> {
     /** Remove the context for a given UUID */
     public void remove(UUID uuid) {
         synchronized (mAppsLock) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.uuid.equals(uuid)) {
-                    entry.unlinkToDeath();
-                    i.remove();
-                    break;
-                }
-            }
+            removeAppByPredicate(entry -> entry.uuid.equals(uuid));
         }
     }
 
     /** Remove the context for a given application ID. */
     public void remove(int id) {
-        boolean find = false;
+        boolean find;
         synchronized (mAppsLock) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.id == id) {
-                    find = true;
-                    entry.unlinkToDeath();
-                    i.remove();
-                    break;
-                }
-            }
+            find = removeAppByPredicate(entry -> entry.id == id);
         }
         if (find) {
             removeConnectionsByAppId(id);
         }
     }
 
+    @GuardedBy("mAppsLock")
+    private boolean removeAppByPredicate(Predicate<App> predicate) {
+        List<App> apps = new ArrayList<>(mAppIndex.mApps);
+        Iterator<App> i = apps.iterator();
+        while (i.hasNext()) {
+            App entry = i.next();
+            if (predicate.test(entry)) {
+                entry.unlinkToDeath();
+                i.remove();
+                mAppIndex = new AppIndex(apps);
+                return true;
+            }
+        }
+        return false;
+    }
+
     public List<Integer> getAllAppsIds() {
         List<Integer> appIds = new ArrayList();
-        synchronized (mAppsLock) {
-            for (App entry : mApps) {
-                appIds.add(entry.id);
-            }
+        for (App entry : mAppIndex.mApps) {
+            appIds.add(entry.id);
         }
         return appIds;
     }
@@ -218,22 +264,26 @@ public class ContextMap<C> {
         synchronized (mConnectionsLock) {
             App entry = getById(id);
             if (entry != null) {
-                mConnections.add(new Connection(connId, address, id));
+                List<Connection> connections = new ArrayList<>(mConnectionIndex.mConnections);
+                connections.add(new Connection(connId, address, id));
+                mConnectionIndex = new ConnectionIndex(connections);
             }
         }
     }
 
     /** Remove a connection with the given ID. */
     void removeConnection(int id, int connId) {
-        synchronized (mConnectionsLock) {
-            if (Flags.bleContextMapRemoveFix()) {
-                mConnections.removeIf(conn -> conn.appId == id && conn.connId == connId);
-            } else {
-                Iterator<Connection> i = mConnections.iterator();
+        if (Flags.bleContextMapRemoveFix()) {
+            removeConnectionsByPredicate(conn -> conn.appId == id && conn.connId == connId);
+        } else {
+            synchronized (mConnectionsLock) {
+                List<Connection> connections = new ArrayList<>(mConnectionIndex.mConnections);
+                Iterator<Connection> i = connections.iterator();
                 while (i.hasNext()) {
                     Connection connection = i.next();
                     if (connection.connId == connId) {
                         i.remove();
+                        mConnectionIndex = new ConnectionIndex(connections);
                         break;
                     }
                 }
@@ -243,35 +293,47 @@ public class ContextMap<C> {
 
     /** Remove all connections for a given application ID. */
     void removeConnectionsByAppId(int appId) {
-        synchronized (mConnectionsLock) {
-            mConnections.removeIf(conn -> conn.appId == appId);
-        }
+        removeConnectionsByPredicate(conn -> conn.appId == appId);
     }
 
-    private App getAppByPredicate(Predicate<App> predicate) {
-        synchronized (mAppsLock) {
-            // Intentionally using a for-loop over a stream for performance.
-            for (App app : mApps) {
-                if (predicate.test(app)) {
-                    return app;
-                }
+    private void removeConnectionsByPredicate(Predicate<Connection> predicate) {
+        synchronized (mConnectionsLock) {
+            List<Connection> connections = new ArrayList<>(mConnectionIndex.mConnections);
+            if (connections.removeIf(predicate)) {
+                mConnectionIndex = new ConnectionIndex(connections);
             }
-            return null;
         }
     }
 
     /** Get an application context by ID. */
     public App getById(int id) {
-        App app = getAppByPredicate(entry -> entry.id == id);
+        App app = mAppIndex.mById.get(id);
+        if (app == null || app.id != id) {
+            // The ID of an application is assigned after it is added, look for it and refresh the
+            // index so that the next lookups are direct.
+            app = findAppById(id);
+        }
         if (app == null) {
             Log.e(TAG, "Context not found for ID " + id);
         }
         return app;
     }
 
+    private App findAppById(int id) {
+        for (App entry : mAppIndex.mApps) {
+            if (entry.id == id) {
+                synchronized (mAppsLock) {
+                    mAppIndex = new AppIndex(mAppIndex.mApps);
+                }
+                return entry;
+            }
+        }
+        return null;
+    }
+
     /** Get an application context by UUID. */
     public App getByUuid(UUID uuid) {
-        App app = getAppByPredicate(entry -> entry.uuid.equals(uuid));
+        App app = mAppIndex.mByUuid.get(uuid);
         if (app == null) {
             Log.e(TAG, "Context not found for UUID " + uuid);
         }
@@ -281,27 +343,17 @@ public class ContextMap<C> {
     /** Get the device addresses for all connected devices */
     Set<String> getConnectedDevices() {
         Set<String> addresses = new HashSet<String>();
-        synchronized (mConnectionsLock) {
-            for (Connection connection : mConnections) {
-                addresses.add(connection.address);
-            }
+        for (Connection connection : mConnectionIndex.mConnections) {
+            addresses.add(connection.address);
         }
         return addresses;
     }
 
     /** Get an application context by a connection ID. */
     App getByConnId(int connId) {
-        int appId = -1;
-        synchronized (mConnectionsLock) {
-            for (Connection connection : mConnections) {
-                if (connection.connId == connId) {
-                    appId = connection.appId;
-                    break;
-                }
-            }
-        }
-        if (appId >= 0) {
-            return getById(appId);
+        Connection connection = mConnectionIndex.mByConnId.get(connId);
+        if (connection != null && connection.appId >= 0) {
+            return getById(connection.appId);
         }
         return null;
     }
@@ -309,38 +361,32 @@ public class ContextMap<C> {
     /** Returns a connection ID for a given device address. */
     Integer connIdByAddress(int id, String address) {
         App entry = getById(id);
-        if (entry == null) {
+        if (entry == null || address == null) {
             return null;
         }
-        synchronized (mConnectionsLock) {
-            for (Connection connection : mConnections) {
-                if (connection.address.equalsIgnoreCase(address) && connection.appId == id) {
-                    return connection.connId;
-                }
-            }
+        Map<String, Connection> connections = mConnectionIndex.mByAppAddress.get(id);
+        if (connections == null) {
+            return null;
         }
-        return null;
+        // Addresses are upper case in the stack, only convert when needed.
+        Connection connection = connections.get(address);
+        if (connection == null) {
+            connection = connections.get(address.toUpperCase(Locale.ROOT));
+        }
+        return connection != null ? connection.connId : null;
     }
 
     /** Returns the device address for a given connection ID. */
     String addressByConnId(int connId) {
-        synchronized (mConnectionsLock) {
-            for (Connection connection : mConnections) {
-                if (connection.connId == connId) {
-                    return connection.address;
-                }
-            }
-        }
-        return null;
+        Connection connection = mConnectionIndex.mByConnId.get(connId);
+        return connection != null ? connection.address : null;
     }
 
     public List<Connection> getConnectionByApp(int appId) {
         List<Connection> currentConnections = new ArrayList<Connection>();
-        synchronized (mConnectionsLock) {
-            for (Connection connection : mConnections) {
-                if (connection.appId == appId) {
-                    currentConnections.add(connection);
-                }
+        for (Connection connection : mConnectionIndex.mConnections) {
+            if (connection.appId == appId) {
+                currentConnections.add(connection);
             }
         }
         return currentConnections;
@@ -348,40 +394,40 @@ public class ContextMap<C> {
 
     /** Counts the number of applications that have a given app UID. */
     public int countByAppUid(int appUid) {
-        synchronized (mAppsLock) {
-            return (int) (mApps.stream().filter(app -> app.appUid == appUid).count());
+        int count = 0;
+        for (App app : mAppIndex.mApps) {
+            if (app.appUid == appUid) {
+                count++;
+            }
         }
+        return count;
     }
 
     /** Erases all application context entries. */
     public void clear() {
         synchronized (mAppsLock) {
-            for (App entry : mApps) {
+            for (App entry : mAppIndex.mApps) {
                 entry.unlinkToDeath();
             }
-            mApps.clear();
+            mAppIndex = new AppIndex(Collections.emptyList());
         }
 
         synchronized (mConnectionsLock) {
-            mConnections.clear();
+            mConnectionIndex = new ConnectionIndex(Collections.emptyList());
         }
     }
 
     /** Returns connect device map with addr and appid */
     Map<Integer, String> getConnectedMap() {
         Map<Integer, String> connectedmap = new HashMap<Integer, String>();
-        synchronized (mConnectionsLock) {
-            for (Connection conn : mConnections) {
-                connectedmap.put(conn.appId, conn.address);
-            }
+        for (Connection conn : mConnectionIndex.mConnections) {
+            connectedmap.put(conn.appId, conn.address);
         }
         return connectedmap;
     }
 
     /** Logs debug information. */
     protected void dump(StringBuilder sb) {
-        synchronized (mAppsLock) {
-            sb.append("  Entries: ").append(mApps.size()).append("\n\n");
-        }
+        sb.append("  Entries: ").append(mAppIndex.mApps.size()).append("\n\n");
     }
 }
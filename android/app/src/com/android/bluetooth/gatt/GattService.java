@@ -77,6 +77,7 @@ import android.util.Log;
 
 import com.android.bluetooth.BluetoothMetricsProto;
 import com.android.bluetooth.BluetoothStatsLog;
+import com.android.bluetooth.BluetoothTraceLogger;
 import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AbstractionLayer;
@@ -150,6 +151,8 @@ public class GattService extends ProfileService {
 
     @VisibleForTesting static final int GATT_CLIENT_LIMIT_PER_APP = 32;
 
+    private static final int NUM_TRACE_EVENTS_KEPT = 100;
+
     public final TransitionalScanHelper mTransitionalScanHelper;
 
     /** This is only used when Flags.scanManagerRefactor() is true. */
@@ -164,6 +167,10 @@ public class GattService extends ProfileService {
     /** Server handle map. */
     private final HandleMap mHandleMap = new HandleMap();
 
+    /** Trace of the GATT client and server operations, shared with the LE scans. */
+    private final BluetoothTraceLogger mTraceLog =
+            new BluetoothTraceLogger(TAG, NUM_TRACE_EVENTS_KEPT, "GATT trace");
+
     /**
      * Set of restricted (which require a BLUETOOTH_PRIVILEGED permission) handles per connectionId.
      */
@@ -193,7 +200,7 @@ public class GattService extends ProfileService {
         mPackageManager = requireNonNull(mAdapterService.getPackageManager());
 
         mTransitionalScanHelper =
-                new TransitionalScanHelper(adapterService, this::isTestModeEnabled);
+                new TransitionalScanHelper(adapterService, this::isTestModeEnabled, mTraceLog);
 
         Settings.Global.putInt(
                 getContentResolver(), "bluetooth_sanitized_exposure_notification_supported", 1);
@@ -1701,14 +1708,7 @@ public class GattService extends ProfileService {
     void onNotify(int connId, String address, int handle, boolean isNotify, byte[] data)
             throws RemoteException {
 
-        Log.v(
-                TAG,
-                "onNotify() - address="
-                        + BluetoothUtils.toAnonymizedAddress(address)
-                        + ", handle="
-                        + handle
-                        + ", length="
-                        + data.length);
+        mTraceLog.v("onNotify() - address={}, handle={}, length={}", address, handle, data.length);
 
         ContextMap<IBluetoothGattCallback>.App app = mClientMap.getByConnId(connId);
         if (app != null) {
@@ -1730,14 +1730,11 @@ public class GattService extends ProfileService {
             throws RemoteException {
         String address = mClientMap.addressByConnId(connId);
 
-        Log.v(
-                TAG,
-                "onReadCharacteristic() - address="
-                        + BluetoothUtils.toAnonymizedAddress(address)
-                        + ", status="
-                        + status
-                        + ", length="
-                        + data.length);
+        mTraceLog.v(
+                "onReadCharacteristic() - address={}, status={}, length={}",
+                address,
+                status,
+                data.length);
 
         ContextMap<IBluetoothGattCallback>.App app = mClientMap.getByConnId(connId);
         if (app != null) {
@@ -1756,14 +1753,11 @@ public class GattService extends ProfileService {
             mPermits.put(address, -1);
         }
 
-        Log.v(
-                TAG,
-                "onWriteCharacteristic() - address="
-                        + BluetoothUtils.toAnonymizedAddress(address)
-                        + ", status="
-                        + status
-                        + ", length="
-                        + data.length);
+        mTraceLog.v(
+                "onWriteCharacteristic() - address={}, status={}, length={}",
+                address,
+                status,
+                data.length);
 
         ContextMap<IBluetoothGattCallback>.App app = mClientMap.getByConnId(connId);
         if (app == null) {
@@ -1787,12 +1781,7 @@ public class GattService extends ProfileService {
 
     void onExecuteCompleted(int connId, int status) throws RemoteException {
         String address = mClientMap.addressByConnId(connId);
-        Log.v(
-                TAG,
-                "onExecuteCompleted() - address="
-                        + BluetoothUtils.toAnonymizedAddress(address)
-                        + ", status="
-                        + status);
+        mTraceLog.v("onExecuteCompleted() - address={}, status={}", address, status);
 
         ContextMap<IBluetoothGattCallback>.App app = mClientMap.getByConnId(connId);
         if (app != null) {
@@ -1803,14 +1792,11 @@ public class GattService extends ProfileService {
     void onReadDescriptor(int connId, int status, int handle, byte[] data) throws RemoteException {
         String address = mClientMap.addressByConnId(connId);
 
-        Log.v(
-                TAG,
-                "onReadDescriptor() - address="
-                        + BluetoothUtils.toAnonymizedAddress(address)
-                        + ", status="
-                        + status
-                        + ", length="
-                        + data.length);
+        mTraceLog.v(
+                "onReadDescriptor() - address={}, status={}, length={}",
+                address,
+                status,
+                data.length);
 
         ContextMap<IBluetoothGattCallback>.App app = mClientMap.getByConnId(connId);
         if (app != null) {
@@ -1821,14 +1807,11 @@ public class GattService extends ProfileService {
     void onWriteDescriptor(int connId, int status, int handle, byte[] data) throws RemoteException {
         String address = mClientMap.addressByConnId(connId);
 
-        Log.v(
-                TAG,
-                "onWriteDescriptor() - address="
-                        + BluetoothUtils.toAnonymizedAddress(address)
-                        + ", status="
-                        + status
-                        + ", length="
-                        + data.length);
+        mTraceLog.v(
+                "onWriteDescriptor() - address={}, status={}, length={}",
+                address,
+                status,
+                data.length);
 
         ContextMap<IBluetoothGattCallback>.App app = mClientMap.getByConnId(connId);
         if (app != null) {
@@ -2443,7 +2426,7 @@ public class GattService extends ProfileService {
             return;
         }
 
-        Log.v(TAG, "readCharacteristic() - address=" + BluetoothUtils.toAnonymizedAddress(address));
+        mTraceLog.v("readCharacteristic() - address={}", address);
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
         if (connId == null) {
@@ -2484,10 +2467,7 @@ public class GattService extends ProfileService {
             return;
         }
 
-        Log.v(
-                TAG,
-                "readUsingCharacteristicUuid() - address="
-                        + BluetoothUtils.toAnonymizedAddress(address));
+        mTraceLog.v("readUsingCharacteristicUuid() - address={}", address);
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
         if (connId == null) {
@@ -2534,9 +2514,7 @@ public class GattService extends ProfileService {
             return BluetoothStatusCodes.ERROR_MISSING_BLUETOOTH_CONNECT_PERMISSION;
         }
 
-        Log.v(
-                TAG,
-                "writeCharacteristic() - address=" + BluetoothUtils.toAnonymizedAddress(address));
+        mTraceLog.v("writeCharacteristic() - address={}", address);
 
         if (mReliableQueue.contains(address)) {
             writeType = 3; // Prepared write
@@ -2586,7 +2564,7 @@ public class GattService extends ProfileService {
             return;
         }
 
-        Log.v(TAG, "readDescriptor() - address=" + BluetoothUtils.toAnonymizedAddress(address));
+        mTraceLog.v("readDescriptor() - address={}", address);
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
         if (connId == null) {
@@ -2625,7 +2603,7 @@ public class GattService extends ProfileService {
                 this, attributionSource, "GattService writeDescriptor")) {
             return BluetoothStatusCodes.ERROR_MISSING_BLUETOOTH_CONNECT_PERMISSION;
         }
-        Log.v(TAG, "writeDescriptor() - address=" + BluetoothUtils.toAnonymizedAddress(address));
+        mTraceLog.v("writeDescriptor() - address={}", address);
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
         if (connId == null) {
@@ -3093,18 +3071,14 @@ public class GattService extends ProfileService {
     void onServerReadCharacteristic(
             String address, int connId, int transId, int handle, int offset, boolean isLong)
             throws RemoteException {
-        Log.v(
-                TAG,
-                "onServerReadCharacteristic() connId="
-                        + connId
-                        + ", address="
-                        + BluetoothUtils.toAnonymizedAddress(address)
-                        + ", handle="
-                        + handle
-                        + ", requestId="
-                        + transId
-                        + ", offset="
-                        + offset);
+        mTraceLog.v(
+                "onServerReadCharacteristic() connId={}, address={}, handle={}, requestId={},"
+                        + " offset={}",
+                connId,
+                address,
+                handle,
+                transId,
+                offset);
 
         HandleMap.Entry entry = mHandleMap.getByHandle(handle);
         if (entry == null) {
@@ -3124,18 +3098,14 @@ public class GattService extends ProfileService {
     void onServerReadDescriptor(
             String address, int connId, int transId, int handle, int offset, boolean isLong)
             throws RemoteException {
-        Log.v(
-                TAG,
-                "onServerReadDescriptor() connId="
-                        + connId
-                        + ", address="
-                        + BluetoothUtils.toAnonymizedAddress(address)
-                        + ", handle="
-                        + handle
-                        + ", requestId="
-                        + transId
-                        + ", offset="
-                        + offset);
+        mTraceLog.v(
+                "onServerReadDescriptor() connId={}, address={}, handle={}, requestId={},"
+                        + " offset={}",
+                connId,
+                address,
+                handle,
+                transId,
+                offset);
 
         HandleMap.Entry entry = mHandleMap.getByHandle(handle);
         if (entry == null) {
@@ -3163,20 +3133,15 @@ public class GattService extends ProfileService {
             boolean isPrep,
             byte[] data)
             throws RemoteException {
-        Log.v(
-                TAG,
-                "onServerWriteCharacteristic() connId="
-                        + connId
-                        + ", address="
-                        + BluetoothUtils.toAnonymizedAddress(address)
-                        + ", handle="
-                        + handle
-                        + ", requestId="
-                        + transId
-                        + ", isPrep="
-                        + isPrep
-                        + ", offset="
-                        + offset);
+        mTraceLog.v(
+                "onServerWriteCharacteristic() connId={}, address={}, handle={}, requestId={},"
+                        + " isPrep={}, offset={}",
+                connId,
+                address,
+                handle,
+                transId,
+                isPrep,
+                offset);
 
         HandleMap.Entry entry = mHandleMap.getByHandle(handle);
         if (entry == null) {
@@ -3205,20 +3170,15 @@ public class GattService extends ProfileService {
             boolean isPrep,
             byte[] data)
             throws RemoteException {
-        Log.v(
-                TAG,
-                "onAttributeWrite() connId="
-                        + connId
-                        + ", address="
-                        + BluetoothUtils.toAnonymizedAddress(address)
-                        + ", handle="
-                        + handle
-                        + ", requestId="
-                        + transId
-                        + ", isPrep="
-                        + isPrep
-                        + ", offset="
-                        + offset);
+        mTraceLog.v(
+                "onAttributeWrite() connId={}, address={}, handle={}, requestId={}, isPrep={},"
+                        + " offset={}",
+                connId,
+                address,
+                handle,
+                transId,
+                isPrep,
+                offset);
 
         HandleMap.Entry entry = mHandleMap.getByHandle(handle);
         if (entry == null) {
@@ -3260,7 +3220,7 @@ public class GattService extends ProfileService {
     }
 
     void onNotificationSent(int connId, int status) throws RemoteException {
-        Log.v(TAG, "onNotificationSent() connId=" + connId + ", status=" + status);
+        mTraceLog.v("onNotificationSent() connId={}, status={}", connId, status);
 
         String address = mServerMap.addressByConnId(connId);
         if (address == null) {
@@ -3530,12 +3490,7 @@ public class GattService extends ProfileService {
             return;
         }
 
-        Log.v(
-                TAG,
-                "sendResponse() - address="
-                        + BluetoothUtils.toAnonymizedAddress(address)
-                        + ", requestId="
-                        + requestId);
+        mTraceLog.v("sendResponse() - address={}, requestId={}", address, requestId);
 
         int handle = 0;
         Integer connId = 0;
@@ -3580,12 +3535,7 @@ public class GattService extends ProfileService {
             return BluetoothStatusCodes.ERROR_MISSING_BLUETOOTH_CONNECT_PERMISSION;
         }
 
-        Log.v(
-                TAG,
-                "sendNotification() - address="
-                        + BluetoothUtils.toAnonymizedAddress(address)
-                        + " handle="
-                        + handle);
+        mTraceLog.v("sendNotification() - address={} handle={}", address, handle);
 
         Integer connId = mServerMap.connIdByAddress(serverIf, address);
         if (connId == null || connId == 0) {
@@ -3788,6 +3738,8 @@ public class GattService extends ProfileService {
 
         sb.append("GATT Handle Map\n");
         mHandleMap.dump(sb);
+
+        mTraceLog.dump(sb);
     }
 
     private void statsLogAppPackage(String address, int applicationUid, int sessionIndex) {
@@ -17,11 +17,14 @@ package com.android.bluetooth.gatt;
 
 import android.util.Log;
 
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 class HandleMap {
     private static final String TAG = GattServiceConfig.TAG_PREFIX + "HandleMap";
@@ -96,17 +99,32 @@ class HandleMap {
         }
     }
 
-    List<Entry> mEntries = null;
+    /** Every attribute, by handle. Read without locking on each ATT request. */
+    private final Map<Integer, Entry> mEntriesByHandle = new ConcurrentHashMap<>();
+
+    /**
+     * Attributes of each service, keyed by server and service handle, in the order services were
+     * added. The service entry comes first, followed by its characteristics and descriptors.
+     */
+    @GuardedBy("this")
+    private final Map<Long, List<Entry>> mServices = new LinkedHashMap<>();
+
     Map<Integer, RequestData> mRequestMap = null;
     int mLastCharacteristic = 0;
 
     HandleMap() {
-        mEntries = new CopyOnWriteArrayList<Entry>();
         mRequestMap = new ConcurrentHashMap<Integer, RequestData>();
     }
 
+    private static long serviceKey(int serverIf, int serviceHandle) {
+        return ((long) serverIf << 32) | (serviceHandle & 0xFFFFFFFFL);
+    }
+
     void clear() {
-        mEntries.clear();
+        synchronized (this) {
+            mServices.clear();
+            mEntriesByHandle.clear();
+        }
         mRequestMap.clear();
     }
 
@@ -117,16 +135,21 @@ class HandleMap {
             int serviceType,
             int instance,
             boolean advertisePreferred) {
-        mEntries.add(new Entry(serverIf, handle, uuid, serviceType, instance, advertisePreferred));
+        addEntry(
+                handle,
+                new Entry(serverIf, handle, uuid, serviceType, instance, advertisePreferred));
     }
 
     void addCharacteristic(int serverIf, int handle, UUID uuid, int serviceHandle) {
         mLastCharacteristic = handle;
-        mEntries.add(new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle));
+        addEntry(
+                serviceHandle,
+                new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle));
     }
 
     void addDescriptor(int serverIf, int handle, UUID uuid, int serviceHandle) {
-        mEntries.add(
+        addEntry(
+                serviceHandle,
                 new Entry(
                         serverIf,
                         TYPE_DESCRIPTOR,
@@ -136,48 +159,64 @@ class HandleMap {
                         mLastCharacteristic));
     }
 
-    void setStarted(int serverIf, int handle, boolean started) {
-        for (Entry entry : mEntries) {
-            if (entry.type != TYPE_SERVICE
-                    || entry.serverIf != serverIf
-                    || entry.handle != handle) {
-                continue;
-            }
+    private synchronized void addEntry(int serviceHandle, Entry entry) {
+        mServices
+                .computeIfAbsent(serviceKey(entry.serverIf, serviceHandle), k -> new ArrayList<>())
+                .add(entry);
+        mEntriesByHandle.put(entry.handle, entry);
+    }
 
+    synchronized void setStarted(int serverIf, int handle, boolean started) {
+        Entry entry = getService(serverIf, handle);
+        if (entry != null) {
             entry.started = started;
-            return;
         }
     }
 
-    Entry getByHandle(int handle) {
-        for (Entry entry : mEntries) {
-            if (entry.handle == handle) {
+    @GuardedBy("this")
+    private Entry getService(int serverIf, int handle) {
+        List<Entry> attributes = mServices.get(serviceKey(serverIf, handle));
+        if (attributes == null) {
+            return null;
+        }
+        for (Entry entry : attributes) {
+            if (entry.type == TYPE_SERVICE && entry.handle == handle) {
                 return entry;
             }
         }
-        Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
         return null;
     }
 
-    boolean checkServiceExists(UUID uuid, int handle) {
-        for (Entry entry : mEntries) {
-            if (entry.type == TYPE_SERVICE && entry.handle == handle && entry.uuid.equals(uuid)) {
-                return true;
-            }
+    Entry getByHandle(int handle) {
+        Entry entry = mEntriesByHandle.get(handle);
+        if (entry == null) {
+            Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
         }
-        return false;
+        return entry;
     }
 
-    void deleteService(int serverIf, int serviceHandle) {
-        mEntries.removeIf(
-                entry ->
-                        ((entry.serverIf == serverIf)
-                                && (entry.handle == serviceHandle
-                                        || entry.serviceHandle == serviceHandle)));
+    boolean checkServiceExists(UUID uuid, int handle) {
+        Entry entry = mEntriesByHandle.get(handle);
+        return entry != null && entry.type == TYPE_SERVICE && entry.uuid.equals(uuid);
     }
 
-    List<Entry> getEntries() {
-        return mEntries;
+    synchronized void deleteService(int serverIf, int serviceHandle) {
+        List<Entry> attributes = mServices.remove(serviceKey(serverIf, serviceHandle));
+        if (attributes == null) {
+            return;
+        }
+        for (Entry entry : attributes) {
+            mEntriesByHandle.remove(entry.handle, entry);
+        }
+    }
+
+    /** Returns a snapshot of all the attributes, grouped by service. */
+    synchronized List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<>(mEntriesByHandle.size());
+        for (List<Entry> attributes : mServices.values()) {
+            entries.addAll(attributes);
+        }
+        return entries;
     }
 
     void addRequest(int connId, int requestId, int handle) {
@@ -218,10 +257,11 @@ class HandleMap {
 
     /** Logs debug information. */
     void dump(StringBuilder sb) {
-        sb.append("  Entries: ").append(mEntries.size()).append("\n");
+        List<Entry> entries = getEntries();
+        sb.append("  Entries: ").append(entries.size()).append("\n");
         sb.append("  Requests: ").append(mRequestMap.size()).append("\n");
 
-        for (Entry entry : mEntries) {
+        for (Entry entry : entries) {
             sb.append("  ").append(entry.serverIf).append(": [").append(entry.handle).append("] ");
             switch (entry.type) {
                 case TYPE_SERVICE:
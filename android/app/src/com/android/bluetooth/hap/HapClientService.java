@@ -36,7 +36,6 @@ import android.bluetooth.BluetoothUuid;
 import android.bluetooth.IBluetoothHapClientCallback;
 import android.content.Intent;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.ParcelUuid;
 import android.os.RemoteCallbackList;
@@ -47,6 +46,8 @@ import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.ActiveDeviceManager;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.btservice.ProfileService;
+import com.android.bluetooth.btservice.SerialQueuePool;
+import com.android.bluetooth.btservice.SerialQueuePool.SerialQueue;
 import com.android.bluetooth.btservice.ServiceFactory;
 import com.android.bluetooth.btservice.storage.DatabaseManager;
 import com.android.bluetooth.csip.CsipSetCoordinatorService;
@@ -66,7 +67,6 @@ public class HapClientService extends ProfileService {
 
     // Upper limit of all HearingAccess devices: Bonded or Connected
     private static final int MAX_HEARING_ACCESS_STATE_MACHINES = 10;
-    private static final int SM_THREAD_JOIN_TIMEOUT_MS = 1000;
 
     private static HapClientService sHapClient;
 
@@ -78,7 +78,7 @@ public class HapClientService extends ProfileService {
     private final DatabaseManager mDatabaseManager;
     private final Handler mHandler;
     private final Looper mStateMachinesLooper;
-    private final HandlerThread mStateMachinesThread;
+    private final SerialQueue mStateMachinesQueue;
     private final HapClientNativeInterface mNativeInterface;
 
     @VisibleForTesting
@@ -136,12 +136,12 @@ public class HapClientService extends ProfileService {
 
         if (looper == null) {
             mHandler = new Handler(requireNonNull(Looper.getMainLooper()));
-            mStateMachinesThread = new HandlerThread("HapClientService.StateMachines");
-            mStateMachinesThread.start();
-            mStateMachinesLooper = mStateMachinesThread.getLooper();
+            mStateMachinesQueue =
+                    SerialQueuePool.getInstance().acquire("HapClientService.StateMachines");
+            mStateMachinesLooper = mStateMachinesQueue.getLooper();
         } else {
             mHandler = new Handler(looper);
-            mStateMachinesThread = null;
+            mStateMachinesQueue = null;
             mStateMachinesLooper = looper;
         }
 
@@ -176,13 +176,8 @@ public class HapClientService extends ProfileService {
             mStateMachines.clear();
         }
 
-        if (mStateMachinesThread != null) {
-            try {
-                mStateMachinesThread.quitSafely();
-                mStateMachinesThread.join(SM_THREAD_JOIN_TIMEOUT_MS);
-            } catch (InterruptedException e) {
-                // Do not rethrow as we are shutting down anyway
-            }
+        if (mStateMachinesQueue != null) {
+            mStateMachinesQueue.release();
         }
 
         // Unregister Handler and stop all queued messages.
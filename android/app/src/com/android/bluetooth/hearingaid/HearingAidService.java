@@ -38,7 +38,6 @@ import android.media.AudioDeviceInfo;
 import android.media.AudioManager;
 import android.media.BluetoothProfileConnectionInfo;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.ParcelUuid;
 import android.os.UserHandle;
@@ -51,6 +50,8 @@ import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.btservice.MetricsLogger;
 import com.android.bluetooth.btservice.ProfileService;
+import com.android.bluetooth.btservice.SerialQueuePool;
+import com.android.bluetooth.btservice.SerialQueuePool.SerialQueue;
 import com.android.bluetooth.btservice.storage.DatabaseManager;
 import com.android.bluetooth.flags.Flags;
 import com.android.internal.annotations.VisibleForTesting;
@@ -66,8 +67,6 @@ import java.util.concurrent.ConcurrentHashMap;
 public class HearingAidService extends ProfileService {
     private static final String TAG = HearingAidService.class.getSimpleName();
 
-    private static final int SM_THREAD_JOIN_TIMEOUT_MS = 1000;
-
     // Upper limit of all HearingAid devices: Bonded or Connected
     private static final int MAX_HEARING_AID_STATE_MACHINES = 10;
 
@@ -77,7 +76,7 @@ public class HearingAidService extends ProfileService {
     private final DatabaseManager mDatabaseManager;
     private final HearingAidNativeInterface mNativeInterface;
     private final AudioManager mAudioManager;
-    private final HandlerThread mStateMachinesThread;
+    private final SerialQueue mStateMachinesQueue;
     private final Looper mStateMachinesLooper;
     private final Handler mHandler;
 
@@ -108,12 +107,12 @@ public class HearingAidService extends ProfileService {
         mDatabaseManager = requireNonNull(mAdapterService.getDatabase());
         if (looper == null) {
             mHandler = new Handler(requireNonNull(Looper.getMainLooper()));
-            mStateMachinesThread = new HandlerThread("HearingAidService.StateMachines");
-            mStateMachinesThread.start();
-            mStateMachinesLooper = mStateMachinesThread.getLooper();
+            mStateMachinesQueue =
+                    SerialQueuePool.getInstance().acquire("HearingAidService.StateMachines");
+            mStateMachinesLooper = mStateMachinesQueue.getLooper();
         } else {
             mHandler = new Handler(looper);
-            mStateMachinesThread = null;
+            mStateMachinesQueue = null;
             mStateMachinesLooper = looper;
         }
         mNativeInterface = requireNonNull(nativeInterface);
@@ -154,13 +153,8 @@ public class HearingAidService extends ProfileService {
         mDeviceCapabilitiesMap.clear();
         mHiSyncIdConnectedMap.clear();
 
-        if (mStateMachinesThread != null) {
-            try {
-                mStateMachinesThread.quitSafely();
-                mStateMachinesThread.join(SM_THREAD_JOIN_TIMEOUT_MS);
-            } catch (InterruptedException e) {
-                // Do not rethrow as we are shutting down anyway
-            }
+        if (mStateMachinesQueue != null) {
+            mStateMachinesQueue.release();
         }
 
         mHandler.removeCallbacksAndMessages(null);
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.le_scan;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cursor over the records of a batch scan report, reading them in place from the report buffer.
+ *
+ * <p>Both record formats start with the address (6 octets, little endian), followed by the
+ * address type, the tx power, the rssi and the timestamp (2 octets, in units of 50 ms before the
+ * report). Truncated records stop there, full records continue with the length prefixed
+ * advertising data and scan response.
+ *
+ * <p>The {@link ScanResult} of the current record is only built when requested, and at most once.
+ */
+class BatchScanReportCursor {
+    static final int TRUNCATED_RESULT_SIZE = 11;
+
+    private static final int ADDRESS_LENGTH = 6;
+    private static final int RSSI_OFFSET = 8;
+    private static final int TIMESTAMP_OFFSET = 9;
+    private static final int ADV_DATA_OFFSET = 11;
+
+    private static final ScanRecord EMPTY_SCAN_RECORD = ScanRecord.parseFromBytes(new byte[0]);
+
+    private final boolean mTruncated;
+    private final int mNumRecords;
+    private final byte[] mRecordData;
+    private final long mNowNanos;
+    private final byte[] mAddress = new byte[ADDRESS_LENGTH];
+
+    private int mIndex = -1;
+    private int mRecordStart;
+    private int mNextRecordStart;
+    private ScanResult mResult;
+
+    BatchScanReportCursor(int reportType, int numRecords, byte[] recordData, long nowNanos) {
+        mTruncated = reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED;
+        mNumRecords = numRecords;
+        mRecordData = recordData;
+        mNowNanos = nowNanos;
+    }
+
+    /** Moves to the next record of the report, returns false once all records were read. */
+    boolean moveToNext() {
+        mResult = null;
+        if (mNumRecords == 0) {
+            return false;
+        }
+        if (mTruncated) {
+            if (mIndex + 1 >= mNumRecords) {
+                return false;
+            }
+            mIndex++;
+            mRecordStart = mIndex * TRUNCATED_RESULT_SIZE;
+            return true;
+        }
+        // Full reports are walked up to the end of the buffer.
+        if (mNextRecordStart >= mRecordData.length) {
+            return false;
+        }
+        mIndex++;
+        mRecordStart = mNextRecordStart;
+        int position = mRecordStart + ADV_DATA_OFFSET;
+        position += 1 + mRecordData[position];
+        position += 1 + mRecordData[position];
+        mNextRecordStart = position;
+        return true;
+    }
+
+    /** Returns true if the current record was sent by {@code address}, ignoring case. */
+    boolean hasAddress(String address) {
+        if (address == null || address.length() != ADDRESS_LENGTH * 3 - 1) {
+            return false;
+        }
+        for (int i = 0; i < ADDRESS_LENGTH; i++) {
+            int value = mRecordData[mRecordStart + ADDRESS_LENGTH - 1 - i] & 0xFF;
+            if (Character.digit(address.charAt(i * 3), 16) != (value >> 4)
+                    || Character.digit(address.charAt(i * 3 + 1), 16) != (value & 0x0F)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int getRssi() {
+        return mRecordData[mRecordStart + RSSI_OFFSET];
+    }
+
+    long getTimestampNanos() {
+        int timestampUnit =
+                (mRecordData[mRecordStart + TIMESTAMP_OFFSET] & 0xFF)
+                        + ((mRecordData[mRecordStart + TIMESTAMP_OFFSET + 1] & 0xFF) << 8);
+        return mNowNanos - timestampUnitToNanos(timestampUnit);
+    }
+
+    /** Returns the scan result of the current record, built on first call. */
+    ScanResult getResult() {
+        if (mResult == null) {
+            for (int i = 0; i < ADDRESS_LENGTH; i++) {
+                mAddress[i] = mRecordData[mRecordStart + ADDRESS_LENGTH - 1 - i];
+            }
+            BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(mAddress);
+            ScanRecord scanRecord = mTruncated ? EMPTY_SCAN_RECORD : buildScanRecord();
+            mResult = new ScanResult(device, scanRecord, getRssi(), getTimestampNanos());
+        }
+        return mResult;
+    }
+
+    // Combine advertise packet and scan response packet.
+    private ScanRecord buildScanRecord() {
+        int position = mRecordStart + ADV_DATA_OFFSET;
+        int advertisePacketLen = mRecordData[position++];
+        int advertiseStart = position;
+        position += advertisePacketLen;
+        int scanResponsePacketLen = mRecordData[position++];
+        byte[] scanRecord = new byte[advertisePacketLen + scanResponsePacketLen];
+        System.arraycopy(mRecordData, advertiseStart, scanRecord, 0, advertisePacketLen);
+        System.arraycopy(
+                mRecordData, position, scanRecord, advertisePacketLen, scanResponsePacketLen);
+        return ScanRecord.parseFromBytes(scanRecord);
+    }
+
+    static long timestampUnitToNanos(long timestampUnit) {
+        // Timestamp is in every 50 ms.
+        return TimeUnit.MILLISECONDS.toNanos(timestampUnit * 50);
+    }
+}
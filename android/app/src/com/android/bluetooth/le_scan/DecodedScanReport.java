@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.le_scan;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Arrays;
+
+/**
+ * A single advertising report received from the controller.
+ *
+ * <p>The report is decoded lazily and at most once per view: every scan client receiving the same
+ * view (legacy or extended) shares the same immutable {@link ScanRecord} and {@link ScanResult},
+ * and the software filters of all clients are evaluated once per view through {@link
+ * ScanFilterIndex}. Instances are confined to the thread delivering the report and are not thread
+ * safe.
+ */
+class DecodedScanReport {
+    // Some apps are used to fixed-size advertise data.
+    @VisibleForTesting static final int LEGACY_ADV_DATA_LENGTH = 62;
+
+    private static final int ET_LEGACY_MASK = 0x10;
+
+    private final int mEventType;
+    private final int mAddressType;
+    private final String mAddress;
+    private final int mPrimaryPhy;
+    private final int mSecondaryPhy;
+    private final int mAdvertisingSid;
+    private final int mTxPower;
+    private final int mRssi;
+    private final int mPeriodicAdvInt;
+    private final byte[] mAdvData;
+    private final String mOriginalAddress;
+    private final long mTimestampNanos;
+
+    private BluetoothDevice mDevice;
+    private ScanResult mLegacyResult;
+    private ScanResult mResult;
+    private ScanFilterIndex.Match mLegacyMatch;
+    private ScanFilterIndex.Match mMatch;
+    private int mDecodeCount;
+
+    DecodedScanReport(
+            int eventType,
+            int addressType,
+            String address,
+            int primaryPhy,
+            int secondaryPhy,
+            int advertisingSid,
+            int txPower,
+            int rssi,
+            int periodicAdvInt,
+            byte[] advData,
+            String originalAddress,
+            long timestampNanos) {
+        mEventType = eventType;
+        mAddressType = addressType;
+        mAddress = address;
+        mPrimaryPhy = primaryPhy;
+        mSecondaryPhy = secondaryPhy;
+        mAdvertisingSid = advertisingSid;
+        mTxPower = txPower;
+        mRssi = rssi;
+        mPeriodicAdvInt = periodicAdvInt;
+        mAdvData = advData;
+        mOriginalAddress = originalAddress;
+        mTimestampNanos = timestampNanos;
+    }
+
+    /** Returns true if the report was received from a legacy advertising PDU. */
+    boolean isLegacyEvent() {
+        return (mEventType & ET_LEGACY_MASK) != 0;
+    }
+
+    /**
+     * Returns the shared scan result for this report.
+     *
+     * @param legacy whether the result should carry the fixed-size legacy advertising data
+     */
+    ScanResult getResult(boolean legacy) {
+        if (legacy) {
+            if (mLegacyResult == null) {
+                mLegacyResult = decode(Arrays.copyOfRange(mAdvData, 0, LEGACY_ADV_DATA_LENGTH));
+            }
+            return mLegacyResult;
+        }
+        if (mResult == null) {
+            mResult = decode(mAdvData);
+        }
+        return mResult;
+    }
+
+    /**
+     * Returns the clients whose software filters match the shared scan result of this report.
+     *
+     * @param legacy whether the lookup applies to the legacy view of the report
+     * @param index index of the filters of all regular scan clients
+     * @param scratch match holding the outcome of the lookup of this view. Each view must be given
+     *     its own, which stays in use until the report has been delivered.
+     */
+    ScanFilterIndex.Match getFilterMatch(
+            boolean legacy, ScanFilterIndex index, ScanFilterIndex.Match scratch) {
+        if (legacy) {
+            if (mLegacyMatch == null) {
+                mLegacyMatch = index.match(getResult(true), mOriginalAddress, scratch);
+            }
+            return mLegacyMatch;
+        }
+        if (mMatch == null) {
+            mMatch = index.match(getResult(false), mOriginalAddress, scratch);
+        }
+        return mMatch;
+    }
+
+    /** Returns how many times the advertising data has been parsed. */
+    @VisibleForTesting
+    int getDecodeCount() {
+        return mDecodeCount;
+    }
+
+    private ScanResult decode(byte[] scanRecordData) {
+        mDecodeCount++;
+        if (mDevice == null) {
+            mDevice =
+                    BluetoothAdapter.getDefaultAdapter().getRemoteLeDevice(mAddress, mAddressType);
+        }
+        return new ScanResult(
+                mDevice,
+                mEventType,
+                mPrimaryPhy,
+                mSecondaryPhy,
+                mAdvertisingSid,
+                mTxPower,
+                mRssi,
+                mPeriodicAdvInt,
+                ScanRecord.parseFromBytes(scanRecordData),
+                mTimestampNanos);
+    }
+}
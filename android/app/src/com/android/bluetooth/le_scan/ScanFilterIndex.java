@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.le_scan;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.ParcelUuid;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiled index of the software scan filters of all regular scan clients.
+ *
+ * <p>Each filter is filed under its most selective key (device address, manufacturer ID, unmasked
+ * service UUID or advertising data type), so that a scan result only needs to be checked against
+ * the filters sharing one of its keys plus the filters that cannot be keyed. The index is updated
+ * by {@link ScanManager} when regular scans start and stop, and is read lock free by the scan
+ * result path through an immutable snapshot.
+ */
+public class ScanFilterIndex {
+    @GuardedBy("this")
+    private final Set<ScanClient> mClients = new HashSet<>();
+
+    private volatile Snapshot mSnapshot = new Snapshot(Collections.emptySet());
+
+    /** Adds the filters of {@code client} to the index. */
+    synchronized void add(ScanClient client) {
+        if (mClients.add(client)) {
+            mSnapshot = new Snapshot(mClients);
+        }
+    }
+
+    /** Removes the filters of {@code client} from the index. */
+    synchronized void remove(ScanClient client) {
+        if (mClients.remove(client)) {
+            mSnapshot = new Snapshot(mClients);
+        }
+    }
+
+    synchronized void clear() {
+        mClients.clear();
+        mSnapshot = new Snapshot(mClients);
+    }
+
+    /**
+     * Looks up the clients whose filters match {@code result}.
+     *
+     * @param originalAddress identity address of the advertiser, matched against the filter
+     *     address in addition to the result device address. May be null.
+     */
+    @VisibleForTesting
+    Match match(ScanResult result, String originalAddress) {
+        return match(result, originalAddress, new Match());
+    }
+
+    /**
+     * Looks up the clients whose filters match {@code result}, reusing {@code match} to hold the
+     * outcome so that the scan result path does not allocate per report.
+     *
+     * @param originalAddress identity address of the advertiser, matched against the filter
+     *     address in addition to the result device address. May be null.
+     * @return {@code match}, overwritten by the outcome of this lookup
+     */
+    public Match match(ScanResult result, String originalAddress, Match match) {
+        mSnapshot.match(result, originalAddress, match);
+        return match;
+    }
+
+    /** Returns the number of filters in the index. */
+    @VisibleForTesting
+    int getFilterCount() {
+        return mSnapshot.mFilterCount;
+    }
+
+    /**
+     * Outcome of looking up a single scan result in the index.
+     *
+     * <p>Instances are meant to be reused from one lookup to the next by the thread doing them and
+     * are not thread safe.
+     */
+    public static class Match {
+        private Snapshot mSnapshot = null;
+        private final Set<ScanClient> mMatchedClients = new HashSet<>();
+        @VisibleForTesting int mEvaluatedFilters;
+
+        /**
+         * Returns true if {@code client} was part of the index when the lookup was done. Clients
+         * that started scanning concurrently with the lookup must be matched by the caller.
+         */
+        public boolean isIndexed(ScanClient client) {
+            return mSnapshot != null && mSnapshot.mClients.contains(client);
+        }
+
+        /** Returns true if one of the filters of {@code client} matched. */
+        public boolean matches(ScanClient client) {
+            return mSnapshot != null
+                    && (mSnapshot.mUnfilteredClients.contains(client)
+                            || mMatchedClients.contains(client));
+        }
+    }
+
+    private static class Entry {
+        final ScanClient mClient;
+        final ScanFilter mFilter;
+
+        Entry(ScanClient client, ScanFilter filter) {
+            mClient = client;
+            mFilter = filter;
+        }
+
+        boolean matches(ScanResult result, String originalAddress) {
+            // Need to check the filter matches, and the original address without changing the API
+            return mFilter.matches(result)
+                    || (originalAddress != null
+                            && originalAddress.equalsIgnoreCase(mFilter.getDeviceAddress()));
+        }
+    }
+
+    private static class Snapshot {
+        final Set<ScanClient> mClients;
+        final Set<ScanClient> mUnfilteredClients = new HashSet<>();
+        final Map<String, List<Entry>> mByAddress = new HashMap<>();
+        final SparseArray<List<Entry>> mByManufacturerId = new SparseArray<>();
+        final Map<ParcelUuid, List<Entry>> mByServiceUuid = new HashMap<>();
+        final SparseArray<List<Entry>> mByAdType = new SparseArray<>();
+        final List<Entry> mUnkeyed = new ArrayList<>();
+        int mFilterCount;
+
+        Snapshot(Set<ScanClient> clients) {
+            mClients = Collections.unmodifiableSet(new HashSet<>(clients));
+            for (ScanClient client : mClients) {
+                if (client.filters == null || client.filters.isEmpty()) {
+                    mUnfilteredClients.add(client);
+                    continue;
+                }
+                for (ScanFilter filter : client.filters) {
+                    addEntry(new Entry(client, filter));
+                    mFilterCount++;
+                }
+            }
+        }
+
+        private void addEntry(Entry entry) {
+            ScanFilter filter = entry.mFilter;
+            if (filter.getDeviceAddress() != null) {
+                mByAddress
+                        .computeIfAbsent(
+                                filter.getDeviceAddress().toUpperCase(Locale.ROOT),
+                                k -> new ArrayList<>())
+                        .add(entry);
+            } else if (filter.getManufacturerId() >= 0 && filter.getManufacturerData() != null) {
+                bucket(mByManufacturerId, filter.getManufacturerId()).add(entry);
+            } else if (filter.getServiceUuid() != null && filter.getServiceUuidMask() == null) {
+                mByServiceUuid
+                        .computeIfAbsent(filter.getServiceUuid(), k -> new ArrayList<>())
+                        .add(entry);
+            } else if (filter.getAdvertisingDataType() > 0) {
+                bucket(mByAdType, filter.getAdvertisingDataType()).add(entry);
+            } else {
+                mUnkeyed.add(entry);
+            }
+        }
+
+        private static List<Entry> bucket(SparseArray<List<Entry>> buckets, int key) {
+            List<Entry> bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<>();
+                buckets.put(key, bucket);
+            }
+            return bucket;
+        }
+
+        void match(ScanResult result, String originalAddress, Match match) {
+            // Clients without filters are matched from the snapshot itself, only the clients
+            // matched by one of their filters are collected
+            Set<ScanClient> matched = match.mMatchedClients;
+            matched.clear();
+            match.mSnapshot = this;
+            int evaluated = 0;
+
+            BluetoothDevice device = result.getDevice();
+            String address = device == null ? null : device.getAddress();
+            evaluated +=
+                    check(mByAddress.get(upperCase(address)), result, originalAddress, matched);
+            if (originalAddress != null && !originalAddress.equalsIgnoreCase(address)) {
+                evaluated +=
+                        check(
+                                mByAddress.get(upperCase(originalAddress)),
+                                result,
+                                originalAddress,
+                                matched);
+            }
+
+            ScanRecord record = result.getScanRecord();
+            if (record != null) {
+                SparseArray<byte[]> manufacturerData = record.getManufacturerSpecificData();
+                if (manufacturerData != null && mByManufacturerId.size() > 0) {
+                    for (int i = 0; i < manufacturerData.size(); i++) {
+                        evaluated +=
+                                check(
+                                        mByManufacturerId.get(manufacturerData.keyAt(i)),
+                                        result,
+                                        originalAddress,
+                                        matched);
+                    }
+                }
+                List<ParcelUuid> serviceUuids = record.getServiceUuids();
+                if (serviceUuids != null && !mByServiceUuid.isEmpty()) {
+                    for (ParcelUuid uuid : serviceUuids) {
+                        evaluated +=
+                                check(
+                                        mByServiceUuid.get(uuid),
+                                        result,
+                                        originalAddress,
+                                        matched);
+                    }
+                }
+                if (mByAdType.size() > 0) {
+                    for (int adType : record.getAdvertisingDataMap().keySet()) {
+                        evaluated +=
+                                check(mByAdType.get(adType), result, originalAddress, matched);
+                    }
+                }
+            }
+
+            evaluated += check(mUnkeyed, result, originalAddress, matched);
+            match.mEvaluatedFilters = evaluated;
+        }
+
+        private static int check(
+                List<Entry> entries,
+                ScanResult result,
+                String originalAddress,
+                Set<ScanClient> matched) {
+            if (entries == null) {
+                return 0;
+            }
+            int evaluated = 0;
+            for (Entry entry : entries) {
+                if (matched.contains(entry.mClient)) {
+                    continue;
+                }
+                evaluated++;
+                if (entry.matches(result, originalAddress)) {
+                    matched.add(entry.mClient);
+                }
+            }
+            return evaluated;
+        }
+
+        private static String upperCase(String address) {
+            return address == null ? null : address.toUpperCase(Locale.ROOT);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.le_scan;
+
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Hands out the hardware scan filter slots of the controller to scan clients.
+ *
+ * <p>The controller only wakes up the host for advertisements matching one of the installed
+ * filters, and the exact per client matching is always redone in software. A slot can therefore
+ * be shared by all clients with the same delivery mode whose filter is equal to, or narrower than,
+ * the filter installed in it. Slots are reference counted and given back when their last client
+ * stops.
+ *
+ * <p>Slots of clients using on found / on lost delivery are not shared, as the controller tracks
+ * advertisers per filter for them.
+ */
+class ScanFilterSlotAllocator {
+
+    /** A hardware filter slot and the clients relying on it. */
+    static class Slot {
+        private final int mIndex;
+        private final ScanFilter mFilter;
+        private final int mDeliveryMode;
+        private final boolean mShareable;
+        private final Set<Integer> mScannerIds = new HashSet<>();
+
+        Slot(int index, ScanFilter filter, int deliveryMode, boolean shareable) {
+            mIndex = index;
+            mFilter = filter;
+            mDeliveryMode = deliveryMode;
+            mShareable = shareable;
+        }
+
+        int getIndex() {
+            return mIndex;
+        }
+
+        ScanFilter getFilter() {
+            return mFilter;
+        }
+
+        boolean covers(ScanFilter filter, int deliveryMode) {
+            return mShareable
+                    && mDeliveryMode == deliveryMode
+                    && ScanFilterSlotAllocator.covers(mFilter, filter);
+        }
+    }
+
+    // Filter indices that are not programmed in the controller.
+    private final Deque<Integer> mFreeIndices = new ArrayDeque<>();
+    private final List<Slot> mSlots = new ArrayList<>();
+    // Map of scannerId and slots used by the client.
+    private final Map<Integer, List<Slot>> mClientSlots = new HashMap<>();
+
+    /** Makes the filter indices [{@code first}, {@code end}) available. */
+    void init(int first, int end) {
+        for (int i = first; i < end; ++i) {
+            mFreeIndices.add(i);
+        }
+    }
+
+    boolean isInitialized() {
+        return !mFreeIndices.isEmpty() || !mSlots.isEmpty();
+    }
+
+    void clear() {
+        mFreeIndices.clear();
+        mSlots.clear();
+        mClientSlots.clear();
+    }
+
+    int getFreeSlotCount() {
+        return mFreeIndices.size();
+    }
+
+    /** Returns true if the client relies on at least one slot. */
+    boolean hasSlots(int scannerId) {
+        return mClientSlots.containsKey(scannerId);
+    }
+
+    /** Returns the clients relying on at least one slot. */
+    Set<Integer> getScannerIds() {
+        return Collections.unmodifiableSet(mClientSlots.keySet());
+    }
+
+    /** Returns true if {@code filters} can be offloaded with the slots currently free. */
+    boolean fits(List<ScanFilter> filters, int deliveryMode, boolean shareable) {
+        return fitsAfterReleasing(filters, deliveryMode, shareable, Collections.emptySet());
+    }
+
+    /**
+     * Returns true if {@code filters} can be offloaded once the slots of {@code scannerIds} are
+     * released.
+     */
+    boolean fitsAfterReleasing(
+            List<ScanFilter> filters,
+            int deliveryMode,
+            boolean shareable,
+            Set<Integer> scannerIds) {
+        List<Slot> remaining = new ArrayList<>();
+        int free = mFreeIndices.size();
+        for (Slot slot : mSlots) {
+            if (scannerIds.containsAll(slot.mScannerIds)) {
+                free++;
+            } else {
+                remaining.add(slot);
+            }
+        }
+        int required = 0;
+        for (ScanFilter filter : getFiltersToOffload(filters, shareable)) {
+            if (!shareable || findCoveringSlot(remaining, filter, deliveryMode) == null) {
+                required++;
+            }
+        }
+        return required <= free;
+    }
+
+    /**
+     * Assigns slots to the filters of a client. Filters covered by a slot already in use share it.
+     * The caller must have checked the filters fit.
+     *
+     * @return the new slots, which must be programmed in the controller
+     */
+    List<Slot> allocate(
+            int scannerId, List<ScanFilter> filters, int deliveryMode, boolean shareable) {
+        List<Slot> clientSlots = mClientSlots.computeIfAbsent(scannerId, k -> new ArrayList<>());
+        List<Slot> newSlots = new ArrayList<>();
+        for (ScanFilter filter : getFiltersToOffload(filters, shareable)) {
+            Slot slot = shareable ? findCoveringSlot(mSlots, filter, deliveryMode) : null;
+            if (slot == null) {
+                slot = new Slot(mFreeIndices.pop(), filter, deliveryMode, shareable);
+                mSlots.add(slot);
+                newSlots.add(slot);
+            }
+            if (slot.mScannerIds.add(scannerId)) {
+                clientSlots.add(slot);
+            }
+        }
+        if (clientSlots.isEmpty()) {
+            mClientSlots.remove(scannerId);
+        }
+        return newSlots;
+    }
+
+    /**
+     * Drops the references of a client on its slots.
+     *
+     * @return the slots no longer used by any client, which must be removed from the controller
+     */
+    List<Slot> release(int scannerId) {
+        List<Slot> clientSlots = mClientSlots.remove(scannerId);
+        if (clientSlots == null) {
+            return Collections.emptyList();
+        }
+        List<Slot> unusedSlots = new ArrayList<>();
+        for (Slot slot : clientSlots) {
+            slot.mScannerIds.remove(scannerId);
+            if (slot.mScannerIds.isEmpty()) {
+                mSlots.remove(slot);
+                mFreeIndices.add(slot.mIndex);
+                unusedSlots.add(slot);
+            }
+        }
+        return unusedSlots;
+    }
+
+    private static List<ScanFilter> getFiltersToOffload(
+            List<ScanFilter> filters, boolean shareable) {
+        if (!shareable) {
+            return filters;
+        }
+        // A filter narrower than another filter of the same client adds no wake up
+        List<ScanFilter> unique = new ArrayList<>(new LinkedHashSet<>(filters));
+        List<ScanFilter> result = new ArrayList<>();
+        for (int i = 0; i < unique.size(); i++) {
+            ScanFilter filter = unique.get(i);
+            boolean covered = false;
+            for (int j = 0; j < unique.size() && !covered; j++) {
+                ScanFilter other = unique.get(j);
+                // Of two filters covering each other, keep the first one
+                covered =
+                        j != i
+                                && covers(other, filter)
+                                && (j < i || !covers(filter, other));
+            }
+            if (!covered) {
+                result.add(filter);
+            }
+        }
+        return result;
+    }
+
+    private static Slot findCoveringSlot(List<Slot> slots, ScanFilter filter, int deliveryMode) {
+        for (Slot slot : slots) {
+            if (slot.covers(filter, deliveryMode)) {
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if every advertisement matching {@code narrow} also matches {@code broad}, that
+     * is if each criterion of {@code broad} is unset or identical in {@code narrow}.
+     */
+    @VisibleForTesting
+    static boolean covers(ScanFilter broad, ScanFilter narrow) {
+        if (broad.getDeviceName() != null
+                && !broad.getDeviceName().equals(narrow.getDeviceName())) {
+            return false;
+        }
+        if (broad.getDeviceAddress() != null
+                && (!broad.getDeviceAddress().equalsIgnoreCase(narrow.getDeviceAddress())
+                        || broad.getAddressType() != narrow.getAddressType()
+                        || !Arrays.equals(broad.getIrk(), narrow.getIrk()))) {
+            return false;
+        }
+        if (broad.getServiceUuid() != null
+                && (!broad.getServiceUuid().equals(narrow.getServiceUuid())
+                        || !Objects.equals(
+                                broad.getServiceUuidMask(), narrow.getServiceUuidMask()))) {
+            return false;
+        }
+        if (broad.getServiceSolicitationUuid() != null
+                && (!broad.getServiceSolicitationUuid()
+                                .equals(narrow.getServiceSolicitationUuid())
+                        || !Objects.equals(
+                                broad.getServiceSolicitationUuidMask(),
+                                narrow.getServiceSolicitationUuidMask()))) {
+            return false;
+        }
+        if (broad.getServiceDataUuid() != null
+                && (!broad.getServiceDataUuid().equals(narrow.getServiceDataUuid())
+                        || !Arrays.equals(broad.getServiceData(), narrow.getServiceData())
+                        || !Arrays.equals(
+                                broad.getServiceDataMask(), narrow.getServiceDataMask()))) {
+            return false;
+        }
+        if (broad.getManufacturerId() >= 0
+                && (broad.getManufacturerId() != narrow.getManufacturerId()
+                        || !Arrays.equals(
+                                broad.getManufacturerData(), narrow.getManufacturerData())
+                        || !Arrays.equals(
+                                broad.getManufacturerDataMask(),
+                                narrow.getManufacturerDataMask()))) {
+            return false;
+        }
+        if (broad.getAdvertisingDataType() != ScanRecord.DATA_TYPE_NONE
+                && (broad.getAdvertisingDataType() != narrow.getAdvertisingDataType()
+                        || !Arrays.equals(
+                                broad.getAdvertisingData(), narrow.getAdvertisingData())
+                        || !Arrays.equals(
+                                broad.getAdvertisingDataMask(),
+                                narrow.getAdvertisingDataMask()))) {
+            return false;
+        }
+        return broad.getTransportBlockFilter() == null
+                || broad.getTransportBlockFilter().equals(narrow.getTransportBlockFilter());
+    }
+
+    /**
+     * Estimates how often the host would be woken up by {@code filters}, in arbitrary units. Each
+     * filter is rated by its most selective criterion, and the rates of the filters add up since a
+     * client matches any of them.
+     */
+    static int getExpectedHitRate(List<ScanFilter> filters) {
+        if (filters == null || filters.isEmpty()) {
+            return Integer.MAX_VALUE;
+        }
+        int rate = 0;
+        for (ScanFilter filter : filters) {
+            rate += getExpectedHitRate(filter);
+        }
+        return rate;
+    }
+
+    private static int getExpectedHitRate(ScanFilter filter) {
+        if (filter.getDeviceAddress() != null) {
+            return 1;
+        }
+        // Nothing set, every advertisement matches
+        int rate = 64;
+        if (filter.getDeviceName() != null) {
+            rate = Math.min(rate, 2);
+        }
+        if (filter.getManufacturerId() >= 0) {
+            rate = Math.min(rate, filter.getManufacturerData() != null ? 4 : 8);
+        }
+        if (filter.getServiceDataUuid() != null) {
+            rate = Math.min(rate, filter.getServiceData() != null ? 4 : 8);
+        }
+        if (filter.getServiceUuid() != null) {
+            rate = Math.min(rate, filter.getServiceUuidMask() == null ? 8 : 16);
+        }
+        if (filter.getServiceSolicitationUuid() != null) {
+            rate = Math.min(rate, 8);
+        }
+        if (filter.getTransportBlockFilter() != null) {
+            rate = Math.min(rate, 8);
+        }
+        if (filter.getAdvertisingDataType() != ScanRecord.DATA_TYPE_NONE) {
+            rate = Math.min(rate, filter.getAdvertisingData() != null ? 4 : 32);
+        }
+        return rate;
+    }
+}
@@ -55,13 +55,12 @@ import com.android.bluetooth.gatt.GattServiceConfig;
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 
-import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Deque;
-import java.util.HashMap;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
@@ -130,6 +129,7 @@ public class ScanManager {
     private Set<ScanClient> mRegularScanClients;
     private Set<ScanClient> mBatchClients;
     private Set<ScanClient> mSuspendedScanClients;
+    private final ScanFilterIndex mScanFilterIndex = new ScanFilterIndex();
     private SparseIntArray mPriorityMap = new SparseIntArray();
 
     private DisplayManager mDisplayManager;
@@ -208,6 +208,7 @@ public class ScanManager {
 
     public void cleanup() {
         mRegularScanClients.clear();
+        mScanFilterIndex.clear();
         mBatchClients.clear();
         mSuspendedScanClients.clear();
         mScanNative.cleanup();
@@ -251,6 +252,11 @@ public class ScanManager {
         return mRegularScanClients;
     }
 
+    /** Returns the software filter index of the regular scan queue. */
+    public ScanFilterIndex getScanFilterIndex() {
+        return mScanFilterIndex;
+    }
+
     /** Returns the suspended scan queue. */
     Set<ScanClient> getSuspendedScanQueue() {
         return mSuspendedScanClients;
@@ -424,6 +430,7 @@ public class ScanManager {
                 updateScanModeBeforeStart(client);
                 updateScanModeConcurrency(client);
                 mRegularScanClients.add(client);
+                mScanFilterIndex.add(client);
                 mScanNative.startRegularScan(client);
                 if (!mScanNative.isOpportunisticScanClient(client)) {
                     mScanNative.configureRegularScanParams();
@@ -998,10 +1005,9 @@ public class ScanManager {
         // Hardcoded min number of hardware adv monitor slots for MSFT-enabled controllers
         private static final int MIN_NUM_MSFT_MONITOR_SLOTS = 20;
 
-        // Filter indices that are available to user. It's sad we need to maintain filter index.
-        private final Deque<Integer> mFilterIndexStack;
-        // Map of scannerId and Filter indices used by client.
-        private final Map<Integer, Deque<Integer>> mClientFilterIndexMap;
+        // Filter indices that are available to user, shared between clients when possible.
+        private final ScanFilterSlotAllocator mFilterSlotAllocator =
+                new ScanFilterSlotAllocator();
         // Keep track of the clients that uses ALL_PASS filters.
         private final Set<Integer> mAllPassRegularClients = new HashSet<>();
         private final Set<Integer> mAllPassBatchClients = new HashSet<>();
@@ -1021,8 +1027,6 @@ public class ScanManager {
         ScanNative(TransitionalScanHelper scanHelper) {
             mNativeInterface = ScanObjectsFactory.getInstance().getScanNativeInterface();
             mNativeInterface.init(scanHelper);
-            mFilterIndexStack = new ArrayDeque<Integer>();
-            mClientFilterIndexMap = new HashMap<Integer, Deque<Integer>>();
 
             mAlarmManager = mContext.getSystemService(AlarmManager.class);
             Intent batchIntent = new Intent(ACTION_REFRESH_BATCHED_SCAN, null);
@@ -1152,8 +1156,7 @@ public class ScanManager {
 
         void startRegularScan(ScanClient client) {
             if ((isFilteringSupported() || mIsMsftSupported)
-                    && mFilterIndexStack.isEmpty()
-                    && mClientFilterIndexMap.isEmpty()) {
+                    && !mFilterSlotAllocator.isInitialized()) {
                 initFilterIndexStack();
             }
             if (isFilteringSupported()) {
@@ -1194,7 +1197,7 @@ public class ScanManager {
         }
 
         void startBatchScan(ScanClient client) {
-            if (mFilterIndexStack.isEmpty() && isFilteringSupported()) {
+            if (!mFilterSlotAllocator.isInitialized() && isFilteringSupported()) {
                 initFilterIndexStack();
             }
             configureScanFilters(client);
@@ -1403,6 +1406,7 @@ public class ScanManager {
                 }
             }
             mRegularScanClients.remove(client);
+            mScanFilterIndex.remove(client);
             if (numRegularScanClients() == 0) {
                 Log.d(TAG, "stop gattClientScanNative");
                 mNativeInterface.gattClientScan(false);
@@ -1543,13 +1547,16 @@ public class ScanManager {
         private void configureScanFilters(ScanClient client) {
             int scannerId = client.scannerId;
             int deliveryMode = getDeliveryMode(client);
-            int trackEntries = 0;
 
             // Do not add any filters set by opportunistic scan clients
             if (isOpportunisticScanClient(client)) {
                 return;
             }
 
+            if (client.filters != null && !client.filters.isEmpty() && !fitsInFilterSlots(client)) {
+                makeRoomForScanFilters(client);
+            }
+
             if (!shouldAddAllPassFilterToController(client, deliveryMode)) {
                 return;
             }
@@ -1569,45 +1576,175 @@ public class ScanManager {
                         scannerId, client, ALL_PASS_FILTER_SELECTION, filterIndex, 0);
                 waitForCallback();
             } else {
-                Deque<Integer> clientFilterIndices = new ArrayDeque<Integer>();
-                for (ScanFilter filter : client.filters) {
-                    ScanFilterQueue queue = new ScanFilterQueue();
-                    queue.addScanFilter(filter);
-                    int featureSelection = queue.getFeatureSelection();
-                    int filterIndex = mFilterIndexStack.pop();
-
-                    resetCountDownLatch();
-                    mNativeInterface.gattClientScanFilterAdd(
-                            scannerId, queue.toArray(), filterIndex);
-                    waitForCallback();
-
-                    resetCountDownLatch();
-                    if (deliveryMode == DELIVERY_MODE_ON_FOUND_LOST) {
-                        trackEntries = getNumOfTrackingAdvertisements(client.settings);
-                        if (!manageAllocationOfTrackingAdvertisement(trackEntries, true)) {
-                            Log.e(
-                                    TAG,
-                                    "No hardware resources for onfound/onlost filter "
-                                            + trackEntries);
-                            if (client.stats != null) {
-                                client.stats.recordTrackingHwFilterNotAvailableCountMetrics(
-                                        client.scannerId,
-                                        mAdapterService.getTotalNumOfTrackableAdvertisements());
-                            }
-                            try {
-                                mScanHelper.onScanManagerErrorCallback(
-                                        scannerId, ScanCallback.SCAN_FAILED_INTERNAL_ERROR);
-                            } catch (RemoteException e) {
-                                Log.e(TAG, "failed on onScanManagerCallback", e);
-                            }
+                addScanFilterSlots(client);
+            }
+        }
+
+        // Program the filters of the client which are not covered by a slot already in use.
+        private void addScanFilterSlots(ScanClient client) {
+            int scannerId = client.scannerId;
+            int deliveryMode = getDeliveryMode(client);
+            int trackEntries = 0;
+            for (ScanFilterSlotAllocator.Slot slot :
+                    mFilterSlotAllocator.allocate(
+                            scannerId,
+                            client.filters,
+                            deliveryMode,
+                            isShareableDeliveryMode(deliveryMode))) {
+                ScanFilterQueue queue = new ScanFilterQueue();
+                queue.addScanFilter(slot.getFilter());
+                int featureSelection = queue.getFeatureSelection();
+                int filterIndex = slot.getIndex();
+
+                resetCountDownLatch();
+                mNativeInterface.gattClientScanFilterAdd(scannerId, queue.toArray(), filterIndex);
+                waitForCallback();
+
+                resetCountDownLatch();
+                if (deliveryMode == DELIVERY_MODE_ON_FOUND_LOST) {
+                    trackEntries = getNumOfTrackingAdvertisements(client.settings);
+                    if (!manageAllocationOfTrackingAdvertisement(trackEntries, true)) {
+                        Log.e(
+                                TAG,
+                                "No hardware resources for onfound/onlost filter "
+                                        + trackEntries);
+                        if (client.stats != null) {
+                            client.stats.recordTrackingHwFilterNotAvailableCountMetrics(
+                                    client.scannerId,
+                                    mAdapterService.getTotalNumOfTrackableAdvertisements());
+                        }
+                        try {
+                            mScanHelper.onScanManagerErrorCallback(
+                                    scannerId, ScanCallback.SCAN_FAILED_INTERNAL_ERROR);
+                        } catch (RemoteException e) {
+                            Log.e(TAG, "failed on onScanManagerCallback", e);
                         }
                     }
-                    configureFilterParameter(
-                            scannerId, client, featureSelection, filterIndex, trackEntries);
-                    waitForCallback();
-                    clientFilterIndices.add(filterIndex);
                 }
-                mClientFilterIndexMap.put(scannerId, clientFilterIndices);
+                configureFilterParameter(
+                        scannerId, client, featureSelection, filterIndex, trackEntries);
+                waitForCallback();
+            }
+        }
+
+        // The controller tracks advertisers per filter for onfound/onlost, so such filters
+        // cannot be shared with other clients.
+        private boolean isShareableDeliveryMode(int deliveryMode) {
+            return deliveryMode != DELIVERY_MODE_ON_FOUND_LOST;
+        }
+
+        private boolean fitsInFilterSlots(ScanClient client) {
+            int deliveryMode = getDeliveryMode(client);
+            return mFilterSlotAllocator.fits(
+                    client.filters, deliveryMode, isShareableDeliveryMode(deliveryMode));
+        }
+
+        // When the filters of the client do not fit, move the clients whose filters wake up the
+        // host more often than the ones of this client to the ALL_PASS filter, rather than the
+        // client which happened to start last.
+        private void makeRoomForScanFilters(ScanClient client) {
+            int deliveryMode = getDeliveryMode(client);
+            boolean shareable = isShareableDeliveryMode(deliveryMode);
+            int hitRate = ScanFilterSlotAllocator.getExpectedHitRate(client.filters);
+            List<ScanClient> candidates = new ArrayList<>();
+            for (int scannerId : mFilterSlotAllocator.getScannerIds()) {
+                ScanClient candidate = getRegularScanClient(scannerId);
+                if (candidate == null) {
+                    candidate = getBatchScanClient(scannerId);
+                }
+                if (candidate != null
+                        && candidate != client
+                        && isShareableDeliveryMode(getDeliveryMode(candidate))
+                        && ScanFilterSlotAllocator.getExpectedHitRate(candidate.filters)
+                                > hitRate) {
+                    candidates.add(candidate);
+                }
+            }
+            candidates.sort(
+                    Comparator.comparingInt(
+                                    (ScanClient c) ->
+                                            ScanFilterSlotAllocator.getExpectedHitRate(c.filters))
+                            .reversed());
+
+            Set<Integer> released = new HashSet<>();
+            List<ScanClient> victims = new ArrayList<>();
+            for (ScanClient candidate : candidates) {
+                released.add(candidate.scannerId);
+                victims.add(candidate);
+                if (mFilterSlotAllocator.fitsAfterReleasing(
+                        client.filters, deliveryMode, shareable, released)) {
+                    for (ScanClient victim : victims) {
+                        moveToAllPassFilter(victim);
+                    }
+                    return;
+                }
+            }
+        }
+
+        private void moveToAllPassFilter(ScanClient client) {
+            Log.d(TAG, "Moving scan client " + client.scannerId + " to ALL_PASS filter");
+            releaseScanFilterSlots(client.scannerId);
+            int deliveryMode = getDeliveryMode(client);
+            Set<Integer> allPassClients =
+                    deliveryMode == DELIVERY_MODE_BATCH
+                            ? mAllPassBatchClients
+                            : mAllPassRegularClients;
+            allPassClients.add(client.scannerId);
+            if (allPassClients.size() == 1) {
+                int filterIndex =
+                        (deliveryMode == DELIVERY_MODE_BATCH)
+                                ? ALL_PASS_FILTER_INDEX_BATCH_SCAN
+                                : ALL_PASS_FILTER_INDEX_REGULAR_SCAN;
+                resetCountDownLatch();
+                configureFilterParameter(
+                        client.scannerId, client, ALL_PASS_FILTER_SELECTION, filterIndex, 0);
+                waitForCallback();
+            }
+        }
+
+        // Give the slots freed by a stopped client to the clients on the ALL_PASS filter, the
+        // most selective first.
+        private void moveFromAllPassFilter() {
+            List<ScanClient> candidates = new ArrayList<>();
+            for (ScanClient client : mRegularScanClients) {
+                if (mAllPassRegularClients.contains(client.scannerId)) {
+                    candidates.add(client);
+                }
+            }
+            for (ScanClient client : mBatchClients) {
+                if (mAllPassBatchClients.contains(client.scannerId)) {
+                    candidates.add(client);
+                }
+            }
+            candidates.sort(
+                    Comparator.comparingInt(
+                            (ScanClient c) ->
+                                    ScanFilterSlotAllocator.getExpectedHitRate(c.filters)));
+            for (ScanClient client : candidates) {
+                if (mFilterSlotAllocator.getFreeSlotCount() == 0) {
+                    return;
+                }
+                int deliveryMode = getDeliveryMode(client);
+                if (client.filters == null
+                        || client.filters.isEmpty()
+                        || isOpportunisticScanClient(client)
+                        || !isShareableDeliveryMode(deliveryMode)
+                        || !fitsInFilterSlots(client)) {
+                    continue;
+                }
+                Log.d(TAG, "Moving scan client " + client.scannerId + " to hardware filters");
+                if (deliveryMode == DELIVERY_MODE_BATCH) {
+                    removeFilterIfExisits(
+                            mAllPassBatchClients,
+                            client.scannerId,
+                            ALL_PASS_FILTER_INDEX_BATCH_SCAN);
+                } else {
+                    removeFilterIfExisits(
+                            mAllPassRegularClients,
+                            client.scannerId,
+                            ALL_PASS_FILTER_INDEX_REGULAR_SCAN);
+                }
+                addScanFilterSlots(client);
             }
         }
 
@@ -1629,20 +1766,27 @@ public class ScanManager {
         }
 
         private void removeScanFilters(int scannerId) {
-            Deque<Integer> filterIndices = mClientFilterIndexMap.remove(scannerId);
-            if (filterIndices != null) {
-                mFilterIndexStack.addAll(filterIndices);
-                for (Integer filterIndex : filterIndices) {
-                    resetCountDownLatch();
-                    mNativeInterface.gattClientScanFilterParamDelete(scannerId, filterIndex);
-                    waitForCallback();
-                }
-            }
+            boolean freedSlots = releaseScanFilterSlots(scannerId);
             // Remove if ALL_PASS filters are used.
             removeFilterIfExisits(
                     mAllPassRegularClients, scannerId, ALL_PASS_FILTER_INDEX_REGULAR_SCAN);
             removeFilterIfExisits(
                     mAllPassBatchClients, scannerId, ALL_PASS_FILTER_INDEX_BATCH_SCAN);
+            if (freedSlots) {
+                moveFromAllPassFilter();
+            }
+        }
+
+        // Returns true if slots were given back.
+        private boolean releaseScanFilterSlots(int scannerId) {
+            List<ScanFilterSlotAllocator.Slot> unusedSlots =
+                    mFilterSlotAllocator.release(scannerId);
+            for (ScanFilterSlotAllocator.Slot slot : unusedSlots) {
+                resetCountDownLatch();
+                mNativeInterface.gattClientScanFilterParamDelete(scannerId, slot.getIndex());
+                waitForCallback();
+            }
+            return !unusedSlots.isEmpty();
         }
 
         private void removeFilterIfExisits(Set<Integer> clients, int scannerId, int filterIndex) {
@@ -1689,7 +1833,7 @@ public class ScanManager {
             if (client.filters == null || client.filters.isEmpty()) {
                 return true;
             }
-            if (client.filters.size() > mFilterIndexStack.size()) {
+            if (!fitsInFilterSlots(client)) {
                 if (client.stats != null) {
                     client.stats.recordHwFilterNotAvailableCountMetrics(
                             client.scannerId,
@@ -1712,9 +1856,7 @@ public class ScanManager {
             // index 1 is reserved for ALL_PASS filter for regular scan apps.
             // index 2 is reserved for ALL_PASS filter for batch scan apps.
             // index 3 is reserved for BAP/CAP Announcements
-            for (int i = 4; i < maxFiltersSupported; ++i) {
-                mFilterIndexStack.add(i);
-            }
+            mFilterSlotAllocator.init(4, maxFiltersSupported);
         }
 
         // Configure filter parameters.
@@ -1979,16 +2121,21 @@ public class ScanManager {
             if (client == null
                     || client.filters == null
                     || client.filters.isEmpty()
-                    || client.filters.size() > mFilterIndexStack.size()) {
+                    || !mFilterSlotAllocator.fits(
+                            client.filters, DELIVERY_MODE_IMMEDIATE, false /* shareable */)) {
                 // Use all-pass filter
                 updateScanMsft();
                 return;
             }
 
-            Deque<Integer> clientFilterIndices = new ArrayDeque<>();
-            for (ScanFilter filter : client.filters) {
-                int filterIndex = mFilterIndexStack.pop();
-                MsftAdvMonitor monitor = new MsftAdvMonitor(filter);
+            for (ScanFilterSlotAllocator.Slot slot :
+                    mFilterSlotAllocator.allocate(
+                            client.scannerId,
+                            client.filters,
+                            DELIVERY_MODE_IMMEDIATE,
+                            false /* shareable */)) {
+                int filterIndex = slot.getIndex();
+                MsftAdvMonitor monitor = new MsftAdvMonitor(slot.getFilter());
 
                 resetCountDownLatch();
                 mNativeInterface.gattClientMsftAdvMonitorAdd(
@@ -1997,23 +2144,17 @@ public class ScanManager {
                         monitor.getAddress(),
                         filterIndex);
                 waitForCallback();
-
-                clientFilterIndices.add(filterIndex);
             }
-            mClientFilterIndexMap.put(client.scannerId, clientFilterIndices);
 
             updateScanMsft();
         }
 
         private void removeFiltersMsft(ScanClient client) {
-            Deque<Integer> clientFilterIndices = mClientFilterIndexMap.remove(client.scannerId);
-            if (clientFilterIndices != null) {
-                mFilterIndexStack.addAll(clientFilterIndices);
-                for (int filterIndex : clientFilterIndices) {
-                    resetCountDownLatch();
-                    mNativeInterface.gattClientMsftAdvMonitorRemove(filterIndex);
-                    waitForCallback();
-                }
+            for (ScanFilterSlotAllocator.Slot slot :
+                    mFilterSlotAllocator.release(client.scannerId)) {
+                resetCountDownLatch();
+                mNativeInterface.gattClientMsftAdvMonitorRemove(slot.getIndex());
+                waitForCallback();
             }
 
             updateScanMsft();
@@ -2027,7 +2168,7 @@ public class ScanManager {
                                             c.settings != null
                                                     && c.settings.getScanMode()
                                                             != ScanSettings.SCAN_MODE_OPPORTUNISTIC
-                                                    && !this.mClientFilterIndexMap.containsKey(
+                                                    && !mFilterSlotAllocator.hasSlots(
                                                             c.scannerId));
             if (scanEnabledMsft != shouldEnableScanMsft) {
                 resetCountDownLatch();
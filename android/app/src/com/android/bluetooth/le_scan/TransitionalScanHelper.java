@@ -30,7 +30,6 @@ import android.app.AppOpsManager;
 import android.app.PendingIntent;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothUtils;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.IPeriodicAdvertisingCallback;
 import android.bluetooth.le.IScannerCallback;
@@ -56,6 +55,7 @@ import android.provider.DeviceConfig;
 import android.util.Log;
 
 import com.android.bluetooth.BluetoothMetricsProto;
+import com.android.bluetooth.BluetoothTraceLogger;
 import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
@@ -70,11 +70,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -86,20 +84,16 @@ import java.util.stream.Collectors;
 public class TransitionalScanHelper {
     private static final String TAG = GattServiceConfig.TAG_PREFIX + "ScanHelper";
 
-    // Batch scan related constants.
-    private static final int TRUNCATED_RESULT_SIZE = 11;
-
     /** The default floor value for LE batch scan report delays greater than 0 */
     @VisibleForTesting static final long DEFAULT_REPORT_DELAY_FLOOR = 5000;
 
     private static final int NUM_SCAN_EVENTS_KEPT = 20;
+    private static final int NUM_TRACE_EVENTS_KEPT = 100;
 
     // onFoundLost related constants
     @VisibleForTesting static final int ADVT_STATE_ONFOUND = 0;
     private static final int ADVT_STATE_ONLOST = 1;
 
-    private static final int ET_LEGACY_MASK = 0x10;
-
     /** Keep the arguments passed in for the PendingIntent. */
     public static class PendingIntentInfo {
         public PendingIntent intent;
@@ -162,9 +156,32 @@ public class TransitionalScanHelper {
 
     private final Predicate<ScanResult> mLocationDenylistPredicate;
 
+    // Filter lookups of the extended and legacy views of the report being delivered, reused by
+    // the following reports delivered on the same thread
+    private final ThreadLocal<ScanFilterIndex.Match[]> mFilterMatches =
+            ThreadLocal.withInitial(
+                    () ->
+                            new ScanFilterIndex.Match[] {
+                                new ScanFilterIndex.Match(), new ScanFilterIndex.Match()
+                            });
+
+    private final BluetoothTraceLogger mTraceLog;
+
     public TransitionalScanHelper(
             AdapterService adapterService, TestModeAccessor testModeAccessor) {
+        this(
+                adapterService,
+                testModeAccessor,
+                new BluetoothTraceLogger(TAG, NUM_TRACE_EVENTS_KEPT, "LE scan trace"));
+    }
+
+    /** Creates a helper adding its messages to {@code traceLog}, which is dumped by the caller. */
+    public TransitionalScanHelper(
+            AdapterService adapterService,
+            TestModeAccessor testModeAccessor,
+            BluetoothTraceLogger traceLog) {
         mAdapterService = requireNonNull(adapterService);
+        mTraceLog = traceLog.forTag(TAG);
         mExposureNotificationPackage =
                 mAdapterService.getString(R.string.exposure_notification_package);
         mTestModeAccessor = testModeAccessor;
@@ -338,41 +355,47 @@ public class TransitionalScanHelper {
             int periodicAdvInt,
             byte[] advData,
             String originalAddress) {
-        Log.v(
-                TAG,
-                "onScanResult() - eventType=0x"
-                        + Integer.toHexString(eventType)
-                        + ", addressType="
-                        + addressType
-                        + ", address="
-                        + BluetoothUtils.toAnonymizedAddress(address)
-                        + ", primaryPhy="
-                        + primaryPhy
-                        + ", secondaryPhy="
-                        + secondaryPhy
-                        + ", advertisingSid=0x"
-                        + Integer.toHexString(advertisingSid)
-                        + ", txPower="
-                        + txPower
-                        + ", rssi="
-                        + rssi
-                        + ", periodicAdvInt=0x"
-                        + Integer.toHexString(periodicAdvInt)
-                        + ", originalAddress="
-                        + originalAddress);
+        mTraceLog.v(
+                "onScanResult() - eventType=0x{x}, addressType={}, address={}, primaryPhy={},"
+                        + " secondaryPhy={}, advertisingSid=0x{x}, txPower={}, rssi={},"
+                        + " periodicAdvInt=0x{x}, originalAddress={}",
+                eventType,
+                addressType,
+                address,
+                primaryPhy,
+                secondaryPhy,
+                advertisingSid,
+                txPower,
+                rssi,
+                periodicAdvInt,
+                originalAddress);
 
         String identityAddress = mAdapterService.getIdentityAddress(address);
         if (!address.equals(identityAddress)) {
-            Log.v(
-                    TAG,
-                    "found identityAddress of "
-                            + address
-                            + ", replace originalAddress as "
-                            + identityAddress);
+            mTraceLog.v(
+                    "found identityAddress of {}, replace originalAddress as {}",
+                    address,
+                    identityAddress);
             originalAddress = identityAddress;
         }
 
-        byte[] legacyAdvData = Arrays.copyOfRange(advData, 0, 62);
+        // Decoded at most once per view and shared by every client receiving this report.
+        DecodedScanReport report =
+                new DecodedScanReport(
+                        eventType,
+                        addressType,
+                        address,
+                        primaryPhy,
+                        secondaryPhy,
+                        advertisingSid,
+                        txPower,
+                        rssi,
+                        periodicAdvInt,
+                        advData,
+                        originalAddress,
+                        SystemClock.elapsedRealtimeNanos());
+        ScanFilterIndex filterIndex = mScanManager.getScanFilterIndex();
+        ScanFilterIndex.Match[] filterMatches = mFilterMatches.get();
 
         for (ScanClient client : mScanManager.getRegularScanQueue()) {
             ScannerMap.ScannerApp app = mScannerMap.getById(client.scannerId);
@@ -381,38 +404,15 @@ public class TransitionalScanHelper {
                 continue;
             }
 
-            BluetoothDevice device =
-                    BluetoothAdapter.getDefaultAdapter().getRemoteLeDevice(address, addressType);
-
             ScanSettings settings = client.settings;
-            byte[] scanRecordData;
             // This is for compatibility with applications that assume fixed size scan data.
-            if (settings.getLegacy()) {
-                if ((eventType & ET_LEGACY_MASK) == 0) {
-                    // If this is legacy scan, but nonlegacy result - skip.
-                    Log.v(TAG, "Legacy scan, non legacy result; skip.");
-                    continue;
-                } else {
-                    // Some apps are used to fixed-size advertise data.
-                    scanRecordData = legacyAdvData;
-                }
-            } else {
-                scanRecordData = advData;
+            if (settings.getLegacy() && !report.isLegacyEvent()) {
+                // If this is legacy scan, but nonlegacy result - skip.
+                Log.v(TAG, "Legacy scan, non legacy result; skip.");
+                continue;
             }
 
-            ScanRecord scanRecord = ScanRecord.parseFromBytes(scanRecordData);
-            ScanResult result =
-                    new ScanResult(
-                            device,
-                            eventType,
-                            primaryPhy,
-                            secondaryPhy,
-                            advertisingSid,
-                            txPower,
-                            rssi,
-                            periodicAdvInt,
-                            scanRecord,
-                            SystemClock.elapsedRealtimeNanos());
+            ScanResult result = report.getResult(settings.getLegacy());
 
             if (client.hasDisavowedLocation) {
                 if (mLocationDenylistPredicate.test(result)) {
@@ -430,18 +430,29 @@ public class TransitionalScanHelper {
                     }
                 }
             }
+            boolean isSanitized = false;
             if (!hasPermission && client.eligibleForSanitizedExposureNotification) {
                 ScanResult sanitized = getSanitizedExposureNotification(result);
                 if (sanitized != null) {
                     hasPermission = true;
+                    isSanitized = true;
                     result = sanitized;
                 }
             }
-            boolean matchResult = matchesFilters(client, result, originalAddress);
+            boolean matchResult;
+            ScanFilterIndex.Match match = null;
+            if (!isSanitized) {
+                boolean legacy = settings.getLegacy();
+                match = report.getFilterMatch(legacy, filterIndex, filterMatches[legacy ? 1 : 0]);
+            }
+            if (match != null && match.isIndexed(client)) {
+                matchResult = match.matches(client);
+            } else {
+                matchResult = matchesFilters(client, result, originalAddress);
+            }
             if (!hasPermission || !matchResult) {
-                Log.v(
-                        TAG,
-                        "Skipping client: permission=" + hasPermission + " matches=" + matchResult);
+                mTraceLog.v(
+                        "Skipping client: permission={} matches={}", hasPermission, matchResult);
                 continue;
             }
 
@@ -683,18 +694,17 @@ public class TransitionalScanHelper {
     void onBatchScanReportsInternal(
             int status, int scannerId, int reportType, int numRecords, byte[] recordData)
             throws RemoteException {
-        Log.d(
-                TAG,
-                "onBatchScanReports() - scannerId="
-                        + scannerId
-                        + ", status="
-                        + status
-                        + ", reportType="
-                        + reportType
-                        + ", numRecords="
-                        + numRecords);
-
-        Set<ScanResult> results = parseBatchScanResults(numRecords, reportType, recordData);
+        long nowNanos = SystemClock.elapsedRealtimeNanos();
+        mTraceLog.d(
+                "onBatchScanReports() - scannerId={}, status={}, reportType={}, numRecords={},"
+                        + " current time is {}",
+                scannerId,
+                status,
+                reportType,
+                numRecords,
+                nowNanos);
+        BatchScanReportCursor cursor =
+                new BatchScanReportCursor(reportType, numRecords, recordData, nowNanos);
         if (reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED) {
             // We only support single client for truncated mode.
             ScannerMap.ScannerApp app = mScannerMap.getById(scannerId);
@@ -707,23 +717,16 @@ public class TransitionalScanHelper {
                 return;
             }
 
-            ArrayList<ScanResult> permittedResults;
-            if (hasScanResultPermission(client)) {
-                permittedResults = new ArrayList<ScanResult>(results);
-            } else {
-                permittedResults = new ArrayList<ScanResult>();
-                for (ScanResult scanResult : results) {
-                    for (String associatedDevice : client.associatedDevices) {
-                        if (associatedDevice.equalsIgnoreCase(
-                                scanResult.getDevice().getAddress())) {
-                            permittedResults.add(scanResult);
-                        }
-                    }
-                }
-                if (permittedResults.isEmpty()) {
-                    return;
+            boolean hasPermission = hasScanResultPermission(client);
+            ArrayList<ScanResult> permittedResults = new ArrayList<ScanResult>();
+            while (cursor.moveToNext()) {
+                if (hasPermission || isAssociatedDevice(client, cursor)) {
+                    permittedResults.add(cursor.getResult());
                 }
             }
+            if (!hasPermission && permittedResults.isEmpty()) {
+                return;
+            }
 
             if (client.hasDisavowedLocation) {
                 permittedResults.removeIf(mLocationDenylistPredicate);
@@ -741,10 +744,7 @@ public class TransitionalScanHelper {
                 }
             }
         } else {
-            for (ScanClient client : mScanManager.getFullBatchScanQueue()) {
-                // Deliver results for each client.
-                deliverBatchScan(client, results);
-            }
+            deliverBatchScan(mScanManager.getFullBatchScanQueue(), cursor);
         }
         mScanManager.callbackDone(scannerId, status);
     }
@@ -774,137 +774,75 @@ public class TransitionalScanHelper {
         }
     }
 
-    // Check and deliver scan results for different scan clients.
-    private void deliverBatchScan(ScanClient client, Set<ScanResult> allResults)
-            throws RemoteException {
-        ScannerMap.ScannerApp app = mScannerMap.getById(client.scannerId);
-        if (app == null) {
-            return;
+    /** Results of a batch scan report being collected for one client. */
+    private static class BatchScanDelivery {
+        final ScannerMap.ScannerApp mApp;
+        final ScanClient mClient;
+        final boolean mHasPermission;
+        final ArrayList<ScanResult> mResults = new ArrayList<ScanResult>();
+        int mNumPermitted;
+
+        BatchScanDelivery(ScannerMap.ScannerApp app, ScanClient client, boolean hasPermission) {
+            mApp = app;
+            mClient = client;
+            mHasPermission = hasPermission;
         }
+    }
 
-        ArrayList<ScanResult> permittedResults;
-        if (hasScanResultPermission(client)) {
-            permittedResults = new ArrayList<ScanResult>(allResults);
-        } else {
-            permittedResults = new ArrayList<ScanResult>();
-            for (ScanResult scanResult : allResults) {
-                for (String associatedDevice : client.associatedDevices) {
-                    if (associatedDevice.equalsIgnoreCase(scanResult.getDevice().getAddress())) {
-                        permittedResults.add(scanResult);
-                    }
-                }
-            }
-            if (permittedResults.isEmpty()) {
-                return;
+    // Check and deliver scan results for different scan clients. The report is walked once and
+    // each result is only built if at least one client is permitted to receive it.
+    private void deliverBatchScan(Set<ScanClient> clients, BatchScanReportCursor cursor) {
+        ArrayList<BatchScanDelivery> deliveries = new ArrayList<>(clients.size());
+        for (ScanClient client : clients) {
+            ScannerMap.ScannerApp app = mScannerMap.getById(client.scannerId);
+            if (app != null) {
+                deliveries.add(new BatchScanDelivery(app, client, hasScanResultPermission(client)));
             }
         }
+        if (deliveries.isEmpty()) {
+            return;
+        }
 
-        if (client.filters == null || client.filters.isEmpty()) {
-            sendBatchScanResults(app, client, permittedResults);
-            // TODO: Question to reviewer: Shouldn't there be a return here?
-        }
-        // Reconstruct the scan results.
-        ArrayList<ScanResult> results = new ArrayList<ScanResult>();
-        for (ScanResult scanResult : permittedResults) {
-            if (matchesFilters(client, scanResult)) {
-                results.add(scanResult);
+        while (cursor.moveToNext()) {
+            for (BatchScanDelivery delivery : deliveries) {
+                if (!delivery.mHasPermission && !isAssociatedDevice(delivery.mClient, cursor)) {
+                    continue;
+                }
+                delivery.mNumPermitted++;
+                ScanResult scanResult = cursor.getResult();
+                if (matchesFilters(delivery.mClient, scanResult)) {
+                    delivery.mResults.add(scanResult);
+                }
             }
         }
-        sendBatchScanResults(app, client, results);
-    }
 
-    private Set<ScanResult> parseBatchScanResults(
-            int numRecords, int reportType, byte[] batchRecord) {
-        if (numRecords == 0) {
-            return Collections.emptySet();
-        }
-        Log.d(TAG, "current time is " + SystemClock.elapsedRealtimeNanos());
-        if (reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED) {
-            return parseTruncatedResults(numRecords, batchRecord);
-        } else {
-            return parseFullResults(numRecords, batchRecord);
+        for (BatchScanDelivery delivery : deliveries) {
+            if (!delivery.mHasPermission && delivery.mNumPermitted == 0) {
+                continue;
+            }
+            ScanClient client = delivery.mClient;
+            if (client.filters == null || client.filters.isEmpty()) {
+                // Without filters, every permitted result is part of the results.
+                sendBatchScanResults(delivery.mApp, client, delivery.mResults);
+                // TODO: Question to reviewer: Shouldn't there be a return here?
+            }
+            sendBatchScanResults(delivery.mApp, client, delivery.mResults);
         }
     }
 
-    private Set<ScanResult> parseTruncatedResults(int numRecords, byte[] batchRecord) {
-        Log.d(TAG, "batch record " + Arrays.toString(batchRecord));
-        Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
-        long now = SystemClock.elapsedRealtimeNanos();
-        for (int i = 0; i < numRecords; ++i) {
-            byte[] record =
-                    extractBytes(batchRecord, i * TRUNCATED_RESULT_SIZE, TRUNCATED_RESULT_SIZE);
-            byte[] address = extractBytes(record, 0, 6);
-            reverse(address);
-            BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
-            int rssi = record[8];
-            long timestampNanos = now - parseTimestampNanos(extractBytes(record, 9, 2));
-            results.add(
-                    new ScanResult(
-                            device, ScanRecord.parseFromBytes(new byte[0]), rssi, timestampNanos));
+    private static boolean isAssociatedDevice(ScanClient client, BatchScanReportCursor cursor) {
+        for (String associatedDevice : client.associatedDevices) {
+            if (cursor.hasAddress(associatedDevice)) {
+                return true;
+            }
         }
-        return results;
+        return false;
     }
 
     @VisibleForTesting
     long parseTimestampNanos(byte[] data) {
         long timestampUnit = NumberUtils.littleEndianByteArrayToInt(data);
-        // Timestamp is in every 50 ms.
-        return TimeUnit.MILLISECONDS.toNanos(timestampUnit * 50);
-    }
-
-    private Set<ScanResult> parseFullResults(int numRecords, byte[] batchRecord) {
-        Log.d(TAG, "Batch record : " + Arrays.toString(batchRecord));
-        Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
-        int position = 0;
-        long now = SystemClock.elapsedRealtimeNanos();
-        while (position < batchRecord.length) {
-            byte[] address = extractBytes(batchRecord, position, 6);
-            // TODO: remove temp hack.
-            reverse(address);
-            BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
-            position += 6;
-            // Skip address type.
-            position++;
-            // Skip tx power level.
-            position++;
-            int rssi = batchRecord[position++];
-            long timestampNanos = now - parseTimestampNanos(extractBytes(batchRecord, position, 2));
-            position += 2;
-
-            // Combine advertise packet and scan response packet.
-            int advertisePacketLen = batchRecord[position++];
-            byte[] advertiseBytes = extractBytes(batchRecord, position, advertisePacketLen);
-            position += advertisePacketLen;
-            int scanResponsePacketLen = batchRecord[position++];
-            byte[] scanResponseBytes = extractBytes(batchRecord, position, scanResponsePacketLen);
-            position += scanResponsePacketLen;
-            byte[] scanRecord = new byte[advertisePacketLen + scanResponsePacketLen];
-            System.arraycopy(advertiseBytes, 0, scanRecord, 0, advertisePacketLen);
-            System.arraycopy(
-                    scanResponseBytes, 0, scanRecord, advertisePacketLen, scanResponsePacketLen);
-            Log.d(TAG, "ScanRecord : " + Arrays.toString(scanRecord));
-            results.add(
-                    new ScanResult(
-                            device, ScanRecord.parseFromBytes(scanRecord), rssi, timestampNanos));
-        }
-        return results;
-    }
-
-    // Reverse byte array.
-    private void reverse(byte[] address) {
-        int len = address.length;
-        for (int i = 0; i < len / 2; ++i) {
-            byte b = address[i];
-            address[i] = address[len - 1 - i];
-            address[len - 1 - i] = b;
-        }
-    }
-
-    // Helper method to extract bytes from byte array.
-    private static byte[] extractBytes(byte[] scanRecord, int start, int length) {
-        byte[] bytes = new byte[length];
-        System.arraycopy(scanRecord, start, bytes, 0, length);
-        return bytes;
+        return BatchScanReportCursor.timestampUnitToNanos(timestampUnit);
     }
 
     public void onBatchScanThresholdCrossed(int clientIf) {
@@ -61,6 +61,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -163,6 +164,9 @@ public class BluetoothMapContent {
     private int mRemoteFeatureMask = BluetoothMapUtils.MAP_FEATURE_DEFAULT_BITMASK;
     @VisibleForTesting int mMsgListingVersion = BluetoothMapUtils.MAP_MESSAGE_LISTING_FORMAT_V10;
 
+    /* Caches the per message lookups done when building message listings of this session */
+    private final SmsMmsListingCache mListingCache = new SmsMmsListingCache();
+
     static final String[] SMS_PROJECTION =
             new String[] {
                 BaseColumns._ID,
@@ -677,7 +681,7 @@ public class BluetoothMapContent {
                     hasText = "yes";
                 } else {
                     long id = c.getLong(fi.mMmsColId);
-                    String text = getTextPartsMms(mResolver, id);
+                    String text = mListingCache.getTextPartsMms(mResolver, id);
                     if (text != null && text.length() > 0) {
                         hasText = "yes";
                     } else {
@@ -946,13 +950,15 @@ public class BluetoothMapContent {
                     // If a draft message has no recipient, it has no thread ID
                     // hence threadIdStr could possibly be null
                     if (threadIdStr != null) {
-                        address = getCanonicalAddressSms(mResolver, Integer.valueOf(threadIdStr));
+                        address =
+                                mListingCache.getCanonicalAddressSms(
+                                        mResolver, Integer.valueOf(threadIdStr));
                     }
                     Log.v(TAG, "threadId = " + threadIdStr + " address:" + address + "\n");
                 }
             } else if (fi.mMsgType == FilterInfo.TYPE_MMS) {
                 long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-                address = getAddressMms(mResolver, id, MMS_TO);
+                address = mListingCache.getAddressMms(mResolver, id, MMS_TO);
             } else if (fi.mMsgType == FilterInfo.TYPE_EMAIL) {
                 /* Might be another way to handle addresses */
                 address = getRecipientAddressingEmail(c, fi);
@@ -977,7 +983,7 @@ public class BluetoothMapContent {
                 if (msgType != 1) {
                     String phone = c.getString(fi.mSmsColAddress);
                     if (phone != null && !phone.isEmpty()) {
-                        name = getContactNameFromPhone(phone, mResolver);
+                        name = mListingCache.getContactNameFromPhone(phone, mResolver);
                     }
                 } else {
                     name = fi.mPhoneAlphaTag;
@@ -986,12 +992,12 @@ public class BluetoothMapContent {
                 long id = c.getLong(fi.mMmsColId);
                 String phone;
                 if (e.getRecipientAddressing() != null) {
-                    phone = getAddressMms(mResolver, id, MMS_TO);
+                    phone = mListingCache.getAddressMms(mResolver, id, MMS_TO);
                 } else {
                     phone = e.getRecipientAddressing();
                 }
                 if (phone != null && !phone.isEmpty()) {
-                    name = getContactNameFromPhone(phone, mResolver);
+                    name = mListingCache.getContactNameFromPhone(phone, mResolver);
                 }
             } else if (fi.mMsgType == FilterInfo.TYPE_EMAIL) {
                 /* Might be another way to handle address and names */
@@ -1041,7 +1047,7 @@ public class BluetoothMapContent {
                 }
             } else if (fi.mMsgType == FilterInfo.TYPE_MMS) {
                 long id = c.getLong(fi.mMmsColId);
-                tempAddress = getAddressMms(mResolver, id, MMS_FROM);
+                tempAddress = mListingCache.getAddressMms(mResolver, id, MMS_FROM);
                 address = PhoneNumberUtils.extractNetworkPortion(tempAddress);
                 if (address == null || address.length() < 1) {
                     address = tempAddress; // if the number is a service ascii text just use it
@@ -1108,7 +1114,7 @@ public class BluetoothMapContent {
                 if (msgType == 1) {
                     String phone = c.getString(fi.mSmsColAddress);
                     if (phone != null && !phone.isEmpty()) {
-                        name = getContactNameFromPhone(phone, mResolver);
+                        name = mListingCache.getContactNameFromPhone(phone, mResolver);
                     }
                 } else {
                     name = fi.mPhoneAlphaTag;
@@ -1117,12 +1123,12 @@ public class BluetoothMapContent {
                 long id = c.getLong(fi.mMmsColId);
                 String phone;
                 if (e.getSenderAddressing() != null) {
-                    phone = getAddressMms(mResolver, id, MMS_FROM);
+                    phone = mListingCache.getAddressMms(mResolver, id, MMS_FROM);
                 } else {
                     phone = e.getSenderAddressing();
                 }
                 if (phone != null && !phone.isEmpty()) {
-                    name = getContactNameFromPhone(phone, mResolver);
+                    name = mListingCache.getContactNameFromPhone(phone, mResolver);
                 }
             } else if (fi.mMsgType == FilterInfo.TYPE_EMAIL /*  ||
                        fi.mMsgType == FilterInfo.TYPE_IM*/) {
@@ -1272,7 +1278,7 @@ public class BluetoothMapContent {
                 if (subject == null || subject.length() == 0) {
                     /* Get subject from mms text body parts - if any exists */
                     long id = c.getLong(fi.mMmsColId);
-                    subject = getTextPartsMms(mResolver, id);
+                    subject = mListingCache.getTextPartsMms(mResolver, id);
                 }
             } else if (fi.mMsgType == FilterInfo.TYPE_EMAIL || fi.mMsgType == FilterInfo.TYPE_IM) {
                 subject = c.getString(fi.mMessageColSubject);
@@ -1480,13 +1486,13 @@ public class BluetoothMapContent {
     private boolean matchRecipientMms(Cursor c, String recip) {
         boolean res;
         long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-        String phone = getAddressMms(mResolver, id, MMS_TO);
+        String phone = mListingCache.getAddressMms(mResolver, id, MMS_TO);
         if (phone != null && phone.length() > 0) {
             if (phone.matches(recip)) {
                 Log.v(TAG, "matchRecipientMms: match recipient phone = " + phone);
                 res = true;
             } else {
-                String name = getContactNameFromPhone(phone, mResolver);
+                String name = mListingCache.getContactNameFromPhone(phone, mResolver);
                 if (name != null && name.length() > 0 && name.matches(recip)) {
                     Log.v(TAG, "matchRecipientMms: match recipient name = " + name);
                     res = true;
@@ -1522,7 +1528,7 @@ public class BluetoothMapContent {
                     Log.v(TAG, "matchRecipientSms: match recipient phone = " + phone);
                     res = true;
                 } else {
-                    String name = getContactNameFromPhone(phone, mResolver);
+                    String name = mListingCache.getContactNameFromPhone(phone, mResolver);
                     if (name != null && name.length() > 0 && name.matches(recip)) {
                         Log.v(TAG, "matchRecipientSms: match recipient name = " + name);
                         res = true;
@@ -1560,13 +1566,13 @@ public class BluetoothMapContent {
     private boolean matchOriginatorMms(Cursor c, String orig) {
         boolean res;
         long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-        String phone = getAddressMms(mResolver, id, MMS_FROM);
+        String phone = mListingCache.getAddressMms(mResolver, id, MMS_FROM);
         if (phone != null && phone.length() > 0) {
             if (phone.matches(orig)) {
                 Log.v(TAG, "matchOriginatorMms: match originator phone = " + phone);
                 res = true;
             } else {
-                String name = getContactNameFromPhone(phone, mResolver);
+                String name = mListingCache.getContactNameFromPhone(phone, mResolver);
                 if (name != null && name.length() > 0 && name.matches(orig)) {
                     Log.v(TAG, "matchOriginatorMms: match originator name = " + name);
                     res = true;
@@ -1590,7 +1596,7 @@ public class BluetoothMapContent {
                     Log.v(TAG, "matchOriginatorSms: match originator phone = " + phone);
                     res = true;
                 } else {
-                    String name = getContactNameFromPhone(phone, mResolver);
+                    String name = mListingCache.getContactNameFromPhone(phone, mResolver);
                     if (name != null && name.length() > 0 && name.matches(orig)) {
                         Log.v(TAG, "matchOriginatorSms: match originator name = " + name);
                         res = true;
@@ -2167,6 +2173,7 @@ public class BluetoothMapContent {
         /* Cache some info used throughout filtering */
         FilterInfo fi = new FilterInfo();
         setFilterInfo(fi);
+        mListingCache.startListing();
         Cursor smsCursor = null;
         Cursor mmsCursor = null;
         Cursor emailCursor = null;
@@ -2355,6 +2362,7 @@ public class BluetoothMapContent {
             bmList.sort();
             bmList.segment(ap.getMaxListCount(), offsetNum);
             List<BluetoothMapMessageListingElement> list = bmList.getList();
+            prefetchListingData(list, smsCursor, mmsCursor, fi, ap);
             int listSize = list.size();
             Cursor tmpCursor = null;
             for (int x = 0; x < listSize; x++) {
@@ -2418,6 +2426,45 @@ public class BluetoothMapContent {
         return bmList;
     }
 
+    /**
+     * Reads the MMS text parts and SMS draft recipients needed by the elements of a listing page
+     * with one query each, instead of one query per element.
+     */
+    private void prefetchListingData(
+            List<BluetoothMapMessageListingElement> list,
+            Cursor smsCursor,
+            Cursor mmsCursor,
+            FilterInfo fi,
+            BluetoothMapAppParams ap) {
+        boolean needsMmsText = (ap.getParameterMask() & (MASK_TEXT | MASK_SUBJECT)) != 0;
+        boolean needsDraftAddress = (ap.getParameterMask() & MASK_RECIPIENT_ADDRESSING) != 0;
+        List<Long> mmsIds = new ArrayList<>();
+        List<Integer> threadIds = new ArrayList<>();
+        for (BluetoothMapMessageListingElement ele : list) {
+            TYPE type = ele.getType();
+            if (needsMmsText && mmsCursor != null && (TYPE.MMS).equals(type)) {
+                mmsCursor.moveToPosition(ele.getCursorIndex());
+                // Same condition as in setText() and setSubject()
+                if (mmsCursor.getInt(fi.mMmsColTextOnly) != 1
+                        || TextUtils.isEmpty(mmsCursor.getString(fi.mMmsColSubject))) {
+                    mmsIds.add(ele.getHandle());
+                }
+            } else if (needsDraftAddress
+                    && smsCursor != null
+                    && ((TYPE.SMS_GSM).equals(type) || (TYPE.SMS_CDMA).equals(type))) {
+                smsCursor.moveToPosition(ele.getCursorIndex());
+                // Same condition as in setRecipientAddressing()
+                if (smsCursor.getInt(fi.mSmsColType) == Sms.MESSAGE_TYPE_DRAFT
+                        && smsCursor.getString(fi.mSmsColAddress) == null
+                        && !smsCursor.isNull(fi.mSmsColThreadId)) {
+                    threadIds.add(smsCursor.getInt(fi.mSmsColThreadId));
+                }
+            }
+        }
+        mListingCache.prefetchTextPartsMms(mResolver, mmsIds);
+        mListingCache.prefetchCanonicalAddressesSms(mResolver, threadIds);
+    }
+
     /**
      * Get the size of the message listing
      *
@@ -2432,6 +2479,7 @@ public class BluetoothMapContent {
         /* Cache some info used throughout filtering */
         FilterInfo fi = new FilterInfo();
         setFilterInfo(fi);
+        mListingCache.startListing();
 
         if (smsSelected(fi, ap) && folderElement.hasSmsMmsContent()) {
             fi.mMsgType = FilterInfo.TYPE_SMS;
@@ -2550,6 +2598,7 @@ public class BluetoothMapContent {
         /* Cache some info used throughout filtering */
         FilterInfo fi = new FilterInfo();
         setFilterInfo(fi);
+        mListingCache.startListing();
 
         if (smsSelected(fi, ap) && folderElement.hasSmsMmsContent()) {
             fi.mMsgType = FilterInfo.TYPE_SMS;
@@ -2718,6 +2767,7 @@ public class BluetoothMapContent {
         /* Cache some info used throughout filtering */
         FilterInfo fi = new FilterInfo();
         setFilterInfo(fi);
+        mListingCache.startListing();
         Cursor smsMmsCursor = null;
         Cursor imEmailCursor = null;
         int offsetNum;
@@ -4387,6 +4437,10 @@ public class BluetoothMapContent {
         return this.mRemoteFeatureMask;
     }
 
+    SmsMmsListingCache getListingCache() {
+        return mListingCache;
+    }
+
     Map<Long, BluetoothMapConvoListingElement> getSmsMmsConvoList() {
         return mMasInstance.getSmsMmsConvoList();
     }
@@ -39,6 +39,7 @@ import android.os.ParcelFileDescriptor;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.UserManager;
+import android.provider.BaseColumns;
 import android.provider.Telephony;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.MmsSms;
@@ -83,6 +84,7 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -97,6 +99,11 @@ public class BluetoothMapContentObserver {
     @VisibleForTesting
     static final Duration NEW_MESSAGE_DURATION_FOR_NOTIFICATION = Duration.ofDays(7);
 
+    // Delay used to coalesce the SMS and MMS change notifications into a single update
+    @VisibleForTesting static final long SMS_MMS_REFRESH_DELAY_MS = 100;
+
+    private static final String[] COUNT_PROJECTION = new String[] {"COUNT(*)"};
+
     @VisibleForTesting static final String EVENT_TYPE_NEW = "NewMessage";
     @VisibleForTesting static final String EVENT_TYPE_DELETE = "MessageDeleted";
     @VisibleForTesting static final String EVENT_TYPE_REMOVED = "MessageRemoved";
@@ -147,6 +154,9 @@ public class BluetoothMapContentObserver {
     @VisibleForTesting int mMapEventReportVersion = BluetoothMapUtils.MAP_EVENT_REPORT_V10;
 
     private BluetoothMapFolderElement mFolders = new BluetoothMapFolderElement("DUMMY", null);
+
+    /* Listing cache of the OBEX session, dropped on every SMS/MMS change */
+    private SmsMmsListingCache mListingCache;
     // Will be set by the MAS when generated.
     @VisibleForTesting Uri mMessageUri = null;
     @VisibleForTesting Uri mContactUri = null;
@@ -205,7 +215,7 @@ public class BluetoothMapContentObserver {
             };
 
     static final String[] SMS_PROJECTION_SHORT =
-            new String[] {Sms._ID, Sms.THREAD_ID, Sms.TYPE, Sms.READ};
+            new String[] {Sms._ID, Sms.THREAD_ID, Sms.TYPE, Sms.READ, Sms.DATE};
 
     static final String[] SMS_PROJECTION_SHORT_EXT =
             new String[] {
@@ -213,7 +223,9 @@ public class BluetoothMapContentObserver {
             };
 
     static final String[] MMS_PROJECTION_SHORT =
-            new String[] {Mms._ID, Mms.THREAD_ID, Mms.MESSAGE_TYPE, Mms.MESSAGE_BOX, Mms.READ};
+            new String[] {
+                Mms._ID, Mms.THREAD_ID, Mms.MESSAGE_TYPE, Mms.MESSAGE_BOX, Mms.READ, Mms.DATE
+            };
 
     static final String[] MMS_PROJECTION_SHORT_EXT =
             new String[] {
@@ -488,8 +500,30 @@ public class BluetoothMapContentObserver {
         return smsType;
     }
 
+    private final Handler mObserverHandler = new Handler();
+
+    // Rows named by the SMS and MMS change notifications since the last refresh of their list.
+    // Only accessed on mObserverHandler.
+    private final ChangedRows mChangedSmsRows = new ChangedRows();
+    private final ChangedRows mChangedMmsRows = new ChangedRows();
+    private boolean mMmsSmsChanged = false;
+
+    private final Runnable mSmsMmsRefresh =
+            () -> {
+                if (mMmsSmsChanged
+                        && mChangedSmsRows.mIds.isEmpty()
+                        && mChangedMmsRows.mIds.isEmpty()) {
+                    // Only notified by the MMS-SMS provider, e.g. for a deleted conversation
+                    mChangedSmsRows.mUnknown = true;
+                    mChangedMmsRows.mUnknown = true;
+                }
+                mMmsSmsChanged = false;
+                refreshMsgListSms();
+                refreshMsgListMms();
+            };
+
     private final ContentObserver mObserver =
-            new ContentObserver(new Handler()) {
+            new ContentObserver(mObserverHandler) {
                 @Override
                 public void onChange(boolean selfChange) {
                     onChange(selfChange, null);
@@ -585,6 +619,12 @@ public class BluetoothMapContentObserver {
         this.mFolders = folderStructure;
     }
 
+    /** Set the message listing cache to invalidate when the SMS/MMS content changes. */
+    void setListingCache(SmsMmsListingCache listingCache) {
+        mListingCache = listingCache;
+        listingCache.setObserved(mEnableSmsMms && mObserverRegistered);
+    }
+
     @VisibleForTesting
     static class ConvoContactInfo {
         public int mConvoColConvoId = -1;
@@ -930,6 +970,7 @@ public class BluetoothMapContentObserver {
         public boolean transparent = false;
         // Used for EMAIL to delete message sent with transparency
         public int flagRead = -1; // Message status read/unread
+        public long date = 0; // Used for SMS/MMS to detect a row ID given to a new message
 
         Msg(long id, int type, int threadId, int readFlag) {
             this.id = id;
@@ -979,6 +1020,33 @@ public class BluetoothMapContentObserver {
 
     private Map<Long, Msg> mMsgListMms = null;
 
+    /**
+     * The rows of a table named by change notifications. Notifications that don't name their rows,
+     * e.g. for a bulk update of the read status, make them unknown until the next refresh.
+     */
+    private static class ChangedRows {
+        private final Set<Long> mIds = new HashSet<>();
+        private boolean mUnknown = true;
+
+        /** Returns the rows named since the last call, or null if they are unknown. */
+        Set<Long> take() {
+            Set<Long> ids = mUnknown ? null : new HashSet<>(mIds);
+            mIds.clear();
+            mUnknown = false;
+            return ids;
+        }
+    }
+
+    // Highest row ID, and number of rows up to it, seen by the last update of the message lists.
+    // A negative high water mark means that the next update has to read the whole table.
+    private long mSmsHighWaterMark = -1;
+
+    private int mSmsRowCount = 0;
+
+    private long mMmsHighWaterMark = -1;
+
+    private int mMmsRowCount = 0;
+
     private Map<Long, Msg> mMsgListMsg = null;
 
     private Map<String, BluetoothMapConvoContactElement> mContactList = null;
@@ -1089,7 +1157,13 @@ public class BluetoothMapContentObserver {
         if (mEnableSmsMms) {
             // this is sms/mms
             mResolver.registerContentObserver(MmsSms.CONTENT_URI, false, mObserver);
+            // Updates of a single message, e.g. of its read status, are notified with its URI
+            mResolver.registerContentObserver(Sms.CONTENT_URI, true, mObserver);
+            mResolver.registerContentObserver(Mms.CONTENT_URI, true, mObserver);
             mObserverRegistered = true;
+            if (mListingCache != null) {
+                mListingCache.setObserved(true);
+            }
         }
 
         if (mAccount != null) {
@@ -1132,7 +1206,11 @@ public class BluetoothMapContentObserver {
     public void unregisterObserver() {
         Log.v(TAG, "unregisterObserver");
         mResolver.unregisterContentObserver(mObserver);
+        mObserverHandler.removeCallbacks(mSmsMmsRefresh);
         mObserverRegistered = false;
+        if (mListingCache != null) {
+            mListingCache.setObserved(false);
+        }
         if (mProviderClient != null) {
             mProviderClient.close();
             mProviderClient = null;
@@ -1156,8 +1234,8 @@ public class BluetoothMapContentObserver {
         mTransmitEvents = false;
         try {
             if (mEnableSmsMms) {
-                handleMsgListChangesSms();
-                handleMsgListChangesMms();
+                refreshMsgListSms();
+                refreshMsgListMms();
             }
             if (mAccount != null) {
                 try {
@@ -1318,6 +1396,7 @@ public class BluetoothMapContentObserver {
 
         if (mEnableSmsMms) {
             HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
+            long smsHighWaterMark = -1;
 
             Cursor c;
             try {
@@ -1349,7 +1428,9 @@ public class BluetoothMapContentObserver {
                         int read = c.getInt(c.getColumnIndex(Sms.READ));
 
                         Msg msg = new Msg(id, type, threadId, read);
+                        msg.date = getRowDate(c);
                         msgListSms.put(id, msg);
+                        smsHighWaterMark = Math.max(smsHighWaterMark, id);
                     } while (c.moveToNext());
                 }
             } finally {
@@ -1360,10 +1441,13 @@ public class BluetoothMapContentObserver {
 
             synchronized (getMsgListSms()) {
                 getMsgListSms().clear();
+                mSmsHighWaterMark = smsHighWaterMark;
+                mSmsRowCount = msgListSms.size();
                 setMsgListSms(msgListSms, true); // Set initial folder version counter
             }
 
             HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
+            long mmsHighWaterMark = -1;
 
             c =
                     BluetoothMethodProxy.getInstance()
@@ -1383,7 +1467,9 @@ public class BluetoothMapContentObserver {
                         int read = c.getInt(c.getColumnIndex(Mms.READ));
 
                         Msg msg = new Msg(id, type, threadId, read);
+                        msg.date = getRowDate(c);
                         msgListMms.put(id, msg);
+                        mmsHighWaterMark = Math.max(mmsHighWaterMark, id);
                     } while (c.moveToNext());
                 }
             } finally {
@@ -1394,6 +1480,8 @@ public class BluetoothMapContentObserver {
 
             synchronized (getMsgListMms()) {
                 getMsgListMms().clear();
+                mMmsHighWaterMark = mmsHighWaterMark;
+                mMmsRowCount = msgListMms.size();
                 setMsgListMms(msgListMms, true); // Set initial folder version counter
             }
         }
@@ -1499,218 +1587,17 @@ public class BluetoothMapContentObserver {
 
         HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
         boolean listChanged = false;
+        long highWaterMark = -1;
+        int rowCount = 0;
 
-        Cursor c;
         synchronized (getMsgListSms()) {
-            if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                c =
-                        BluetoothMethodProxy.getInstance()
-                                .contentResolverQuery(
-                                        mResolver,
-                                        Sms.CONTENT_URI,
-                                        SMS_PROJECTION_SHORT,
-                                        null,
-                                        null,
-                                        null);
-            } else {
-                c =
-                        BluetoothMethodProxy.getInstance()
-                                .contentResolverQuery(
-                                        mResolver,
-                                        Sms.CONTENT_URI,
-                                        SMS_PROJECTION_SHORT_EXT,
-                                        null,
-                                        null,
-                                        null);
-            }
+            Cursor c = querySms(getSmsProjection(), null);
             try {
                 if (c != null && c.moveToFirst()) {
                     do {
-                        int idIndex = c.getColumnIndexOrThrow(Sms._ID);
-                        if (c.isNull(idIndex)) {
-                            Log.w(TAG, "handleMsgListChangesSms, ID is null");
-                            ContentProfileErrorReportUtils.report(
-                                    BluetoothProfile.MAP,
-                                    BluetoothProtoEnums.BLUETOOTH_MAP_CONTENT_OBSERVER,
-                                    BluetoothStatsLog
-                                            .BLUETOOTH_CONTENT_PROFILE_ERROR_REPORTED__TYPE__LOG_WARN,
-                                    10);
-                            continue;
-                        }
-                        long id = c.getLong(idIndex);
-                        int type = c.getInt(c.getColumnIndex(Sms.TYPE));
-                        int threadId = c.getInt(c.getColumnIndex(Sms.THREAD_ID));
-                        int read = c.getInt(c.getColumnIndex(Sms.READ));
-
-                        Msg msg = getMsgListSms().remove(id);
-
-                        /* We must filter out any actions made by the MCE, hence do not send e.g.
-                         * a message deleted and/or MessageShift for messages deleted by the MCE. */
-
-                        if (msg == null) {
-                            /* New message */
-                            msg = new Msg(id, type, threadId, read);
-                            msgListSms.put(id, msg);
-                            Event evt;
-                            if (mTransmitEvents
-                                    && // extract contact details only if needed
-                                    mMapEventReportVersion
-                                            > BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                                long timestamp = c.getLong(c.getColumnIndex(Sms.DATE));
-                                String date = BluetoothMapUtils.getDateTimeString(timestamp);
-                                if (Flags.mapLimitNotification()) {
-                                    if (BluetoothMapUtils.isDateTimeOlderThanDuration(
-                                            timestamp, NEW_MESSAGE_DURATION_FOR_NOTIFICATION)) {
-                                        msgListSms.remove(id);
-                                        continue;
-                                    }
-                                } else {
-                                    if (BluetoothMapUtils.isDateTimeOlderThanOneYear(timestamp)) {
-                                        // Skip sending message events older than one year
-                                        msgListSms.remove(id);
-                                        continue;
-                                    }
-                                }
-                                String subject = c.getString(c.getColumnIndex(Sms.BODY));
-                                if (subject == null) {
-                                    subject = "";
-                                }
-                                String name = "";
-                                String phone = "";
-                                if (type == 1) { // inbox
-                                    phone = c.getString(c.getColumnIndex(Sms.ADDRESS));
-                                    if (phone != null && !phone.isEmpty()) {
-                                        name =
-                                                BluetoothMapContent.getContactNameFromPhone(
-                                                        phone, mResolver);
-                                        if (name == null || name.isEmpty()) {
-                                            name = phone;
-                                        }
-                                    } else {
-                                        name = phone;
-                                    }
-                                } else {
-                                    TelephonyManager tm =
-                                            mContext.getSystemService(TelephonyManager.class);
-                                    if (tm != null) {
-                                        phone = tm.getLine1Number();
-                                        name = phone;
-                                    }
-                                }
-                                String priority = "no"; // no priority for sms
-                                /* Incoming message from the network */
-                                if (mMapEventReportVersion
-                                        == BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
-                                    evt =
-                                            new Event(
-                                                    EVENT_TYPE_NEW,
-                                                    id,
-                                                    getSmsFolderName(type),
-                                                    mSmsType,
-                                                    date,
-                                                    subject,
-                                                    name,
-                                                    priority);
-                                } else {
-                                    evt =
-                                            new Event(
-                                                    EVENT_TYPE_NEW,
-                                                    id,
-                                                    getSmsFolderName(type),
-                                                    mSmsType,
-                                                    date,
-                                                    subject,
-                                                    name,
-                                                    priority,
-                                                    (long) threadId,
-                                                    null);
-                                }
-                            } else {
-                                /* Incoming message from the network */
-                                evt =
-                                        new Event(
-                                                EVENT_TYPE_NEW,
-                                                id,
-                                                getSmsFolderName(type),
-                                                null,
-                                                mSmsType);
-                            }
-                            listChanged = true;
-                            sendEvent(evt);
-                        } else {
-                            /* Existing message */
-                            if (type != msg.type) {
-                                listChanged = true;
-                                Log.d(TAG, "new type: " + type + " old type: " + msg.type);
-                                String oldFolder = getSmsFolderName(msg.type);
-                                String newFolder = getSmsFolderName(type);
-                                // Filter out the intermediate outbox steps
-                                if (!oldFolder.equalsIgnoreCase(newFolder)) {
-                                    Event evt =
-                                            new Event(
-                                                    EVENT_TYPE_SHIFT,
-                                                    id,
-                                                    getSmsFolderName(type),
-                                                    oldFolder,
-                                                    mSmsType);
-                                    sendEvent(evt);
-                                }
-                                msg.type = type;
-                            } else if (threadId != msg.threadId) {
-                                listChanged = true;
-                                Log.d(
-                                        TAG,
-                                        "Message delete change: type: "
-                                                + type
-                                                + " old type: "
-                                                + msg.type
-                                                + "\n    threadId: "
-                                                + threadId
-                                                + " old threadId: "
-                                                + msg.threadId);
-                                if (threadId == DELETED_THREAD_ID) { // Message deleted
-                                    // TODO:
-                                    // We shall only use the folder attribute, but can't remember
-                                    // whether to set it to "deleted" or the name of the folder
-                                    // from which the message have been deleted.
-                                    // "old_folder" used only for MessageShift event
-                                    Event evt =
-                                            new Event(
-                                                    EVENT_TYPE_DELETE,
-                                                    id,
-                                                    getSmsFolderName(msg.type),
-                                                    null,
-                                                    mSmsType);
-                                    sendEvent(evt);
-                                    msg.threadId = threadId;
-                                } else { // Undelete
-                                    Event evt =
-                                            new Event(
-                                                    EVENT_TYPE_SHIFT,
-                                                    id,
-                                                    getSmsFolderName(msg.type),
-                                                    BluetoothMapContract.FOLDER_NAME_DELETED,
-                                                    mSmsType);
-                                    sendEvent(evt);
-                                    msg.threadId = threadId;
-                                }
-                            }
-                            if (read != msg.flagRead) {
-                                listChanged = true;
-                                msg.flagRead = read;
-                                if (mMapEventReportVersion
-                                        > BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                                    Event evt =
-                                            new Event(
-                                                    EVENT_TYPE_READ_STATUS,
-                                                    id,
-                                                    getSmsFolderName(msg.type),
-                                                    mSmsType);
-                                    sendEvent(evt);
-                                }
-                            }
-                            msgListSms.put(id, msg);
-                        }
+                        rowCount++;
+                        highWaterMark = Math.max(highWaterMark, getRowId(c));
+                        listChanged |= handleSmsRowChanges(c, getMsgListSms(), msgListSms);
                     } while (c.moveToNext());
                 }
             } finally {
@@ -1718,270 +1605,422 @@ public class BluetoothMapContentObserver {
                     c.close();
                 }
             }
-            String eventType = EVENT_TYPE_DELETE;
-            for (Msg msg : getMsgListSms().values()) {
-                // "old_folder" used only for MessageShift event
-                if (mMapEventReportVersion >= BluetoothMapUtils.MAP_EVENT_REPORT_V12) {
-                    eventType = EVENT_TYPE_REMOVED;
-                    Log.v(TAG, " sent EVENT_TYPE_REMOVED");
-                }
-                Event evt =
-                        new Event(eventType, msg.id, getSmsFolderName(msg.type), null, mSmsType);
-                sendEvent(evt);
-                listChanged = true;
-            }
-
+            listChanged |= sendSmsDeletedEvents(getMsgListSms());
+            mSmsHighWaterMark = highWaterMark;
+            mSmsRowCount = rowCount;
             setMsgListSms(msgListSms, listChanged);
         }
     }
 
+    /**
+     * Update the SMS list after a change notification, without reading the whole table
+     * when possible. Only the rows added since the last update are read with the full projection.
+     * The older rows named by the change notifications are diffed with {@link
+     * #SMS_PROJECTION_SHORT}. All of them are only diffed when the notifications didn't name their
+     * rows and no row was added, or when the newest known row or their count shows that some of
+     * them were deleted.
+     *
+     * <p>Row IDs are not AUTOINCREMENT, so the IDs of deleted newest rows are given again to the
+     * next messages. The high water mark is therefore lowered after a deletion, and a known ID
+     * whose date changed is reported as deleted and then as a new message.
+     */
     @VisibleForTesting
-    void handleMsgListChangesMms() {
-        Log.v(TAG, "handleMsgListChangesMms");
+    void refreshMsgListSms() {
+        Set<Long> changedIds = mChangedSmsRows.take();
+        if (mSmsHighWaterMark < 0) {
+            handleMsgListChangesSms();
+            return;
+        }
+        Log.v(TAG, "refreshMsgListSms: highWaterMark=" + mSmsHighWaterMark);
 
-        HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
-        boolean listChanged = false;
-        Cursor c;
-        synchronized (getMsgListMms()) {
-            if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                c =
-                        BluetoothMethodProxy.getInstance()
-                                .contentResolverQuery(
-                                        mResolver,
-                                        Mms.CONTENT_URI,
-                                        MMS_PROJECTION_SHORT,
-                                        null,
-                                        null,
-                                        null);
-            } else {
-                c =
-                        BluetoothMethodProxy.getInstance()
-                                .contentResolverQuery(
-                                        mResolver,
-                                        Mms.CONTENT_URI,
-                                        MMS_PROJECTION_SHORT_EXT,
-                                        null,
-                                        null,
-                                        null);
-            }
+        synchronized (getMsgListSms()) {
+            Map<Long, Msg> msgListSms = getMsgListSms();
+            long lastHighWaterMark = mSmsHighWaterMark;
+            boolean listChanged = false;
+            boolean lastRowKept = false;
+            int newRowCount = 0;
 
+            Cursor c = querySms(getSmsProjection(), Sms._ID + " >= " + lastHighWaterMark);
             try {
-                if (c != null && c.moveToFirst()) {
-                    do {
-                        int idIndex = c.getColumnIndexOrThrow(Mms._ID);
-                        if (c.isNull(idIndex)) {
-                            Log.w(TAG, "handleMsgListChangesMms, ID is null");
-                            ContentProfileErrorReportUtils.report(
-                                    BluetoothProfile.MAP,
-                                    BluetoothProtoEnums.BLUETOOTH_MAP_CONTENT_OBSERVER,
-                                    BluetoothStatsLog
-                                            .BLUETOOTH_CONTENT_PROFILE_ERROR_REPORTED__TYPE__LOG_WARN,
-                                    11);
-                            continue;
+                while (c != null && c.moveToNext()) {
+                    long id = getRowId(c);
+                    if (id == lastHighWaterMark) {
+                        lastRowKept = !isRowIdReused(msgListSms.get(id), c);
+                        continue;
+                    }
+                    newRowCount++;
+                    mSmsHighWaterMark = Math.max(mSmsHighWaterMark, id);
+                    listChanged |= handleSmsRowChanges(c, msgListSms, msgListSms);
+                }
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+
+            if ((changedIds == null && newRowCount == 0)
+                    || !lastRowKept
+                    || countSmsRows(lastHighWaterMark) != mSmsRowCount) {
+                Map<Long, Msg> knownMsgs = removeMsgsUpTo(msgListSms, lastHighWaterMark);
+                List<Long> reusedIds = new ArrayList<>();
+                long highWaterMark = -1;
+                int rowCount = 0;
+                c = querySms(SMS_PROJECTION_SHORT, Sms._ID + " <= " + lastHighWaterMark);
+                try {
+                    while (c != null && c.moveToNext()) {
+                        long id = getRowId(c);
+                        rowCount++;
+                        highWaterMark = Math.max(highWaterMark, id);
+                        if (isRowIdReused(knownMsgs.get(id), c)) {
+                            reusedIds.add(id);
+                        } else if (knownMsgs.containsKey(id)) {
+                            listChanged |= handleSmsRowChanges(c, knownMsgs, msgListSms);
                         }
-                        long id = c.getLong(idIndex);
-                        int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
-                        int mtype = c.getInt(c.getColumnIndex(Mms.MESSAGE_TYPE));
-                        int threadId = c.getInt(c.getColumnIndex(Mms.THREAD_ID));
-                        // TODO: Go through code to see if we have an issue with mismatch in types
-                        //       for threadId. Seems to be a long in DB??
-                        int read = c.getInt(c.getColumnIndex(Mms.READ));
+                    }
+                } finally {
+                    if (c != null) {
+                        c.close();
+                    }
+                }
+                listChanged |= sendSmsDeletedEvents(knownMsgs);
+                if (!reusedIds.isEmpty()) {
+                    String selection = Sms._ID + " IN (" + TextUtils.join(",", reusedIds) + ")";
+                    c = querySms(getSmsProjection(), selection);
+                    try {
+                        while (c != null && c.moveToNext()) {
+                            listChanged |= handleSmsRowChanges(c, new HashMap<>(), msgListSms);
+                        }
+                    } finally {
+                        if (c != null) {
+                            c.close();
+                        }
+                    }
+                }
+                if (newRowCount == 0) {
+                    mSmsHighWaterMark = highWaterMark;
+                }
+                mSmsRowCount = rowCount;
+            } else if (changedIds != null) {
+                listChanged |= refreshChangedSmsRows(msgListSms, changedIds, lastHighWaterMark);
+            }
+            mSmsRowCount += newRowCount;
+            setMsgListSms(msgListSms, listChanged);
+        }
+    }
 
-                        Msg msg = getMsgListMms().remove(id);
+    private String[] getSmsProjection() {
+        return mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10
+                ? SMS_PROJECTION_SHORT
+                : SMS_PROJECTION_SHORT_EXT;
+    }
 
-                        /* We must filter out any actions made by the MCE, hence do not send
-                         * e.g. a message deleted and/or MessageShift for messages deleted by the
-                         * MCE.*/
+    private Cursor querySms(String[] projection, String selection) {
+        return BluetoothMethodProxy.getInstance()
+                .contentResolverQuery(
+                        mResolver, Sms.CONTENT_URI, projection, selection, null, null);
+    }
 
-                        if (msg == null) {
-                            /* New message - only notify on retrieve conf */
-                            if (getMmsFolderName(type)
-                                            .equalsIgnoreCase(
-                                                    BluetoothMapContract.FOLDER_NAME_INBOX)
-                                    && mtype != MESSAGE_TYPE_RETRIEVE_CONF) {
-                                continue;
-                            }
-                            msg = new Msg(id, type, threadId, read);
-                            msgListMms.put(id, msg);
-                            Event evt;
-                            if (mTransmitEvents
-                                    && // extract contact details only if needed
-                                    mMapEventReportVersion
-                                            != BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                                // MMS date field is in seconds
-                                long timestamp =
-                                        TimeUnit.SECONDS.toMillis(
-                                                c.getLong(c.getColumnIndex(Mms.DATE)));
-                                String date = BluetoothMapUtils.getDateTimeString(timestamp);
-                                if (Flags.mapLimitNotification()) {
-                                    if (BluetoothMapUtils.isDateTimeOlderThanDuration(
-                                            timestamp, NEW_MESSAGE_DURATION_FOR_NOTIFICATION)) {
-                                        msgListMms.remove(id);
-                                        continue;
-                                    }
-                                } else {
-                                    if (BluetoothMapUtils.isDateTimeOlderThanOneYear(timestamp)) {
-                                        // Skip sending new message events older than one year
-                                        msgListMms.remove(id);
-                                        continue;
-                                    }
-                                }
+    /** Returns the number of rows of {@code uri} up to {@code highWaterMark}, or -1 on failure. */
+    private int countRows(Uri uri, long highWaterMark) {
+        String selection = BaseColumns._ID + " <= " + highWaterMark;
+        try {
+            Cursor c = queryRows(uri, COUNT_PROJECTION, selection);
+            if (c == null) {
+                return -1;
+            }
+            try {
+                return c.moveToFirst() ? c.getInt(0) : -1;
+            } finally {
+                c.close();
+            }
+        } catch (IllegalArgumentException e) {
+            // A provider with a strict projection map rejects aggregates, count the rows instead
+            Log.w(TAG, "countRows: COUNT(*) not supported by " + uri, e);
+            Cursor c = queryRows(uri, new String[] {BaseColumns._ID}, selection);
+            if (c == null) {
+                return -1;
+            }
+            try {
+                return c.getCount();
+            } finally {
+                c.close();
+            }
+        }
+    }
 
-                                String subject = c.getString(c.getColumnIndex(Mms.SUBJECT));
-                                if (subject == null || subject.length() == 0) {
-                                    /* Get subject from mms text body parts - if any exists */
-                                    subject = BluetoothMapContent.getTextPartsMms(mResolver, id);
-                                    if (subject == null) {
-                                        subject = "";
-                                    }
-                                }
-                                int tmpPri = c.getInt(c.getColumnIndex(Mms.PRIORITY));
-                                Log.d(
-                                        TAG,
-                                        "TEMP handleMsgListChangesMms, "
-                                                + "newMessage 'read' state: "
-                                                + read
-                                                + "priority: "
-                                                + tmpPri);
+    private Cursor queryRows(Uri uri, String[] projection, String selection) {
+        return BluetoothMethodProxy.getInstance()
+                .contentResolverQuery(mResolver, uri, projection, selection, null, null);
+    }
 
-                                String address =
-                                        BluetoothMapContent.getAddressMms(
-                                                mResolver, id, BluetoothMapContent.MMS_FROM);
-                                if (address == null) {
-                                    address = "";
-                                }
+    /** Returns the number of SMS rows up to {@code highWaterMark}, or -1 on failure. */
+    private int countSmsRows(long highWaterMark) {
+        return countRows(Sms.CONTENT_URI, highWaterMark);
+    }
 
-                                String priority = "no";
-                                if (tmpPri == PduHeaders.PRIORITY_HIGH) {
-                                    priority = "yes";
-                                }
+    /**
+     * Diff the known SMS rows among {@code changedIds}, up to {@code highWaterMark}, and send the
+     * resulting events.
+     *
+     * @return true if the message list changed
+     */
+    private boolean refreshChangedSmsRows(
+            Map<Long, Msg> msgListSms, Set<Long> changedIds, long highWaterMark) {
+        Map<Long, Msg> knownMsgs = new HashMap<>();
+        for (long id : changedIds) {
+            Msg msg = id <= highWaterMark ? msgListSms.remove(id) : null;
+            if (msg != null) {
+                knownMsgs.put(id, msg);
+            }
+        }
+        if (knownMsgs.isEmpty()) {
+            return false;
+        }
+        boolean listChanged = false;
+        String selection = Sms._ID + " IN (" + TextUtils.join(",", knownMsgs.keySet()) + ")";
+        Cursor c = querySms(SMS_PROJECTION_SHORT, selection);
+        if (c == null) {
+            msgListSms.putAll(knownMsgs);
+            return false;
+        }
+        try {
+            while (c.moveToNext()) {
+                listChanged |= handleSmsRowChanges(c, knownMsgs, msgListSms);
+            }
+        } finally {
+            c.close();
+        }
+        // Deleted after their count was checked
+        mSmsRowCount -= knownMsgs.size();
+        listChanged |= sendSmsDeletedEvents(knownMsgs);
+        return listChanged;
+    }
 
-                                /* Incoming message from the network */
-                                if (mMapEventReportVersion
-                                        == BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
-                                    evt =
-                                            new Event(
-                                                    EVENT_TYPE_NEW,
-                                                    id,
-                                                    getMmsFolderName(type),
-                                                    TYPE.MMS,
-                                                    date,
-                                                    subject,
-                                                    address,
-                                                    priority);
-                                } else {
-                                    evt =
-                                            new Event(
-                                                    EVENT_TYPE_NEW,
-                                                    id,
-                                                    getMmsFolderName(type),
-                                                    TYPE.MMS,
-                                                    date,
-                                                    subject,
-                                                    address,
-                                                    priority,
-                                                    (long) threadId,
-                                                    null);
-                                }
+    /**
+     * Diff the SMS row at the cursor position against its entry in {@code knownMsgs}, which
+     * is moved to {@code msgListSms}, and send the resulting events.
+     *
+     * @return true if the message list changed
+     */
+    private boolean handleSmsRowChanges(
+            Cursor c, Map<Long, Msg> knownMsgs, Map<Long, Msg> msgListSms) {
+        boolean listChanged = false;
+        int idIndex = c.getColumnIndexOrThrow(Sms._ID);
+        if (c.isNull(idIndex)) {
+            Log.w(TAG, "handleMsgListChangesSms, ID is null");
+            ContentProfileErrorReportUtils.report(
+                    BluetoothProfile.MAP,
+                    BluetoothProtoEnums.BLUETOOTH_MAP_CONTENT_OBSERVER,
+                    BluetoothStatsLog.BLUETOOTH_CONTENT_PROFILE_ERROR_REPORTED__TYPE__LOG_WARN,
+                    10);
+            return false;
+        }
+        long id = c.getLong(idIndex);
+        int type = c.getInt(c.getColumnIndex(Sms.TYPE));
+        int threadId = c.getInt(c.getColumnIndex(Sms.THREAD_ID));
+        int read = c.getInt(c.getColumnIndex(Sms.READ));
+
+        Msg msg = knownMsgs.remove(id);
+
+        /* We must filter out any actions made by the MCE, hence do not send e.g.
+         * a message deleted and/or MessageShift for messages deleted by the MCE. */
+
+        if (msg == null) {
+            /* New message */
+            msg = new Msg(id, type, threadId, read);
+            msg.date = getRowDate(c);
+            msgListSms.put(id, msg);
+            Event evt;
+            if (mTransmitEvents
+                    && // extract contact details only if needed
+                    mMapEventReportVersion > BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
+                long timestamp = c.getLong(c.getColumnIndex(Sms.DATE));
+                String date = BluetoothMapUtils.getDateTimeString(timestamp);
+                if (Flags.mapLimitNotification()) {
+                    if (BluetoothMapUtils.isDateTimeOlderThanDuration(
+                            timestamp, NEW_MESSAGE_DURATION_FOR_NOTIFICATION)) {
+                        msgListSms.remove(id);
+                        return false;
+                    }
+                } else {
+                    if (BluetoothMapUtils.isDateTimeOlderThanOneYear(timestamp)) {
+                        // Skip sending message events older than one year
+                        msgListSms.remove(id);
+                        return false;
+                    }
+                }
+                String subject = c.getString(c.getColumnIndex(Sms.BODY));
+                if (subject == null) {
+                    subject = "";
+                }
+                String name = "";
+                String phone = "";
+                if (type == 1) { // inbox
+                    phone = c.getString(c.getColumnIndex(Sms.ADDRESS));
+                    if (phone != null && !phone.isEmpty()) {
+                        name =
+                                BluetoothMapContent.getContactNameFromPhone(
+                                        phone, mResolver);
+                        if (name == null || name.isEmpty()) {
+                            name = phone;
+                        }
+                    } else {
+                        name = phone;
+                    }
+                } else {
+                    TelephonyManager tm =
+                            mContext.getSystemService(TelephonyManager.class);
+                    if (tm != null) {
+                        phone = tm.getLine1Number();
+                        name = phone;
+                    }
+                }
+                String priority = "no"; // no priority for sms
+                /* Incoming message from the network */
+                if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
+                    evt =
+                            new Event(
+                                    EVENT_TYPE_NEW,
+                                    id,
+                                    getSmsFolderName(type),
+                                    mSmsType,
+                                    date,
+                                    subject,
+                                    name,
+                                    priority);
+                } else {
+                    evt =
+                            new Event(
+                                    EVENT_TYPE_NEW,
+                                    id,
+                                    getSmsFolderName(type),
+                                    mSmsType,
+                                    date,
+                                    subject,
+                                    name,
+                                    priority,
+                                    (long) threadId,
+                                    null);
+                }
+            } else {
+                /* Incoming message from the network */
+                evt =
+                        new Event(
+                                EVENT_TYPE_NEW,
+                                id,
+                                getSmsFolderName(type),
+                                null,
+                                mSmsType);
+            }
+            listChanged = true;
+            sendEvent(evt);
+        } else {
+            /* Existing message */
+            if (type != msg.type) {
+                listChanged = true;
+                Log.d(TAG, "new type: " + type + " old type: " + msg.type);
+                String oldFolder = getSmsFolderName(msg.type);
+                String newFolder = getSmsFolderName(type);
+                // Filter out the intermediate outbox steps
+                if (!oldFolder.equalsIgnoreCase(newFolder)) {
+                    Event evt =
+                            new Event(
+                                    EVENT_TYPE_SHIFT,
+                                    id,
+                                    getSmsFolderName(type),
+                                    oldFolder,
+                                    mSmsType);
+                    sendEvent(evt);
+                }
+                msg.type = type;
+            } else if (threadId != msg.threadId) {
+                listChanged = true;
+                Log.d(
+                        TAG,
+                        "Message delete change: type: "
+                                + type
+                                + " old type: "
+                                + msg.type
+                                + "\n    threadId: "
+                                + threadId
+                                + " old threadId: "
+                                + msg.threadId);
+                if (threadId == DELETED_THREAD_ID) { // Message deleted
+                    // TODO:
+                    // We shall only use the folder attribute, but can't remember
+                    // whether to set it to "deleted" or the name of the folder
+                    // from which the message have been deleted.
+                    // "old_folder" used only for MessageShift event
+                    Event evt =
+                            new Event(
+                                    EVENT_TYPE_DELETE,
+                                    id,
+                                    getSmsFolderName(msg.type),
+                                    null,
+                                    mSmsType);
+                    sendEvent(evt);
+                    msg.threadId = threadId;
+                } else { // Undelete
+                    Event evt =
+                            new Event(
+                                    EVENT_TYPE_SHIFT,
+                                    id,
+                                    getSmsFolderName(msg.type),
+                                    BluetoothMapContract.FOLDER_NAME_DELETED,
+                                    mSmsType);
+                    sendEvent(evt);
+                    msg.threadId = threadId;
+                }
+            }
+            if (read != msg.flagRead) {
+                listChanged = true;
+                msg.flagRead = read;
+                if (mMapEventReportVersion > BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
+                    Event evt =
+                            new Event(
+                                    EVENT_TYPE_READ_STATUS,
+                                    id,
+                                    getSmsFolderName(msg.type),
+                                    mSmsType);
+                    sendEvent(evt);
+                }
+            }
+            msgListSms.put(id, msg);
+        }
+        return listChanged;
+    }
 
-                            } else {
-                                /* Incoming message from the network */
-                                evt =
-                                        new Event(
-                                                EVENT_TYPE_NEW,
-                                                id,
-                                                getMmsFolderName(type),
-                                                null,
-                                                TYPE.MMS);
-                            }
-                            listChanged = true;
+    private boolean sendSmsDeletedEvents(Map<Long, Msg> deletedMsgs) {
+        String eventType = EVENT_TYPE_DELETE;
+        for (Msg msg : deletedMsgs.values()) {
+            // "old_folder" used only for MessageShift event
+            if (mMapEventReportVersion >= BluetoothMapUtils.MAP_EVENT_REPORT_V12) {
+                eventType = EVENT_TYPE_REMOVED;
+                Log.v(TAG, " sent EVENT_TYPE_REMOVED");
+            }
+            Event evt = new Event(eventType, msg.id, getSmsFolderName(msg.type), null, mSmsType);
+            sendEvent(evt);
+        }
+        return !deletedMsgs.isEmpty();
+    }
 
-                            sendEvent(evt);
-                        } else {
-                            /* Existing message */
-                            if (type != msg.type) {
-                                Log.d(TAG, "new type: " + type + " old type: " + msg.type);
-                                Event evt;
-                                listChanged = true;
-                                if (!msg.localInitiatedSend) {
-                                    // Only send events about local initiated changes
-                                    evt =
-                                            new Event(
-                                                    EVENT_TYPE_SHIFT,
-                                                    id,
-                                                    getMmsFolderName(type),
-                                                    getMmsFolderName(msg.type),
-                                                    TYPE.MMS);
-                                    sendEvent(evt);
-                                }
-                                msg.type = type;
+    @VisibleForTesting
+    void handleMsgListChangesMms() {
+        Log.v(TAG, "handleMsgListChangesMms");
 
-                                if (getMmsFolderName(type)
-                                                .equalsIgnoreCase(
-                                                        BluetoothMapContract.FOLDER_NAME_SENT)
-                                        && msg.localInitiatedSend) {
-                                    // Stop tracking changes for this message
-                                    msg.localInitiatedSend = false;
-                                    evt =
-                                            new Event(
-                                                    EVENT_TYPE_SENDING_SUCCESS,
-                                                    id,
-                                                    getMmsFolderName(type),
-                                                    null,
-                                                    TYPE.MMS);
-                                    sendEvent(evt);
-                                }
-                            } else if (threadId != msg.threadId) {
-                                Log.d(
-                                        TAG,
-                                        "Message delete change: type: "
-                                                + type
-                                                + " old type: "
-                                                + msg.type
-                                                + "\n    threadId: "
-                                                + threadId
-                                                + " old threadId: "
-                                                + msg.threadId);
-                                listChanged = true;
-                                if (threadId == DELETED_THREAD_ID) { // Message deleted
-                                    // "old_folder" used only for MessageShift event
-                                    Event evt =
-                                            new Event(
-                                                    EVENT_TYPE_DELETE,
-                                                    id,
-                                                    getMmsFolderName(msg.type),
-                                                    null,
-                                                    TYPE.MMS);
-                                    sendEvent(evt);
-                                    msg.threadId = threadId;
-                                } else { // Undelete
-                                    Event evt =
-                                            new Event(
-                                                    EVENT_TYPE_SHIFT,
-                                                    id,
-                                                    getMmsFolderName(msg.type),
-                                                    BluetoothMapContract.FOLDER_NAME_DELETED,
-                                                    TYPE.MMS);
-                                    sendEvent(evt);
-                                    msg.threadId = threadId;
-                                }
-                            }
-                            if (read != msg.flagRead) {
-                                listChanged = true;
-                                msg.flagRead = read;
-                                if (mMapEventReportVersion
-                                        > BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                                    Event evt =
-                                            new Event(
-                                                    EVENT_TYPE_READ_STATUS,
-                                                    id,
-                                                    getMmsFolderName(msg.type),
-                                                    TYPE.MMS);
-                                    sendEvent(evt);
-                                }
-                            }
-                            msgListMms.put(id, msg);
-                        }
+        HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
+        boolean listChanged = false;
+        long highWaterMark = -1;
+        int rowCount = 0;
+
+        synchronized (getMsgListMms()) {
+            Cursor c = queryMms(getMmsProjection(), null);
+            try {
+                if (c != null && c.moveToFirst()) {
+                    do {
+                        rowCount++;
+                        highWaterMark = Math.max(highWaterMark, getRowId(c));
+                        listChanged |= handleMmsRowChanges(c, getMsgListMms(), msgListMms);
                     } while (c.moveToNext());
                 }
             } finally {
@@ -1989,20 +2028,427 @@ public class BluetoothMapContentObserver {
                     c.close();
                 }
             }
-            for (Msg msg : getMsgListMms().values()) {
-                // "old_folder" used only for MessageShift event
-                Event evt =
+            listChanged |= sendMmsDeletedEvents(getMsgListMms());
+            mMmsHighWaterMark = highWaterMark;
+            mMmsRowCount = rowCount;
+            setMsgListMms(msgListMms, listChanged);
+        }
+    }
+
+    /**
+     * Update the MMS list after a change notification, without reading the whole table
+     * when possible. Only the rows added since the last update are read with the full projection.
+     * The older rows named by the change notifications are diffed with {@link
+     * #MMS_PROJECTION_SHORT}. All of them are only diffed when the notifications didn't name their
+     * rows and no row was added, or when the newest known row or their count shows that some of
+     * them were deleted.
+     *
+     * <p>Row IDs are not AUTOINCREMENT, so the IDs of deleted newest rows are given again to the
+     * next messages. The high water mark is therefore lowered after a deletion, and a known ID
+     * whose date changed is reported as deleted and then as a new message.
+     */
+    @VisibleForTesting
+    void refreshMsgListMms() {
+        Set<Long> changedIds = mChangedMmsRows.take();
+        if (mMmsHighWaterMark < 0) {
+            handleMsgListChangesMms();
+            return;
+        }
+        Log.v(TAG, "refreshMsgListMms: highWaterMark=" + mMmsHighWaterMark);
+
+        synchronized (getMsgListMms()) {
+            Map<Long, Msg> msgListMms = getMsgListMms();
+            long lastHighWaterMark = mMmsHighWaterMark;
+            boolean listChanged = false;
+            boolean lastRowKept = false;
+            int newRowCount = 0;
+
+            Cursor c = queryMms(getMmsProjection(), Mms._ID + " >= " + lastHighWaterMark);
+            try {
+                while (c != null && c.moveToNext()) {
+                    long id = getRowId(c);
+                    if (id == lastHighWaterMark) {
+                        lastRowKept = !isRowIdReused(msgListMms.get(id), c);
+                        continue;
+                    }
+                    newRowCount++;
+                    mMmsHighWaterMark = Math.max(mMmsHighWaterMark, id);
+                    listChanged |= handleMmsRowChanges(c, msgListMms, msgListMms);
+                }
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+
+            if ((changedIds == null && newRowCount == 0)
+                    || !lastRowKept
+                    || countMmsRows(lastHighWaterMark) != mMmsRowCount) {
+                Map<Long, Msg> knownMsgs = removeMsgsUpTo(msgListMms, lastHighWaterMark);
+                List<Long> reusedIds = new ArrayList<>();
+                long highWaterMark = -1;
+                int rowCount = 0;
+                c = queryMms(MMS_PROJECTION_SHORT, Mms._ID + " <= " + lastHighWaterMark);
+                try {
+                    while (c != null && c.moveToNext()) {
+                        long id = getRowId(c);
+                        rowCount++;
+                        highWaterMark = Math.max(highWaterMark, id);
+                        if (isRowIdReused(knownMsgs.get(id), c)) {
+                            reusedIds.add(id);
+                        } else if (knownMsgs.containsKey(id)) {
+                            listChanged |= handleMmsRowChanges(c, knownMsgs, msgListMms);
+                        }
+                    }
+                } finally {
+                    if (c != null) {
+                        c.close();
+                    }
+                }
+                listChanged |= sendMmsDeletedEvents(knownMsgs);
+                if (!reusedIds.isEmpty()) {
+                    String selection = Mms._ID + " IN (" + TextUtils.join(",", reusedIds) + ")";
+                    c = queryMms(getMmsProjection(), selection);
+                    try {
+                        while (c != null && c.moveToNext()) {
+                            listChanged |= handleMmsRowChanges(c, new HashMap<>(), msgListMms);
+                        }
+                    } finally {
+                        if (c != null) {
+                            c.close();
+                        }
+                    }
+                }
+                if (newRowCount == 0) {
+                    mMmsHighWaterMark = highWaterMark;
+                }
+                mMmsRowCount = rowCount;
+            } else if (changedIds != null) {
+                listChanged |= refreshChangedMmsRows(msgListMms, changedIds, lastHighWaterMark);
+            }
+            mMmsRowCount += newRowCount;
+            setMsgListMms(msgListMms, listChanged);
+        }
+    }
+
+    private String[] getMmsProjection() {
+        return mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10
+                ? MMS_PROJECTION_SHORT
+                : MMS_PROJECTION_SHORT_EXT;
+    }
+
+    private Cursor queryMms(String[] projection, String selection) {
+        return BluetoothMethodProxy.getInstance()
+                .contentResolverQuery(
+                        mResolver, Mms.CONTENT_URI, projection, selection, null, null);
+    }
+
+    /** Returns the number of MMS rows up to {@code highWaterMark}, or -1 on failure. */
+    private int countMmsRows(long highWaterMark) {
+        return countRows(Mms.CONTENT_URI, highWaterMark);
+    }
+
+    /**
+     * Diff the known MMS rows among {@code changedIds}, up to {@code highWaterMark}, and send the
+     * resulting events.
+     *
+     * @return true if the message list changed
+     */
+    private boolean refreshChangedMmsRows(
+            Map<Long, Msg> msgListMms, Set<Long> changedIds, long highWaterMark) {
+        Map<Long, Msg> knownMsgs = new HashMap<>();
+        for (long id : changedIds) {
+            Msg msg = id <= highWaterMark ? msgListMms.remove(id) : null;
+            if (msg != null) {
+                knownMsgs.put(id, msg);
+            }
+        }
+        if (knownMsgs.isEmpty()) {
+            return false;
+        }
+        boolean listChanged = false;
+        String selection = Mms._ID + " IN (" + TextUtils.join(",", knownMsgs.keySet()) + ")";
+        Cursor c = queryMms(MMS_PROJECTION_SHORT, selection);
+        if (c == null) {
+            msgListMms.putAll(knownMsgs);
+            return false;
+        }
+        try {
+            while (c.moveToNext()) {
+                listChanged |= handleMmsRowChanges(c, knownMsgs, msgListMms);
+            }
+        } finally {
+            c.close();
+        }
+        // Deleted after their count was checked
+        mMmsRowCount -= knownMsgs.size();
+        listChanged |= sendMmsDeletedEvents(knownMsgs);
+        return listChanged;
+    }
+
+    /**
+     * Diff the MMS row at the cursor position against its entry in {@code knownMsgs}, which
+     * is moved to {@code msgListMms}, and send the resulting events.
+     *
+     * @return true if the message list changed
+     */
+    private boolean handleMmsRowChanges(
+            Cursor c, Map<Long, Msg> knownMsgs, Map<Long, Msg> msgListMms) {
+        boolean listChanged = false;
+        int idIndex = c.getColumnIndexOrThrow(Mms._ID);
+        if (c.isNull(idIndex)) {
+            Log.w(TAG, "handleMsgListChangesMms, ID is null");
+            ContentProfileErrorReportUtils.report(
+                    BluetoothProfile.MAP,
+                    BluetoothProtoEnums.BLUETOOTH_MAP_CONTENT_OBSERVER,
+                    BluetoothStatsLog.BLUETOOTH_CONTENT_PROFILE_ERROR_REPORTED__TYPE__LOG_WARN,
+                    11);
+            return false;
+        }
+        long id = c.getLong(idIndex);
+        int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
+        int mtype = c.getInt(c.getColumnIndex(Mms.MESSAGE_TYPE));
+        int threadId = c.getInt(c.getColumnIndex(Mms.THREAD_ID));
+        // TODO: Go through code to see if we have an issue with mismatch in types
+        //       for threadId. Seems to be a long in DB??
+        int read = c.getInt(c.getColumnIndex(Mms.READ));
+
+        Msg msg = knownMsgs.remove(id);
+
+        /* We must filter out any actions made by the MCE, hence do not send
+         * e.g. a message deleted and/or MessageShift for messages deleted by the
+         * MCE.*/
+
+        if (msg == null) {
+            /* New message - only notify on retrieve conf */
+            if (getMmsFolderName(type)
+                            .equalsIgnoreCase(
+                                    BluetoothMapContract.FOLDER_NAME_INBOX)
+                    && mtype != MESSAGE_TYPE_RETRIEVE_CONF) {
+                return false;
+            }
+            msg = new Msg(id, type, threadId, read);
+            msg.date = getRowDate(c);
+            msgListMms.put(id, msg);
+            Event evt;
+            if (mTransmitEvents
+                    && // extract contact details only if needed
+                    mMapEventReportVersion != BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
+                // MMS date field is in seconds
+                long timestamp =
+                        TimeUnit.SECONDS.toMillis(
+                                c.getLong(c.getColumnIndex(Mms.DATE)));
+                String date = BluetoothMapUtils.getDateTimeString(timestamp);
+                if (Flags.mapLimitNotification()) {
+                    if (BluetoothMapUtils.isDateTimeOlderThanDuration(
+                            timestamp, NEW_MESSAGE_DURATION_FOR_NOTIFICATION)) {
+                        msgListMms.remove(id);
+                        return false;
+                    }
+                } else {
+                    if (BluetoothMapUtils.isDateTimeOlderThanOneYear(timestamp)) {
+                        // Skip sending new message events older than one year
+                        msgListMms.remove(id);
+                        return false;
+                    }
+                }
+
+                String subject = c.getString(c.getColumnIndex(Mms.SUBJECT));
+                if (subject == null || subject.length() == 0) {
+                    /* Get subject from mms text body parts - if any exists */
+                    subject = BluetoothMapContent.getTextPartsMms(mResolver, id);
+                    if (subject == null) {
+                        subject = "";
+                    }
+                }
+                int tmpPri = c.getInt(c.getColumnIndex(Mms.PRIORITY));
+                Log.d(
+                        TAG,
+                        "TEMP handleMsgListChangesMms, "
+                                + "newMessage 'read' state: "
+                                + read
+                                + "priority: "
+                                + tmpPri);
+
+                String address =
+                        BluetoothMapContent.getAddressMms(
+                                mResolver, id, BluetoothMapContent.MMS_FROM);
+                if (address == null) {
+                    address = "";
+                }
+
+                String priority = "no";
+                if (tmpPri == PduHeaders.PRIORITY_HIGH) {
+                    priority = "yes";
+                }
+
+                /* Incoming message from the network */
+                if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
+                    evt =
+                            new Event(
+                                    EVENT_TYPE_NEW,
+                                    id,
+                                    getMmsFolderName(type),
+                                    TYPE.MMS,
+                                    date,
+                                    subject,
+                                    address,
+                                    priority);
+                } else {
+                    evt =
+                            new Event(
+                                    EVENT_TYPE_NEW,
+                                    id,
+                                    getMmsFolderName(type),
+                                    TYPE.MMS,
+                                    date,
+                                    subject,
+                                    address,
+                                    priority,
+                                    (long) threadId,
+                                    null);
+                }
+
+            } else {
+                /* Incoming message from the network */
+                evt =
                         new Event(
-                                EVENT_TYPE_DELETE,
-                                msg.id,
-                                getMmsFolderName(msg.type),
+                                EVENT_TYPE_NEW,
+                                id,
+                                getMmsFolderName(type),
                                 null,
                                 TYPE.MMS);
-                sendEvent(evt);
+            }
+            listChanged = true;
+
+            sendEvent(evt);
+        } else {
+            /* Existing message */
+            if (type != msg.type) {
+                Log.d(TAG, "new type: " + type + " old type: " + msg.type);
+                Event evt;
+                listChanged = true;
+                if (!msg.localInitiatedSend) {
+                    // Only send events about local initiated changes
+                    evt =
+                            new Event(
+                                    EVENT_TYPE_SHIFT,
+                                    id,
+                                    getMmsFolderName(type),
+                                    getMmsFolderName(msg.type),
+                                    TYPE.MMS);
+                    sendEvent(evt);
+                }
+                msg.type = type;
+
+                if (getMmsFolderName(type)
+                                .equalsIgnoreCase(
+                                        BluetoothMapContract.FOLDER_NAME_SENT)
+                        && msg.localInitiatedSend) {
+                    // Stop tracking changes for this message
+                    msg.localInitiatedSend = false;
+                    evt =
+                            new Event(
+                                    EVENT_TYPE_SENDING_SUCCESS,
+                                    id,
+                                    getMmsFolderName(type),
+                                    null,
+                                    TYPE.MMS);
+                    sendEvent(evt);
+                }
+            } else if (threadId != msg.threadId) {
+                Log.d(
+                        TAG,
+                        "Message delete change: type: "
+                                + type
+                                + " old type: "
+                                + msg.type
+                                + "\n    threadId: "
+                                + threadId
+                                + " old threadId: "
+                                + msg.threadId);
                 listChanged = true;
+                if (threadId == DELETED_THREAD_ID) { // Message deleted
+                    // "old_folder" used only for MessageShift event
+                    Event evt =
+                            new Event(
+                                    EVENT_TYPE_DELETE,
+                                    id,
+                                    getMmsFolderName(msg.type),
+                                    null,
+                                    TYPE.MMS);
+                    sendEvent(evt);
+                    msg.threadId = threadId;
+                } else { // Undelete
+                    Event evt =
+                            new Event(
+                                    EVENT_TYPE_SHIFT,
+                                    id,
+                                    getMmsFolderName(msg.type),
+                                    BluetoothMapContract.FOLDER_NAME_DELETED,
+                                    TYPE.MMS);
+                    sendEvent(evt);
+                    msg.threadId = threadId;
+                }
             }
-            setMsgListMms(msgListMms, listChanged);
+            if (read != msg.flagRead) {
+                listChanged = true;
+                msg.flagRead = read;
+                if (mMapEventReportVersion > BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
+                    Event evt =
+                            new Event(
+                                    EVENT_TYPE_READ_STATUS,
+                                    id,
+                                    getMmsFolderName(msg.type),
+                                    TYPE.MMS);
+                    sendEvent(evt);
+                }
+            }
+            msgListMms.put(id, msg);
         }
+        return listChanged;
+    }
+
+    private boolean sendMmsDeletedEvents(Map<Long, Msg> deletedMsgs) {
+        for (Msg msg : deletedMsgs.values()) {
+            // "old_folder" used only for MessageShift event
+            Event evt =
+                    new Event(
+                            EVENT_TYPE_DELETE, msg.id, getMmsFolderName(msg.type), null, TYPE.MMS);
+            sendEvent(evt);
+        }
+        return !deletedMsgs.isEmpty();
+    }
+
+    /** Remove and return the messages of {@code msgList} up to {@code highWaterMark}. */
+    private static Map<Long, Msg> removeMsgsUpTo(Map<Long, Msg> msgList, long highWaterMark) {
+        Map<Long, Msg> removed = new HashMap<Long, Msg>();
+        Iterator<Msg> iterator = msgList.values().iterator();
+        while (iterator.hasNext()) {
+            Msg msg = iterator.next();
+            if (msg.id <= highWaterMark) {
+                removed.put(msg.id, msg);
+                iterator.remove();
+            }
+        }
+        return removed;
+    }
+
+    private static long getRowId(Cursor c) {
+        return c.getLong(c.getColumnIndexOrThrow(BaseColumns._ID));
+    }
+
+    /** Returns the date of the SMS or MMS row at the cursor position, or 0 if unknown. */
+    private static long getRowDate(Cursor c) {
+        // Sms.DATE and Mms.DATE are the same column
+        int index = c.getColumnIndex(Sms.DATE);
+        return index < 0 || c.isNull(index) ? 0 : c.getLong(index);
+    }
+
+    /** Returns true if the row at the cursor position is not {@code msg} but a newer message. */
+    private static boolean isRowIdReused(Msg msg, Cursor c) {
+        long date = getRowDate(c);
+        return msg != null && msg.date != 0 && date != 0 && msg.date != date;
     }
 
     @VisibleForTesting
@@ -2285,9 +2731,48 @@ public class BluetoothMapContentObserver {
             }
         }
         // TODO: check to see if there could be problem with IM and SMS in one instance
+        if (mEnableSmsMms && mListingCache != null) {
+            // Invalidate right away, a listing may be requested before the refresh below has run.
+            mListingCache.invalidate();
+        }
         if (mEnableSmsMms) {
-            handleMsgListChangesSms();
-            handleMsgListChangesMms();
+            recordSmsMmsChange(uri);
+        }
+        if (mEnableSmsMms && !mObserverHandler.hasCallbacks(mSmsMmsRefresh)) {
+            // A single change, e.g. a message sent from the outbox, notifies several times.
+            mObserverHandler.postDelayed(mSmsMmsRefresh, SMS_MMS_REFRESH_DELAY_MS);
+        }
+    }
+
+    /** Record the SMS or MMS rows named by a change notification, for the next refresh. */
+    @VisibleForTesting
+    void recordSmsMmsChange(Uri uri) {
+        long id = getNotifiedRowId(uri);
+        if (id >= 0 && Sms.CONTENT_URI.getAuthority().equals(uri.getAuthority())) {
+            mChangedSmsRows.mIds.add(id);
+        } else if (id >= 0 && Mms.CONTENT_URI.getAuthority().equals(uri.getAuthority())) {
+            mChangedMmsRows.mIds.add(id);
+        } else if (MmsSms.CONTENT_URI.equals(uri)) {
+            // Also sent for each SMS or MMS change, see mSmsMmsRefresh
+            mMmsSmsChanged = true;
+        } else {
+            mChangedSmsRows.mUnknown = true;
+            mChangedMmsRows.mUnknown = true;
+        }
+    }
+
+    /**
+     * Returns the row ID of a {@code content://sms/<id>} or {@code content://mms/<id>} URI, or -1.
+     */
+    private static long getNotifiedRowId(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() != 1 || !TextUtils.isDigitsOnly(segments.get(0))) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(segments.get(0));
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 
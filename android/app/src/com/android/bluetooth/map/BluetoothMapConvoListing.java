@@ -27,9 +27,10 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.util.ArrayList;
@@ -94,10 +95,32 @@ public class BluetoothMapConvoListing {
      * @return a reference to the encoded byte array.
      */
     public byte[] encode() {
-        StringWriter sw = new StringWriter();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            encode(out);
+        } catch (IOException e) {
+            ContentProfileErrorReportUtils.report(
+                    BluetoothProfile.MAP,
+                    BluetoothProtoEnums.BLUETOOTH_MAP_CONVO_LISTING,
+                    BluetoothStatsLog.BLUETOOTH_CONTENT_PROFILE_ERROR_REPORTED__TYPE__EXCEPTION,
+                    2);
+            Log.w(TAG, e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode the list of BluetoothMapConvoListingElement(s) as a UTF-8 formatted XML-string into
+     * {@code out}, while the elements are encoded. The elements themselves are all built
+     * beforehand, as they are sorted and counted before the body is sent.
+     *
+     * @param out the stream to write to, e.g. the OBEX body stream. It is not closed.
+     * @throws IOException if writing to {@code out} fails
+     */
+    public void encode(OutputStream out) throws IOException {
         XmlSerializer xmlConvoElement = Xml.newSerializer();
         try {
-            xmlConvoElement.setOutput(sw);
+            xmlConvoElement.setOutput(out, StandardCharsets.UTF_8.name());
             xmlConvoElement.startDocument("UTF-8", true);
             xmlConvoElement.setFeature(
                     "http://xmlpull.org/v1/doc/features.html#indent-output", true);
@@ -123,15 +146,7 @@ public class BluetoothMapConvoListing {
                     BluetoothStatsLog.BLUETOOTH_CONTENT_PROFILE_ERROR_REPORTED__TYPE__EXCEPTION,
                     1);
             Log.w(TAG, e);
-        } catch (IOException e) {
-            ContentProfileErrorReportUtils.report(
-                    BluetoothProfile.MAP,
-                    BluetoothProtoEnums.BLUETOOTH_MAP_CONVO_LISTING,
-                    BluetoothStatsLog.BLUETOOTH_CONTENT_PROFILE_ERROR_REPORTED__TYPE__EXCEPTION,
-                    2);
-            Log.w(TAG, e);
         }
-        return sw.toString().getBytes(StandardCharsets.UTF_8);
     }
 
     public void sort() {
@@ -23,11 +23,16 @@ import com.android.bluetooth.BluetoothStatsLog;
 import com.android.bluetooth.DeviceWorkArounds;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.content_profiles.ContentProfileErrorReportUtils;
+import com.android.internal.annotations.VisibleForTesting;
 
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterWriter;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -92,22 +97,62 @@ public class BluetoothMapMessageListing {
      */
     // TODO: Remove includeThreadId when MAP-IM is adopted
     public byte[] encode(boolean includeThreadId, String version) {
-        StringWriter sw = new StringWriter();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            encode(out, includeThreadId, version);
+        } catch (IOException e) {
+            ContentProfileErrorReportUtils.report(
+                    BluetoothProfile.MAP,
+                    BluetoothProtoEnums.BLUETOOTH_MAP_MESSAGE_LISTING,
+                    BluetoothStatsLog.BLUETOOTH_CONTENT_PROFILE_ERROR_REPORTED__TYPE__EXCEPTION,
+                    2);
+            Log.w(TAG, e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode the list of BluetoothMapMessageListingElement(s) as a UTF-8 formatted XML-string
+     * into {@code out}. The XML is written while the elements are encoded, so that the encoded
+     * listing never has to be held in memory. The elements themselves are all built beforehand, as
+     * they are sorted by date across message types, and as the listing size and unread status are
+     * sent in the response headers before the body.
+     *
+     * @param out the stream to write to, e.g. the OBEX body stream. It is not closed.
+     * @param version the version as a string. Set the listing version to e.g. "1.0" or "1.1". To
+     *     make this future proof, no check is added to validate the value, hence be careful.
+     * @throws IOException if writing to {@code out} fails
+     */
+    // TODO: Remove includeThreadId when MAP-IM is adopted
+    public void encode(OutputStream out, boolean includeThreadId, String version)
+            throws IOException {
         boolean isBenzCarkit;
+        boolean isBrezzaCarkit;
 
         if (Utils.isInstrumentationTestMode()) {
             isBenzCarkit = false;
+            isBrezzaCarkit = false;
         } else {
+            String address =
+                    BluetoothMapService.getBluetoothMapService().getRemoteDevice().getAddress();
             isBenzCarkit =
                     DeviceWorkArounds.addressStartsWith(
-                            BluetoothMapService.getBluetoothMapService()
-                                    .getRemoteDevice()
-                                    .getAddress(),
-                            DeviceWorkArounds.MERCEDES_BENZ_CARKIT);
+                            address, DeviceWorkArounds.MERCEDES_BENZ_CARKIT);
+            isBrezzaCarkit =
+                    DeviceWorkArounds.addressStartsWith(
+                            address, DeviceWorkArounds.BREZZA_ZDI_CARKIT);
         }
         try {
             XmlSerializer xmlMsgElement = Xml.newSerializer();
-            xmlMsgElement.setOutput(sw);
+            if (isBrezzaCarkit) {
+                /* Fix IOT issue to replace '&amp;' by '&', &lt; by < and '&gt; by '>' in
+                 * MessageListing */
+                xmlMsgElement.setOutput(
+                        new UnescapingWriter(
+                                new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+            } else {
+                xmlMsgElement.setOutput(out, StandardCharsets.UTF_8.name());
+            }
             if (isBenzCarkit) {
                 Log.d(TAG, "java_interop: Remote is Mercedes Benz, " + "using Xml Workaround.");
                 xmlMsgElement.text("\n");
@@ -138,26 +183,77 @@ public class BluetoothMapMessageListing {
                     BluetoothStatsLog.BLUETOOTH_CONTENT_PROFILE_ERROR_REPORTED__TYPE__EXCEPTION,
                     1);
             Log.w(TAG, e);
-        } catch (IOException e) {
-            ContentProfileErrorReportUtils.report(
-                    BluetoothProfile.MAP,
-                    BluetoothProtoEnums.BLUETOOTH_MAP_MESSAGE_LISTING,
-                    BluetoothStatsLog.BLUETOOTH_CONTENT_PROFILE_ERROR_REPORTED__TYPE__EXCEPTION,
-                    2);
-            Log.w(TAG, e);
         }
-        /* Fix IOT issue to replace '&amp;' by '&', &lt; by < and '&gt; by '>' in MessageListing */
-        if (!Utils.isInstrumentationTestMode()
-                && DeviceWorkArounds.addressStartsWith(
-                        BluetoothMapService.getBluetoothMapService().getRemoteDevice().getAddress(),
-                        DeviceWorkArounds.BREZZA_ZDI_CARKIT)) {
-            return sw.toString()
-                    .replaceAll("&amp;", "&")
-                    .replaceAll("&lt;", "<")
-                    .replaceAll("&gt;", ">")
-                    .getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Replaces the '&amp;amp;', '&amp;lt;' and '&amp;gt;' entities written by the serializer by
+     * the characters they stand for. An '&amp;' obtained from '&amp;amp;' is itself matched
+     * against '&amp;lt;' and '&amp;gt;', as the former workaround replaced the entities one after
+     * the other in the whole listing.
+     */
+    @VisibleForTesting
+    static class UnescapingWriter extends FilterWriter {
+        private final StringBuilder mPending = new StringBuilder();
+        private boolean mPendingFromAmp = false;
+
+        UnescapingWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            if (mPending.length() == 0 && c != '&') {
+                out.write(c);
+                return;
+            }
+            mPending.append((char) c);
+            String pending = mPending.toString();
+            if (!mPendingFromAmp && pending.equals("&amp;")) {
+                mPending.setLength(1);
+                mPendingFromAmp = true;
+            } else if (pending.equals("&lt;") || pending.equals("&gt;")) {
+                clearPending();
+                out.write(pending.charAt(1) == 'l' ? '<' : '>');
+            } else if (!isEntityPrefix(pending)) {
+                // Not an entity to replace, or '&' followed by the start of another entity
+                clearPending();
+                out.write(pending, 0, pending.length() - 1);
+                write(c);
+            }
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                write(cbuf[i]);
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                write(str.charAt(i));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.write(mPending.toString());
+            clearPending();
+            super.close();
+        }
+
+        private boolean isEntityPrefix(String pending) {
+            return (!mPendingFromAmp && "&amp;".startsWith(pending))
+                    || "&lt;".startsWith(pending)
+                    || "&gt;".startsWith(pending);
+        }
+
+        private void clearPending() {
+            mPending.setLength(0);
+            mPendingFromAmp = false;
         }
-        return sw.toString().getBytes(StandardCharsets.UTF_8);
     }
 
     public void sort() {
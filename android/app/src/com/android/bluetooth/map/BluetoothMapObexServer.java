@@ -43,6 +43,7 @@ import com.android.obex.Operation;
 import com.android.obex.ResponseCodes;
 import com.android.obex.ServerRequestHandler;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -164,6 +165,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
         mObserver.setFolderStructure(mCurrentFolder.getRoot());
 
         mOutContent = new BluetoothMapContent(mContext, mAccount, mMasInstance);
+        mObserver.setListingCache(mOutContent.getListingCache());
     }
 
     /** */
@@ -1295,12 +1297,12 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
     private int sendMessageListingRsp(
             Operation op, BluetoothMapAppParams appParams, String folderName) {
         OutputStream outStream = null;
-        byte[] outBytes = null;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0, listSize;
+        int listSize;
+        String version = null;
         boolean hasUnread = false;
         HeaderSet replyHeaders = new HeaderSet();
         BluetoothMapAppParams outAppParams = new BluetoothMapAppParams();
-        BluetoothMapMessageListing outList;
+        BluetoothMapMessageListing outList = null;
         if (appParams == null) {
             appParams = new BluetoothMapAppParams();
             appParams.setMaxListCount(1024);
@@ -1359,9 +1361,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             // Check to see if we only need to send the size - hence no need to encode.
             if (appParams.getMaxListCount() != 0) {
                 outList = mOutContent.msgListing(folderToList, appParams);
-                // Generate the byte stream
                 outAppParams.setMessageListingSize(outList.getCount());
-                String version;
                 if (0
                         < (mRemoteFeatureMask
                                 & BluetoothMapUtils.MAP_FEATURE_MESSAGE_LISTING_FORMAT_V11_BIT)) {
@@ -1369,9 +1369,6 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                 } else {
                     version = BluetoothMapUtils.MAP_V10_STR;
                 }
-                /* This will only set the version, the bit must also be checked before adding any
-                 * 1.1 bits to the listing. */
-                outBytes = outList.encode(mThreadIdSupport, version);
                 hasUnread = outList.hasUnread();
             } else {
                 listSize = mOutContent.msgListingSize(folderToList, appParams);
@@ -1456,14 +1453,12 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
 
-        maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-        if (outBytes != null) {
+        if (outList != null) {
             try {
-                while (bytesWritten < outBytes.length && !mIsAborted) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
+                /* Generate the byte stream straight into the OBEX body stream.
+                 * This will only set the version, the bit must also be checked before adding any
+                 * 1.1 bits to the listing. */
+                outList.encode(new AbortableOutputStream(outStream), mThreadIdSupport, version);
             } catch (IOException e) {
                 ContentProfileErrorReportUtils.report(
                         BluetoothProfile.MAP,
@@ -1472,6 +1467,19 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                         45);
                 Log.w(TAG, e);
                 // We were probably aborted or disconnected
+                if (!mIsAborted) {
+                    Log.w(
+                            TAG,
+                            "sendMessageListingRsp: listing not fully written"
+                                    + " - sending OBEX_HTTP_BAD_REQUEST");
+                    ContentProfileErrorReportUtils.report(
+                            BluetoothProfile.MAP,
+                            BluetoothProtoEnums.BLUETOOTH_MAP_OBEX_SERVER,
+                            BluetoothStatsLog
+                                    .BLUETOOTH_CONTENT_PROFILE_ERROR_REPORTED__TYPE__LOG_WARN,
+                            47);
+                    return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+                }
             } finally {
                 if (outStream != null) {
                     try {
@@ -1487,18 +1495,6 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                     }
                 }
             }
-            if (bytesWritten != outBytes.length && !mIsAborted) {
-                Log.w(
-                        TAG,
-                        "sendMessageListingRsp: bytesWritten != outBytes.length"
-                                + " - sending OBEX_HTTP_BAD_REQUEST");
-                ContentProfileErrorReportUtils.report(
-                        BluetoothProfile.MAP,
-                        BluetoothProtoEnums.BLUETOOTH_MAP_OBEX_SERVER,
-                        BluetoothStatsLog.BLUETOOTH_CONTENT_PROFILE_ERROR_REPORTED__TYPE__LOG_WARN,
-                        47);
-                return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
-            }
         } else {
             if (outStream != null) {
                 try {
@@ -1569,12 +1565,10 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
      */
     private int sendConvoListingRsp(Operation op, BluetoothMapAppParams appParams) {
         OutputStream outStream = null;
-        byte[] outBytes = null;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0;
         // boolean hasUnread = false;
         HeaderSet replyHeaders = new HeaderSet();
         BluetoothMapAppParams outAppParams = new BluetoothMapAppParams();
-        BluetoothMapConvoListing outList;
+        BluetoothMapConvoListing outList = null;
         if (appParams == null) {
             appParams = new BluetoothMapAppParams();
             appParams.setMaxListCount(1024);
@@ -1597,9 +1591,6 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             if (appParams.getMaxListCount() != 0) {
                 outList = mOutContent.convoListing(appParams, false);
                 outAppParams.setConvoListingSize(outList.getCount());
-                // Generate the byte stream
-                outBytes = outList.encode(); // Include thread ID for clients that supports it.
-                Log.d(TAG, "outBytes size:" + outBytes.length);
             } else {
                 outList = mOutContent.convoListing(appParams, true);
                 outAppParams.setConvoListingSize(outList.getCount());
@@ -1625,7 +1616,6 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                             + outList.getCount()
                             + " MaxListCount: "
                             + appParams.getMaxListCount());
-            outList = null; // We don't need it anymore - we might as well give it up for GC
             outAppParams.setDatabaseIdentifier(0, mMasInstance.getDbIdentifier());
 
             // Build the application parameter header
@@ -1689,14 +1679,10 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
 
-        maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-        if (outBytes != null) {
+        if (outList != null && appParams.getMaxListCount() != 0) {
             try {
-                while (bytesWritten < outBytes.length && !mIsAborted) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
+                // Generate the byte stream straight into the OBEX body stream.
+                outList.encode(new AbortableOutputStream(outStream));
             } catch (IOException e) {
                 ContentProfileErrorReportUtils.report(
                         BluetoothProfile.MAP,
@@ -1705,6 +1691,19 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                         53);
                 Log.w(TAG, e);
                 // We were probably aborted or disconnected
+                if (!mIsAborted) {
+                    Log.w(
+                            TAG,
+                            "sendConvoListingRsp: listing not fully written"
+                                    + " - sending OBEX_HTTP_BAD_REQUEST");
+                    ContentProfileErrorReportUtils.report(
+                            BluetoothProfile.MAP,
+                            BluetoothProtoEnums.BLUETOOTH_MAP_OBEX_SERVER,
+                            BluetoothStatsLog
+                                    .BLUETOOTH_CONTENT_PROFILE_ERROR_REPORTED__TYPE__LOG_WARN,
+                            54);
+                    return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+                }
             } finally {
                 if (outStream != null) {
                     try {
@@ -1714,18 +1713,6 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                     }
                 }
             }
-            if (bytesWritten != outBytes.length && !mIsAborted) {
-                Log.w(
-                        TAG,
-                        "sendConvoListingRsp: bytesWritten != outBytes.length"
-                                + " - sending OBEX_HTTP_BAD_REQUEST");
-                ContentProfileErrorReportUtils.report(
-                        BluetoothProfile.MAP,
-                        BluetoothProtoEnums.BLUETOOTH_MAP_OBEX_SERVER,
-                        BluetoothStatsLog.BLUETOOTH_CONTENT_PROFILE_ERROR_REPORTED__TYPE__LOG_WARN,
-                        54);
-                return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
-            }
         } else {
             if (outStream != null) {
                 try {
@@ -2242,4 +2229,29 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
     private static void logHeader(HeaderSet hs) {
         Log.v(TAG, hs.dump());
     }
+
+    /** OBEX body stream which fails any write once the operation has been aborted by the peer. */
+    private class AbortableOutputStream extends FilterOutputStream {
+        AbortableOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            checkAborted();
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            checkAborted();
+            out.write(b, off, len);
+        }
+
+        private void checkAborted() throws IOException {
+            if (mIsAborted) {
+                throw new IOException("Operation aborted");
+            }
+        }
+    }
 }
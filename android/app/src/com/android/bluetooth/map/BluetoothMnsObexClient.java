@@ -30,6 +30,7 @@ import android.util.SparseBooleanArray;
 
 import com.android.bluetooth.BluetoothObexTransport;
 import com.android.bluetooth.BluetoothStatsLog;
+import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.content_profiles.ContentProfileErrorReportUtils;
 import com.android.obex.ClientOperation;
 import com.android.obex.ClientSession;
@@ -345,6 +346,13 @@ public class BluetoothMnsObexClient {
                     5);
             Log.e(TAG, "BtSocket Connect error " + e.getMessage(), e);
             // TODO: do we need to report error somewhere?
+            if (isValidMnsRecord()) {
+                // The record may come from the SDP cache and be outdated, search again next time
+                AdapterService adapterService = AdapterService.getAdapterService();
+                if (adapterService != null) {
+                    adapterService.invalidateSdpCache(mRemoteDevice, BLUETOOTH_UUID_OBEX_MNS);
+                }
+            }
             mConnected = false;
             return;
         }
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.Telephony.CanonicalAddressesColumns;
+import android.provider.Telephony.Mms;
+import android.provider.Telephony.MmsSms;
+import android.provider.Telephony.Threads;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.bluetooth.BluetoothMethodProxy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Caches the data {@link BluetoothMapContent} looks up for each element of a message listing: the
+ * text parts and addresses of MMS messages, the recipients of SMS drafts and the contact names of
+ * phone numbers.
+ *
+ * <p>The text parts and draft recipients of a listing page can be prefetched with a single query
+ * each. While {@link BluetoothMapContentObserver} observes the SMS/MMS provider, i.e. while the
+ * client has registered for notifications, message data is kept across listings and dropped
+ * whenever the provider reports a change. Otherwise it is only kept for the duration of a single
+ * listing, like contact names since contacts are never observed. Each map keeps at most {@link
+ * #MAX_ENTRIES} entries.
+ */
+class SmsMmsListingCache {
+    private static final String TAG = SmsMmsListingCache.class.getSimpleName();
+
+    @VisibleForTesting static final int BATCH_SIZE = 200;
+
+    @VisibleForTesting static final int MAX_ENTRIES = 1024;
+
+    @VisibleForTesting
+    static final Uri MMS_PART_URI = Uri.withAppendedPath(Mms.CONTENT_URI, "part");
+
+    @VisibleForTesting
+    static final Uri THREADS_URI =
+            Threads.CONTENT_URI.buildUpon().appendQueryParameter("simple", "true").build();
+
+    @VisibleForTesting
+    static final Uri CANONICAL_ADDRESS_URI =
+            MmsSms.CONTENT_URI.buildUpon().appendPath("canonical-addresses").build();
+
+    private static final String[] MMS_PART_PROJECTION = {Mms.Part.MSG_ID, Mms.Part.TEXT};
+    private static final String[] THREAD_PROJECTION = {Threads._ID, Threads.RECIPIENT_IDS};
+    private static final String[] CANONICAL_ADDRESS_PROJECTION = {
+        CanonicalAddressesColumns._ID, CanonicalAddressesColumns.ADDRESS
+    };
+
+    // Values may be null, hence containsKey() is used to tell cached entries apart.
+    private final Map<Long, String> mMmsTexts = newBoundedMap();
+    private final Map<Integer, Map<Long, String>> mMmsAddresses = new HashMap<>();
+    private final Map<Integer, String> mDraftAddresses = newBoundedMap();
+    private final Map<String, String> mContactNames = newBoundedMap();
+
+    // Whether invalidate() is called on each SMS/MMS change
+    private boolean mObserved = false;
+
+    /** Drops all cached data. Called when the SMS/MMS content has changed. */
+    synchronized void invalidate() {
+        Log.v(TAG, "invalidate");
+        mMmsTexts.clear();
+        mMmsAddresses.clear();
+        mDraftAddresses.clear();
+        mContactNames.clear();
+    }
+
+    /**
+     * Sets whether the SMS/MMS content is observed, and {@link #invalidate} called on each change.
+     * Message data is only kept across listings while it is.
+     */
+    synchronized void setObserved(boolean observed) {
+        Log.v(TAG, "setObserved: " + observed);
+        mObserved = observed;
+        if (!observed) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Drops the data which may be outdated, i.e. the contact names, and the message data when the
+     * SMS/MMS content is not observed. Called at the start of each listing.
+     */
+    synchronized void startListing() {
+        if (mObserved) {
+            mContactNames.clear();
+        } else {
+            invalidate();
+        }
+    }
+
+    /** Cached version of {@link BluetoothMapContent#getTextPartsMms(ContentResolver, long)}. */
+    synchronized String getTextPartsMms(ContentResolver r, long id) {
+        if (!mMmsTexts.containsKey(id)) {
+            mMmsTexts.put(id, BluetoothMapContent.getTextPartsMms(r, id));
+        }
+        return mMmsTexts.get(id);
+    }
+
+    /** Cached version of {@link BluetoothMapContent#getAddressMms(ContentResolver, long, int)}. */
+    synchronized String getAddressMms(ContentResolver r, long id, int type) {
+        Map<Long, String> addresses = mMmsAddresses.computeIfAbsent(type, k -> newBoundedMap());
+        if (!addresses.containsKey(id)) {
+            addresses.put(id, BluetoothMapContent.getAddressMms(r, id, type));
+        }
+        return addresses.get(id);
+    }
+
+    /**
+     * Cached version of {@link BluetoothMapContent#getCanonicalAddressSms(ContentResolver, int)}.
+     */
+    synchronized String getCanonicalAddressSms(ContentResolver r, int threadId) {
+        if (!mDraftAddresses.containsKey(threadId)) {
+            mDraftAddresses.put(threadId, BluetoothMapContent.getCanonicalAddressSms(r, threadId));
+        }
+        return mDraftAddresses.get(threadId);
+    }
+
+    /**
+     * Cached version of {@link BluetoothMapContent#getContactNameFromPhone(String,
+     * ContentResolver)}.
+     */
+    synchronized String getContactNameFromPhone(String phone, ContentResolver r) {
+        if (TextUtils.isEmpty(phone)) {
+            return null;
+        }
+        if (!mContactNames.containsKey(phone)) {
+            mContactNames.put(phone, BluetoothMapContent.getContactNameFromPhone(phone, r));
+        }
+        return mContactNames.get(phone);
+    }
+
+    /**
+     * Reads the plain text parts of the given MMS messages with one query per {@link #BATCH_SIZE}
+     * messages. Messages already cached are skipped.
+     */
+    synchronized void prefetchTextPartsMms(ContentResolver r, Collection<Long> ids) {
+        List<Long> pending = new ArrayList<>(new LinkedHashSet<>(ids));
+        pending.removeIf(mMmsTexts::containsKey);
+        for (int start = 0; start < pending.size(); start += BATCH_SIZE) {
+            List<Long> batch = pending.subList(start, Math.min(start + BATCH_SIZE, pending.size()));
+            String selection =
+                    Mms.Part.MSG_ID
+                            + " IN ("
+                            + TextUtils.join(",", batch)
+                            + ") AND "
+                            + Mms.Part.CONTENT_TYPE
+                            + "='text/plain'";
+            Cursor c =
+                    BluetoothMethodProxy.getInstance()
+                            .contentResolverQuery(
+                                    r,
+                                    MMS_PART_URI,
+                                    MMS_PART_PROJECTION,
+                                    selection,
+                                    null,
+                                    Mms.Part._ID);
+            if (c == null) {
+                // Leave them to be read one by one
+                Log.w(TAG, "prefetchTextPartsMms: null cursor");
+                return;
+            }
+            Map<Long, StringBuilder> texts = new HashMap<>();
+            for (long id : batch) {
+                texts.put(id, new StringBuilder());
+            }
+            try {
+                int idColumn = c.getColumnIndexOrThrow(Mms.Part.MSG_ID);
+                int textColumn = c.getColumnIndexOrThrow(Mms.Part.TEXT);
+                while (c.moveToNext()) {
+                    StringBuilder text = texts.get(c.getLong(idColumn));
+                    String part = c.getString(textColumn);
+                    if (text != null && part != null) {
+                        text.append(part);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            for (Map.Entry<Long, StringBuilder> entry : texts.entrySet()) {
+                mMmsTexts.put(entry.getKey(), entry.getValue().toString());
+            }
+        }
+        Log.v(TAG, "prefetchTextPartsMms: read " + pending.size() + " messages");
+    }
+
+    /**
+     * Reads the recipient addresses of the given SMS draft threads with one query on the threads
+     * and one on the canonical addresses per {@link #BATCH_SIZE} threads. Threads already cached
+     * are skipped.
+     */
+    synchronized void prefetchCanonicalAddressesSms(ContentResolver r, Collection<Integer> ids) {
+        List<Integer> pending = new ArrayList<>(new LinkedHashSet<>(ids));
+        pending.removeIf(mDraftAddresses::containsKey);
+        for (int start = 0; start < pending.size(); start += BATCH_SIZE) {
+            List<Integer> batch =
+                    pending.subList(start, Math.min(start + BATCH_SIZE, pending.size()));
+            Map<Integer, long[]> recipientIds = queryRecipientIds(r, batch);
+            if (recipientIds == null) {
+                Log.w(TAG, "prefetchCanonicalAddressesSms: null thread cursor");
+                return;
+            }
+            List<Long> addressIds = new ArrayList<>();
+            for (long[] threadRecipients : recipientIds.values()) {
+                for (long addressId : threadRecipients) {
+                    addressIds.add(addressId);
+                }
+            }
+            Map<Long, String> addresses = queryCanonicalAddresses(r, addressIds);
+            if (addresses == null) {
+                Log.w(TAG, "prefetchCanonicalAddressesSms: null address cursor");
+                return;
+            }
+            for (int threadId : batch) {
+                // Join the addresses in the order the canonical-addresses table returns them
+                StringBuilder recipientAddress = new StringBuilder();
+                long[] threadRecipients = recipientIds.get(threadId);
+                if (threadRecipients != null) {
+                    TreeMap<Long, String> sorted = new TreeMap<>();
+                    for (long addressId : threadRecipients) {
+                        if (addresses.containsKey(addressId)) {
+                            sorted.put(addressId, addresses.get(addressId));
+                        }
+                    }
+                    recipientAddress.append(TextUtils.join(";", sorted.values()));
+                }
+                mDraftAddresses.put(threadId, recipientAddress.toString());
+            }
+        }
+        Log.v(TAG, "prefetchCanonicalAddressesSms: read " + pending.size() + " threads");
+    }
+
+    private static <K, V> Map<K, V> newBoundedMap() {
+        return new LinkedHashMap<K, V>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    private static Map<Integer, long[]> queryRecipientIds(
+            ContentResolver r, List<Integer> threadIds) {
+        Cursor c =
+                BluetoothMethodProxy.getInstance()
+                        .contentResolverQuery(
+                                r,
+                                THREADS_URI,
+                                THREAD_PROJECTION,
+                                Threads._ID + " IN (" + TextUtils.join(",", threadIds) + ")",
+                                null,
+                                null);
+        if (c == null) {
+            return null;
+        }
+        Map<Integer, long[]> recipientIds = new HashMap<>();
+        try {
+            int idColumn = c.getColumnIndexOrThrow(Threads._ID);
+            int recipientIdsColumn = c.getColumnIndexOrThrow(Threads.RECIPIENT_IDS);
+            while (c.moveToNext()) {
+                String ids = c.getString(recipientIdsColumn);
+                if (TextUtils.isEmpty(ids)) {
+                    continue;
+                }
+                String[] split = ids.trim().split(" +");
+                long[] threadRecipients = new long[split.length];
+                for (int i = 0; i < split.length; i++) {
+                    threadRecipients[i] = Long.parseLong(split[i]);
+                }
+                recipientIds.put(c.getInt(idColumn), threadRecipients);
+            }
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "queryRecipientIds: malformed recipient ids", e);
+            return null;
+        } finally {
+            c.close();
+        }
+        return recipientIds;
+    }
+
+    private static Map<Long, String> queryCanonicalAddresses(
+            ContentResolver r, List<Long> addressIds) {
+        Map<Long, String> addresses = new HashMap<>();
+        if (addressIds.isEmpty()) {
+            return addresses;
+        }
+        Cursor c =
+                BluetoothMethodProxy.getInstance()
+                        .contentResolverQuery(
+                                r,
+                                CANONICAL_ADDRESS_URI,
+                                CANONICAL_ADDRESS_PROJECTION,
+                                CanonicalAddressesColumns._ID
+                                        + " IN ("
+                                        + TextUtils.join(",", addressIds)
+                                        + ")",
+                                null,
+                                null);
+        if (c == null) {
+            return null;
+        }
+        try {
+            int idColumn = c.getColumnIndexOrThrow(CanonicalAddressesColumns._ID);
+            int addressColumn = c.getColumnIndexOrThrow(CanonicalAddressesColumns.ADDRESS);
+            while (c.moveToNext()) {
+                addresses.put(c.getLong(idColumn), c.getString(addressColumn));
+            }
+        } finally {
+            c.close();
+        }
+        return addresses;
+    }
+}
@@ -613,11 +613,15 @@ class MceStateMachine extends StateMachine {
                 case MSG_MAS_DISCONNECTED:
                     if (mMasClient != null) {
                         mMasClient.shutdown();
+                        invalidateMasRecord();
                     }
                     transitionTo(mDisconnected);
                     break;
 
                 case MSG_CONNECTING_TIMEOUT:
+                    if (mMasClient != null) {
+                        invalidateMasRecord();
+                    }
                     transitionTo(mDisconnecting);
                     break;
 
@@ -642,6 +646,17 @@ class MceStateMachine extends StateMachine {
             mPreviousState = BluetoothProfile.STATE_CONNECTING;
             removeMessages(MSG_CONNECTING_TIMEOUT);
         }
+
+        /**
+         * The MAS record we connected with did not lead to a session, it may be outdated. Drop it
+         * from the SDP cache so the next connection attempt searches the remote again.
+         */
+        private void invalidateMasRecord() {
+            AdapterService adapterService = AdapterService.getAdapterService();
+            if (adapterService != null) {
+                adapterService.invalidateSdpCache(mDevice, BluetoothUuid.MAS);
+            }
+        }
     }
 
     class Connected extends State {
@@ -555,11 +555,15 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                                             + " bytes took "
                                             + (currentTime - timestamp)
                                             + " ms");
-                            // Update the Progress Bar only if there is change in percentage
+                            // Update the Progress Bar only if there is change in percentage, at
+                            // most once per PROGRESS_UPDATE_INTERVAL_MS until the last packet,
                             // or once per a period to notify NFC of this transfer is still alive
                             percent = position * 100 / fileInfo.mLength;
-                            if (percent > prevPercent
-                                    || currentTime - prevTimestamp > Constants.NFC_ALIVE_CHECK_MS) {
+                            if (Constants.isProgressUpdateDue(
+                                    percent,
+                                    prevPercent,
+                                    currentTime - prevTimestamp,
+                                    position == fileInfo.mLength)) {
                                 updateValues = new ContentValues();
                                 updateValues.put(BluetoothShare.CURRENT_BYTES, position);
                                 mContext1
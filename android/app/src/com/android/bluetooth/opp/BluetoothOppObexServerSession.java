@@ -553,10 +553,14 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
                                     + (currentTime - timestamp)
                                     + " ms");
 
-                    // Update the Progress Bar only if there is change in percentage
+                    // Update the Progress Bar only if there is change in percentage, at most
+                    // once per PROGRESS_UPDATE_INTERVAL_MS until the last packet,
                     // or once per a period to notify NFC of this transfer is still alive
-                    if (percent > prevPercent
-                            || currentTime - prevTimestamp > Constants.NFC_ALIVE_CHECK_MS) {
+                    if (Constants.isProgressUpdateDue(
+                            percent,
+                            prevPercent,
+                            currentTime - prevTimestamp,
+                            position == fileInfo.mLength)) {
                         ContentValues updateValues = new ContentValues();
                         updateValues.put(BluetoothShare.CURRENT_BYTES, position);
                         BluetoothMethodProxy.getInstance()
@@ -356,9 +356,11 @@ public final class BluetoothOppProvider extends ContentProvider {
             return null;
         }
 
-        context.getContentResolver().notifyChange(uri, null);
+        Uri shareUri = Uri.parse(BluetoothShare.CONTENT_URI + "/" + rowID);
+        // Notify the row URI so that observers only need to read the new share
+        context.getContentResolver().notifyChange(shareUri, null);
 
-        return Uri.parse(BluetoothShare.CONTENT_URI + "/" + rowID);
+        return shareUri;
     }
 
     @Override
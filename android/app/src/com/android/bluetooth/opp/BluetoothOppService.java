@@ -76,8 +76,10 @@ import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 
 /**
  * Performs the background Bluetooth OPP transfer. It also starts thread to accept incoming OPP
@@ -117,7 +119,12 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
 
         @Override
         public void onChange(boolean selfChange) {
-            Log.v(TAG, "ContentObserver received notification");
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            Log.v(TAG, "ContentObserver received notification for " + uri);
 
             // Since ContentObserver is created with Handler, onChange() can be called
             // even after the observer is unregistered.
@@ -125,7 +132,7 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
                 Log.d(TAG, "onChange() called after stop() is called.");
                 return;
             }
-            updateFromProvider();
+            updateFromProvider(getShareId(uri));
         }
     }
 
@@ -139,6 +146,12 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
 
     private boolean mPendingUpdate;
 
+    /** Whether the pending update has to resync the whole share table */
+    private boolean mPendingFullUpdate;
+
+    /** Ids of the shares changed since the last update, when no full resync is pending */
+    private final Set<Integer> mPendingShareIds = new HashSet<>();
+
     @VisibleForTesting UpdateThread mUpdateThread;
 
     private boolean mUpdateThreadRunning;
@@ -688,8 +701,22 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
             };
 
     private void updateFromProvider() {
+        updateFromProvider(-1);
+    }
+
+    /**
+     * Schedules an update of the local copy of the share {@code shareId}, or of all the shares if
+     * {@code shareId} is negative.
+     */
+    private void updateFromProvider(int shareId) {
         synchronized (BluetoothOppService.this) {
             mPendingUpdate = true;
+            if (shareId < 0) {
+                mPendingFullUpdate = true;
+                mPendingShareIds.clear();
+            } else if (!mPendingFullUpdate) {
+                mPendingShareIds.add(shareId);
+            }
             if (mUpdateThread == null) {
                 mUpdateThread = new UpdateThread();
                 BluetoothMethodProxy.getInstance().threadStart(mUpdateThread);
@@ -718,6 +745,8 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
             while (!mIsInterrupted) {
+                boolean fullUpdate;
+                List<Integer> shareIds;
                 synchronized (BluetoothOppService.this) {
                     if (mUpdateThread != this) {
                         mUpdateThreadRunning = false;
@@ -738,7 +767,22 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
                         return;
                     }
                     mPendingUpdate = false;
+                    fullUpdate = mPendingFullUpdate;
+                    mPendingFullUpdate = false;
+                    shareIds = new ArrayList<>(mPendingShareIds);
+                    mPendingShareIds.clear();
                 }
+
+                if (!fullUpdate) {
+                    // Only some shares changed, e.g. the progress of a transfer, so there is
+                    // no need to walk the whole transfer history.
+                    for (int shareId : shareIds) {
+                        updateShareFromProvider(shareId);
+                    }
+                    mNotifier.updateNotification();
+                    continue;
+                }
+
                 Cursor cursor =
                         getContentResolver()
                                 .query(
@@ -837,6 +881,76 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
         }
     }
 
+    /** Updates the local copy of the share {@code shareId} only. */
+    private void updateShareFromProvider(int shareId) {
+        Cursor cursor =
+                getContentResolver()
+                        .query(
+                                Uri.parse(BluetoothShare.CONTENT_URI + "/" + shareId),
+                                null,
+                                null,
+                                null,
+                                null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            int arrayPos = findShare(shareId);
+            if (cursor.moveToFirst()) {
+                if (arrayPos >= 0) {
+                    updateShare(cursor, arrayPos);
+                    scanFileIfNeeded(arrayPos);
+                } else {
+                    Log.v(TAG, "Share update: inserting " + shareId + " @ " + (-arrayPos - 1));
+                    insertShare(cursor, -arrayPos - 1);
+                }
+            } else if (arrayPos >= 0) {
+                Log.v(TAG, "Share update: removing " + shareId + " @ " + arrayPos);
+                deleteShare(arrayPos);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the position of the share {@code shareId} in {@link #mShares}, which is sorted by id,
+     * or {@code -(insertion point) - 1} if there is no such share.
+     */
+    @VisibleForTesting
+    int findShare(int shareId) {
+        int low = 0;
+        int high = mShares.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midId = mShares.get(mid).mId;
+            if (midId < shareId) {
+                low = mid + 1;
+            } else if (midId > shareId) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Returns the id of the share a change notification is about, or -1 if it is about the whole
+     * share table.
+     */
+    @VisibleForTesting
+    static int getShareId(Uri uri) {
+        if (uri == null || uri.getPathSegments().size() != 2) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(uri.getLastPathSegment());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     private void insertShare(Cursor cursor, int arrayPos) {
         String uriString = cursor.getString(cursor.getColumnIndexOrThrow(BluetoothShare.URI));
         Uri uri;
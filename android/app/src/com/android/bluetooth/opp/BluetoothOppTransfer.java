@@ -62,6 +62,7 @@ import com.android.bluetooth.BluetoothMethodProxy;
 import com.android.bluetooth.BluetoothObexTransport;
 import com.android.bluetooth.BluetoothStatsLog;
 import com.android.bluetooth.Utils;
+import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.content_profiles.ContentProfileErrorReportUtils;
 import com.android.bluetooth.flags.Flags;
 import com.android.internal.annotations.VisibleForTesting;
@@ -897,6 +898,11 @@ public class BluetoothOppTransfer implements BluetoothOppBatch.BluetoothOppBatch
                         BluetoothStatsLog.BLUETOOTH_CONTENT_PROFILE_ERROR_REPORTED__TYPE__EXCEPTION,
                         20);
                 Log.e(TAG, "L2cap socket connect exception", e);
+                // The PSM came from a possibly cached OPP record, search again next time
+                AdapterService adapterService = AdapterService.getAdapterService();
+                if (adapterService != null) {
+                    adapterService.invalidateSdpCache(mDevice, BluetoothUuid.OBEX_OBJECT_PUSH);
+                }
                 try {
                     mBtSocket.close();
                 } catch (IOException e3) {
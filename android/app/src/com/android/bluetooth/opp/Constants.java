@@ -227,6 +227,12 @@ public class Constants {
     /** Notify NFC of the transfer progress periodically, or it will timeout after 20sec. */
     static final int NFC_ALIVE_CHECK_MS = 10000;
 
+    /**
+     * Minimum interval between two transfer progress writes to the provider. The notification is
+     * not refreshed more often anyway, and each write makes the service resync the share.
+     */
+    static final int PROGRESS_UPDATE_INTERVAL_MS = 1000;
+
     /**
      * To log debug/verbose in OPP, use the command "setprop log.tag.BluetoothOpp DEBUG" or "setprop
      * log.tag.BluetoothOpp VERBOSE" and then "adb root" + "adb shell "stop; start""
@@ -247,6 +253,20 @@ public class Constants {
 
     static final String FILENAME_SEQUENCE_SEPARATOR = "-";
 
+    /**
+     * Whether the transfer progress has to be written to the provider.
+     *
+     * @param elapsedMs time since the progress was last written
+     * @param isComplete whether the whole object has been transferred
+     */
+    static boolean isProgressUpdateDue(
+            long percent, long prevPercent, long elapsedMs, boolean isComplete) {
+        if (elapsedMs > NFC_ALIVE_CHECK_MS) {
+            return true;
+        }
+        return percent > prevPercent && (isComplete || elapsedMs >= PROGRESS_UPDATE_INTERVAL_MS);
+    }
+
     static void updateShareStatus(Context context, int id, int status) {
         Uri contentUri = Uri.parse(BluetoothShare.CONTENT_URI + "/" + id);
         ContentValues updateValues = new ContentValues();
@@ -31,7 +31,6 @@ import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.PhoneLookup;
-import android.provider.ContactsContract.RawContactsEntity;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.util.Log;
@@ -417,13 +416,16 @@ public class BluetoothPbapVcardManager {
                     idColumn = contactCursor.getColumnIndex(Contacts._ID);
                 }
 
+                RawContactEntityBatchReader entityReader =
+                        new RawContactEntityBatchReader(mResolver, contactCursor, idColumn);
+
                 int i = 0;
                 contactCursor.moveToFirst();
                 while (!contactCursor.isAfterLast()) {
                     String vcard =
                             composer.buildVCard(
-                                    RawContactsEntity.queryRawContactEntity(
-                                            mResolver, contactCursor.getLong(idColumn)));
+                                    entityReader.getContentValuesListMap(
+                                            contactCursor.getLong(idColumn)));
                     if (!contactCursor.moveToNext()) {
                         Log.i(TAG, "Cursor#moveToNext() returned false");
                     }
@@ -900,6 +902,8 @@ public class BluetoothPbapVcardManager {
             if (idColumn < 0) {
                 idColumn = contactIdCursor.getColumnIndex(Contacts._ID);
             }
+            RawContactEntityBatchReader entityReader =
+                    new RawContactEntityBatchReader(mResolver, contactIdCursor, idColumn);
 
             while (!contactIdCursor.isAfterLast()) {
                 if (BluetoothPbapObexServer.sIsAborted) {
@@ -909,8 +913,8 @@ public class BluetoothPbapVcardManager {
                 }
                 String vcard =
                         composer.buildVCard(
-                                RawContactsEntity.queryRawContactEntity(
-                                        mResolver, contactIdCursor.getLong(idColumn)));
+                                entityReader.getContentValuesListMap(
+                                        contactIdCursor.getLong(idColumn)));
                 if (!contactIdCursor.moveToNext()) {
                     Log.i(TAG, "Cursor#moveToNext() returned false");
                 }
@@ -1017,6 +1021,8 @@ public class BluetoothPbapVcardManager {
             if (idColumn < 0) {
                 idColumn = contactIdCursor.getColumnIndex(Contacts._ID);
             }
+            RawContactEntityBatchReader entityReader =
+                    new RawContactEntityBatchReader(mResolver, contactIdCursor, idColumn);
 
             while (!contactIdCursor.isAfterLast()) {
                 if (BluetoothPbapObexServer.sIsAborted) {
@@ -1026,8 +1032,8 @@ public class BluetoothPbapVcardManager {
                 }
                 String vcard =
                         composer.buildVCard(
-                                RawContactsEntity.queryRawContactEntity(
-                                        mResolver, contactIdCursor.getLong(idColumn)));
+                                entityReader.getContentValuesListMap(
+                                        contactIdCursor.getLong(idColumn)));
                 if (!contactIdCursor.moveToNext()) {
                     Log.i(TAG, "Cursor#moveToNext() returned false");
                 }
@@ -1201,7 +1207,7 @@ public class BluetoothPbapVcardManager {
 
     public String stripTelephoneNumber(String vCard) {
         String[] attr = SEPARATOR_PATTERN.split(vCard);
-        String stripedVCard = "";
+        StringBuilder stripedVCard = new StringBuilder(vCard.length());
         for (int i = 0; i < attr.length; i++) {
             if (attr[i].startsWith("TEL")) {
                 String[] vTagAndTel = ATTRIBUTE_PATTERN.split(attr[i], 2);
@@ -1218,15 +1224,12 @@ public class BluetoothPbapVcardManager {
                     attr[i] = vTagAndTel[0] + ":" + vTagAndTel[1];
                 }
             }
-        }
-
-        for (int i = 0; i < attr.length; i++) {
             if (!attr[i].isEmpty()) {
-                stripedVCard = stripedVCard.concat(attr[i] + SEPARATOR);
+                stripedVCard.append(attr[i]).append(SEPARATOR);
             }
         }
         Log.v(TAG, "vCard with stripped telephone no.: " + stripedVCard);
-        return stripedVCard;
+        return stripedVCard.toString();
     }
 
     public static class VCardFilter {
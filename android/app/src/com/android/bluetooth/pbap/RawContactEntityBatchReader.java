@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbap;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Entity;
+import android.content.EntityIterator;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.provider.ContactsContract.RawContactsEntity;
+import android.util.Log;
+
+import com.android.bluetooth.BluetoothMethodProxy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the data rows of the contacts of a contact id cursor, grouped by mimetype as expected by
+ * {@link com.android.vcard.VCardComposer#buildVCard(Map)}.
+ *
+ * <p>Contacts are read in batches of {@link #BATCH_SIZE}, with a single {@link
+ * RawContactsEntity#CONTENT_URI} query per batch instead of one query per contact. Contacts of the
+ * work profile are still read one by one, as they are not part of the personal entity table.
+ */
+class RawContactEntityBatchReader {
+    private static final String TAG = RawContactEntityBatchReader.class.getSimpleName();
+
+    @VisibleForTesting static final int BATCH_SIZE = 200;
+
+    private final ContentResolver mResolver;
+    private final long[] mContactIds;
+
+    // Index in mContactIds of the first contact which is not part of the current batch
+    private int mNextIndex = 0;
+
+    // Data rows of the contacts of the current batch. Contacts without any raw contact, e.g.
+    // deleted after the contact id query, map to null so that no vCard is composed for them.
+    // Entries are kept until the next batch, as a contact id can be requested several times.
+    private final Map<Long, Map<String, List<ContentValues>>> mBatch = new HashMap<>();
+
+    /**
+     * @param contactIdCursor cursor on the ids of the contacts to read, in the order in which they
+     *     will be requested. Its position is left unchanged.
+     * @param idColumn index of the contact id column of {@code contactIdCursor}
+     */
+    RawContactEntityBatchReader(ContentResolver resolver, Cursor contactIdCursor, int idColumn) {
+        mResolver = resolver;
+        mContactIds = new long[contactIdCursor.getCount()];
+        int position = contactIdCursor.getPosition();
+        contactIdCursor.moveToPosition(-1);
+        for (int i = 0; contactIdCursor.moveToNext(); i++) {
+            mContactIds[i] = contactIdCursor.getLong(idColumn);
+        }
+        contactIdCursor.moveToPosition(position);
+    }
+
+    /**
+     * Returns the data rows of {@code contactId} grouped by mimetype, or null if the contact has
+     * been deleted or its data could not be read.
+     */
+    Map<String, List<ContentValues>> getContentValuesListMap(long contactId) {
+        if (!mBatch.containsKey(contactId)) {
+            loadBatch(contactId);
+        }
+        return mBatch.get(contactId);
+    }
+
+    private void loadBatch(long contactId) {
+        mBatch.clear();
+        int start = mNextIndex;
+        while (start < mContactIds.length && mContactIds[start] != contactId) {
+            start++;
+        }
+        if (start == mContactIds.length) {
+            // Not requested in cursor order, read it on its own.
+            mBatch.put(contactId, querySingleContact(contactId));
+            return;
+        }
+
+        StringBuilder selection = new StringBuilder(RawContacts.CONTACT_ID).append(" IN (");
+        List<Long> personalIds = new ArrayList<>();
+        int end = start;
+        while (end < mContactIds.length && personalIds.size() < BATCH_SIZE) {
+            long id = mContactIds[end++];
+            if (mBatch.containsKey(id)) {
+                continue;
+            }
+            mBatch.put(id, null);
+            if (Contacts.isEnterpriseContactId(id)) {
+                mBatch.put(id, querySingleContact(id));
+                continue;
+            }
+            selection.append(personalIds.isEmpty() ? "" : ",").append(id);
+            personalIds.add(id);
+        }
+        mNextIndex = end;
+        if (personalIds.isEmpty()) {
+            return;
+        }
+        selection.append(')');
+
+        Cursor cursor =
+                BluetoothMethodProxy.getInstance()
+                        .contentResolverQuery(
+                                mResolver,
+                                RawContactsEntity.CONTENT_URI,
+                                null,
+                                selection.toString(),
+                                null,
+                                RawContacts.CONTACT_ID + ", " + RawContactsEntity._ID);
+        if (cursor == null) {
+            Log.w(TAG, "loadBatch: null cursor");
+            for (long id : personalIds) {
+                mBatch.put(id, null);
+            }
+            return;
+        }
+        try {
+            int contactIdColumn = cursor.getColumnIndexOrThrow(RawContacts.CONTACT_ID);
+            int dataIdColumn = cursor.getColumnIndexOrThrow(RawContactsEntity.DATA_ID);
+            while (cursor.moveToNext()) {
+                Map<String, List<ContentValues>> contentValuesListMap =
+                        mBatch.computeIfAbsent(
+                                cursor.getLong(contactIdColumn), k -> new HashMap<>());
+                // Raw contacts without any data have a single row with a null data id
+                if (cursor.isNull(dataIdColumn)) {
+                    continue;
+                }
+                ContentValues values = new ContentValues();
+                DatabaseUtils.cursorRowToContentValues(cursor, values);
+                values.put(Data._ID, cursor.getLong(dataIdColumn));
+                addContentValues(contentValuesListMap, values);
+            }
+        } finally {
+            cursor.close();
+        }
+        Log.v(TAG, "loadBatch: read " + personalIds.size() + " contacts");
+    }
+
+    private Map<String, List<ContentValues>> querySingleContact(long contactId) {
+        EntityIterator entityIterator =
+                RawContactsEntity.queryRawContactEntity(mResolver, contactId);
+        if (entityIterator == null) {
+            return null;
+        }
+        Map<String, List<ContentValues>> contentValuesListMap = null;
+        try {
+            while (entityIterator.hasNext()) {
+                if (contentValuesListMap == null) {
+                    contentValuesListMap = new HashMap<>();
+                }
+                Entity entity = entityIterator.next();
+                for (Entity.NamedContentValues namedContentValues : entity.getSubValues()) {
+                    addContentValues(contentValuesListMap, namedContentValues.values);
+                }
+            }
+        } finally {
+            entityIterator.close();
+        }
+        return contentValuesListMap;
+    }
+
+    private static void addContentValues(
+            Map<String, List<ContentValues>> contentValuesListMap, ContentValues values) {
+        String mimeType = values.getAsString(Data.MIMETYPE);
+        if (mimeType == null || contentValuesListMap == null) {
+            return;
+        }
+        contentValuesListMap.computeIfAbsent(mimeType, k -> new ArrayList<>()).add(values);
+    }
+}
@@ -416,6 +416,9 @@ class PbapClientStateMachine extends StateMachine {
 
                 case MSG_OBEX_CLIENT_DISCONNECTED:
                 case MSG_CONNECT_TIMEOUT:
+                    if (mSdpRecord != null) {
+                        invalidatePseRecord();
+                    }
                     transitionTo(mDisconnecting);
                     break;
 
@@ -447,6 +450,7 @@ class PbapClientStateMachine extends StateMachine {
                         mObexClient.connectRfcomm(mSdpRecord.getRfcommChannelNumber());
                     } else {
                         error("Connecting: Record didn't contain a valid L2CAP PSM/RFCOMM channel");
+                        invalidatePseRecord();
                         mDevice.sdpSearch(BluetoothUuid.PBAP_PSE);
                     }
 
@@ -496,6 +500,15 @@ class PbapClientStateMachine extends StateMachine {
         public void exit() {
             removeMessages(MSG_CONNECT_TIMEOUT);
         }
+
+        // A record that didn't get us connected may be outdated, make the next search go to the
+        // remote instead of the SDP cache
+        private void invalidatePseRecord() {
+            AdapterService adapterService = AdapterService.getAdapterService();
+            if (adapterService != null) {
+                adapterService.invalidateSdpCache(mDevice, BluetoothUuid.PBAP_PSE);
+            }
+        }
     }
 
     class Connected extends State {
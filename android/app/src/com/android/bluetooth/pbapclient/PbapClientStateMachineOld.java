@@ -204,6 +204,15 @@ class PbapClientStateMachineOld extends StateMachine {
                     break;
 
                 case MSG_CONNECTION_FAILED:
+                    // The PSE record we used didn't get us connected, it may be outdated
+                    AdapterService adapterService = AdapterService.getAdapterService();
+                    if (adapterService != null) {
+                        adapterService.invalidateSdpCache(mCurrentDevice, BluetoothUuid.PBAP_PSE);
+                    }
+                    removeMessages(MSG_CONNECT_TIMEOUT);
+                    transitionTo(mDisconnecting);
+                    break;
+
                 case MSG_CONNECT_TIMEOUT:
                     removeMessages(MSG_CONNECT_TIMEOUT);
                     transitionTo(mDisconnecting);
@@ -30,16 +30,22 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelUuid;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.Pair;
 
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AbstractionLayer;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.flags.Flags;
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 
 public class SdpManager {
     private static final String TAG = SdpManager.class.getSimpleName();
@@ -50,33 +56,56 @@ public class SdpManager {
     private static final int SDP_INTENT_DELAY = 11000;
     private static final int MESSAGE_SDP_INTENT = 2;
 
+    /* How long the records found by a search are reused for new searches of the same device
+     * and UUID, unless its bond state or UUIDs change, or connecting with the records fails in
+     * the meantime. */
+    @VisibleForTesting static final long SDP_CACHE_TIMEOUT_MS = 5 * 60 * 1000;
+
+    /* How many searches of the same device run back to back while other devices are waiting */
+    @VisibleForTesting static final int MAX_CONSECUTIVE_DEVICE_SEARCHES = 4;
+
     /* Variables to keep track of ongoing and queued search requests.
-     * mTrackerLock must be held, when using/changing mSdpSearchTracker
-     * and mSearchInProgress. */
+     * mTrackerLock must be held, when using/changing mSdpSearchTracker,
+     * mSdpCache, mSearchInProgress, mLastSearchAddress and mLastSearchCount. */
     @GuardedBy("TRACKER_LOCK")
     private final SdpSearchTracker mSdpSearchTracker = new SdpSearchTracker();
 
+    /* Records of completed searches, keyed by identity address and UUID */
+    @GuardedBy("TRACKER_LOCK")
+    private final HashMap<Pair<String, ParcelUuid>, SdpCacheEntry> mSdpCache = new HashMap<>();
+
     private final AdapterService mAdapterService;
     private final Handler mHandler;
     private final SdpManagerNativeInterface mNativeInterface =
             SdpManagerNativeInterface.getInstance();
 
     private boolean mSearchInProgress = false;
+    /* Identity address of the last searched device, see SdpSearchTracker.getNext(), and how
+     * many searches of it ran in a row */
+    private String mLastSearchAddress = null;
+    private int mLastSearchCount = 0;
     private boolean mNativeAvailable;
 
     /* Inner class used for wrapping sdp search instance data */
     private class SdpSearchInstance {
         private final BluetoothDevice mDevice;
         private final ParcelUuid mUuid;
+        private final Pair<String, ParcelUuid> mKey;
         private int mStatus = 0;
         private boolean mSearching;
+        /* Whether the search was requested again after it delivered its first records */
+        private boolean mSearchAgain;
+        /* Records found so far, or null if the result of this search cannot be cached */
+        private List<Parcelable> mRecords = new ArrayList<>();
 
         /* TODO: If we change the API to use another mechanism than intents for
          *       delivering the results, this would be the place to keep a list
          *       of the objects to deliver the results to. */
-        SdpSearchInstance(int status, BluetoothDevice device, ParcelUuid uuid) {
+        SdpSearchInstance(
+                int status, BluetoothDevice device, ParcelUuid uuid, Pair<String, ParcelUuid> key) {
             this.mDevice = device;
             this.mUuid = uuid;
+            this.mKey = key;
             this.mStatus = status;
             mSearching = true;
         }
@@ -89,6 +118,26 @@ public class SdpManager {
             return mUuid;
         }
 
+        public Pair<String, ParcelUuid> getKey() {
+            return mKey;
+        }
+
+        public void addRecord(Parcelable record) {
+            if (mRecords == null) {
+                return;
+            }
+            if (record == null || mStatus != AbstractionLayer.BT_STATUS_SUCCESS) {
+                // Failed or timed out, search again next time
+                mRecords = null;
+                return;
+            }
+            mRecords.add(record);
+        }
+
+        public List<Parcelable> getRecords() {
+            return mRecords;
+        }
+
         public int getStatus() {
             return mStatus;
         }
@@ -113,71 +162,76 @@ public class SdpManager {
         public boolean isSearching() {
             return mSearching;
         }
+
+        public void setSearchAgain() {
+            mSearchAgain = true;
+        }
+
+        public boolean isSearchAgain() {
+            return mSearchAgain;
+        }
+    }
+
+    /* Records of a completed search, with the time they were found at */
+    private static class SdpCacheEntry {
+        private final List<Parcelable> mRecords;
+        private final long mTimestampMs;
+
+        SdpCacheEntry(List<Parcelable> records, long timestampMs) {
+            mRecords = records;
+            mTimestampMs = timestampMs;
+        }
     }
 
-    /* We wrap the ArrayList class to decorate with functionality to
-     * find an instance based on UUID AND device address.
-     * As we use a mix of byte[] and object instances, this is more
-     * efficient than implementing comparable. */
+    /* Queue of the pending search requests, indexed by identity address and UUID,
+     * see getSearchKey(). A request for a key which is already queued is coalesced
+     * with the queued one, see sdpSearch(). */
     class SdpSearchTracker {
-        private final ArrayList<SdpSearchInstance> mList = new ArrayList<>();
+        private final LinkedHashMap<Pair<String, ParcelUuid>, SdpSearchInstance> mSearches =
+                new LinkedHashMap<>();
 
         void clear() {
-            mList.clear();
+            mSearches.clear();
         }
 
-        boolean add(SdpSearchInstance inst) {
-            return mList.add(inst);
+        void add(SdpSearchInstance inst) {
+            mSearches.put(inst.getKey(), inst);
         }
 
-        boolean remove(SdpSearchInstance inst) {
-            return mList.remove(inst);
+        SdpSearchInstance get(Pair<String, ParcelUuid> key) {
+            return mSearches.get(key);
         }
 
-        SdpSearchInstance getNext() {
-            if (mList.size() > 0) {
-                return mList.get(0);
-            }
-            return null;
+        boolean remove(SdpSearchInstance inst) {
+            return mSearches.remove(inst.getKey(), inst);
         }
 
-        SdpSearchInstance getSearchInstance(byte[] address, byte[] uuidBytes) {
-            String addressString = Utils.getAddressStringFromByte(address);
-            addressString =
-                    Flags.identityAddressNullIfNotKnown()
-                            ? Utils.getBrEdrAddress(addressString, mAdapterService)
-                            : mAdapterService.getIdentityAddress(addressString);
-            ParcelUuid uuid = Utils.byteArrayToUuid(uuidBytes)[0];
-            for (SdpSearchInstance inst : mList) {
-                String instAddressString =
-                        Flags.identityAddressNullIfNotKnown()
-                                ? Utils.getBrEdrAddress(inst.getDevice(), mAdapterService)
-                                : mAdapterService.getIdentityAddress(inst.getDevice().getAddress());
-                if (instAddressString.equals(addressString) && inst.getUuid().equals(uuid)) {
+        /* Returns the oldest request for the device at lastAddress if any and stayOnLast is set,
+         * so that the UUIDs requested for a device are searched back to back. Otherwise returns
+         * the oldest request of another device if any, so that a device with many requests does
+         * not starve the others, else the oldest request. */
+        SdpSearchInstance getNext(String lastAddress, boolean stayOnLast) {
+            SdpSearchInstance oldest = null;
+            SdpSearchInstance other = null;
+            for (SdpSearchInstance inst : mSearches.values()) {
+                boolean isLast = inst.getKey().first.equals(lastAddress);
+                if (isLast && stayOnLast) {
                     return inst;
                 }
+                if (oldest == null) {
+                    oldest = inst;
+                }
+                if (!isLast && other == null) {
+                    other = inst;
+                }
             }
-            return null;
+            return other != null ? other : oldest;
         }
 
-        boolean isSearching(BluetoothDevice device, ParcelUuid uuid) {
-            String addressString =
-                    Flags.identityAddressNullIfNotKnown()
-                            ? Utils.getBrEdrAddress(device, mAdapterService)
-                            : mAdapterService.getIdentityAddress(device.getAddress());
-            for (SdpSearchInstance inst : mList) {
-                String instAddressString =
-                        Flags.identityAddressNullIfNotKnown()
-                                ? Utils.getBrEdrAddress(inst.getDevice(), mAdapterService)
-                                : mAdapterService.getIdentityAddress(inst.getDevice().getAddress());
-                if (instAddressString != null
-                        && addressString != null
-                        && instAddressString.equals(addressString)
-                        && inst.getUuid().equals(uuid)) {
-                    return inst.isSearching();
-                }
-            }
-            return false;
+        SdpSearchInstance getSearchInstance(byte[] address, byte[] uuidBytes) {
+            String addressString = Utils.getAddressStringFromByte(address);
+            ParcelUuid uuid = Utils.byteArrayToUuid(uuidBytes)[0];
+            return mSearches.get(getSearchKey(addressString, uuid));
         }
     }
 
@@ -209,6 +263,7 @@ public class SdpManager {
     public void cleanup() {
         synchronized (TRACKER_LOCK) {
             mSdpSearchTracker.clear();
+            mSdpCache.clear();
         }
 
         if (mNativeAvailable) {
@@ -448,27 +503,95 @@ public class SdpManager {
             return;
         }
         synchronized (TRACKER_LOCK) {
-            if (mSdpSearchTracker.isSearching(device, uuid)) {
-                /* Search already in progress */
+            Pair<String, ParcelUuid> key = getSearchKey(device.getAddress(), uuid);
+            if (sendCachedRecords(device, uuid, key)) {
                 return;
             }
 
-            SdpSearchInstance inst = new SdpSearchInstance(0, device, uuid);
+            SdpSearchInstance queued = mSdpSearchTracker.get(key);
+            if (queued != null) {
+                /* Search already queued or in progress. If it already delivered records, which
+                 * this request would miss, deliver its records again once it completes. */
+                if (!queued.isSearching()) {
+                    queued.setSearchAgain();
+                }
+                return;
+            }
+
+            SdpSearchInstance inst = new SdpSearchInstance(0, device, uuid, key);
             mSdpSearchTracker.add(inst); // Queue the request
 
             startSearch(); // Start search if not busy
         }
     }
 
+    /* Sends the cached records of key if they have not expired, returns whether it did */
+    @GuardedBy("TRACKER_LOCK")
+    private boolean sendCachedRecords(
+            BluetoothDevice device, ParcelUuid uuid, Pair<String, ParcelUuid> key) {
+        SdpCacheEntry entry = mSdpCache.get(key);
+        if (entry == null
+                || SystemClock.elapsedRealtime() - entry.mTimestampMs >= SDP_CACHE_TIMEOUT_MS) {
+            mSdpCache.remove(key);
+            return false;
+        }
+        Log.d(TAG, "Using cached records for UUID: " + uuid);
+        // Deliver asynchronously, as the result of an actual search would be
+        mHandler.post(
+                () -> {
+                    for (Parcelable record : entry.mRecords) {
+                        sendSdpRecord(device, AbstractionLayer.BT_STATUS_SUCCESS, record, uuid);
+                    }
+                });
+        return true;
+    }
+
+    /**
+     * Drops the cached records of a device. Called when its bond state or UUIDs change, as its SDP
+     * records may have changed too.
+     */
+    public void invalidateCache(BluetoothDevice device) {
+        synchronized (TRACKER_LOCK) {
+            String address = getSearchKey(device.getAddress(), null).first;
+            mSdpCache.keySet().removeIf(key -> key.first.equals(address));
+        }
+    }
+
+    /**
+     * Drops the cached records of a device for a UUID. Called when connecting with these records
+     * failed, so that the next search for them goes over the air.
+     */
+    public void invalidateCache(BluetoothDevice device, ParcelUuid uuid) {
+        synchronized (TRACKER_LOCK) {
+            mSdpCache.remove(getSearchKey(device.getAddress(), uuid));
+        }
+    }
+
+    /* Searches are tracked and cached per identity address, so that a device is not
+     * searched again when it reconnects with another random address. */
+    private Pair<String, ParcelUuid> getSearchKey(String address, ParcelUuid uuid) {
+        String identityAddress =
+                Flags.identityAddressNullIfNotKnown()
+                        ? Utils.getBrEdrAddress(address, mAdapterService)
+                        : mAdapterService.getIdentityAddress(address);
+        return new Pair<>(identityAddress != null ? identityAddress : address, uuid);
+    }
+
     /* Caller must hold the mTrackerLock */
     @GuardedBy("TRACKER_LOCK")
     private void startSearch() {
 
-        SdpSearchInstance inst = mSdpSearchTracker.getNext();
+        // Let the other devices go once the last one has been searched enough times in a row
+        SdpSearchInstance inst =
+                mSdpSearchTracker.getNext(
+                        mLastSearchAddress, mLastSearchCount < MAX_CONSECUTIVE_DEVICE_SEARCHES);
 
         if ((inst != null) && (!mSearchInProgress)) {
             Log.d(TAG, "Starting search for UUID: " + inst.getUuid());
             mSearchInProgress = true;
+            String address = inst.getKey().first;
+            mLastSearchCount = address.equals(mLastSearchAddress) ? mLastSearchCount + 1 : 1;
+            mLastSearchAddress = address;
 
             inst.startSearch(); // Trigger timeout message
 
@@ -492,30 +615,45 @@ public class SdpManager {
     private void sendSdpIntent(SdpSearchInstance inst, Parcelable record, boolean moreResults) {
 
         inst.stopSearch();
+        inst.addRecord(record);
 
-        mAdapterService.sendSdpSearchRecord(
-                inst.getDevice(), inst.getStatus(), record, inst.getUuid());
+        sendSdpRecord(inst.getDevice(), inst.getStatus(), record, inst.getUuid());
+
+        if (!moreResults) {
+            // Remove the outstanding UUID request
+            mSdpSearchTracker.remove(inst);
+            mSearchInProgress = false;
+            List<Parcelable> records = inst.getRecords();
+            if (records != null && !records.isEmpty()) {
+                mSdpCache.put(
+                        inst.getKey(), new SdpCacheEntry(records, SystemClock.elapsedRealtime()));
+            }
+            if (inst.isSearchAgain()
+                    && !sendCachedRecords(inst.getDevice(), inst.getUuid(), inst.getKey())) {
+                mSdpSearchTracker.add(
+                        new SdpSearchInstance(0, inst.getDevice(), inst.getUuid(), inst.getKey()));
+            }
+            startSearch();
+        }
+    }
+
+    private void sendSdpRecord(
+            BluetoothDevice device, int status, Parcelable record, ParcelUuid uuid) {
+        mAdapterService.sendSdpSearchRecord(device, status, record, uuid);
 
         Intent intent = new Intent(BluetoothDevice.ACTION_SDP_RECORD);
 
-        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, inst.getDevice());
-        intent.putExtra(BluetoothDevice.EXTRA_SDP_SEARCH_STATUS, inst.getStatus());
+        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
+        intent.putExtra(BluetoothDevice.EXTRA_SDP_SEARCH_STATUS, status);
         if (record != null) {
             intent.putExtra(BluetoothDevice.EXTRA_SDP_RECORD, record);
         }
-        intent.putExtra(BluetoothDevice.EXTRA_UUID, inst.getUuid());
+        intent.putExtra(BluetoothDevice.EXTRA_UUID, uuid);
         /* TODO:  BLUETOOTH_ADMIN_PERM was private... change to callback interface.
          * Keep in mind that the MAP client needs to use this as well,
          * hence to make it call-backs, the MAP client profile needs to be
          * part of the Bluetooth APK. */
         mAdapterService.sendBroadcast(
                 intent, BLUETOOTH_CONNECT, Utils.getTempBroadcastOptions().toBundle());
-
-        if (!moreResults) {
-            // Remove the outstanding UUID request
-            mSdpSearchTracker.remove(inst);
-            mSearchInProgress = false;
-            startSearch();
-        }
     }
 }
@@ -48,7 +48,6 @@ import android.bluetooth.IBluetoothVolumeControlCallback;
 import android.content.AttributionSource;
 import android.media.AudioManager;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.ParcelUuid;
 import android.os.RemoteCallbackList;
@@ -60,6 +59,8 @@ import com.android.bluetooth.Utils;
 import com.android.bluetooth.bass_client.BassClientService;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.btservice.ProfileService;
+import com.android.bluetooth.btservice.SerialQueuePool;
+import com.android.bluetooth.btservice.SerialQueuePool.SerialQueue;
 import com.android.bluetooth.btservice.ServiceFactory;
 import com.android.bluetooth.btservice.storage.DatabaseManager;
 import com.android.bluetooth.csip.CsipSetCoordinatorService;
@@ -88,7 +89,6 @@ import java.util.function.Function;
 public class VolumeControlService extends ProfileService {
     private static final String TAG = VolumeControlService.class.getSimpleName();
 
-    private static final int SM_THREAD_JOIN_TIMEOUT_MS = 1000;
     private static final int LE_AUDIO_MAX_VOL = 255;
     /* As defined by Volume Control Service 1.0.1, 3.3.1. Volume Flags behavior.
      * User Set Volume Setting means that remote keeps volume in its cache. */
@@ -105,7 +105,7 @@ public class VolumeControlService extends ProfileService {
     private final AudioManager mAudioManager;
     private final DatabaseManager mDatabaseManager;
     private final Handler mHandler;
-    private final HandlerThread mStateMachinesThread;
+    private final SerialQueue mStateMachinesQueue;
     private final Looper mStateMachinesLooper;
     private final VolumeControlNativeInterface mNativeInterface;
 
@@ -141,12 +141,12 @@ public class VolumeControlService extends ProfileService {
         mAudioManager = requireNonNull(getSystemService(AudioManager.class));
         if (looper == null) {
             mHandler = new Handler(requireNonNull(Looper.getMainLooper()));
-            mStateMachinesThread = new HandlerThread("VolumeControlService.StateMachines");
-            mStateMachinesThread.start();
-            mStateMachinesLooper = mStateMachinesThread.getLooper();
+            mStateMachinesQueue =
+                    SerialQueuePool.getInstance().acquire("VolumeControlService.StateMachines");
+            mStateMachinesLooper = mStateMachinesQueue.getLooper();
         } else {
             mHandler = new Handler(looper);
-            mStateMachinesThread = null;
+            mStateMachinesQueue = null;
             mStateMachinesLooper = looper;
         }
         setVolumeControlService(this);
@@ -177,13 +177,8 @@ public class VolumeControlService extends ProfileService {
             mStateMachines.clear();
         }
 
-        if (mStateMachinesThread != null) {
-            try {
-                mStateMachinesThread.quitSafely();
-                mStateMachinesThread.join(SM_THREAD_JOIN_TIMEOUT_MS);
-            } catch (InterruptedException e) {
-                // Do not rethrow as we are shutting down anyway
-            }
+        if (mStateMachinesQueue != null) {
+            mStateMachinesQueue.release();
         }
 
         mHandler.removeCallbacksAndMessages(null);
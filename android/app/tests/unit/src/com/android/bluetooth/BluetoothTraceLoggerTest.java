@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Test cases for {@link BluetoothTraceLogger}. */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothTraceLoggerTest {
+    private static final String TAG = "BluetoothTraceLoggerTest";
+
+    @Test
+    public void format_replacesPlaceholders() {
+        assertThat(BluetoothTraceLogger.format("a={}, b=0x{x}, c={}", new Object[] {1, 255, "c"}))
+                .isEqualTo("a=1, b=0xff, c=c");
+    }
+
+    @Test
+    public void format_missingArgumentsKeepPlaceholders() {
+        assertThat(BluetoothTraceLogger.format("a={}, b={}", new Object[] {1}))
+                .isEqualTo("a=1, b={}");
+    }
+
+    @Test
+    public void format_rendersByteArrays() {
+        assertThat(BluetoothTraceLogger.format("data={}", new Object[] {new byte[] {1, 2}}))
+                .isEqualTo("data=[1, 2]");
+    }
+
+    @Test
+    public void format_anonymizesAddresses() {
+        assertThat(BluetoothTraceLogger.format("address={}", new Object[] {"00:11:22:33:44:55"}))
+                .isEqualTo("address=XX:XX:XX:XX:44:55");
+    }
+
+    @Test
+    public void dump_keepsLatestMessagesInOrder() {
+        BluetoothTraceLogger logger = new BluetoothTraceLogger(TAG, 2, "Test trace");
+
+        logger.d("message {}", 1);
+        logger.d("message {}", 2);
+        logger.d("message {}", 3);
+
+        StringBuilder sb = new StringBuilder();
+        logger.dump(sb);
+        String dump = sb.toString();
+        assertThat(dump).startsWith("Test trace:\n");
+        assertThat(dump).doesNotContain("message 1");
+        assertThat(dump.indexOf("message 2")).isLessThan(dump.indexOf("message 3"));
+    }
+
+    @Test
+    public void dump_containsLevelAndTag() {
+        BluetoothTraceLogger logger = new BluetoothTraceLogger(TAG, 4, "Test trace");
+
+        logger.v("verbose {} {}", 1, 2);
+        logger.d("debug {}", "d");
+
+        StringBuilder sb = new StringBuilder();
+        logger.dump(sb);
+        assertThat(sb.toString()).contains(" V " + TAG + ": verbose 1 2\n");
+        assertThat(sb.toString()).contains(" D " + TAG + ": debug d\n");
+    }
+
+    @Test
+    public void fixedArityArguments_formattedLikeObjects() {
+        BluetoothTraceLogger logger = new BluetoothTraceLogger(TAG, 4, "Test trace");
+
+        logger.v("a={}, b={}, c=0x{x}, d={}, e={}, f={}", 1, "b", 255, 4L, true, 6);
+        logger.d("a={}, b={}, c={}, d={}, e={}", 1, 2, 3, 4, Long.MAX_VALUE);
+
+        StringBuilder sb = new StringBuilder();
+        logger.dump(sb);
+        assertThat(sb.toString()).contains(": a=1, b=b, c=0xff, d=4, e=true, f=6\n");
+        assertThat(sb.toString()).contains(": a=1, b=2, c=3, d=4, e=" + Long.MAX_VALUE + "\n");
+    }
+
+    @Test
+    public void forTag_sharesTraceDumpedOnce() {
+        BluetoothTraceLogger logger = new BluetoothTraceLogger(TAG, 4, "Test trace");
+        BluetoothTraceLogger other = logger.forTag("OtherTag");
+
+        logger.v("first");
+        other.v("second");
+        logger.v("third");
+
+        StringBuilder sb = new StringBuilder();
+        logger.dump(sb);
+        String dump = sb.toString();
+        assertThat(dump.indexOf("Test trace:")).isEqualTo(dump.lastIndexOf("Test trace:"));
+        assertThat(dump.indexOf(TAG + ": first")).isLessThan(dump.indexOf("OtherTag: second"));
+        assertThat(dump.indexOf("OtherTag: second")).isLessThan(dump.indexOf(TAG + ": third"));
+    }
+
+    @Test
+    public void dump_emptyTrace() {
+        BluetoothTraceLogger logger = new BluetoothTraceLogger(TAG, 0, "Test trace");
+
+        logger.v("dropped");
+
+        StringBuilder sb = new StringBuilder();
+        logger.dump(sb);
+        assertThat(sb.toString()).isEqualTo("Test trace:\n");
+    }
+}
@@ -485,6 +485,18 @@ public class MediaPlayerWrapperTest {
                         .equals(wrapper.getCurrentQueue().get(0)));
     }
 
+    @Test
+    public void getCurrentQueue_unchangedQueueAndMetadata_returnsSameFilledQueue() {
+        MediaPlayerWrapper wrapper =
+                MediaPlayerWrapperFactory.wrap(mMockContext, mMockController, mThread.getLooper());
+
+        List<Metadata> queue = wrapper.getCurrentQueue();
+
+        assertThat(queue.get(0).duration)
+                .isEqualTo(Util.toMetadata(mMockContext, mTestMetadata.build()).duration);
+        assertThat(wrapper.getCurrentQueue()).isSameInstanceAs(queue);
+    }
+
     /*
      * This test sends repeated Playback State updates that only have a short
      * position update change to see if they get debounced.
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.audio_util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.media.MediaDescription;
+import android.media.session.MediaSession;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Test cases for {@link NowPlayingQueueCache}. */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class NowPlayingQueueCacheTest {
+    private Context mContext;
+    private NowPlayingQueueCache mCache;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mCache = new NowPlayingQueueCache(mContext);
+    }
+
+    @Test
+    public void update_sameQueue_returnsSameListWithoutConverting() {
+        List<Metadata> queue = mCache.update(createQueue("Song 1", "Song 2", "Song 3"));
+
+        assertThat(mCache.update(createQueue("Song 1", "Song 2", "Song 3")))
+                .isSameInstanceAs(queue);
+        assertThat(mCache.getConvertedItemCount()).isEqualTo(3);
+        assertThat(queue)
+                .isEqualTo(
+                        Util.toMetadataList(mContext, createQueue("Song 1", "Song 2", "Song 3")));
+    }
+
+    @Test
+    public void update_changedItem_onlyConvertsChangedItem() {
+        List<Metadata> queue = mCache.update(createQueue("Song 1", "Song 2", "Song 3"));
+
+        List<Metadata> newQueue = mCache.update(createQueue("Song 1", "New Song", "Song 3"));
+
+        assertThat(newQueue).isNotSameInstanceAs(queue);
+        assertThat(newQueue.get(0)).isSameInstanceAs(queue.get(0));
+        assertThat(newQueue.get(1).title).isEqualTo("New Song");
+        assertThat(newQueue.get(2)).isSameInstanceAs(queue.get(2));
+        assertThat(mCache.getConvertedItemCount()).isEqualTo(4);
+    }
+
+    @Test
+    public void update_removedItem_renumbersWithoutModifyingPreviousQueue() {
+        List<MediaSession.QueueItem> items = createQueue("Song 1", "Song 2", "Song 3");
+        List<Metadata> queue = mCache.update(items);
+
+        items.remove(0);
+        List<Metadata> newQueue = mCache.update(items);
+
+        assertThat(newQueue).isEqualTo(Util.toMetadataList(mContext, items));
+        assertThat(queue.get(1).trackNum).isEqualTo("2");
+        assertThat(queue.get(1).numTracks).isEqualTo("3");
+        assertThat(mCache.getConvertedItemCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void update_sameSizeDifferentArtwork_convertsItemAgain() {
+        List<MediaSession.QueueItem> items = createQueue("Song 1");
+        items.set(0, withIcon(items.get(0), createBitmap(Color.RED)));
+        List<Metadata> queue = mCache.update(items);
+
+        items.set(0, withIcon(items.get(0), createBitmap(Color.BLUE)));
+        List<Metadata> newQueue = mCache.update(items);
+
+        assertThat(newQueue).isNotSameInstanceAs(queue);
+        assertThat(mCache.getConvertedItemCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void update_sameArtworkInNewBitmap_returnsSameList() {
+        List<MediaSession.QueueItem> items = createQueue("Song 1");
+        items.set(0, withIcon(items.get(0), createBitmap(Color.RED)));
+        List<Metadata> queue = mCache.update(items);
+
+        items.set(0, withIcon(items.get(0), createBitmap(Color.RED)));
+
+        assertThat(mCache.update(items)).isSameInstanceAs(queue);
+        assertThat(mCache.getConvertedItemCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void update_emptyItem_returnsEmptyQueue() {
+        List<MediaSession.QueueItem> items = createQueue("Song 1");
+        items.add(null);
+
+        assertThat(mCache.update(items)).isEmpty();
+        assertThat(mCache.update(null)).isEmpty();
+    }
+
+    private static Bitmap createBitmap(int color) {
+        Bitmap bitmap = Bitmap.createBitmap(16, 16, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(color);
+        return bitmap;
+    }
+
+    private static MediaSession.QueueItem withIcon(MediaSession.QueueItem item, Bitmap icon) {
+        MediaDescription description = item.getDescription();
+        return new MediaSession.QueueItem(
+                new MediaDescription.Builder()
+                        .setTitle(description.getTitle())
+                        .setSubtitle(description.getSubtitle())
+                        .setDescription(description.getDescription())
+                        .setMediaId(description.getMediaId())
+                        .setIconBitmap(icon)
+                        .build(),
+                item.getQueueId());
+    }
+
+    private static List<MediaSession.QueueItem> createQueue(String... titles) {
+        List<MediaSession.QueueItem> queue = new ArrayList<>();
+        for (int i = 0; i < titles.length; i++) {
+            MediaDescription description =
+                    new MediaDescription.Builder()
+                            .setTitle(titles[i])
+                            .setSubtitle("BT Test Artist")
+                            .setDescription("BT Test Album")
+                            .setMediaId("" + i)
+                            .build();
+            // Queue IDs are kept by the player when its queue changes
+            queue.add(new MediaSession.QueueItem(description, 100 + i));
+        }
+        return queue;
+    }
+}
@@ -21,6 +21,7 @@ import static com.google.common.truth.Truth.assertThat;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Color;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.runner.AndroidJUnit4;
@@ -95,6 +96,25 @@ public class AvrcpCoverArtStorageTest {
         assertThat(mAvrcpCoverArtStorage.getImage(handle_blue)).isEqualTo(artwork_blue);
     }
 
+    /** Make sure images of the same size that differ by a single pixel get different handles */
+    @Test
+    public void testStoreImagesDifferentByOnePixel() {
+        Bitmap bitmap = Bitmap.createBitmap(200, 200, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.GRAY);
+        Bitmap bitmap2 = bitmap.copy(Bitmap.Config.ARGB_8888, true);
+        bitmap2.setPixel(199, 199, Color.GRAY + 1);
+        CoverArt artwork = new CoverArt(new Image(null, bitmap));
+        CoverArt artwork2 = new CoverArt(new Image(null, bitmap2));
+
+        String handle = mAvrcpCoverArtStorage.storeImage(artwork);
+        String handle2 = mAvrcpCoverArtStorage.storeImage(artwork2);
+
+        assertThat(handle).isNotNull();
+        assertThat(handle2).isNotNull();
+        assertThat(handle2).isNotEqualTo(handle);
+        assertThat(mAvrcpCoverArtStorage.getImage(handle2)).isEqualTo(artwork2);
+    }
+
     /**
      * Make sure you can store and get an image handle for a third image thats not yet stored.
      *
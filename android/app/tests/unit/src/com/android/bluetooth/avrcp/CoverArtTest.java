@@ -21,6 +21,7 @@ import static com.google.common.truth.Truth.assertThat;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Color;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.runner.AndroidJUnit4;
@@ -174,6 +175,23 @@ public class CoverArtTest {
         assertThat(hash).isNotEqualTo(hash2);
     }
 
+    /** Make sure the image hash depends on the position of the pixels, not only on their values */
+    @Test
+    public void testGetImageHashDifferentForSwappedPixels() {
+        Bitmap bitmap = Bitmap.createBitmap(200, 200, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.BLACK);
+        bitmap.setPixel(0, 0, Color.RED);
+        bitmap.setPixel(1, 0, Color.BLUE);
+        Bitmap bitmap2 = bitmap.copy(Bitmap.Config.ARGB_8888, true);
+        bitmap2.setPixel(0, 0, Color.BLUE);
+        bitmap2.setPixel(1, 0, Color.RED);
+
+        String hash = new CoverArt(new Image(null, bitmap)).getImageHash();
+        String hash2 = new CoverArt(new Image(null, bitmap2)).getImageHash();
+
+        assertThat(hash).isNotEqualTo(hash2);
+    }
+
     /** Make sure you get an image when asking for the native image */
     @Test
     public void testGetNativeImage() {
@@ -192,6 +210,17 @@ public class CoverArtTest {
         assertThat(isThumbnailFormat(image)).isTrue();
     }
 
+    /** Make sure the image is only encoded once, and shared by the native and thumbnail formats */
+    @Test
+    public void testGetImageEncodedOnce() {
+        CoverArt artwork = new CoverArt(mImage);
+        byte[] thumbnail = artwork.getThumbnail();
+        assertThat(artwork.getThumbnail()).isSameInstanceAs(thumbnail);
+        assertThat(artwork.getImage()).isSameInstanceAs(thumbnail);
+        assertThat(artwork.getImage(getDescriptor(BipEncoding.JPEG, 200, 200)))
+                .isSameInstanceAs(thumbnail);
+    }
+
     /** Make sure you can set the image handle associated with this object */
     @Test
     public void testGetAndSetImageHandle() {
@@ -19,12 +19,14 @@ package com.android.bluetooth.avrcpcontroller;
 import static com.google.common.truth.Truth.assertThat;
 
 import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.mock;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
+import android.os.test.TestLooper;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.filters.SmallTest;
@@ -43,10 +45,16 @@ import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @SmallTest
 @RunWith(AndroidJUnit4.class)
 public class AvrcpBipClientTest {
     private static final int TEST_PSM = 1;
+    private static final String IMAGE_HANDLE_1 = "0000001";
+    private static final String IMAGE_HANDLE_2 = "0000002";
+    private static final String IMAGE_HANDLE_3 = "0000003";
 
     @Rule
     public final ServiceTestRule mBluetoothBrowserMediaServiceTestRule = new ServiceTestRule();
@@ -55,12 +63,14 @@ public class AvrcpBipClientTest {
 
     @Mock private AdapterService mAdapterService;
     @Mock private AvrcpControllerNativeInterface mNativeInterface;
+    @Mock private AvrcpBipClient.Callback mClientCallback;
 
     private BluetoothAdapter mAdapter;
     private BluetoothDevice mTestDevice;
     private AvrcpControllerService mService = null;
     private AvrcpCoverArtManager mArtManager;
     private AvrcpBipClient mClient;
+    private final List<BipRequest> mExecutedRequests = new ArrayList<>();
 
     @Before
     public void setUp() throws Exception {
@@ -76,7 +86,7 @@ public class AvrcpBipClientTest {
         mAdapter = BluetoothAdapter.getDefaultAdapter();
         mTestDevice = mAdapter.getRemoteDevice("00:01:02:03:04:05");
 
-        AvrcpCoverArtManager.Callback callback = (device, event) -> {};
+        AvrcpCoverArtManager.Callback callback = mock(AvrcpCoverArtManager.Callback.class);
         mArtManager = new AvrcpCoverArtManager(mService, callback);
 
         mClient =
@@ -144,6 +154,64 @@ public class AvrcpBipClientTest {
         assertThat(mClient.getStateName()).isEqualTo("Unknown");
     }
 
+    @Test
+    public void prefetchRequest_waitsForRegularRequests() {
+        TestLooper looper = new TestLooper();
+        AvrcpBipClient client = createConnectedClient(looper);
+
+        client.getImageProperties(IMAGE_HANDLE_1, true);
+        client.getImageProperties(IMAGE_HANDLE_2, false);
+        client.getImageProperties(IMAGE_HANDLE_3, false);
+        looper.dispatchAll();
+
+        assertThat(getExecutedImageHandles())
+                .containsExactly(IMAGE_HANDLE_2, IMAGE_HANDLE_3, IMAGE_HANDLE_1)
+                .inOrder();
+    }
+
+    @Test
+    public void prefetchRequests_executedInOrder() {
+        TestLooper looper = new TestLooper();
+        AvrcpBipClient client = createConnectedClient(looper);
+
+        client.getImageProperties(IMAGE_HANDLE_1, true);
+        client.getImage(IMAGE_HANDLE_2, null, true);
+        looper.dispatchAll();
+
+        assertThat(getExecutedImageHandles())
+                .containsExactly(IMAGE_HANDLE_1, IMAGE_HANDLE_2)
+                .inOrder();
+    }
+
+    @Test
+    public void prioritizeRequests_prefetchRequestExecutedAsRegularRequest() {
+        TestLooper looper = new TestLooper();
+        AvrcpBipClient client = createConnectedClient(looper);
+
+        client.getImageProperties(IMAGE_HANDLE_1, true);
+        client.getImage(IMAGE_HANDLE_2, null, true);
+        client.getImageProperties(IMAGE_HANDLE_3, false);
+        client.prioritizeRequests(IMAGE_HANDLE_2);
+        looper.dispatchAll();
+
+        assertThat(getExecutedImageHandles())
+                .containsExactly(IMAGE_HANDLE_3, IMAGE_HANDLE_2, IMAGE_HANDLE_1)
+                .inOrder();
+    }
+
+    @Test
+    public void prioritizeRequests_requestAlreadyExecuted_notExecutedAgain() {
+        TestLooper looper = new TestLooper();
+        AvrcpBipClient client = createConnectedClient(looper);
+
+        client.getImageProperties(IMAGE_HANDLE_1, false);
+        looper.dispatchAll();
+        client.prioritizeRequests(IMAGE_HANDLE_1);
+        looper.dispatchAll();
+
+        assertThat(getExecutedImageHandles()).containsExactly(IMAGE_HANDLE_1);
+    }
+
     @Test
     public void toString_returnsClientInfo() {
         String expected =
@@ -154,4 +222,29 @@ public class AvrcpBipClientTest {
                         + ">";
         assertThat(mClient.toString()).isEqualTo(expected);
     }
+
+    /** Create a client running on the given looper that records requests instead of sending */
+    private AvrcpBipClient createConnectedClient(TestLooper looper) {
+        AvrcpBipClient client =
+                new AvrcpBipClient(mTestDevice, TEST_PSM, mClientCallback, looper.getLooper()) {
+                    @Override
+                    void executeRequest(BipRequest request) {
+                        mExecutedRequests.add(request);
+                    }
+                };
+        client.setConnectionState(BluetoothProfile.STATE_CONNECTED);
+        return client;
+    }
+
+    private List<String> getExecutedImageHandles() {
+        List<String> handles = new ArrayList<>();
+        for (BipRequest request : mExecutedRequests) {
+            if (request instanceof RequestGetImage) {
+                handles.add(((RequestGetImage) request).getImageHandle());
+            } else {
+                handles.add(((RequestGetImageProperties) request).getImageHandle());
+            }
+        }
+        return handles;
+    }
 }
@@ -29,6 +29,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
 import android.media.AudioManager;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Looper;
 import android.platform.test.annotations.EnableFlags;
@@ -277,6 +278,14 @@ public class AvrcpControllerStateMachineTest {
         Assert.assertEquals(mAvrcpStateMachine.getCurrentTrack(), track);
     }
 
+    /** Send a message to the state machine that an image has been downloaded */
+    private void sendImageDownloaded(String imageUuid, Uri imageUri) {
+        mAvrcpStateMachine.sendMessage(
+                AvrcpControllerStateMachine.MESSAGE_PROCESS_IMAGE_DOWNLOADED,
+                new AvrcpCoverArtManager.DownloadEvent(imageUuid, imageUri));
+        TestUtils.waitForLooperToFinishScheduledTask(mAvrcpStateMachine.getHandler().getLooper());
+    }
+
     /** Set the current play status (Play, Pause, etc.) of the device */
     private void setPlaybackState(int state) {
         mAvrcpStateMachine.sendMessage(
@@ -1296,6 +1305,46 @@ public class AvrcpControllerStateMachineTest {
         Assert.assertFalse(mAvrcpStateMachine.isActive());
     }
 
+    /** Test that the artwork of the current track is downloaded again once evicted */
+    @Test
+    public void testImageEvicted_currentTrackImageDownloadedAgain() {
+        setUpConnectedState(true, true);
+        String imageUuid = "image-uuid";
+        Uri imageUri = AvrcpCoverArtProvider.getImageUri(mTestDevice, imageUuid);
+        AvrcpItem track = makeTrack("title", "artist", "album", 1, 10, "none", 10, "0000001");
+        track.setCoverArtUuid(imageUuid);
+        setCurrentTrack(track);
+        sendImageDownloaded(imageUuid, imageUri);
+        Assert.assertEquals(imageUri, mAvrcpStateMachine.getCurrentTrack().getCoverArtLocation());
+
+        mAvrcpStateMachine.sendMessage(
+                AvrcpControllerStateMachine.MESSAGE_PROCESS_IMAGE_EVICTED, imageUuid);
+        TestUtils.waitForLooperToFinishScheduledTask(mAvrcpStateMachine.getHandler().getLooper());
+
+        Assert.assertNull(mAvrcpStateMachine.getCurrentTrack().getCoverArtLocation());
+        verify(mCoverArtManager, times(2)).downloadImage(mTestDevice, imageUuid);
+    }
+
+    /** Test that an evicted image downloaded again before the eviction is handled is kept */
+    @Test
+    public void testImageEvicted_imageDownloadedAgain_currentTrackImageKept() {
+        setUpConnectedState(true, true);
+        String imageUuid = "image-uuid";
+        Uri imageUri = AvrcpCoverArtProvider.getImageUri(mTestDevice, imageUuid);
+        AvrcpItem track = makeTrack("title", "artist", "album", 1, 10, "none", 10, "0000001");
+        track.setCoverArtUuid(imageUuid);
+        setCurrentTrack(track);
+        sendImageDownloaded(imageUuid, imageUri);
+        doReturn(imageUri).when(mCoverArtManager).getImageUri(mTestDevice, imageUuid);
+
+        mAvrcpStateMachine.sendMessage(
+                AvrcpControllerStateMachine.MESSAGE_PROCESS_IMAGE_EVICTED, imageUuid);
+        TestUtils.waitForLooperToFinishScheduledTask(mAvrcpStateMachine.getHandler().getLooper());
+
+        Assert.assertEquals(imageUri, mAvrcpStateMachine.getCurrentTrack().getCoverArtLocation());
+        verify(mCoverArtManager, times(1)).downloadImage(mTestDevice, imageUuid);
+    }
+
     @Test
     public void testTrackChangedWhileActive_currentTrackAndQueueNumberUpdated() {
         setUpConnectedState(true, true);
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.avrcpcontroller;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.obex.ResponseCodes;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+/** Tests the scheduling of the image downloads of {@link AvrcpCoverArtManager}. */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class AvrcpCoverArtManagerTest {
+    private static final int TEST_PSM = 1;
+    private static final String IMAGE_HANDLE = "0000001";
+
+    @Rule public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+    @Mock private AvrcpControllerService mService;
+    @Mock private AvrcpCoverArtManager.Callback mCallback;
+    @Mock private AvrcpBipClient mClient;
+
+    private BluetoothDevice mTestDevice;
+    private AvrcpCoverArtManager mArtManager;
+    private AvrcpCoverArtManager.BipClientCallback mClientCallback;
+    private String mImageUuid;
+
+    @Before
+    public void setUp() {
+        doReturn(InstrumentationRegistry.getTargetContext().getCacheDir())
+                .when(mService)
+                .getCacheDir();
+        doReturn(true).when(mClient).getImageProperties(any(), anyBoolean());
+        doReturn(true).when(mClient).getImage(any(), any(), anyBoolean());
+
+        mTestDevice = BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:01:02:03:04:05");
+        mArtManager =
+                new AvrcpCoverArtManager(mService, mCallback) {
+                    @Override
+                    AvrcpBipClient createClient(BluetoothDevice device, int psm) {
+                        return mClient;
+                    }
+                };
+        mArtManager.connect(mTestDevice, TEST_PSM);
+        mClientCallback = mArtManager.new BipClientCallback(mTestDevice);
+        mImageUuid = mArtManager.getUuidForHandle(mTestDevice, IMAGE_HANDLE);
+    }
+
+    @After
+    public void tearDown() {
+        mArtManager.cleanup();
+    }
+
+    @Test
+    public void downloadImage_alreadyDownloading_requestsImageOnce() {
+        mArtManager.downloadImage(mTestDevice, mImageUuid);
+        mArtManager.downloadImage(mTestDevice, mImageUuid);
+
+        verify(mClient, times(1)).getImageProperties(any(), anyBoolean());
+        verify(mClient).getImageProperties(IMAGE_HANDLE, false);
+        verify(mClient, never()).prioritizeRequests(any());
+    }
+
+    @Test
+    public void prefetchImage_alreadyDownloading_keepsRegularDownload() {
+        mArtManager.downloadImage(mTestDevice, mImageUuid);
+        mArtManager.prefetchImage(mTestDevice, mImageUuid);
+
+        verify(mClient, times(1)).getImageProperties(any(), anyBoolean());
+        verify(mClient).getImageProperties(IMAGE_HANDLE, false);
+        verify(mClient, never()).prioritizeRequests(any());
+    }
+
+    @Test
+    public void downloadImage_whilePrefetching_prioritizesPrefetchOnce() {
+        mArtManager.prefetchImage(mTestDevice, mImageUuid);
+        mArtManager.downloadImage(mTestDevice, mImageUuid);
+        mArtManager.downloadImage(mTestDevice, mImageUuid);
+
+        verify(mClient, times(1)).getImageProperties(any(), anyBoolean());
+        verify(mClient).getImageProperties(IMAGE_HANDLE, true);
+        verify(mClient, times(1)).prioritizeRequests(IMAGE_HANDLE);
+    }
+
+    @Test
+    public void prefetchImage_propertiesReceived_downloadsImageAsPrefetch() {
+        mArtManager.prefetchImage(mTestDevice, mImageUuid);
+
+        mClientCallback.onGetImagePropertiesComplete(
+                ResponseCodes.OBEX_HTTP_OK, IMAGE_HANDLE, createProperties());
+
+        verify(mClient).getImage(eq(IMAGE_HANDLE), any(), eq(true));
+    }
+
+    @Test
+    public void prioritizedPrefetch_propertiesReceived_downloadsImageAsRegularRequest() {
+        mArtManager.prefetchImage(mTestDevice, mImageUuid);
+        mArtManager.downloadImage(mTestDevice, mImageUuid);
+
+        mClientCallback.onGetImagePropertiesComplete(
+                ResponseCodes.OBEX_HTTP_OK, IMAGE_HANDLE, createProperties());
+
+        verify(mClient).getImage(eq(IMAGE_HANDLE), any(), eq(false));
+        verify(mClient, never()).getImage(any(), any(), eq(true));
+    }
+
+    @Test
+    public void downloadImage_afterDownloadFailed_requestsImageAgain() {
+        mArtManager.downloadImage(mTestDevice, mImageUuid);
+        mClientCallback.onGetImagePropertiesComplete(
+                ResponseCodes.OBEX_HTTP_NOT_FOUND, IMAGE_HANDLE, null);
+
+        mArtManager.downloadImage(mTestDevice, mImageUuid);
+
+        verify(mClient, times(2)).getImageProperties(IMAGE_HANDLE, false);
+    }
+
+    @Test
+    public void downloadImage_requestNotSent_requestsImageAgain() {
+        doReturn(false).when(mClient).getImageProperties(any(), anyBoolean());
+        assertThat(mArtManager.downloadImage(mTestDevice, mImageUuid)).isNull();
+
+        doReturn(true).when(mClient).getImageProperties(any(), anyBoolean());
+        assertThat(mArtManager.downloadImage(mTestDevice, mImageUuid)).isNotNull();
+
+        verify(mClient, times(2)).getImageProperties(IMAGE_HANDLE, false);
+    }
+
+    private static BipImageProperties createProperties() {
+        return new BipImageProperties.Builder().setImageHandle(IMAGE_HANDLE).build();
+    }
+}
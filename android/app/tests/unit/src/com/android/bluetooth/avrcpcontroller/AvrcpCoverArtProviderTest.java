@@ -149,4 +149,13 @@ public class AvrcpCoverArtProviderTest {
     public void getType() {
         assertThat(mArtProvider.getType(null)).isNull();
     }
+
+    @Test
+    public void getType_whenServiceNotAvailable() {
+        when(mUri.getQueryParameter("device")).thenReturn("00:01:02:03:04:05");
+        when(mUri.getQueryParameter("uuid")).thenReturn("1111");
+        assertThat(mArtProvider.onCreate()).isTrue();
+
+        assertThat(mArtProvider.getType(mUri)).isNull();
+    }
 }
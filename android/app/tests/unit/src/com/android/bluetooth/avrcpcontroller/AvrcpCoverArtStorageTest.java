@@ -16,6 +16,10 @@
 
 package com.android.bluetooth.avrcpcontroller;
 
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
@@ -35,6 +39,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.File;
 import java.io.InputStream;
 
 /** A test suite for the AvrcpCoverArtStorage class. */
@@ -327,6 +332,109 @@ public final class AvrcpCoverArtStorageTest {
         Assert.assertFalse(mAvrcpCoverArtStorage.doesImageExist(mDevice2, mHandle2));
     }
 
+    @Test
+    public void addImageOverMemoryBudget_leastRecentlyUsedImageDecodedFromDisk() {
+        mAvrcpCoverArtStorage =
+                new AvrcpCoverArtStorage(
+                        mTargetContext,
+                        null,
+                        mImage1.getAllocationByteCount(),
+                        AvrcpCoverArtStorage.DISK_CACHE_BYTES);
+
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle1, mImage1);
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle2, mImage1);
+
+        Assert.assertFalse(mAvrcpCoverArtStorage.isInMemory(mDevice1, mHandle1));
+        Assert.assertTrue(mAvrcpCoverArtStorage.isInMemory(mDevice1, mHandle2));
+        Assert.assertTrue(mAvrcpCoverArtStorage.doesImageExist(mDevice1, mHandle1));
+        assertImageSame(mImage1, mDevice1, mHandle1);
+        Assert.assertTrue(mAvrcpCoverArtStorage.isInMemory(mDevice1, mHandle1));
+        Assert.assertFalse(mAvrcpCoverArtStorage.isInMemory(mDevice1, mHandle2));
+    }
+
+    @Test
+    public void addImageOverDiskBudget_leastRecentlyUsedImageRemoved() {
+        mAvrcpCoverArtStorage = new AvrcpCoverArtStorage(mTargetContext, null, 1, 1);
+
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle1, mImage1);
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle2, mImage1);
+
+        Assert.assertFalse(mAvrcpCoverArtStorage.doesImageExist(mDevice1, mHandle1));
+        Assert.assertEquals(null, mAvrcpCoverArtStorage.getImage(mDevice1, mHandle1));
+        Assert.assertTrue(mAvrcpCoverArtStorage.doesImageExist(mDevice1, mHandle2));
+        assertImageSame(mImage1, mDevice1, mHandle2);
+    }
+
+    @Test
+    public void addImageOverDiskBudget_evictedImageReported() {
+        AvrcpCoverArtStorage.Callback callback = mock(AvrcpCoverArtStorage.Callback.class);
+        mAvrcpCoverArtStorage = new AvrcpCoverArtStorage(mTargetContext, callback, 1, 1);
+
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle1, mImage1);
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle2, mImage1);
+
+        verify(callback).onImageEvicted(mDevice1, mHandle1);
+        verify(callback, never()).onImageEvicted(mDevice1, mHandle2);
+    }
+
+    @Test
+    public void addImageOverMemoryBudget_imageStillOnDiskNotReported() {
+        AvrcpCoverArtStorage.Callback callback = mock(AvrcpCoverArtStorage.Callback.class);
+        mAvrcpCoverArtStorage =
+                new AvrcpCoverArtStorage(
+                        mTargetContext,
+                        callback,
+                        mImage1.getAllocationByteCount(),
+                        AvrcpCoverArtStorage.DISK_CACHE_BYTES);
+
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle1, mImage1);
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle2, mImage1);
+
+        Assert.assertFalse(mAvrcpCoverArtStorage.isInMemory(mDevice1, mHandle1));
+        verify(callback, never()).onImageEvicted(mDevice1, mHandle1);
+    }
+
+    @Test
+    public void removeImage_notReportedAsEvicted() {
+        AvrcpCoverArtStorage.Callback callback = mock(AvrcpCoverArtStorage.Callback.class);
+        mAvrcpCoverArtStorage =
+                new AvrcpCoverArtStorage(
+                        mTargetContext,
+                        callback,
+                        AvrcpCoverArtStorage.MEMORY_CACHE_BYTES,
+                        AvrcpCoverArtStorage.DISK_CACHE_BYTES);
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle1, mImage1);
+
+        mAvrcpCoverArtStorage.removeImage(mDevice1, mHandle1);
+
+        verify(callback, never()).onImageEvicted(mDevice1, mHandle1);
+    }
+
+    @Test
+    public void addImage_storedAsLosslessWebp() {
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle1, mImage1);
+
+        File file = mAvrcpCoverArtStorage.getImageFile(mDevice1, mHandle1);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        Bitmap image = BitmapFactory.decodeFile(file.getPath(), options);
+        Assert.assertEquals(AvrcpCoverArtStorage.IMAGE_MIME_TYPE, options.outMimeType);
+        Assert.assertTrue(mImage1.sameAs(image));
+        Assert.assertEquals(file.length(), mAvrcpCoverArtStorage.getDiskBytes());
+    }
+
+    @Test
+    public void removeImage_removedFromDisk() {
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle1, mImage1);
+        File file = mAvrcpCoverArtStorage.getImageFile(mDevice1, mHandle1);
+        Assert.assertTrue(file.exists());
+
+        mAvrcpCoverArtStorage.removeImage(mDevice1, mHandle1);
+
+        Assert.assertFalse(file.exists());
+        Assert.assertEquals(null, mAvrcpCoverArtStorage.getImageFile(mDevice1, mHandle1));
+        Assert.assertEquals(0, mAvrcpCoverArtStorage.getDiskBytes());
+    }
+
     @Test
     public void toString_returnsDeviceInfo() {
         String expectedString =
@@ -20,6 +20,7 @@ import static com.google.common.truth.Truth.assertThat;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.net.Uri;
 
 import com.android.bluetooth.avrcpcontroller.BrowseTree.BrowseNode;
 
@@ -32,6 +33,7 @@ public class BrowseTreeTest {
     private static final String ILLEGAL_ID = "illegal_id";
     private static final String TEST_HANDLE = "test_handle";
     private static final String TEST_NODE_ID = "test_node_id";
+    private static final Uri TEST_URI = Uri.parse("content://test/image");
 
     private final byte[] mTestAddress = new byte[] {01, 01, 01, 01, 01, 01};
     private BluetoothAdapter mAdapter;
@@ -178,6 +180,21 @@ public class BrowseTreeTest {
         assertThat(parents.contains(browseTree.mRootNode)).isTrue();
     }
 
+    @Test
+    public void notifyImageEvicted_clearsImageUri() {
+        BrowseTree browseTree = new BrowseTree(null);
+        browseTree.onConnected(mTestDevice);
+        BrowseNode node = browseTree.mRootNode.getChild(0);
+        browseTree.indicateCoverArtUsed(node.getID(), TEST_HANDLE);
+        browseTree.notifyImageDownload(TEST_HANDLE, TEST_URI);
+        assertThat(node.mItem.getCoverArtLocation()).isEqualTo(TEST_URI);
+
+        Set<BrowseNode> parents = browseTree.notifyImageEvicted(TEST_HANDLE);
+
+        assertThat(parents).containsExactly(browseTree.mRootNode);
+        assertThat(node.mItem.getCoverArtLocation()).isNull();
+    }
+
     @Test
     public void getEldestChild_whenNodesAreNotAncestorDescendantRelation() {
         BrowseTree browseTree = new BrowseTree(null);
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.mock;
+
+import android.bluetooth.BluetoothProfile;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Test cases for {@link ProfileStartupOrchestrator}. */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ProfileStartupOrchestratorTest {
+
+    @Test
+    public void getWaves_startsDependenciesFirst() {
+        List<List<Integer>> waves =
+                ProfileStartupOrchestrator.getWaves(
+                        List.of(
+                                BluetoothProfile.LE_AUDIO_BROADCAST_ASSISTANT,
+                                BluetoothProfile.LE_AUDIO,
+                                BluetoothProfile.A2DP,
+                                BluetoothProfile.VOLUME_CONTROL,
+                                BluetoothProfile.CSIP_SET_COORDINATOR,
+                                BluetoothProfile.GATT));
+
+        assertThat(waves)
+                .containsExactly(
+                        List.of(BluetoothProfile.A2DP, BluetoothProfile.GATT),
+                        List.of(
+                                BluetoothProfile.VOLUME_CONTROL,
+                                BluetoothProfile.CSIP_SET_COORDINATOR),
+                        List.of(BluetoothProfile.LE_AUDIO),
+                        List.of(BluetoothProfile.LE_AUDIO_BROADCAST_ASSISTANT))
+                .inOrder();
+    }
+
+    @Test
+    public void getWaves_ignoresDependenciesNotStarted() {
+        // GATT is started with BLE, before the other profiles
+        assertThat(
+                        ProfileStartupOrchestrator.getWaves(
+                                List.of(BluetoothProfile.LE_AUDIO, BluetoothProfile.HID_HOST)))
+                .containsExactly(List.of(BluetoothProfile.LE_AUDIO, BluetoothProfile.HID_HOST));
+    }
+
+    @Test
+    public void startProfiles_whenDisabled_startsInOrder() {
+        ProfileStartupOrchestrator orchestrator = new ProfileStartupOrchestrator(false);
+        RecordingStarter starter = new RecordingStarter();
+        List<Integer> profileIds =
+                List.of(
+                        BluetoothProfile.LE_AUDIO,
+                        BluetoothProfile.GATT,
+                        BluetoothProfile.SAP);
+
+        orchestrator.startProfiles(profileIds, starter);
+
+        assertThat(starter.mSteps)
+                .containsExactly(
+                        "create " + BluetoothProfile.LE_AUDIO,
+                        "start " + BluetoothProfile.LE_AUDIO,
+                        "available " + BluetoothProfile.LE_AUDIO,
+                        "create " + BluetoothProfile.GATT,
+                        "start " + BluetoothProfile.GATT,
+                        "available " + BluetoothProfile.GATT,
+                        "create " + BluetoothProfile.SAP,
+                        "start " + BluetoothProfile.SAP,
+                        "available " + BluetoothProfile.SAP)
+                .inOrder();
+    }
+
+    @Test
+    public void startProfiles_whenEnabled_notifiesEachProfileOnce() {
+        ProfileStartupOrchestrator orchestrator = new ProfileStartupOrchestrator(true);
+        RecordingStarter starter = new RecordingStarter();
+
+        orchestrator.startProfiles(
+                List.of(
+                        BluetoothProfile.LE_AUDIO,
+                        BluetoothProfile.A2DP,
+                        BluetoothProfile.GATT,
+                        BluetoothProfile.OPP),
+                starter);
+        orchestrator.cleanup();
+
+        assertThat(starter.mAvailable)
+                .containsExactly(
+                        BluetoothProfile.A2DP,
+                        BluetoothProfile.GATT,
+                        BluetoothProfile.OPP,
+                        BluetoothProfile.LE_AUDIO)
+                .inOrder();
+    }
+
+    @Test
+    public void startProfiles_whenEnabled_createsBeforeStartingAndStartsBeforeNotifying() {
+        ProfileStartupOrchestrator orchestrator = new ProfileStartupOrchestrator(true);
+        RecordingStarter starter = new RecordingStarter();
+
+        orchestrator.startProfiles(List.of(BluetoothProfile.A2DP), starter);
+        orchestrator.cleanup();
+
+        assertThat(starter.mSteps)
+                .containsExactly(
+                        "create " + BluetoothProfile.A2DP,
+                        "start " + BluetoothProfile.A2DP,
+                        "available " + BluetoothProfile.A2DP)
+                .inOrder();
+    }
+
+    @Test
+    public void startProfiles_whenEnabled_startsUnlistedProfilesOnCallingThread() {
+        ProfileStartupOrchestrator orchestrator = new ProfileStartupOrchestrator(true);
+        RecordingStarter starter = new RecordingStarter();
+
+        orchestrator.startProfiles(List.of(BluetoothProfile.A2DP, BluetoothProfile.OPP), starter);
+        orchestrator.cleanup();
+
+        assertThat(starter.mStartThreads.get(BluetoothProfile.OPP))
+                .isSameInstanceAs(Thread.currentThread());
+        assertThat(starter.mStartThreads.get(BluetoothProfile.A2DP))
+                .isNotSameInstanceAs(Thread.currentThread());
+    }
+
+    @Test
+    public void startProfiles_whenEnabledAndWorkerFails_abortsProfilesStartedWithIt() {
+        ProfileStartupOrchestrator orchestrator = new ProfileStartupOrchestrator(true);
+        RecordingStarter starter = new RecordingStarter();
+        starter.mFailingProfileId = BluetoothProfile.A2DP;
+
+        assertThrows(
+                IllegalStateException.class,
+                () ->
+                        orchestrator.startProfiles(
+                                List.of(
+                                        BluetoothProfile.A2DP,
+                                        BluetoothProfile.HEADSET,
+                                        BluetoothProfile.OPP,
+                                        BluetoothProfile.VOLUME_CONTROL,
+                                        BluetoothProfile.LE_AUDIO),
+                                starter));
+        orchestrator.cleanup();
+
+        assertThat(starter.mAborted)
+                .containsExactly(
+                        BluetoothProfile.HEADSET,
+                        BluetoothProfile.OPP,
+                        BluetoothProfile.VOLUME_CONTROL)
+                .inOrder();
+        assertThat(starter.mAvailable).isEmpty();
+        // The next wave is not started
+        assertThat(starter.mSteps).doesNotContain("create " + BluetoothProfile.LE_AUDIO);
+    }
+
+    @Test
+    public void isDeferred_onlyClientProfilesWhenEnabled() {
+        assertThat(new ProfileStartupOrchestrator(false).isDeferred(BluetoothProfile.MAP_CLIENT))
+                .isFalse();
+
+        ProfileStartupOrchestrator orchestrator = new ProfileStartupOrchestrator(true);
+        assertThat(orchestrator.isDeferred(BluetoothProfile.MAP_CLIENT)).isTrue();
+        // Server profiles accept incoming connections as soon as the adapter is on
+        assertThat(orchestrator.isDeferred(BluetoothProfile.SAP)).isFalse();
+        assertThat(orchestrator.isDeferred(BluetoothProfile.PAN)).isFalse();
+        assertThat(orchestrator.isDeferred(BluetoothProfile.A2DP)).isFalse();
+    }
+
+    // Records the steps of starting each profile, from any thread
+    private static class RecordingStarter implements ProfileStartupOrchestrator.ProfileStarter {
+        final List<String> mSteps = Collections.synchronizedList(new ArrayList<>());
+        final List<Integer> mAvailable = new ArrayList<>();
+        final List<Integer> mAborted = new ArrayList<>();
+        final Map<Integer, Thread> mStartThreads = new ConcurrentHashMap<>();
+        final Map<ProfileService, Integer> mProfileIds = new ConcurrentHashMap<>();
+        int mFailingProfileId = -1;
+
+        @Override
+        public ProfileService create(int profileId) {
+            mSteps.add("create " + profileId);
+            ProfileService profileService = mock(ProfileService.class);
+            mProfileIds.put(profileService, profileId);
+            return profileService;
+        }
+
+        @Override
+        public void start(ProfileService profileService) {
+            int profileId = mProfileIds.get(profileService);
+            mSteps.add("start " + profileId);
+            mStartThreads.put(profileId, Thread.currentThread());
+            if (profileId == mFailingProfileId) {
+                throw new IllegalStateException("Failed to start " + profileId);
+            }
+        }
+
+        @Override
+        public void onStarted(int profileId, ProfileService profileService) {
+            mSteps.add("available " + profileId);
+            mAvailable.add(profileId);
+        }
+
+        @Override
+        public void abort(int profileId, ProfileService profileService) {
+            mAborted.add(profileId);
+        }
+    }
+}
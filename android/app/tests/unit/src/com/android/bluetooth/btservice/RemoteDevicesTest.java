@@ -11,11 +11,14 @@ import android.bluetooth.BluetoothHeadset;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.bluetooth.BluetoothSinkAudioPolicy;
+import android.bluetooth.BluetoothUuid;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.HandlerThread;
+import android.os.IpcDataCache;
 import android.os.Message;
+import android.os.ParcelUuid;
 import android.os.TestLooperManager;
 import android.platform.test.annotations.EnableFlags;
 import android.platform.test.flag.junit.SetFlagsRule;
@@ -43,6 +46,7 @@ import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
 
 import java.util.ArrayList;
+import java.util.function.Function;
 
 @MediumTest
 @RunWith(AndroidJUnit4.class)
@@ -841,6 +845,123 @@ public class RemoteDevicesTest {
         verifyBatteryLevelChangedIntent(device, batteryLevel, intentArgument.getValue());
     }
 
+    @Test
+    public void setName_invalidatesNameCache() {
+        DeviceProperties properties =
+                mRemoteDevices.addDeviceProperties(Utils.getBytesFromAddress(TEST_BT_ADDR_1));
+        properties.setName("old name");
+        IpcDataCache<BluetoothDevice, String> cache =
+                createDevicePropertyCache("BluetoothDevice_getName", DeviceProperties::getName);
+        Assert.assertEquals("old name", cache.query(mDevice1));
+
+        properties.setName("new name");
+
+        Assert.assertEquals("new name", cache.query(mDevice1));
+    }
+
+    @Test
+    public void setDeviceType_invalidatesTypeCache() {
+        DeviceProperties properties =
+                mRemoteDevices.addDeviceProperties(Utils.getBytesFromAddress(TEST_BT_ADDR_1));
+        properties.setDeviceType(BluetoothDevice.DEVICE_TYPE_CLASSIC);
+        IpcDataCache<BluetoothDevice, Integer> cache =
+                createDevicePropertyCache(
+                        "BluetoothDevice_getType", DeviceProperties::getDeviceType);
+        Assert.assertEquals(BluetoothDevice.DEVICE_TYPE_CLASSIC, (int) cache.query(mDevice1));
+
+        properties.setDeviceType(BluetoothDevice.DEVICE_TYPE_DUAL);
+
+        Assert.assertEquals(BluetoothDevice.DEVICE_TYPE_DUAL, (int) cache.query(mDevice1));
+    }
+
+    @Test
+    public void setBluetoothClass_invalidatesBluetoothClassCache() {
+        DeviceProperties properties =
+                mRemoteDevices.addDeviceProperties(Utils.getBytesFromAddress(TEST_BT_ADDR_1));
+        properties.setBluetoothClass(0x200404);
+        IpcDataCache<BluetoothDevice, Integer> cache =
+                createDevicePropertyCache(
+                        "BluetoothDevice_getBluetoothClass", DeviceProperties::getBluetoothClass);
+        Assert.assertEquals(0x200404, (int) cache.query(mDevice1));
+
+        properties.setBluetoothClass(0x240418);
+
+        Assert.assertEquals(0x240418, (int) cache.query(mDevice1));
+    }
+
+    @Test
+    public void setUuids_invalidatesUuidsCache() {
+        ParcelUuid[] oldUuids = {BluetoothUuid.HFP};
+        ParcelUuid[] newUuids = {BluetoothUuid.HFP, BluetoothUuid.A2DP_SINK};
+        DeviceProperties properties =
+                mRemoteDevices.addDeviceProperties(Utils.getBytesFromAddress(TEST_BT_ADDR_1));
+        properties.setUuids(oldUuids);
+        IpcDataCache<BluetoothDevice, ParcelUuid[]> cache =
+                createDevicePropertyCache("BluetoothDevice_getUuids", DeviceProperties::getUuids);
+        Assert.assertArrayEquals(oldUuids, cache.query(mDevice1));
+
+        properties.setUuids(newUuids);
+
+        Assert.assertArrayEquals(newUuids, cache.query(mDevice1));
+    }
+
+    @Test
+    @EnableFlags(Flags.FLAG_REMOVE_ADDRESS_MAP_ON_UNBOND)
+    public void onBondStateChange_toBondNone_invalidatesNameCache() {
+        DeviceProperties properties =
+                mRemoteDevices.addDeviceProperties(Utils.getBytesFromAddress(TEST_BT_ADDR_1));
+        properties.setName("name");
+        IpcDataCache<BluetoothDevice, String> cache =
+                createDevicePropertyCache("BluetoothDevice_getName", DeviceProperties::getName);
+        Assert.assertEquals("name", cache.query(mDevice1));
+
+        mRemoteDevices.onBondStateChange(mDevice1, BluetoothDevice.BOND_NONE);
+
+        Assert.assertNull(cache.query(mDevice1));
+    }
+
+    @Test
+    public void addressConsolidateCallback_invalidatesNameCacheOfIdentityAddress() {
+        String identityAddress = "00:11:22:33:44:66";
+        BluetoothDevice identityDevice =
+                BluetoothAdapter.getDefaultAdapter().getRemoteDevice(identityAddress);
+        DeviceProperties properties =
+                mRemoteDevices.addDeviceProperties(Utils.getBytesFromAddress(TEST_BT_ADDR_1));
+        properties.setName("name");
+        IpcDataCache<BluetoothDevice, String> cache =
+                createDevicePropertyCache("BluetoothDevice_getName", DeviceProperties::getName);
+        Assert.assertNull(cache.query(identityDevice));
+
+        mRemoteDevices.addressConsolidateCallback(
+                Utils.getBytesFromAddress(TEST_BT_ADDR_1),
+                Utils.getBytesFromAddress(identityAddress));
+
+        Assert.assertEquals("name", cache.query(identityDevice));
+    }
+
+    /**
+     * Returns a cache invalidated along with the {@link BluetoothDevice} cache of {@code api},
+     * reading {@code property} from {@link #mRemoteDevices}. The getter of {@link BluetoothDevice}
+     * reads from the Bluetooth process instead, which this test does not control.
+     */
+    private <T> IpcDataCache<BluetoothDevice, T> createDevicePropertyCache(
+            String api, Function<DeviceProperties, T> property) {
+        // Caching only starts once the cache has been invalidated
+        IpcDataCache.invalidateCache(IpcDataCache.MODULE_BLUETOOTH, api);
+        return new IpcDataCache<>(
+                1,
+                IpcDataCache.MODULE_BLUETOOTH,
+                api,
+                "RemoteDevicesTest_" + api,
+                new IpcDataCache.QueryHandler<BluetoothDevice, T>() {
+                    @Override
+                    public T apply(BluetoothDevice device) {
+                        DeviceProperties properties = mRemoteDevices.getDeviceProperties(device);
+                        return properties != null ? property.apply(properties) : null;
+                    }
+                });
+    }
+
     private static void verifyBatteryLevelChangedIntent(
             BluetoothDevice device, int batteryLevel, Intent intent) {
         Assert.assertEquals(BluetoothDevice.ACTION_BATTERY_LEVEL_CHANGED, intent.getAction());
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import android.os.Handler;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.btservice.SerialQueuePool.SerialQueue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/** Test cases for {@link SerialQueuePool}. */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class SerialQueuePoolTest {
+    private static final int MAX_THREADS = 2;
+    private static final long TIMEOUT_MS = 1_000;
+
+    @Test
+    public void acquire_whenShared_boundsThreadCount() {
+        SerialQueuePool pool = new SerialQueuePool(true, false, MAX_THREADS);
+        List<SerialQueue> queues = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            queues.add(pool.acquire("queue" + i));
+        }
+
+        assertThat(pool.getThreadCount()).isEqualTo(MAX_THREADS);
+        assertThat(queues.stream().map(SerialQueue::getLooper).distinct().count())
+                .isEqualTo(MAX_THREADS);
+
+        for (SerialQueue queue : queues) {
+            queue.release();
+        }
+        assertThat(pool.getThreadCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void acquire_whenNotShared_usesDedicatedThread() {
+        SerialQueuePool pool = new SerialQueuePool(false, false, MAX_THREADS);
+        SerialQueue first = pool.acquire("first");
+        SerialQueue second = pool.acquire("second");
+        SerialQueue third = pool.acquire("third");
+
+        assertThat(pool.getThreadCount()).isEqualTo(3);
+        assertThat(first.getLooper()).isNotEqualTo(second.getLooper());
+
+        first.release();
+        second.release();
+        third.release();
+        assertThat(pool.getThreadCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void execute_runsTasksInOrder() throws Exception {
+        SerialQueuePool pool = new SerialQueuePool(true, false, 1);
+        SerialQueue queue = pool.acquire("queue");
+        SerialQueue other = pool.acquire("other");
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+
+        for (int i = 0; i < 10; i++) {
+            int task = i;
+            queue.execute(() -> order.add(task));
+            other.execute(() -> {});
+        }
+        queue.execute(done::countDown);
+
+        assertThat(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+        assertThat(order).containsExactly(0, 1, 2, 3, 4, 5, 6, 7, 8, 9).inOrder();
+        assertThat(queue.getTaskCount()).isEqualTo(11);
+
+        queue.release();
+        other.release();
+    }
+
+    @Test
+    public void getLooper_messagesOfOtherHandlers_areAccountedFor() throws Exception {
+        SerialQueuePool pool = new SerialQueuePool(true, false, 1);
+        SerialQueue queue = pool.acquire("queue");
+        // Like the state machines of the profiles, which post through handlers of their own
+        Handler handler = new Handler(queue.getLooper());
+        CountDownLatch done = new CountDownLatch(1);
+
+        for (int i = 0; i < 10; i++) {
+            handler.post(() -> {});
+        }
+        handler.post(done::countDown);
+        assertThat(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+
+        // Flush the latency probe posted while the first message ran
+        CountDownLatch flushed = new CountDownLatch(1);
+        handler.post(flushed::countDown);
+        assertThat(flushed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+
+        assertThat(queue.getTaskCount()).isEqualTo(0);
+        assertThat(queue.getLooperStats().getMessageCount()).isAtLeast(11);
+        assertThat(queue.getLooperStats().getProbeCount()).isAtLeast(1);
+
+        queue.release();
+    }
+
+    @Test
+    public void acquire_whenNotSharedWithoutStats_doesNotLogMessages() {
+        SerialQueuePool pool = new SerialQueuePool(false, false, MAX_THREADS);
+        SerialQueue queue = pool.acquire("queue");
+
+        assertThat(queue.getLooperStats()).isNull();
+
+        queue.release();
+    }
+
+    @Test
+    public void acquire_whenNotSharedWithStats_accountsForMessages() throws Exception {
+        SerialQueuePool pool = new SerialQueuePool(false, true, MAX_THREADS);
+        SerialQueue queue = pool.acquire("queue");
+        CountDownLatch done = new CountDownLatch(1);
+
+        Handler handler = new Handler(queue.getLooper());
+        handler.post(() -> {});
+        handler.post(done::countDown);
+        assertThat(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+
+        assertThat(queue.getLooperStats().getMessageCount()).isAtLeast(1);
+        queue.release();
+    }
+
+    @Test
+    public void execute_afterRelease_throws() {
+        SerialQueuePool pool = new SerialQueuePool(true, false, MAX_THREADS);
+        SerialQueue queue = pool.acquire("queue");
+        queue.release();
+
+        assertThrows(RejectedExecutionException.class, () -> queue.execute(() -> {}));
+    }
+}
@@ -39,6 +39,7 @@ import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 @RunWith(JUnit4.class)
@@ -237,6 +238,50 @@ public final class BluetoothKeystoreServiceTest {
                 doCompareMap(mNameDecryptKeyResult, mBluetoothKeystoreService.getNameDecryptKey()));
     }
 
+    @Test
+    public void testEncryptDecryptManyKeys_roundTrips() {
+        List<String> configData = new ArrayList<>();
+        Map<String, String> nameDecryptKeyResult = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            String address = String.format(Locale.US, "aa:bb:cc:dd:%02x:%02x", i / 256, i % 256);
+            String linkKey = String.format(Locale.US, "%032x", i);
+            configData.add("[" + address + "]");
+            configData.add("LinkKey = " + linkKey);
+            nameDecryptKeyResult.put(address + "-LinkKey", linkKey);
+        }
+        overwriteConfigFile(configData);
+
+        Assert.assertTrue(parseConfigFile(CONFIG_FILE_PATH));
+        // Waits for the encryption to complete
+        mBluetoothKeystoreService.saveEncryptedKey();
+        Assert.assertTrue(
+                doCompareKeySet(
+                        nameDecryptKeyResult, mBluetoothKeystoreService.getNameEncryptKey()));
+
+        mBluetoothKeystoreService.cleanupMemory();
+        Assert.assertTrue(loadEncryptionFile(CONFIG_FILE_ENCRYPTION_PATH, true));
+        // Wait for decryption to complete
+        mBluetoothKeystoreService.stopThread();
+        Assert.assertTrue(
+                doCompareMap(nameDecryptKeyResult, mBluetoothKeystoreService.getNameDecryptKey()));
+    }
+
+    @Test
+    public void testSetEncryptKeyOrRemoveKey_removedWhileEncrypting_keepsKeyRemoved()
+            throws Exception {
+        for (int i = 0; i < 100; i++) {
+            String prefixString = String.format(Locale.US, "aa:bb:cc:dd:ee:%02x-LinkKey", i);
+            mBluetoothKeystoreService.setEncryptKeyOrRemoveKey(
+                    prefixString, String.format(Locale.US, "%032x", i));
+            mBluetoothKeystoreService.setEncryptKeyOrRemoveKey(prefixString, "");
+        }
+        // Wait for encryption to complete
+        mBluetoothKeystoreService.stopThread();
+
+        Assert.assertTrue(mBluetoothKeystoreService.getNameDecryptKey().isEmpty());
+        Assert.assertTrue(mBluetoothKeystoreService.getNameEncryptKey().isEmpty());
+    }
+
     @Test
     public void testCompareHashFile() {
         // save config checksum.
@@ -36,6 +36,8 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.os.Bundle;
+import android.os.IpcDataCache;
+import android.os.Looper;
 import android.platform.test.flag.junit.SetFlagsRule;
 
 import androidx.room.Room;
@@ -131,6 +133,8 @@ public final class DatabaseManagerTest {
                                 .getPackageManager());
 
         mDatabaseManager = new DatabaseManager(mAdapterService);
+        // Write right away so that tests only need to wait for the database thread.
+        mDatabaseManager.mWriteCoalescingDelayMs = 0;
 
         BluetoothDevice[] bondedDevices = {mTestDevice};
         doReturn(bondedDevices).when(mAdapterService).getBondedDevices();
@@ -403,6 +407,113 @@ public final class DatabaseManagerTest {
         TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
     }
 
+    @Test
+    public void testUpdateDatabase_orderedWithDeletion() {
+        mDatabaseManager.bondStateChanged(mTestDevice, BluetoothDevice.BOND_BONDED);
+        mDatabaseManager.bondStateChanged(mTestDevice2, BluetoothDevice.BOND_BONDED);
+        mDatabaseManager.bondStateChanged(mTestDevice, BluetoothDevice.BOND_NONE);
+        mDatabaseManager.bondStateChanged(mTestDevice2, BluetoothDevice.BOND_NONE);
+        mDatabaseManager.bondStateChanged(mTestDevice2, BluetoothDevice.BOND_BONDED);
+        // Wait for database update
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+
+        List<Metadata> list = mDatabase.load();
+        Assert.assertEquals(1, list.size());
+        Assert.assertEquals(TEST_BT_ADDR2, list.get(0).getAddress());
+
+        mDatabaseManager.factoryReset();
+        mDatabaseManager.mMetadataCache.clear();
+        // Wait for clear database
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+    }
+
+    @Test
+    public void testSetCustomMeta_invalidatesMetadataCache() {
+        String api = "BluetoothDevice_getMetadata";
+        // Caching only starts once the cache has been invalidated
+        IpcDataCache.invalidateCache(IpcDataCache.MODULE_BLUETOOTH, api);
+        // Invalidated along with the cache of BluetoothDevice.getMetadata(), whose values come
+        // from the Bluetooth process instead of mDatabaseManager
+        IpcDataCache<BluetoothDevice, byte[]> cache =
+                new IpcDataCache<>(
+                        1,
+                        IpcDataCache.MODULE_BLUETOOTH,
+                        api,
+                        "DatabaseManagerTest_" + api,
+                        new IpcDataCache.QueryHandler<BluetoothDevice, byte[]>() {
+                            @Override
+                            public byte[] apply(BluetoothDevice device) {
+                                return mDatabaseManager.getCustomMeta(
+                                        device, BluetoothDevice.METADATA_MANUFACTURER_NAME);
+                            }
+                        });
+        byte[] value = "new value".getBytes();
+        mDatabaseManager.setCustomMeta(
+                mTestDevice, BluetoothDevice.METADATA_MANUFACTURER_NAME, TEST_BYTE_ARRAY);
+        Assert.assertArrayEquals(TEST_BYTE_ARRAY, cache.query(mTestDevice));
+
+        mDatabaseManager.setCustomMeta(
+                mTestDevice, BluetoothDevice.METADATA_MANUFACTURER_NAME, value);
+
+        Assert.assertArrayEquals(value, cache.query(mTestDevice));
+
+        mDatabaseManager.factoryReset();
+        mDatabaseManager.mMetadataCache.clear();
+        // Wait for clear database
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+    }
+
+    @Test
+    public void testUpdateDatabase_coalescesWritesWithinWindow() throws Exception {
+        mDatabaseManager.mWriteCoalescingDelayMs = TimeUnit.MINUTES.toMillis(1);
+        byte[] value = "input value".getBytes();
+        mDatabaseManager.setCustomMeta(
+                mTestDevice, BluetoothDevice.METADATA_MANUFACTURER_NAME, TEST_BYTE_ARRAY);
+        mDatabaseManager.setCustomMeta(
+                mTestDevice2, BluetoothDevice.METADATA_MANUFACTURER_NAME, TEST_BYTE_ARRAY);
+        mDatabaseManager.setCustomMeta(
+                mTestDevice, BluetoothDevice.METADATA_MANUFACTURER_NAME, value);
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+
+        // Nothing is written before the window ends
+        Assert.assertTrue(mDatabase.load().isEmpty());
+
+        // Stopping flushes the batch, with the last value of each device
+        Looper looper = mDatabaseManager.getHandlerLooper();
+        mDatabaseManager.cleanup();
+        looper.getThread().join(TimeUnit.SECONDS.toMillis(5));
+
+        List<Metadata> list = mDatabase.load();
+        Assert.assertEquals(2, list.size());
+        for (Metadata data : list) {
+            byte[] expected = TEST_BT_ADDR.equals(data.getAddress()) ? value : TEST_BYTE_ARRAY;
+            Assert.assertArrayEquals(
+                    expected,
+                    data.getCustomizedMeta(BluetoothDevice.METADATA_MANUFACTURER_NAME));
+        }
+    }
+
+    @Test
+    public void testUpdateDatabase_databaseThreadGone_nextBatchIsWritten() throws Exception {
+        Looper looper = mDatabaseManager.getHandlerLooper();
+        looper.quit();
+        looper.getThread().join(TimeUnit.SECONDS.toMillis(5));
+
+        // The batch cannot be queued and is dropped
+        mDatabaseManager.setCustomMeta(
+                mTestDevice, BluetoothDevice.METADATA_MANUFACTURER_NAME, TEST_BYTE_ARRAY);
+
+        // Updates made once the database thread is back are written
+        mDatabaseManager.start(mDatabase);
+        mDatabaseManager.setCustomMeta(
+                mTestDevice2, BluetoothDevice.METADATA_MANUFACTURER_NAME, TEST_BYTE_ARRAY);
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+
+        List<Metadata> list = mDatabase.load();
+        Assert.assertEquals(1, list.size());
+        Assert.assertEquals(TEST_BT_ADDR2, list.get(0).getAddress());
+    }
+
     @Test
     public void testSetGetCustomMeta() {
         int badKey = 100;
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import android.bluetooth.le.AdvertiseCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
+import android.os.Handler;
+import android.os.test.TestLooper;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+/** Test cases for {@link AdvertiseVirtualizer}. */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class AdvertiseVirtualizerTest {
+    private static final int OWNER_REG_ID = -1;
+    private static final int GUEST_REG_ID = -2;
+    private static final int OWNER_ID = 0;
+    private static final byte[] OWNER_DATA = {0x02, 0x01, 0x06};
+    private static final byte[] GUEST_DATA = {0x02, 0x01, 0x1a};
+    private static final byte[] SCAN_RESPONSE = {};
+    /* Default interval is 100ms, 10 advertising events are shorter than the minimum slot */
+    private static final long SLOT_DURATION_MS = AdvertiseVirtualizer.MIN_SLOT_DURATION_MS;
+    private static final long INTERVAL_MS = 100;
+
+    @Rule public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+    @Mock private AdvertiseManagerNativeInterface mNativeInterface;
+    @Mock private AdvertiserMap mAdvertiserMap;
+    @Mock private AdvertiseVirtualizer.Callback mCallback;
+
+    private TestLooper mLooper;
+    private AdvertiseVirtualizer mVirtualizer;
+    private AdvertisingSetParameters mParameters;
+
+    @Before
+    public void setUp() {
+        mLooper = new TestLooper();
+        mVirtualizer =
+                new AdvertiseVirtualizer(
+                        mNativeInterface,
+                        mAdvertiserMap,
+                        new Handler(mLooper.getLooper()),
+                        mCallback,
+                        true);
+        mParameters = new AdvertisingSetParameters.Builder().build();
+
+        mVirtualizer.onStartRequested(OWNER_REG_ID, mParameters, OWNER_DATA, SCAN_RESPONSE);
+        mVirtualizer.onAdvertisingSetStarted(OWNER_REG_ID, OWNER_ID);
+    }
+
+    @Test
+    public void startVirtualSet_withCompatibleSet_sharesItsInstance() {
+        mVirtualizer.onStartRequested(GUEST_REG_ID, mParameters, GUEST_DATA, SCAN_RESPONSE);
+
+        int guestId = mVirtualizer.startVirtualSet(GUEST_REG_ID);
+
+        assertThat(guestId).isAtLeast(AdvertiseVirtualizer.VIRTUAL_ID_BASE);
+        assertThat(mVirtualizer.isVirtualSet(guestId)).isTrue();
+        assertThat(mVirtualizer.isVirtualSet(OWNER_ID)).isFalse();
+    }
+
+    @Test
+    public void startVirtualSet_withoutCompatibleSet_fails() {
+        AdvertisingSetParameters scannable =
+                new AdvertisingSetParameters.Builder().setScannable(true).build();
+        mVirtualizer.onStartRequested(GUEST_REG_ID, scannable, GUEST_DATA, SCAN_RESPONSE);
+
+        assertThat(mVirtualizer.startVirtualSet(GUEST_REG_ID))
+                .isEqualTo(AdvertiseVirtualizer.INVALID_ID);
+    }
+
+    @Test
+    public void startVirtualSet_connectable_fails() {
+        AdvertisingSetParameters connectable =
+                new AdvertisingSetParameters.Builder().setConnectable(true).build();
+        mVirtualizer.clear();
+        mVirtualizer.onStartRequested(OWNER_REG_ID, connectable, OWNER_DATA, SCAN_RESPONSE);
+        mVirtualizer.onAdvertisingSetStarted(OWNER_REG_ID, OWNER_ID);
+        mVirtualizer.onStartRequested(GUEST_REG_ID, connectable, GUEST_DATA, SCAN_RESPONSE);
+
+        assertThat(mVirtualizer.startVirtualSet(GUEST_REG_ID))
+                .isEqualTo(AdvertiseVirtualizer.INVALID_ID);
+    }
+
+    @Test
+    public void startVirtualSet_ownerEnabledWithControllerLimit_fails() {
+        assertThat(mVirtualizer.enableAdvertisingSet(OWNER_ID, true, 100, 0)).isFalse();
+        mVirtualizer.onStartRequested(GUEST_REG_ID, mParameters, GUEST_DATA, SCAN_RESPONSE);
+
+        assertThat(mVirtualizer.startVirtualSet(GUEST_REG_ID))
+                .isEqualTo(AdvertiseVirtualizer.INVALID_ID);
+    }
+
+    @Test
+    public void rotate_onlyWritesDifferingPayload() {
+        mVirtualizer.onStartRequested(GUEST_REG_ID, mParameters, GUEST_DATA, SCAN_RESPONSE);
+        int guestId = mVirtualizer.startVirtualSet(GUEST_REG_ID);
+
+        mLooper.moveTimeForward(SLOT_DURATION_MS);
+        mLooper.dispatchAll();
+
+        verify(mNativeInterface).setAdvertisingData(OWNER_ID, GUEST_DATA);
+        verify(mNativeInterface, never()).setScanResponseData(anyInt(), any());
+        verify(mNativeInterface, never()).setAdvertisingParameters(anyInt(), any());
+        verify(mNativeInterface, never())
+                .enableAdvertisingSet(anyInt(), eq(false), anyInt(), anyInt());
+
+        // The controller answer to the switch is not for the application
+        assertThat(mVirtualizer.consumeCallback(OWNER_ID, AdvertiseCallback.ADVERTISE_SUCCESS))
+                .isTrue();
+        assertThat(mVirtualizer.consumeCallback(OWNER_ID, AdvertiseCallback.ADVERTISE_SUCCESS))
+                .isFalse();
+    }
+
+    @Test
+    public void rotate_writeFails_disablesSetAndReportsIt() {
+        mVirtualizer.onStartRequested(GUEST_REG_ID, mParameters, GUEST_DATA, SCAN_RESPONSE);
+        int guestId = mVirtualizer.startVirtualSet(GUEST_REG_ID);
+        mLooper.moveTimeForward(SLOT_DURATION_MS);
+        mLooper.dispatchAll();
+
+        assertThat(
+                        mVirtualizer.consumeCallback(
+                                OWNER_ID, AdvertiseCallback.ADVERTISE_FAILED_INTERNAL_ERROR))
+                .isTrue();
+        mLooper.dispatchAll();
+
+        verify(mCallback)
+                .onAdvertisingDisabled(guestId, AdvertiseCallback.ADVERTISE_FAILED_INTERNAL_ERROR);
+        // Back to the owner, whose data is rewritten as the instance content is unknown
+        verify(mNativeInterface).setAdvertisingData(OWNER_ID, OWNER_DATA);
+    }
+
+    @Test
+    public void stopLastSetOfInstance_dropsPendingCallbacks() {
+        mVirtualizer.onStartRequested(GUEST_REG_ID, mParameters, GUEST_DATA, SCAN_RESPONSE);
+        int guestId = mVirtualizer.startVirtualSet(GUEST_REG_ID);
+        mLooper.moveTimeForward(SLOT_DURATION_MS);
+        mLooper.dispatchAll();
+        mVirtualizer.stopAdvertisingSet(OWNER_ID);
+
+        mVirtualizer.stopAdvertisingSet(guestId);
+
+        // A new set getting the same id gets its callbacks
+        assertThat(mVirtualizer.consumeCallback(OWNER_ID, AdvertiseCallback.ADVERTISE_SUCCESS))
+                .isFalse();
+    }
+
+    @Test
+    public void stopOwner_handsInstanceOverToFirstGuest() {
+        mVirtualizer.onStartRequested(GUEST_REG_ID, mParameters, GUEST_DATA, SCAN_RESPONSE);
+        int guestId = mVirtualizer.startVirtualSet(GUEST_REG_ID);
+
+        assertThat(mVirtualizer.stopAdvertisingSet(OWNER_ID)).isTrue();
+
+        // The guest advertises alone on the instance, which is stopped with it
+        verify(mNativeInterface).setAdvertisingData(OWNER_ID, GUEST_DATA);
+        mLooper.moveTimeForward(SLOT_DURATION_MS);
+        mLooper.dispatchAll();
+        verify(mNativeInterface, never()).setAdvertisingData(OWNER_ID, OWNER_DATA);
+        assertThat(mVirtualizer.isVirtualSet(guestId)).isTrue();
+        assertThat(mVirtualizer.stopAdvertisingSet(guestId)).isTrue();
+        verify(mNativeInterface).stopAdvertisingSet(OWNER_ID);
+    }
+
+    @Test
+    public void stopOwner_otherGuestsSharingInstanceWithFirstGuest() {
+        mVirtualizer.onStartRequested(GUEST_REG_ID, mParameters, GUEST_DATA, SCAN_RESPONSE);
+        int guestId = mVirtualizer.startVirtualSet(GUEST_REG_ID);
+        mVirtualizer.onStartRequested(GUEST_REG_ID - 1, mParameters, OWNER_DATA, SCAN_RESPONSE);
+        int otherGuestId = mVirtualizer.startVirtualSet(GUEST_REG_ID - 1);
+
+        mVirtualizer.stopAdvertisingSet(OWNER_ID);
+        assertThat(mVirtualizer.getOwnAddress(otherGuestId)).isTrue();
+
+        // The other guest is hosted by the instance handed over to the first one
+        verify(mNativeInterface).getOwnAddress(OWNER_ID);
+        assertThat(mVirtualizer.consumeOwnAddressRead(OWNER_ID)).isEqualTo(otherGuestId);
+        assertThat(mVirtualizer.stopAdvertisingSet(otherGuestId)).isTrue();
+        assertThat(mVirtualizer.stopAdvertisingSet(guestId)).isTrue();
+        verify(mNativeInterface).stopAdvertisingSet(OWNER_ID);
+    }
+
+    @Test
+    public void enableVirtualSet_durationElapsed_disablesSetAndReportsTimeout() {
+        mVirtualizer.onStartRequested(GUEST_REG_ID, mParameters, GUEST_DATA, SCAN_RESPONSE);
+        int guestId = mVirtualizer.startVirtualSet(GUEST_REG_ID);
+
+        // Duration is in 10ms units
+        assertThat(mVirtualizer.enableAdvertisingSet(guestId, true, 50, 0)).isTrue();
+        mLooper.moveTimeForward(500);
+        mLooper.dispatchAll();
+
+        verify(mCallback).onAdvertisingDisabled(guestId, AdvertiseVirtualizer.STATUS_TIMEOUT);
+    }
+
+    @Test
+    public void enableSharedOwner_eventLimitReached_switchesToGuestAndReportsIt() {
+        mVirtualizer.onStartRequested(GUEST_REG_ID, mParameters, GUEST_DATA, SCAN_RESPONSE);
+        mVirtualizer.startVirtualSet(GUEST_REG_ID);
+
+        assertThat(mVirtualizer.enableAdvertisingSet(OWNER_ID, true, 0, 5)).isTrue();
+        mLooper.moveTimeForward(5 * INTERVAL_MS);
+        mLooper.dispatchAll();
+
+        verify(mCallback)
+                .onAdvertisingDisabled(OWNER_ID, AdvertiseVirtualizer.STATUS_LIMIT_REACHED);
+        verify(mNativeInterface).setAdvertisingData(OWNER_ID, GUEST_DATA);
+        // The instance keeps running for the guest, with no limit of its own
+        verify(mNativeInterface, never()).enableAdvertisingSet(anyInt(), eq(true), eq(0), eq(5));
+    }
+
+    @Test
+    public void getOwnAddress_virtualSet_readsAddressOfHost() {
+        mVirtualizer.onStartRequested(GUEST_REG_ID, mParameters, GUEST_DATA, SCAN_RESPONSE);
+        int guestId = mVirtualizer.startVirtualSet(GUEST_REG_ID);
+
+        assertThat(mVirtualizer.getOwnAddress(guestId)).isTrue();
+        assertThat(mVirtualizer.getOwnAddress(OWNER_ID)).isFalse();
+
+        verify(mNativeInterface).getOwnAddress(OWNER_ID);
+        assertThat(mVirtualizer.consumeOwnAddressRead(OWNER_ID)).isEqualTo(guestId);
+        assertThat(mVirtualizer.consumeOwnAddressRead(OWNER_ID)).isEqualTo(OWNER_ID);
+    }
+
+    @Test
+    public void stopVirtualSet_givesInstanceBackToOwner() {
+        mVirtualizer.onStartRequested(GUEST_REG_ID, mParameters, GUEST_DATA, SCAN_RESPONSE);
+        int guestId = mVirtualizer.startVirtualSet(GUEST_REG_ID);
+        mLooper.moveTimeForward(SLOT_DURATION_MS);
+        mLooper.dispatchAll();
+
+        assertThat(mVirtualizer.stopAdvertisingSet(guestId)).isTrue();
+
+        verify(mNativeInterface).setAdvertisingData(OWNER_ID, OWNER_DATA);
+        assertThat(mVirtualizer.isVirtualSet(guestId)).isFalse();
+        assertThat(mVirtualizer.stopAdvertisingSet(OWNER_ID)).isFalse();
+    }
+}
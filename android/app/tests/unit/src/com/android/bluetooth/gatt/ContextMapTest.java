@@ -164,6 +164,43 @@ public class ContextMapTest {
         assertThat(contextMap.getConnectedMap()).isEmpty();
     }
 
+    @Test
+    public void getById_findsIdAssignedAfterAdd() {
+        ContextMap<IBluetoothGattCallback> contextMap = getMapWithAppAndConnection();
+        App app = contextMap.getById(APP_ID1);
+
+        app.id = 42;
+
+        assertThat(contextMap.getById(42)).isSameInstanceAs(app);
+        assertThat(contextMap.getById(APP_ID1)).isNull();
+        assertThat(contextMap.getByUuid(RANDOM_UUID1)).isSameInstanceAs(app);
+    }
+
+    @Test
+    public void connIdByAddress_ignoresCase() {
+        ContextMap<IBluetoothGattCallback> contextMap = getMapWithAppAndConnection();
+
+        assertThat(contextMap.connIdByAddress(APP_ID1, ADDRESS1.toLowerCase())).isEqualTo(CONN_ID1);
+        assertThat(contextMap.connIdByAddress(APP_ID1, ADDRESS2)).isNull();
+    }
+
+    @Test
+    public void lookups_withManyConnections() {
+        ContextMap<IBluetoothGattCallback> contextMap = getMapWithAppAndConnection();
+        for (int i = 0; i < 64; i++) {
+            contextMap.addConnection(APP_ID2, 1000 + i, String.format("00:11:22:33:44:%02X", i));
+        }
+
+        assertThat(contextMap.getByConnId(1000 + 63).id).isEqualTo(APP_ID2);
+        assertThat(contextMap.addressByConnId(1000 + 10)).isEqualTo("00:11:22:33:44:0A");
+        assertThat(contextMap.connIdByAddress(APP_ID2, "00:11:22:33:44:3F")).isEqualTo(1063);
+
+        contextMap.removeConnectionsByAppId(APP_ID2);
+        assertThat(contextMap.getByConnId(1000)).isNull();
+        assertThat(contextMap.connIdByAddress(APP_ID2, "00:11:22:33:44:3F")).isNull();
+        assertThat(contextMap.getByConnId(CONN_ID1).id).isEqualTo(APP_ID1);
+    }
+
     @Test
     public void testDump_doesNotCrash() throws Exception {
         StringBuilder sb = new StringBuilder();
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.UUID;
+
+/** Test cases for {@link HandleMap}. */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class HandleMapTest {
+    private static final int SERVER_IF = 5;
+    private static final int OTHER_SERVER_IF = 6;
+    private static final UUID SERVICE_UUID = UUID.randomUUID();
+    private static final UUID CHAR_UUID = UUID.randomUUID();
+    private static final UUID DESC_UUID = UUID.randomUUID();
+
+    private final HandleMap mHandleMap = new HandleMap();
+
+    private void addService(int serverIf, int serviceHandle) {
+        mHandleMap.addService(serverIf, serviceHandle, SERVICE_UUID, 0, 0, false);
+        mHandleMap.addCharacteristic(serverIf, serviceHandle + 1, CHAR_UUID, serviceHandle);
+        mHandleMap.addDescriptor(serverIf, serviceHandle + 2, DESC_UUID, serviceHandle);
+    }
+
+    @Test
+    public void getByHandle() {
+        addService(SERVER_IF, 10);
+
+        HandleMap.Entry descriptor = mHandleMap.getByHandle(12);
+
+        assertThat(descriptor.type).isEqualTo(HandleMap.TYPE_DESCRIPTOR);
+        assertThat(descriptor.serviceHandle).isEqualTo(10);
+        assertThat(descriptor.charHandle).isEqualTo(11);
+        assertThat(mHandleMap.getByHandle(11).uuid).isEqualTo(CHAR_UUID);
+        assertThat(mHandleMap.getByHandle(13)).isNull();
+    }
+
+    @Test
+    public void setStarted_onlyMatchingServer() {
+        addService(SERVER_IF, 10);
+
+        mHandleMap.setStarted(OTHER_SERVER_IF, 10, true);
+        assertThat(mHandleMap.getByHandle(10).started).isFalse();
+
+        mHandleMap.setStarted(SERVER_IF, 10, true);
+        assertThat(mHandleMap.getByHandle(10).started).isTrue();
+    }
+
+    @Test
+    public void checkServiceExists() {
+        addService(SERVER_IF, 10);
+
+        assertThat(mHandleMap.checkServiceExists(SERVICE_UUID, 10)).isTrue();
+        assertThat(mHandleMap.checkServiceExists(CHAR_UUID, 11)).isFalse();
+        assertThat(mHandleMap.checkServiceExists(SERVICE_UUID, 20)).isFalse();
+    }
+
+    @Test
+    public void deleteService_removesOnlyItsAttributes() {
+        addService(SERVER_IF, 10);
+        addService(SERVER_IF, 20);
+        addService(OTHER_SERVER_IF, 30);
+
+        mHandleMap.deleteService(SERVER_IF, 10);
+
+        assertThat(mHandleMap.getByHandle(10)).isNull();
+        assertThat(mHandleMap.getByHandle(12)).isNull();
+        assertThat(mHandleMap.getByHandle(21)).isNotNull();
+        assertThat(mHandleMap.getEntries()).hasSize(6);
+        assertThat(mHandleMap.getEntries().get(0).handle).isEqualTo(20);
+    }
+
+    @Test
+    public void clear() {
+        addService(SERVER_IF, 10);
+        mHandleMap.addRequest(1, 2, 11);
+
+        mHandleMap.clear();
+
+        assertThat(mHandleMap.getEntries()).isEmpty();
+        assertThat(mHandleMap.getByHandle(10)).isNull();
+        assertThat(mHandleMap.getByRequestId(2)).isNull();
+    }
+}
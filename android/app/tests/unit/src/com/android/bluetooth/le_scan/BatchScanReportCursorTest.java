@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.le_scan;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.le.ScanResult;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Test cases for {@link BatchScanReportCursor}. */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BatchScanReportCursorTest {
+    private static final long NOW_NANOS = 100_000_000_000L;
+
+    @Test
+    public void truncatedReport() {
+        byte[] recordData =
+                new byte[] {
+                    0x06, 0x05, 0x04, 0x03, 0x02, 0x01, 0x00, 0x00, -60, 0x02, 0x00, // record #1
+                    0x16, 0x15, 0x14, 0x13, 0x12, 0x11, 0x00, 0x00, -70, 0x00, 0x00, // record #2
+                };
+        BatchScanReportCursor cursor =
+                new BatchScanReportCursor(
+                        ScanManager.SCAN_RESULT_TYPE_TRUNCATED, 2, recordData, NOW_NANOS);
+
+        assertThat(cursor.moveToNext()).isTrue();
+        assertThat(cursor.hasAddress("01:02:03:04:05:06")).isTrue();
+        assertThat(cursor.hasAddress("11:12:13:14:15:16")).isFalse();
+        assertThat(cursor.getRssi()).isEqualTo(-60);
+        assertThat(cursor.getTimestampNanos()).isEqualTo(NOW_NANOS - 100_000_000L);
+        ScanResult result = cursor.getResult();
+        assertThat(cursor.getResult()).isSameInstanceAs(result);
+        assertThat(result.getDevice().getAddress()).isEqualTo("01:02:03:04:05:06");
+        assertThat(result.getScanRecord().getBytes()).isEmpty();
+
+        assertThat(cursor.moveToNext()).isTrue();
+        assertThat(cursor.hasAddress("11:12:13:14:15:16")).isTrue();
+        assertThat(cursor.getResult().getRssi()).isEqualTo(-70);
+
+        assertThat(cursor.moveToNext()).isFalse();
+    }
+
+    @Test
+    public void fullReport() {
+        byte[] recordData =
+                new byte[] {
+                    0x06, 0x05, 0x04, 0x03, 0x02, 0x01, 0x00, 0x00, -60, 0x01, 0x00, // header #1
+                    0x03, 0x02, 0x01, 0x06, // advertising data
+                    0x02, 0x01, 0x02, // scan response
+                    0x16, 0x15, 0x14, 0x13, 0x12, 0x11, 0x00, 0x00, -70, 0x00, 0x00, // header #2
+                    0x00, // no advertising data
+                    0x00, // no scan response
+                };
+        BatchScanReportCursor cursor =
+                new BatchScanReportCursor(
+                        ScanManager.SCAN_RESULT_TYPE_FULL, 2, recordData, NOW_NANOS);
+
+        assertThat(cursor.moveToNext()).isTrue();
+        assertThat(cursor.hasAddress("01:02:03:04:05:06")).isTrue();
+        assertThat(cursor.getTimestampNanos()).isEqualTo(NOW_NANOS - 50_000_000L);
+        assertThat(cursor.getResult().getScanRecord().getBytes())
+                .isEqualTo(new byte[] {0x02, 0x01, 0x06, 0x01, 0x02});
+
+        assertThat(cursor.moveToNext()).isTrue();
+        assertThat(cursor.hasAddress("11:12:13:14:15:16")).isTrue();
+        assertThat(cursor.getResult().getScanRecord().getBytes()).isEmpty();
+
+        assertThat(cursor.moveToNext()).isFalse();
+    }
+
+    @Test
+    public void hasAddress_ignoresCase() {
+        byte[] recordData =
+                new byte[] {
+                    (byte) 0xEE, (byte) 0xFF, 0x33, 0x22, 0x11, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00
+                };
+        BatchScanReportCursor cursor =
+                new BatchScanReportCursor(
+                        ScanManager.SCAN_RESULT_TYPE_TRUNCATED, 1, recordData, NOW_NANOS);
+
+        assertThat(cursor.moveToNext()).isTrue();
+        assertThat(cursor.hasAddress("00:11:22:33:ff:ee")).isTrue();
+        assertThat(cursor.hasAddress("00:11:22:33:FF:EE")).isTrue();
+        assertThat(cursor.hasAddress("00:11:22:33:FF")).isFalse();
+        assertThat(cursor.hasAddress(null)).isFalse();
+    }
+
+    @Test
+    public void emptyReport() {
+        BatchScanReportCursor cursor =
+                new BatchScanReportCursor(
+                        ScanManager.SCAN_RESULT_TYPE_FULL, 0, new byte[13], NOW_NANOS);
+
+        assertThat(cursor.moveToNext()).isFalse();
+    }
+}
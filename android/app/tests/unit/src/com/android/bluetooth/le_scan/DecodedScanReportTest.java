@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.le_scan;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanResult;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Test cases for {@link DecodedScanReport}. */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class DecodedScanReportTest {
+    private static final String ADDRESS = "00:11:22:33:FF:EE";
+    private static final int LEGACY_EVENT_TYPE = 0x13;
+    private static final int EXTENDED_EVENT_TYPE = 0x01;
+    private static final long TIMESTAMP_NANOS = 123456789L;
+
+    private static byte[] advData() {
+        byte[] advData = new byte[DecodedScanReport.LEGACY_ADV_DATA_LENGTH + 10];
+        // Complete local name "abc"
+        advData[0] = 0x04;
+        advData[1] = 0x09;
+        advData[2] = 'a';
+        advData[3] = 'b';
+        advData[4] = 'c';
+        return advData;
+    }
+
+    private static DecodedScanReport newReport(int eventType, byte[] advData) {
+        return new DecodedScanReport(
+                eventType,
+                BluetoothDevice.ADDRESS_TYPE_PUBLIC,
+                ADDRESS,
+                1,
+                0,
+                0xff,
+                127,
+                -50,
+                0,
+                advData,
+                ADDRESS,
+                TIMESTAMP_NANOS);
+    }
+
+    @Test
+    public void isLegacyEvent() {
+        assertThat(newReport(LEGACY_EVENT_TYPE, advData()).isLegacyEvent()).isTrue();
+        assertThat(newReport(EXTENDED_EVENT_TYPE, advData()).isLegacyEvent()).isFalse();
+    }
+
+    @Test
+    public void getResult_decodesOncePerView() {
+        DecodedScanReport report = newReport(LEGACY_EVENT_TYPE, advData());
+        assertThat(report.getDecodeCount()).isEqualTo(0);
+
+        ScanResult first = report.getResult(false);
+        for (int i = 0; i < 15; i++) {
+            assertThat(report.getResult(false)).isSameInstanceAs(first);
+        }
+        assertThat(report.getDecodeCount()).isEqualTo(1);
+
+        ScanResult legacy = report.getResult(true);
+        assertThat(report.getResult(true)).isSameInstanceAs(legacy);
+        assertThat(report.getDecodeCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void getResult_legacyViewIsTruncated() {
+        byte[] advData = advData();
+        DecodedScanReport report = newReport(LEGACY_EVENT_TYPE, advData);
+
+        ScanResult legacy = report.getResult(true);
+        ScanResult full = report.getResult(false);
+
+        assertThat(legacy.getScanRecord().getBytes())
+                .hasLength(DecodedScanReport.LEGACY_ADV_DATA_LENGTH);
+        assertThat(full.getScanRecord().getBytes()).isEqualTo(advData);
+        assertThat(legacy.getScanRecord().getDeviceName()).isEqualTo("abc");
+        assertThat(legacy.getDevice()).isSameInstanceAs(full.getDevice());
+        assertThat(legacy.getDevice().getAddress()).isEqualTo(ADDRESS);
+        assertThat(full.getTimestampNanos()).isEqualTo(TIMESTAMP_NANOS);
+        assertThat(full.getRssi()).isEqualTo(-50);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.le_scan;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.ParcelUuid;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Test cases for {@link ScanFilterIndex}. */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ScanFilterIndexTest {
+    private static final String ADDRESS = "00:11:22:33:FF:EE";
+    private static final String OTHER_ADDRESS = "00:11:22:33:44:55";
+    private static final int MANUFACTURER_ID = 0x00E0;
+    private static final ParcelUuid SERVICE_UUID =
+            ParcelUuid.fromString("0000FEAA-0000-1000-8000-00805F9B34FB");
+
+    private static final ScanSettings SETTINGS = new ScanSettings.Builder().build();
+
+    private final BluetoothAdapter mAdapter = BluetoothAdapter.getDefaultAdapter();
+    private final ScanFilterIndex mIndex = new ScanFilterIndex();
+
+    private static ScanClient newClient(int scannerId, ScanFilter... filters) {
+        List<ScanFilter> list = new ArrayList<>();
+        for (ScanFilter filter : filters) {
+            list.add(filter);
+        }
+        return new ScanClient(scannerId, SETTINGS, list, 0);
+    }
+
+    private ScanResult newResult(String address, byte[] advData) {
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        return new ScanResult(
+                device, 0, 1, 0, 0xff, 127, -50, 0, ScanRecord.parseFromBytes(advData), 0);
+    }
+
+    // Flags, manufacturer 0x00E0 data {0x01, 0x02}, 16-bit service UUID 0xFEAA
+    private static final byte[] ADV_DATA =
+            new byte[] {
+                0x02, 0x01, 0x06, 0x05, (byte) 0xFF, (byte) 0xE0, 0x00, 0x01, 0x02, 0x03, 0x03,
+                (byte) 0xAA, (byte) 0xFE
+            };
+
+    @Test
+    public void match_unfilteredClientAlwaysMatches() {
+        ScanClient client = new ScanClient(1, SETTINGS, null, 0);
+        mIndex.add(client);
+
+        ScanFilterIndex.Match match = mIndex.match(newResult(ADDRESS, ADV_DATA), null);
+
+        assertThat(match.isIndexed(client)).isTrue();
+        assertThat(match.matches(client)).isTrue();
+    }
+
+    @Test
+    public void match_byAddress() {
+        ScanClient client =
+                newClient(1, new ScanFilter.Builder().setDeviceAddress(ADDRESS).build());
+        mIndex.add(client);
+
+        assertThat(mIndex.match(newResult(ADDRESS, ADV_DATA), null).matches(client)).isTrue();
+        assertThat(mIndex.match(newResult(OTHER_ADDRESS, ADV_DATA), null).matches(client))
+                .isFalse();
+    }
+
+    @Test
+    public void match_byOriginalAddress() {
+        ScanClient client =
+                newClient(1, new ScanFilter.Builder().setDeviceAddress(ADDRESS).build());
+        mIndex.add(client);
+
+        ScanFilterIndex.Match match =
+                mIndex.match(newResult(OTHER_ADDRESS, ADV_DATA), ADDRESS.toLowerCase());
+
+        assertThat(match.matches(client)).isTrue();
+    }
+
+    @Test
+    public void match_byManufacturerData() {
+        ScanClient matching =
+                newClient(
+                        1,
+                        new ScanFilter.Builder()
+                                .setManufacturerData(MANUFACTURER_ID, new byte[] {0x01})
+                                .build());
+        ScanClient wrongData =
+                newClient(
+                        2,
+                        new ScanFilter.Builder()
+                                .setManufacturerData(MANUFACTURER_ID, new byte[] {0x02})
+                                .build());
+        ScanClient wrongId =
+                newClient(
+                        3,
+                        new ScanFilter.Builder()
+                                .setManufacturerData(MANUFACTURER_ID + 1, new byte[] {0x01})
+                                .build());
+        mIndex.add(matching);
+        mIndex.add(wrongData);
+        mIndex.add(wrongId);
+
+        ScanFilterIndex.Match match = mIndex.match(newResult(ADDRESS, ADV_DATA), null);
+
+        assertThat(match.matches(matching)).isTrue();
+        assertThat(match.matches(wrongData)).isFalse();
+        assertThat(match.matches(wrongId)).isFalse();
+        // The filter keyed on another manufacturer ID is never evaluated
+        assertThat(match.mEvaluatedFilters).isEqualTo(2);
+    }
+
+    @Test
+    public void match_byServiceUuid() {
+        ScanClient client =
+                newClient(1, new ScanFilter.Builder().setServiceUuid(SERVICE_UUID).build());
+        mIndex.add(client);
+
+        assertThat(mIndex.match(newResult(ADDRESS, ADV_DATA), null).matches(client)).isTrue();
+        ScanResult noUuid = newResult(ADDRESS, new byte[] {0x02, 0x01, 0x06});
+        assertThat(mIndex.match(noUuid, null).matches(client)).isFalse();
+    }
+
+    @Test
+    public void match_costIndependentOfUnrelatedFilters() {
+        ScanClient client =
+                newClient(
+                        0,
+                        new ScanFilter.Builder()
+                                .setManufacturerData(MANUFACTURER_ID, new byte[] {0x01})
+                                .build());
+        mIndex.add(client);
+        for (int i = 1; i <= 200; i++) {
+            mIndex.add(
+                    newClient(
+                            i,
+                            new ScanFilter.Builder()
+                                    .setManufacturerData(MANUFACTURER_ID + i, new byte[] {0x01})
+                                    .build()));
+        }
+        assertThat(mIndex.getFilterCount()).isEqualTo(201);
+
+        ScanFilterIndex.Match match = mIndex.match(newResult(ADDRESS, ADV_DATA), null);
+
+        assertThat(match.matches(client)).isTrue();
+        assertThat(match.mEvaluatedFilters).isEqualTo(1);
+    }
+
+    @Test
+    public void match_reusedMatch_holdsLatestLookupOnly() {
+        ScanClient client =
+                newClient(1, new ScanFilter.Builder().setDeviceAddress(ADDRESS).build());
+        ScanClient unfiltered = new ScanClient(2, SETTINGS, null, 0);
+        mIndex.add(client);
+        mIndex.add(unfiltered);
+        ScanFilterIndex.Match match = new ScanFilterIndex.Match();
+
+        mIndex.match(newResult(ADDRESS, ADV_DATA), null, match);
+        assertThat(match.matches(client)).isTrue();
+        assertThat(match.matches(unfiltered)).isTrue();
+
+        mIndex.remove(unfiltered);
+        mIndex.match(newResult(OTHER_ADDRESS, ADV_DATA), null, match);
+        assertThat(match.matches(client)).isFalse();
+        assertThat(match.isIndexed(unfiltered)).isFalse();
+        assertThat(match.matches(unfiltered)).isFalse();
+    }
+
+    @Test
+    public void remove_clientIsNoLongerIndexed() {
+        ScanClient client =
+                newClient(1, new ScanFilter.Builder().setDeviceAddress(ADDRESS).build());
+        mIndex.add(client);
+        mIndex.remove(client);
+
+        ScanFilterIndex.Match match = mIndex.match(newResult(ADDRESS, ADV_DATA), null);
+
+        assertThat(match.isIndexed(client)).isFalse();
+        assertThat(match.matches(client)).isFalse();
+        assertThat(mIndex.getFilterCount()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.le_scan;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.le.ScanFilter;
+import android.os.ParcelUuid;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.Set;
+
+/** Test cases for {@link ScanFilterSlotAllocator}. */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ScanFilterSlotAllocatorTest {
+    private static final int DELIVERY_MODE_IMMEDIATE = 0;
+    private static final int DELIVERY_MODE_BATCH = 2;
+    private static final int MANUFACTURER_ID = 0x00E0;
+    private static final ParcelUuid SERVICE_UUID =
+            ParcelUuid.fromString("0000FEAA-0000-1000-8000-00805F9B34FB");
+
+    private static final ScanFilter UUID_FILTER =
+            new ScanFilter.Builder().setServiceUuid(SERVICE_UUID).build();
+    private static final ScanFilter UUID_AND_NAME_FILTER =
+            new ScanFilter.Builder().setServiceUuid(SERVICE_UUID).setDeviceName("name").build();
+    private static final ScanFilter MANUFACTURER_FILTER =
+            new ScanFilter.Builder()
+                    .setManufacturerData(MANUFACTURER_ID, new byte[] {0x01, 0x02})
+                    .build();
+
+    private final ScanFilterSlotAllocator mAllocator = new ScanFilterSlotAllocator();
+
+    @Before
+    public void setUp() {
+        mAllocator.init(4, 6);
+    }
+
+    @Test
+    public void allocate_identicalFilters_shareOneSlot() {
+        assertThat(mAllocator.allocate(1, List.of(UUID_FILTER), DELIVERY_MODE_IMMEDIATE, true))
+                .hasSize(1);
+        assertThat(mAllocator.allocate(2, List.of(UUID_FILTER), DELIVERY_MODE_IMMEDIATE, true))
+                .isEmpty();
+
+        assertThat(mAllocator.getFreeSlotCount()).isEqualTo(1);
+        assertThat(mAllocator.hasSlots(2)).isTrue();
+    }
+
+    @Test
+    public void allocate_narrowerFilter_sharesSlotOfBroaderFilter() {
+        mAllocator.allocate(1, List.of(UUID_FILTER), DELIVERY_MODE_IMMEDIATE, true);
+
+        assertThat(
+                        mAllocator.allocate(
+                                2, List.of(UUID_AND_NAME_FILTER), DELIVERY_MODE_IMMEDIATE, true))
+                .isEmpty();
+        // The broader filter of a client covers its narrower filters
+        assertThat(
+                        mAllocator.allocate(
+                                3,
+                                List.of(UUID_AND_NAME_FILTER, UUID_FILTER, UUID_FILTER),
+                                DELIVERY_MODE_BATCH,
+                                true))
+                .hasSize(1);
+        assertThat(mAllocator.getFreeSlotCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void allocate_differentDeliveryModeOrNotShareable_usesOwnSlot() {
+        mAllocator.allocate(1, List.of(UUID_FILTER), DELIVERY_MODE_IMMEDIATE, true);
+
+        assertThat(mAllocator.allocate(2, List.of(UUID_FILTER), DELIVERY_MODE_BATCH, true))
+                .hasSize(1);
+        assertThat(mAllocator.fits(List.of(UUID_FILTER), DELIVERY_MODE_IMMEDIATE, false))
+                .isFalse();
+    }
+
+    @Test
+    public void release_freesSlotWithLastClient() {
+        mAllocator.allocate(1, List.of(UUID_FILTER), DELIVERY_MODE_IMMEDIATE, true);
+        mAllocator.allocate(2, List.of(UUID_FILTER), DELIVERY_MODE_IMMEDIATE, true);
+
+        assertThat(mAllocator.release(1)).isEmpty();
+        List<ScanFilterSlotAllocator.Slot> unused = mAllocator.release(2);
+
+        assertThat(unused).hasSize(1);
+        assertThat(unused.get(0).getFilter()).isEqualTo(UUID_FILTER);
+        assertThat(mAllocator.getFreeSlotCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void fitsAfterReleasing_countsSlotsOnlyUsedByReleasedClients() {
+        mAllocator.allocate(1, List.of(UUID_FILTER), DELIVERY_MODE_IMMEDIATE, true);
+        mAllocator.allocate(2, List.of(UUID_FILTER), DELIVERY_MODE_IMMEDIATE, true);
+        mAllocator.allocate(3, List.of(MANUFACTURER_FILTER), DELIVERY_MODE_IMMEDIATE, true);
+        List<ScanFilter> filters =
+                List.of(
+                        new ScanFilter.Builder().setDeviceName("a").build(),
+                        new ScanFilter.Builder().setDeviceName("b").build());
+
+        assertThat(mAllocator.fits(filters, DELIVERY_MODE_IMMEDIATE, true)).isFalse();
+        assertThat(
+                        mAllocator.fitsAfterReleasing(
+                                filters, DELIVERY_MODE_IMMEDIATE, true, Set.of(1, 3)))
+                .isFalse();
+        assertThat(
+                        mAllocator.fitsAfterReleasing(
+                                filters, DELIVERY_MODE_IMMEDIATE, true, Set.of(1, 2, 3)))
+                .isTrue();
+    }
+
+    @Test
+    public void getExpectedHitRate_broaderFiltersRateHigher() {
+        assertThat(ScanFilterSlotAllocator.getExpectedHitRate(List.of(UUID_FILTER)))
+                .isGreaterThan(
+                        ScanFilterSlotAllocator.getExpectedHitRate(List.of(UUID_AND_NAME_FILTER)));
+        assertThat(
+                        ScanFilterSlotAllocator.getExpectedHitRate(
+                                List.of(UUID_FILTER, MANUFACTURER_FILTER)))
+                .isGreaterThan(ScanFilterSlotAllocator.getExpectedHitRate(List.of(UUID_FILTER)));
+    }
+}
@@ -109,6 +109,7 @@ public class TransitionalScanHelperTest {
                 .when(mScanObjectsFactory)
                 .createScanManager(any(), any(), any(), any());
         doReturn(mPeriodicScanManager).when(mScanObjectsFactory).createPeriodicScanManager(any());
+        doReturn(new ScanFilterIndex()).when(mScanManager).getScanFilterIndex();
 
         doReturn(mResources).when(mAdapterService).getResources();
         doReturn(mContext.getPackageManager()).when(mAdapterService).getPackageManager();
@@ -59,17 +59,21 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.Spy;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
 
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
@@ -1813,6 +1817,241 @@ public class BluetoothMapContentObserverTest {
                 mObserver.getMsgListSms().get(TEST_HANDLE_ONE).flagRead, TEST_READ_FLAG_ONE);
     }
 
+    @Test
+    public void refreshMsgListSms_withNewMessage_onlyReadsRowsPastHighWaterMark() {
+        String[] projection = new String[] {Sms._ID, Sms.TYPE, Sms.THREAD_ID, Sms.READ};
+        MatrixCursor initialCursor = new MatrixCursor(projection);
+        initialCursor.addRow(
+                new Object[] {
+                    TEST_HANDLE_ONE, TEST_SMS_TYPE_INBOX, TEST_THREAD_ID, TEST_READ_FLAG_ONE
+                });
+        MatrixCursor newRowsCursor = new MatrixCursor(projection);
+        newRowsCursor.addRow(
+                new Object[] {
+                    TEST_HANDLE_ONE, TEST_SMS_TYPE_INBOX, TEST_THREAD_ID, TEST_READ_FLAG_ONE
+                });
+        newRowsCursor.addRow(
+                new Object[] {
+                    TEST_HANDLE_TWO, TEST_SMS_TYPE_INBOX, TEST_THREAD_ID, TEST_READ_FLAG_ZERO
+                });
+        when(mMapMethodProxy.contentResolverQuery(any(), any(), any(), any(), any(), any()))
+                .thenReturn(initialCursor, newRowsCursor, countCursor(1));
+        mObserver.mMapEventReportVersion = BluetoothMapUtils.MAP_EVENT_REPORT_V10;
+        mObserver.setMsgListSms(new HashMap<>(), true);
+        mObserver.handleMsgListChangesSms();
+
+        mObserver.refreshMsgListSms();
+
+        verify(mMapMethodProxy)
+                .contentResolverQuery(
+                        any(), any(), any(), eq(Sms._ID + " >= " + TEST_HANDLE_ONE), any(), any());
+        verify(mMapMethodProxy, never())
+                .contentResolverQuery(
+                        any(),
+                        any(),
+                        eq(BluetoothMapContentObserver.SMS_PROJECTION_SHORT),
+                        eq(Sms._ID + " <= " + TEST_HANDLE_ONE),
+                        any(),
+                        any());
+        Assert.assertEquals(2, mObserver.getMsgListSms().size());
+        Assert.assertEquals(
+                mObserver.getMsgListSms().get(TEST_HANDLE_TWO).flagRead, TEST_READ_FLAG_ZERO);
+    }
+
+    @Test
+    public void refreshMsgListSms_newestMessageDeletedThenIdReused_sendsNewMessage() {
+        long newDateMs = TEST_DATE_MS + 1;
+        when(mMapMethodProxy.contentResolverQuery(any(), any(), any(), any(), any(), any()))
+                .thenReturn(
+                        // Initial list
+                        smsCursor(TEST_HANDLE_ONE, TEST_DATE_MS, TEST_HANDLE_TWO, TEST_DATE_MS),
+                        // Newest message deleted
+                        smsCursor(),
+                        smsCursor(TEST_HANDLE_ONE, TEST_DATE_MS),
+                        // New message given the ID of the deleted one
+                        smsCursor(TEST_HANDLE_ONE, TEST_DATE_MS, TEST_HANDLE_TWO, newDateMs),
+                        countCursor(1));
+        when(mClient.isConnected()).thenReturn(true);
+        mObserver.mMapEventReportVersion = BluetoothMapUtils.MAP_EVENT_REPORT_V10;
+        mObserver.setMsgListSms(new HashMap<>(), true);
+        mObserver.handleMsgListChangesSms();
+        clearInvocations(mClient);
+
+        mObserver.refreshMsgListSms();
+        mObserver.refreshMsgListSms();
+
+        verify(mMapMethodProxy)
+                .contentResolverQuery(
+                        any(), any(), any(), eq(Sms._ID + " >= " + TEST_HANDLE_ONE), any(), any());
+        Assert.assertEquals(
+                List.of(
+                        BluetoothMapContentObserver.EVENT_TYPE_DELETE,
+                        BluetoothMapContentObserver.EVENT_TYPE_NEW),
+                getSentEventTypes());
+        Assert.assertEquals(newDateMs, mObserver.getMsgListSms().get(TEST_HANDLE_TWO).date);
+    }
+
+    @Test
+    public void refreshMsgListSms_newestMessageReplacedInOneRefresh_sendsNewMessage() {
+        long newDateMs = TEST_DATE_MS + 1;
+        when(mMapMethodProxy.contentResolverQuery(any(), any(), any(), any(), any(), any()))
+                .thenReturn(
+                        // Initial list
+                        smsCursor(TEST_HANDLE_ONE, TEST_DATE_MS, TEST_HANDLE_TWO, TEST_DATE_MS),
+                        // Newest message deleted and its ID given to a new message
+                        smsCursor(TEST_HANDLE_TWO, newDateMs),
+                        smsCursor(TEST_HANDLE_ONE, TEST_DATE_MS, TEST_HANDLE_TWO, newDateMs),
+                        smsCursor(TEST_HANDLE_TWO, newDateMs));
+        when(mClient.isConnected()).thenReturn(true);
+        mObserver.mMapEventReportVersion = BluetoothMapUtils.MAP_EVENT_REPORT_V10;
+        mObserver.setMsgListSms(new HashMap<>(), true);
+        mObserver.handleMsgListChangesSms();
+        clearInvocations(mClient);
+
+        mObserver.refreshMsgListSms();
+
+        verify(mMapMethodProxy)
+                .contentResolverQuery(
+                        any(),
+                        any(),
+                        any(),
+                        eq(Sms._ID + " IN (" + TEST_HANDLE_TWO + ")"),
+                        any(),
+                        any());
+        Assert.assertEquals(
+                List.of(
+                        BluetoothMapContentObserver.EVENT_TYPE_DELETE,
+                        BluetoothMapContentObserver.EVENT_TYPE_NEW),
+                getSentEventTypes());
+        Assert.assertEquals(newDateMs, mObserver.getMsgListSms().get(TEST_HANDLE_TWO).date);
+    }
+
+    @Test
+    public void refreshMsgListSms_readStatusOfNotifiedRowChanged_onlyReadsThatRow() {
+        MatrixCursor readRow =
+                new MatrixCursor(
+                        new String[] {Sms._ID, Sms.TYPE, Sms.THREAD_ID, Sms.READ, Sms.DATE});
+        readRow.addRow(
+                new Object[] {
+                    TEST_HANDLE_ONE,
+                    TEST_SMS_TYPE_INBOX,
+                    TEST_THREAD_ID,
+                    TEST_READ_FLAG_ONE,
+                    TEST_DATE_MS
+                });
+        when(mMapMethodProxy.contentResolverQuery(any(), any(), any(), any(), any(), any()))
+                .thenReturn(
+                        // Initial list
+                        smsCursor(TEST_HANDLE_ONE, TEST_DATE_MS, TEST_HANDLE_TWO, TEST_DATE_MS),
+                        // No new message
+                        smsCursor(TEST_HANDLE_TWO, TEST_DATE_MS),
+                        countCursor(2),
+                        // Oldest message read
+                        readRow);
+        mObserver.mMapEventReportVersion = BluetoothMapUtils.MAP_EVENT_REPORT_V10;
+        mObserver.setMsgListSms(new HashMap<>(), true);
+        mObserver.refreshMsgListSms();
+
+        mObserver.recordSmsMmsChange(Uri.parse("content://sms/" + TEST_HANDLE_ONE));
+        mObserver.refreshMsgListSms();
+
+        verify(mMapMethodProxy)
+                .contentResolverQuery(
+                        any(),
+                        any(),
+                        eq(BluetoothMapContentObserver.SMS_PROJECTION_SHORT),
+                        eq(Sms._ID + " IN (" + TEST_HANDLE_ONE + ")"),
+                        any(),
+                        any());
+        verify(mMapMethodProxy, never())
+                .contentResolverQuery(
+                        any(),
+                        any(),
+                        any(),
+                        eq(Sms._ID + " <= " + TEST_HANDLE_TWO),
+                        any(),
+                        any());
+        Assert.assertEquals(2, mObserver.getMsgListSms().size());
+        Assert.assertEquals(
+                TEST_READ_FLAG_ONE, mObserver.getMsgListSms().get(TEST_HANDLE_ONE).flagRead);
+    }
+
+    @Test
+    public void refreshMsgListSms_changeNotNamingRows_diffsAllRows() {
+        when(mMapMethodProxy.contentResolverQuery(any(), any(), any(), any(), any(), any()))
+                .thenReturn(
+                        // Initial list
+                        smsCursor(TEST_HANDLE_ONE, TEST_DATE_MS, TEST_HANDLE_TWO, TEST_DATE_MS),
+                        // No new message
+                        smsCursor(TEST_HANDLE_TWO, TEST_DATE_MS),
+                        smsCursor(TEST_HANDLE_ONE, TEST_DATE_MS, TEST_HANDLE_TWO, TEST_DATE_MS));
+        mObserver.mMapEventReportVersion = BluetoothMapUtils.MAP_EVENT_REPORT_V10;
+        mObserver.setMsgListSms(new HashMap<>(), true);
+        mObserver.refreshMsgListSms();
+
+        mObserver.recordSmsMmsChange(Uri.parse("content://sms/inbox"));
+        mObserver.refreshMsgListSms();
+
+        verify(mMapMethodProxy)
+                .contentResolverQuery(
+                        any(),
+                        any(),
+                        eq(BluetoothMapContentObserver.SMS_PROJECTION_SHORT),
+                        eq(Sms._ID + " <= " + TEST_HANDLE_TWO),
+                        any(),
+                        any());
+        Assert.assertEquals(2, mObserver.getMsgListSms().size());
+    }
+
+    @Test
+    public void unregisterObserver_stopsKeepingListingCacheAcrossListings() {
+        SmsMmsListingCache listingCache = mock(SmsMmsListingCache.class);
+        mObserver.mObserverRegistered = true;
+        mObserver.setListingCache(listingCache);
+
+        mObserver.unregisterObserver();
+
+        verify(listingCache).setObserved(false);
+    }
+
+    /** Returns the cursor of a COUNT(*) query. */
+    private static MatrixCursor countCursor(int count) {
+        MatrixCursor cursor = new MatrixCursor(new String[] {"COUNT(*)"});
+        cursor.addRow(new Object[] {count});
+        return cursor;
+    }
+
+    /** Returns a cursor of inbox SMS rows, given as pairs of ID and date. */
+    private static MatrixCursor smsCursor(long... idsAndDates) {
+        MatrixCursor cursor =
+                new MatrixCursor(
+                        new String[] {Sms._ID, Sms.TYPE, Sms.THREAD_ID, Sms.READ, Sms.DATE});
+        for (int i = 0; i < idsAndDates.length; i += 2) {
+            cursor.addRow(
+                    new Object[] {
+                        idsAndDates[i],
+                        TEST_SMS_TYPE_INBOX,
+                        TEST_THREAD_ID,
+                        TEST_READ_FLAG_ZERO,
+                        idsAndDates[i + 1]
+                    });
+        }
+        return cursor;
+    }
+
+    /** Returns the types of the events sent to the MNS client, in order. */
+    private List<String> getSentEventTypes() throws Exception {
+        ArgumentCaptor<byte[]> captor = ArgumentCaptor.forClass(byte[].class);
+        verify(mClient, atLeast(0)).sendEvent(captor.capture(), anyInt());
+        List<String> types = new ArrayList<>();
+        for (byte[] event : captor.getAllValues()) {
+            String xml = new String(event, StandardCharsets.UTF_8);
+            int start = xml.indexOf("type=\"") + "type=\"".length();
+            types.add(xml.substring(start, xml.indexOf('"', start)));
+        }
+        return types;
+    }
+
     @Test
     public void handleMsgListChangesSms_withNonExistingMessage_andVersion12() {
         MatrixCursor cursor =
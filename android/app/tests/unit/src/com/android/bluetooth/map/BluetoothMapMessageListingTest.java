@@ -31,8 +31,11 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
@@ -134,6 +137,26 @@ public class BluetoothMapMessageListingTest {
         assertThat(listing.getList().get(1).getReadBool()).isTrue();
     }
 
+    @Test
+    public void encodeToStream_writesSameBytesAsEncode() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        mListing.encode(out, false, TEST_VERSION);
+
+        assertThat(out.toByteArray()).isEqualTo(mListing.encode(false, TEST_VERSION));
+    }
+
+    @Test
+    public void unescapingWriter_replacesEntitiesLikeFormerWorkaround() throws Exception {
+        StringWriter sw = new StringWriter();
+        Writer writer = new BluetoothMapMessageListing.UnescapingWriter(sw);
+
+        writer.write("a &amp; b &lt;c&gt; &quot;d&quot; &amp;lt; &amp;amp;");
+        writer.close();
+
+        assertThat(sw.toString()).isEqualTo("a & b <c> &quot;d&quot; < &amp;");
+    }
+
     /**
      * Decodes the encoded xml document then append the BluetoothMapMessageListingElements to the
      * given BluetoothMapMessageListing object.
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.content.ContentResolver;
+import android.database.MatrixCursor;
+import android.provider.Telephony.CanonicalAddressesColumns;
+import android.provider.Telephony.Mms;
+import android.provider.Telephony.Threads;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.BluetoothMethodProxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.util.List;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class SmsMmsListingCacheTest {
+
+    @Rule public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+    @Mock private ContentResolver mContentResolver;
+    @Spy private BluetoothMethodProxy mMapMethodProxy = BluetoothMethodProxy.getInstance();
+
+    private SmsMmsListingCache mCache;
+
+    @Before
+    public void setUp() {
+        BluetoothMethodProxy.setInstanceForTesting(mMapMethodProxy);
+        mCache = new SmsMmsListingCache();
+    }
+
+    @After
+    public void tearDown() {
+        BluetoothMethodProxy.setInstanceForTesting(null);
+    }
+
+    @Test
+    public void prefetchTextPartsMms_readsAllMessagesWithOneQuery() {
+        MatrixCursor partCursor = new MatrixCursor(new String[] {Mms.Part.MSG_ID, Mms.Part.TEXT});
+        partCursor.addRow(new Object[] {1L, "Hello "});
+        partCursor.addRow(new Object[] {1L, "world"});
+        partCursor.addRow(new Object[] {2L, "Bye"});
+        doReturn(partCursor)
+                .when(mMapMethodProxy)
+                .contentResolverQuery(
+                        any(), eq(SmsMmsListingCache.MMS_PART_URI), any(), any(), any(), any());
+
+        mCache.prefetchTextPartsMms(mContentResolver, List.of(1L, 2L, 3L, 1L));
+
+        assertThat(mCache.getTextPartsMms(mContentResolver, 1)).isEqualTo("Hello world");
+        assertThat(mCache.getTextPartsMms(mContentResolver, 2)).isEqualTo("Bye");
+        assertThat(mCache.getTextPartsMms(mContentResolver, 3)).isEmpty();
+        verify(mMapMethodProxy, times(1))
+                .contentResolverQuery(any(), any(), any(), any(), any(), any());
+    }
+
+    @Test
+    public void prefetchCanonicalAddressesSms_joinsRecipientsOfEachThread() {
+        MatrixCursor threadCursor =
+                new MatrixCursor(new String[] {Threads._ID, Threads.RECIPIENT_IDS});
+        threadCursor.addRow(new Object[] {10, "2 1"});
+        threadCursor.addRow(new Object[] {11, "3"});
+        doReturn(threadCursor)
+                .when(mMapMethodProxy)
+                .contentResolverQuery(
+                        any(), eq(SmsMmsListingCache.THREADS_URI), any(), any(), any(), any());
+        MatrixCursor addressCursor =
+                new MatrixCursor(
+                        new String[] {
+                            CanonicalAddressesColumns._ID, CanonicalAddressesColumns.ADDRESS
+                        });
+        addressCursor.addRow(new Object[] {1L, "111"});
+        addressCursor.addRow(new Object[] {2L, "222"});
+        addressCursor.addRow(new Object[] {3L, "333"});
+        doReturn(addressCursor)
+                .when(mMapMethodProxy)
+                .contentResolverQuery(
+                        any(),
+                        eq(SmsMmsListingCache.CANONICAL_ADDRESS_URI),
+                        any(),
+                        any(),
+                        any(),
+                        any());
+
+        mCache.prefetchCanonicalAddressesSms(mContentResolver, List.of(10, 11, 12));
+
+        assertThat(mCache.getCanonicalAddressSms(mContentResolver, 10)).isEqualTo("111;222");
+        assertThat(mCache.getCanonicalAddressSms(mContentResolver, 11)).isEqualTo("333");
+        assertThat(mCache.getCanonicalAddressSms(mContentResolver, 12)).isEmpty();
+        verify(mMapMethodProxy, times(2))
+                .contentResolverQuery(any(), any(), any(), any(), any(), any());
+    }
+
+    @Test
+    public void invalidate_dropsCachedMessageData() {
+        doAnswer(
+                        invocation -> {
+                            MatrixCursor cursor = new MatrixCursor(new String[] {Mms.Addr.ADDRESS});
+                            cursor.addRow(new Object[] {"111"});
+                            return cursor;
+                        })
+                .when(mMapMethodProxy)
+                .contentResolverQuery(any(), any(), any(), any(), any(), any());
+
+        assertThat(mCache.getAddressMms(mContentResolver, 1, BluetoothMapContent.MMS_FROM))
+                .isEqualTo("111");
+        assertThat(mCache.getAddressMms(mContentResolver, 1, BluetoothMapContent.MMS_FROM))
+                .isEqualTo("111");
+        verify(mMapMethodProxy, times(1))
+                .contentResolverQuery(any(), any(), any(), any(), any(), any());
+
+        mCache.invalidate();
+        mCache.getAddressMms(mContentResolver, 1, BluetoothMapContent.MMS_FROM);
+
+        verify(mMapMethodProxy, times(2))
+                .contentResolverQuery(any(), any(), any(), any(), any(), any());
+    }
+
+    @Test
+    public void startListing_notObserved_dropsMessageData() {
+        doAnswer(invocation -> addressCursor())
+                .when(mMapMethodProxy)
+                .contentResolverQuery(any(), any(), any(), any(), any(), any());
+        mCache.getAddressMms(mContentResolver, 1, BluetoothMapContent.MMS_FROM);
+
+        mCache.startListing();
+        mCache.getAddressMms(mContentResolver, 1, BluetoothMapContent.MMS_FROM);
+
+        verify(mMapMethodProxy, times(2))
+                .contentResolverQuery(any(), any(), any(), any(), any(), any());
+    }
+
+    @Test
+    public void startListing_observed_keepsMessageData() {
+        doAnswer(invocation -> addressCursor())
+                .when(mMapMethodProxy)
+                .contentResolverQuery(any(), any(), any(), any(), any(), any());
+        mCache.setObserved(true);
+        mCache.getAddressMms(mContentResolver, 1, BluetoothMapContent.MMS_FROM);
+
+        mCache.startListing();
+        mCache.getAddressMms(mContentResolver, 1, BluetoothMapContent.MMS_FROM);
+
+        verify(mMapMethodProxy, times(1))
+                .contentResolverQuery(any(), any(), any(), any(), any(), any());
+    }
+
+    @Test
+    public void setObserved_false_dropsMessageData() {
+        doAnswer(invocation -> addressCursor())
+                .when(mMapMethodProxy)
+                .contentResolverQuery(any(), any(), any(), any(), any(), any());
+        mCache.setObserved(true);
+        mCache.getAddressMms(mContentResolver, 1, BluetoothMapContent.MMS_FROM);
+
+        mCache.setObserved(false);
+        mCache.getAddressMms(mContentResolver, 1, BluetoothMapContent.MMS_FROM);
+
+        verify(mMapMethodProxy, times(2))
+                .contentResolverQuery(any(), any(), any(), any(), any(), any());
+    }
+
+    @Test
+    public void getAddressMms_moreThanMaxEntries_evictsOldestEntries() {
+        doAnswer(invocation -> addressCursor())
+                .when(mMapMethodProxy)
+                .contentResolverQuery(any(), any(), any(), any(), any(), any());
+        for (long id = 0; id <= SmsMmsListingCache.MAX_ENTRIES; id++) {
+            mCache.getAddressMms(mContentResolver, id, BluetoothMapContent.MMS_FROM);
+        }
+
+        mCache.getAddressMms(
+                mContentResolver, SmsMmsListingCache.MAX_ENTRIES, BluetoothMapContent.MMS_FROM);
+        verify(mMapMethodProxy, times(SmsMmsListingCache.MAX_ENTRIES + 1))
+                .contentResolverQuery(any(), any(), any(), any(), any(), any());
+        mCache.getAddressMms(mContentResolver, 0, BluetoothMapContent.MMS_FROM);
+        verify(mMapMethodProxy, times(SmsMmsListingCache.MAX_ENTRIES + 2))
+                .contentResolverQuery(any(), any(), any(), any(), any(), any());
+    }
+
+    private static MatrixCursor addressCursor() {
+        MatrixCursor cursor = new MatrixCursor(new String[] {Mms.Addr.ADDRESS});
+        cursor.addRow(new Object[] {"111"});
+        return cursor;
+    }
+}
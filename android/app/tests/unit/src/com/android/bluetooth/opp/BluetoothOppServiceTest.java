@@ -32,6 +32,7 @@ import static org.mockito.Mockito.verify;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.database.MatrixCursor;
+import android.net.Uri;
 import android.os.Looper;
 
 import androidx.test.filters.MediumTest;
@@ -180,6 +181,29 @@ public class BluetoothOppServiceTest {
         assertThat(mService.mBatches).containsExactly(batch2);
     }
 
+    @Test
+    public void findShare_returnsPositionOrInsertionPoint() {
+        mService.mShares.clear();
+        for (int id : new int[] {2, 5, 9}) {
+            BluetoothOppShareInfo info = mock(BluetoothOppShareInfo.class);
+            info.mId = id;
+            mService.mShares.add(info);
+        }
+
+        assertThat(mService.findShare(5)).isEqualTo(1);
+        assertThat(mService.findShare(1)).isEqualTo(-1);
+        assertThat(mService.findShare(6)).isEqualTo(-3);
+        assertThat(mService.findShare(10)).isEqualTo(-4);
+    }
+
+    @Test
+    public void getShareId_onlyParsesShareUris() {
+        assertThat(BluetoothOppService.getShareId(Uri.parse(BluetoothShare.CONTENT_URI + "/12")))
+                .isEqualTo(12);
+        assertThat(BluetoothOppService.getShareId(BluetoothShare.CONTENT_URI)).isEqualTo(-1);
+        assertThat(BluetoothOppService.getShareId(null)).isEqualTo(-1);
+    }
+
     @Test
     public void dump_shouldNotThrow() {
         BluetoothOppShareInfo info = mock(BluetoothOppShareInfo.class);
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbap;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Event;
+import android.provider.ContactsContract.CommonDataKinds.Organization;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.provider.ContactsContract.RawContactsEntity;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.BluetoothMethodProxy;
+import com.android.bluetooth.pbap.BluetoothPbapVcardManager.VCardFilter;
+import com.android.vcard.VCardComposer;
+import com.android.vcard.VCardConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Spy;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class RawContactEntityBatchReaderTest {
+
+    private static final String[] ENTITY_PROJECTION =
+            new String[] {
+                RawContactsEntity._ID,
+                RawContacts.CONTACT_ID,
+                RawContactsEntity.DATA_ID,
+                Data.MIMETYPE,
+                Data.DATA1
+            };
+
+    // PBAP property filter bits
+    private static final int FILTER_N = 2;
+    private static final int FILTER_BDAY = 4;
+    private static final int FILTER_TEL = 7;
+    private static final int FILTER_TITLE = 12;
+    private static final int FILTER_ORG = 16;
+
+    // Every column read by RawContactsEntity#queryRawContactEntity
+    private static final String[] FULL_ENTITY_PROJECTION =
+            new String[] {
+                RawContactsEntity._ID,
+                RawContacts.CONTACT_ID,
+                RawContactsEntity.DATA_ID,
+                Data.MIMETYPE,
+                Data.DATA1,
+                Data.DATA2,
+                Data.DATA3,
+                Data.DATA4,
+                Data.DATA5,
+                Data.DATA6,
+                Data.DATA7,
+                Data.DATA8,
+                Data.DATA9,
+                Data.DATA10,
+                Data.DATA11,
+                Data.DATA12,
+                Data.DATA13,
+                Data.DATA14,
+                Data.DATA15,
+                Data.SYNC1,
+                Data.SYNC2,
+                Data.SYNC3,
+                Data.SYNC4
+            };
+
+    // Data rows of the full contact: data id, mimetype, DATA1, DATA2, DATA3, DATA4
+    private static final Object[][] FULL_CONTACT_DATA =
+            new Object[][] {
+                {11L, StructuredName.CONTENT_ITEM_TYPE, "Alice Smith", "Alice", "Smith", null},
+                {12L, Phone.CONTENT_ITEM_TYPE, "5550100", Phone.TYPE_MOBILE, null, null},
+                {13L, Organization.CONTENT_ITEM_TYPE, "Acme", null, null, "Engineer"},
+                {14L, Event.CONTENT_ITEM_TYPE, "1990-01-01", Event.TYPE_BIRTHDAY, null, null},
+                {15L, Event.CONTENT_ITEM_TYPE, "2015-06-01", Event.TYPE_ANNIVERSARY, null, null}
+            };
+
+    @Rule public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+    @Spy BluetoothMethodProxy mPbapMethodProxy = BluetoothMethodProxy.getInstance();
+
+    ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        BluetoothMethodProxy.setInstanceForTesting(mPbapMethodProxy);
+        mResolver = mock(ContentResolver.class);
+    }
+
+    @After
+    public void tearDown() {
+        BluetoothMethodProxy.setInstanceForTesting(null);
+    }
+
+    @Test
+    public void getContentValuesListMap_readsContactsInBatches() {
+        int contactCount = RawContactEntityBatchReader.BATCH_SIZE + 1;
+        MatrixCursor contactIdCursor = new MatrixCursor(new String[] {Phone.CONTACT_ID});
+        for (long id = 1; id <= contactCount; id++) {
+            contactIdCursor.addRow(new Object[] {id});
+        }
+        // Every contact has a name and a phone number, except contact 2 which has been deleted
+        doAnswer(
+                        invocation -> {
+                            String selection = invocation.getArgument(3);
+                            String ids = selection.substring(selection.indexOf('(') + 1);
+                            MatrixCursor cursor = new MatrixCursor(ENTITY_PROJECTION);
+                            for (String id : ids.substring(0, ids.length() - 1).split(",")) {
+                                long contactId = Long.parseLong(id);
+                                if (contactId != 2) {
+                                    addContactRows(cursor, contactId);
+                                }
+                            }
+                            return cursor;
+                        })
+                .when(mPbapMethodProxy)
+                .contentResolverQuery(
+                        any(), eq(RawContactsEntity.CONTENT_URI), any(), any(), any(), any());
+
+        RawContactEntityBatchReader reader =
+                new RawContactEntityBatchReader(mResolver, contactIdCursor, 0);
+        Map<String, List<ContentValues>> first = reader.getContentValuesListMap(1);
+        Map<String, List<ContentValues>> deleted = reader.getContentValuesListMap(2);
+        for (long id = 3; id <= contactCount; id++) {
+            assertThat(reader.getContentValuesListMap(id)).isNotNull();
+        }
+
+        assertThat(first.get(StructuredName.CONTENT_ITEM_TYPE).get(0).getAsString(Data.DATA1))
+                .isEqualTo("N1");
+        assertThat(first.get(Phone.CONTENT_ITEM_TYPE).get(0).getAsLong(Data._ID)).isEqualTo(3L);
+        assertThat(deleted).isNull();
+        verify(mPbapMethodProxy, times(2))
+                .contentResolverQuery(
+                        any(), eq(RawContactsEntity.CONTENT_URI), any(), any(), any(), any());
+    }
+
+    @Test
+    public void getContentValuesListMap_vCardsMatchPerContactEntityQueries() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        MockContentResolver resolver = new MockContentResolver(context);
+        resolver.addProvider(ContactsContract.AUTHORITY, new ContactsProvider(context));
+        MatrixCursor contactIdCursor = new MatrixCursor(new String[] {Phone.CONTACT_ID});
+        // Full contact, contact without any data row
+        for (long id = 1; id <= 2; id++) {
+            contactIdCursor.addRow(new Object[] {id});
+        }
+        int vcardType = VCardConfig.VCARD_TYPE_V30_GENERIC;
+        VCardComposer composer =
+                BluetoothPbapUtils.createFilteredVCardComposer(context, vcardType, null);
+        RawContactEntityBatchReader reader =
+                new RawContactEntityBatchReader(resolver, contactIdCursor, 0);
+
+        List<byte[]> filters =
+                Arrays.asList(
+                        null,
+                        filterOf(FILTER_N, FILTER_TEL),
+                        filterOf(FILTER_N, FILTER_TITLE),
+                        filterOf(FILTER_N, FILTER_ORG),
+                        filterOf(FILTER_N, FILTER_BDAY));
+        for (long id = 1; id <= 2; id++) {
+            String batched = composer.buildVCard(reader.getContentValuesListMap(id));
+            String single =
+                    composer.buildVCard(RawContactsEntity.queryRawContactEntity(resolver, id));
+            assertThat(batched).isNotEmpty();
+            for (byte[] filter : filters) {
+                VCardFilter vcardFilter = new VCardFilter(filter);
+                assertThat(vcardFilter.apply(batched, false))
+                        .isEqualTo(vcardFilter.apply(single, false));
+            }
+        }
+        String vcard = composer.buildVCard(reader.getContentValuesListMap(1));
+        assertThat(new VCardFilter(filterOf(FILTER_N, FILTER_TITLE)).apply(vcard, false))
+                .contains("TITLE:Engineer");
+        assertThat(new VCardFilter(filterOf(FILTER_N, FILTER_BDAY)).apply(vcard, false))
+                .contains("BDAY:1990-01-01");
+    }
+
+    @Test
+    public void getContentValuesListMap_contactDeletedAfterIdQuery_composesNoVCard() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        MockContentResolver resolver = new MockContentResolver(context);
+        resolver.addProvider(ContactsContract.AUTHORITY, new ContactsProvider(context));
+        // Contact 3 has no raw contact left when its entities are read
+        MatrixCursor contactIdCursor = new MatrixCursor(new String[] {Phone.CONTACT_ID});
+        for (long id = 1; id <= 3; id++) {
+            contactIdCursor.addRow(new Object[] {id});
+        }
+        VCardComposer composer =
+                BluetoothPbapUtils.createFilteredVCardComposer(
+                        context, VCardConfig.VCARD_TYPE_V30_GENERIC, null);
+        RawContactEntityBatchReader reader =
+                new RawContactEntityBatchReader(resolver, contactIdCursor, 0);
+
+        Map<String, List<ContentValues>> withoutData = reader.getContentValuesListMap(2);
+        Map<String, List<ContentValues>> deleted = reader.getContentValuesListMap(3);
+
+        assertThat(withoutData).isEmpty();
+        assertThat(deleted).isNull();
+        // Skipped by BluetoothPbapVcardManager, as for a contact deleted during the pull
+        assertThat(composer.buildVCard(deleted)).isEmpty();
+    }
+
+    @Test
+    public void getContentValuesListMap_deletedContactNotInCursorOrder_returnsNull() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        MockContentResolver resolver = new MockContentResolver(context);
+        resolver.addProvider(ContactsContract.AUTHORITY, new ContactsProvider(context));
+        MatrixCursor contactIdCursor = new MatrixCursor(new String[] {Phone.CONTACT_ID});
+        contactIdCursor.addRow(new Object[] {1L});
+        RawContactEntityBatchReader reader =
+                new RawContactEntityBatchReader(resolver, contactIdCursor, 0);
+
+        assertThat(reader.getContentValuesListMap(3)).isNull();
+        assertThat(reader.getContentValuesListMap(1)).isNotEmpty();
+    }
+
+    /** Returns a PBAP property filter with only {@code bits} set. */
+    private static byte[] filterOf(int... bits) {
+        byte[] filter = new byte[8];
+        for (int bit : bits) {
+            filter[7 - bit / 8] |= (byte) (1 << (bit % 8));
+        }
+        return filter;
+    }
+
+    /** Serves the entity rows of contacts 1 to 3, by contact id list or single contact id. */
+    private static class ContactsProvider extends MockContentProvider {
+        ContactsProvider(Context context) {
+            super(context);
+        }
+
+        @Override
+        public Cursor query(
+                Uri uri,
+                String[] projection,
+                String selection,
+                String[] selectionArgs,
+                String sortOrder) {
+            String ids =
+                    selectionArgs != null
+                            ? selectionArgs[0]
+                            : selection.substring(
+                                    selection.indexOf('(') + 1, selection.indexOf(')'));
+            MatrixCursor cursor = new MatrixCursor(FULL_ENTITY_PROJECTION);
+            for (String id : ids.split(",")) {
+                long contactId = Long.parseLong(id);
+                if (contactId == 1) {
+                    for (Object[] data : FULL_CONTACT_DATA) {
+                        addDataRow(cursor, contactId, data);
+                    }
+                } else if (contactId == 2) {
+                    // Raw contact without any data
+                    addDataRow(cursor, contactId, new Object[] {null, null});
+                }
+            }
+            return cursor;
+        }
+
+        private static void addDataRow(MatrixCursor cursor, long contactId, Object[] data) {
+            Object[] row = new Object[FULL_ENTITY_PROJECTION.length];
+            row[0] = contactId * 10;
+            row[1] = contactId;
+            System.arraycopy(data, 0, row, 2, data.length);
+            cursor.addRow(row);
+        }
+    }
+
+    private static void addContactRows(MatrixCursor cursor, long contactId) {
+        cursor.addRow(
+                new Object[] {
+                    contactId,
+                    contactId,
+                    2 * contactId,
+                    StructuredName.CONTENT_ITEM_TYPE,
+                    "N" + contactId
+                });
+        cursor.addRow(
+                new Object[] {
+                    contactId,
+                    contactId,
+                    2 * contactId + 1,
+                    Phone.CONTENT_ITEM_TYPE,
+                    String.valueOf(contactId)
+                });
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.sdp;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothUuid;
+import android.bluetooth.SdpSapsRecord;
+import android.os.ParcelUuid;
+import android.os.test.TestLooper;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.TestUtils;
+import com.android.bluetooth.Utils;
+import com.android.bluetooth.btservice.AbstractionLayer;
+import com.android.bluetooth.btservice.AdapterService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.util.List;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class SdpManagerTest {
+    private static final String TEST_ADDRESS = "00:01:02:03:04:05";
+    private static final String TEST_ADDRESS_2 = "00:01:02:03:04:06";
+
+    @Rule public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+    @Mock private AdapterService mAdapterService;
+    @Mock private SdpManagerNativeInterface mNativeInterface;
+
+    private TestLooper mLooper;
+    private SdpManager mSdpManager;
+    private BluetoothDevice mTestDevice;
+
+    @Before
+    public void setUp() throws Exception {
+        SdpManagerNativeInterface.setInstance(mNativeInterface);
+        TestUtils.setAdapterService(mAdapterService);
+        doReturn(TEST_ADDRESS).when(mAdapterService).getIdentityAddress(TEST_ADDRESS);
+        doReturn(TEST_ADDRESS_2).when(mAdapterService).getIdentityAddress(TEST_ADDRESS_2);
+
+        mLooper = new TestLooper();
+        mSdpManager = new SdpManager(mAdapterService, mLooper.getLooper());
+        mTestDevice = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(TEST_ADDRESS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TestUtils.clearAdapterService(mAdapterService);
+        SdpManagerNativeInterface.setInstance(null);
+    }
+
+    @Test
+    public void sdpSearch_whileSameSearchPending_searchesOnce() {
+        mSdpManager.sdpSearch(mTestDevice, BluetoothUuid.SAP);
+        mSdpManager.sdpSearch(mTestDevice, BluetoothUuid.SAP);
+
+        verify(mNativeInterface, times(1)).sdpSearch(any(), any());
+    }
+
+    @Test
+    public void sdpSearch_afterSuccessfulSearch_usesCachedRecord() {
+        mSdpManager.sdpSearch(mTestDevice, BluetoothUuid.SAP);
+        onSapsRecordFound();
+
+        mSdpManager.sdpSearch(mTestDevice, BluetoothUuid.SAP);
+        mLooper.dispatchAll();
+
+        verify(mNativeInterface, times(1)).sdpSearch(any(), any());
+        verify(mAdapterService, times(2))
+                .sendSdpSearchRecord(
+                        eq(mTestDevice),
+                        eq(AbstractionLayer.BT_STATUS_SUCCESS),
+                        any(SdpSapsRecord.class),
+                        eq(BluetoothUuid.SAP));
+    }
+
+    @Test
+    public void sdpSearch_whileSameSearchDeliversRecords_deliversAllRecordsAgain() {
+        mSdpManager.sdpSearch(mTestDevice, BluetoothUuid.SAP);
+        onSapsRecordFound(true /* moreResults */);
+
+        mSdpManager.sdpSearch(mTestDevice, BluetoothUuid.SAP);
+        onSapsRecordFound(false /* moreResults */);
+        mLooper.dispatchAll();
+
+        verify(mNativeInterface, times(1)).sdpSearch(any(), any());
+        verify(mAdapterService, times(4))
+                .sendSdpSearchRecord(
+                        eq(mTestDevice),
+                        eq(AbstractionLayer.BT_STATUS_SUCCESS),
+                        any(SdpSapsRecord.class),
+                        eq(BluetoothUuid.SAP));
+    }
+
+    @Test
+    public void sdpSearch_afterInvalidateCache_searchesAgain() {
+        mSdpManager.sdpSearch(mTestDevice, BluetoothUuid.SAP);
+        onSapsRecordFound();
+
+        mSdpManager.invalidateCache(mTestDevice);
+        mSdpManager.sdpSearch(mTestDevice, BluetoothUuid.SAP);
+
+        verify(mNativeInterface, times(2)).sdpSearch(any(), any());
+    }
+
+    @Test
+    public void sdpSearch_afterInvalidateCacheForUuid_searchesAgain() {
+        mSdpManager.sdpSearch(mTestDevice, BluetoothUuid.SAP);
+        onSapsRecordFound();
+
+        mSdpManager.invalidateCache(mTestDevice, BluetoothUuid.SAP);
+        mSdpManager.sdpSearch(mTestDevice, BluetoothUuid.SAP);
+
+        verify(mNativeInterface, times(2)).sdpSearch(any(), any());
+    }
+
+    @Test
+    public void sdpSearch_afterInvalidateCacheForOtherUuid_usesCachedRecord() {
+        mSdpManager.sdpSearch(mTestDevice, BluetoothUuid.SAP);
+        onSapsRecordFound();
+
+        mSdpManager.invalidateCache(mTestDevice, BluetoothUuid.MAS);
+        mSdpManager.sdpSearch(mTestDevice, BluetoothUuid.SAP);
+
+        verify(mNativeInterface, times(1)).sdpSearch(any(), any());
+    }
+
+    @Test
+    public void sdpSearch_manyUuidsForOneDevice_doesNotStarveOtherDevice() {
+        BluetoothDevice otherDevice =
+                BluetoothAdapter.getDefaultAdapter().getRemoteDevice(TEST_ADDRESS_2);
+        ParcelUuid[] uuids = {
+            BluetoothUuid.SAP,
+            BluetoothUuid.MAS,
+            BluetoothUuid.MNS,
+            BluetoothUuid.PBAP_PSE,
+            BluetoothUuid.OBEX_OBJECT_PUSH,
+        };
+        for (ParcelUuid uuid : uuids) {
+            mSdpManager.sdpSearch(mTestDevice, uuid);
+        }
+        mSdpManager.sdpSearch(otherDevice, BluetoothUuid.SAP);
+
+        for (int i = 0; i < uuids.length + 1; i++) {
+            ArgumentCaptor<byte[]> address = ArgumentCaptor.forClass(byte[].class);
+            ArgumentCaptor<byte[]> uuid = ArgumentCaptor.forClass(byte[].class);
+            verify(mNativeInterface, times(i + 1)).sdpSearch(address.capture(), uuid.capture());
+            // Fail the ongoing search so that the next one starts
+            mSdpManager.sdpRecordFoundCallback(
+                    AbstractionLayer.BT_STATUS_FAIL,
+                    address.getValue(),
+                    uuid.getValue(),
+                    0 /* sizeRecord */,
+                    null /* record */);
+        }
+
+        ArgumentCaptor<byte[]> addresses = ArgumentCaptor.forClass(byte[].class);
+        verify(mNativeInterface, times(uuids.length + 1)).sdpSearch(addresses.capture(), any());
+        List<byte[]> searchedAddresses = addresses.getAllValues();
+        for (int i = 0; i < SdpManager.MAX_CONSECUTIVE_DEVICE_SEARCHES; i++) {
+            assertThat(searchedAddresses.get(i)).isEqualTo(Utils.getByteAddress(mTestDevice));
+        }
+        assertThat(searchedAddresses.get(SdpManager.MAX_CONSECUTIVE_DEVICE_SEARCHES))
+                .isEqualTo(Utils.getByteAddress(otherDevice));
+    }
+
+    private void onSapsRecordFound() {
+        onSapsRecordFound(false /* moreResults */);
+    }
+
+    private void onSapsRecordFound(boolean moreResults) {
+        mSdpManager.sdpSapsRecordFoundCallback(
+                AbstractionLayer.BT_STATUS_SUCCESS,
+                Utils.getByteAddress(mTestDevice),
+                Utils.uuidToByteArray(BluetoothUuid.SAP),
+                1 /* rfcommChannelNumber */,
+                0x0102 /* profileVersion */,
+                "SAP" /* serviceName */,
+                moreResults);
+    }
+}
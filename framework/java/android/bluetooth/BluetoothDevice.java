@@ -62,6 +62,7 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
 
 /**
@@ -1763,6 +1764,7 @@ public final class BluetoothDevice implements Parcelable, Attributable {
     @RequiresLegacyBluetoothPermission
     @RequiresBluetoothConnectPermission
     @RequiresPermission(BLUETOOTH_CONNECT)
+    @SuppressLint("AndroidFrameworkRequiresPermission") // IpcDataCache prevent lint enforcement
     public String getName() {
         if (DBG) log("getName()");
         final IBluetooth service = getService();
@@ -1771,7 +1773,7 @@ public final class BluetoothDevice implements Parcelable, Attributable {
             if (DBG) log(Log.getStackTraceString(new Throwable()));
         } else {
             try {
-                String name = service.getRemoteName(this, mAttributionSource);
+                String name = queryDeviceProperty(sBluetoothNameCache, service).orElse(null);
                 if (name != null) {
                     // remove whitespace characters from the name
                     return name.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
@@ -1792,6 +1794,7 @@ public final class BluetoothDevice implements Parcelable, Attributable {
     @RequiresLegacyBluetoothPermission
     @RequiresBluetoothConnectPermission
     @RequiresPermission(BLUETOOTH_CONNECT)
+    @SuppressLint("AndroidFrameworkRequiresPermission") // IpcDataCache prevent lint enforcement
     public int getType() {
         if (DBG) log("getType()");
         final IBluetooth service = getService();
@@ -1800,7 +1803,7 @@ public final class BluetoothDevice implements Parcelable, Attributable {
             if (DBG) log(Log.getStackTraceString(new Throwable()));
         } else {
             try {
-                return service.getRemoteType(this, mAttributionSource);
+                return queryDeviceProperty(sBluetoothTypeCache, service);
             } catch (RemoteException e) {
                 Log.e(TAG, e.toString() + "\n" + Log.getStackTraceString(new Throwable()));
             }
@@ -1818,6 +1821,7 @@ public final class BluetoothDevice implements Parcelable, Attributable {
     @RequiresLegacyBluetoothPermission
     @RequiresBluetoothConnectPermission
     @RequiresPermission(BLUETOOTH_CONNECT)
+    @SuppressLint("AndroidFrameworkRequiresPermission") // IpcDataCache prevent lint enforcement
     public String getAlias() {
         if (DBG) log("getAlias()");
         final IBluetooth service = getService();
@@ -1826,7 +1830,7 @@ public final class BluetoothDevice implements Parcelable, Attributable {
             if (DBG) log(Log.getStackTraceString(new Throwable()));
         } else {
             try {
-                String alias = service.getRemoteAlias(this, mAttributionSource);
+                String alias = queryDeviceProperty(sBluetoothAliasCache, service).orElse(null);
                 if (alias == null) {
                     return getName();
                 }
@@ -2109,7 +2113,11 @@ public final class BluetoothDevice implements Parcelable, Attributable {
      */
     private static class BluetoothCache<Q, R> extends IpcDataCache<Q, R> {
         BluetoothCache(String api, IpcDataCache.QueryHandler query) {
-            super(8, IpcDataCache.MODULE_BLUETOOTH, api, api, query);
+            this(8, api, query);
+        }
+
+        BluetoothCache(int maxEntries, String api, IpcDataCache.QueryHandler query) {
+            super(maxEntries, IpcDataCache.MODULE_BLUETOOTH, api, api, query);
         }
     }
     ;
@@ -2163,6 +2171,202 @@ public final class BluetoothDevice implements Parcelable, Attributable {
         invalidateCache(GET_BOND_STATE_API);
     }
 
+    /**
+     * Unlike the bond state cache, the device property caches are sized for a list of bonded and
+     * nearby devices to be rendered without any binder call.
+     */
+    private static final int DEVICE_PROPERTY_CACHE_SIZE = 64;
+
+    private static final int METADATA_CACHE_SIZE = 128;
+
+    /**
+     * Binder call reading a property of a remote device. Null results are not cached, properties
+     * which may be missing are wrapped in an {@link Optional}.
+     */
+    private interface DevicePropertyQuery<R> {
+        R query(IBluetooth service, AttributionSource source, BluetoothDevice device)
+                throws RemoteException;
+    }
+
+    private static <R>
+            BluetoothCache<Pair<IBluetooth, Pair<AttributionSource, BluetoothDevice>>, R>
+                    createDevicePropertyCache(String api, DevicePropertyQuery<R> propertyQuery) {
+        return new BluetoothCache<>(
+                DEVICE_PROPERTY_CACHE_SIZE,
+                api,
+                new IpcDataCache.QueryHandler<
+                        Pair<IBluetooth, Pair<AttributionSource, BluetoothDevice>>, R>() {
+                    @Override
+                    public R apply(
+                            Pair<IBluetooth, Pair<AttributionSource, BluetoothDevice>> pairQuery) {
+                        if (DBG) {
+                            log(api + "(" + pairQuery.second.second + ") uncached");
+                        }
+                        try {
+                            return propertyQuery.query(
+                                    pairQuery.first,
+                                    pairQuery.second.first,
+                                    pairQuery.second.second);
+                        } catch (RemoteException e) {
+                            throw e.rethrowAsRuntimeException();
+                        }
+                    }
+                });
+    }
+
+    private static final String GET_NAME_API = "BluetoothDevice_getName";
+    private static final String GET_TYPE_API = "BluetoothDevice_getType";
+    private static final String GET_ALIAS_API = "BluetoothDevice_getAlias";
+    private static final String GET_BLUETOOTH_CLASS_API = "BluetoothDevice_getBluetoothClass";
+    private static final String GET_UUIDS_API = "BluetoothDevice_getUuids";
+    private static final String GET_METADATA_API = "BluetoothDevice_getMetadata";
+
+    @SuppressLint("AndroidFrameworkRequiresPermission") // Callers hold the permission
+    private static final BluetoothCache<
+                    Pair<IBluetooth, Pair<AttributionSource, BluetoothDevice>>, Optional<String>>
+            sBluetoothNameCache =
+                    createDevicePropertyCache(
+                            GET_NAME_API,
+                            (service, source, device) ->
+                                    Optional.ofNullable(service.getRemoteName(device, source)));
+
+    @SuppressLint("AndroidFrameworkRequiresPermission") // Callers hold the permission
+    private static final BluetoothCache<
+                    Pair<IBluetooth, Pair<AttributionSource, BluetoothDevice>>, Integer>
+            sBluetoothTypeCache =
+                    createDevicePropertyCache(
+                            GET_TYPE_API,
+                            (service, source, device) -> service.getRemoteType(device, source));
+
+    @SuppressLint("AndroidFrameworkRequiresPermission") // Callers hold the permission
+    private static final BluetoothCache<
+                    Pair<IBluetooth, Pair<AttributionSource, BluetoothDevice>>, Optional<String>>
+            sBluetoothAliasCache =
+                    createDevicePropertyCache(
+                            GET_ALIAS_API,
+                            (service, source, device) ->
+                                    Optional.ofNullable(service.getRemoteAlias(device, source)));
+
+    @SuppressLint("AndroidFrameworkRequiresPermission") // Callers hold the permission
+    private static final BluetoothCache<
+                    Pair<IBluetooth, Pair<AttributionSource, BluetoothDevice>>, Integer>
+            sBluetoothClassCache =
+                    createDevicePropertyCache(
+                            GET_BLUETOOTH_CLASS_API,
+                            (service, source, device) -> service.getRemoteClass(device, source));
+
+    // Arrays are shared by all the callers of the process: copies are returned
+    @SuppressLint("AndroidFrameworkRequiresPermission") // Callers hold the permission
+    private static final BluetoothCache<
+                    Pair<IBluetooth, Pair<AttributionSource, BluetoothDevice>>,
+                    Optional<ParcelUuid[]>>
+            sBluetoothUuidsCache =
+                    createDevicePropertyCache(
+                            GET_UUIDS_API,
+                            (service, source, device) -> {
+                                List<ParcelUuid> parcels = service.getRemoteUuids(device, source);
+                                return Optional.ofNullable(
+                                        parcels != null
+                                                ? parcels.toArray(new ParcelUuid[parcels.size()])
+                                                : null);
+                            });
+
+    private static final IpcDataCache.QueryHandler<
+                    Pair<IBluetooth, Pair<AttributionSource, Pair<BluetoothDevice, Integer>>>,
+                    Optional<byte[]>>
+            sBluetoothMetadataQuery =
+                    new IpcDataCache.QueryHandler<>() {
+                        @RequiresPermission(allOf = {BLUETOOTH_CONNECT, BLUETOOTH_PRIVILEGED})
+                        @Override
+                        public Optional<byte[]> apply(
+                                Pair<
+                                                IBluetooth,
+                                                Pair<
+                                                        AttributionSource,
+                                                        Pair<BluetoothDevice, Integer>>>
+                                        pairQuery) {
+                            IBluetooth service = pairQuery.first;
+                            AttributionSource source = pairQuery.second.first;
+                            BluetoothDevice device = pairQuery.second.second.first;
+                            int key = pairQuery.second.second.second;
+                            if (DBG) {
+                                log("getMetadata(" + device + ", " + key + ") uncached");
+                            }
+                            try {
+                                return Optional.ofNullable(
+                                        service.getMetadata(device, key, source));
+                            } catch (RemoteException e) {
+                                throw e.rethrowAsRuntimeException();
+                            }
+                        }
+                    };
+
+    private static final BluetoothCache<
+                    Pair<IBluetooth, Pair<AttributionSource, Pair<BluetoothDevice, Integer>>>,
+                    Optional<byte[]>>
+            sBluetoothMetadataCache =
+                    new BluetoothCache<>(
+                            METADATA_CACHE_SIZE, GET_METADATA_API, sBluetoothMetadataQuery);
+
+    /** @hide */
+    public static void invalidateBluetoothGetNameCache() {
+        invalidateCache(GET_NAME_API);
+    }
+
+    /** @hide */
+    public static void invalidateBluetoothGetTypeCache() {
+        invalidateCache(GET_TYPE_API);
+    }
+
+    /** @hide */
+    public static void invalidateBluetoothGetAliasCache() {
+        invalidateCache(GET_ALIAS_API);
+    }
+
+    /** @hide */
+    public static void invalidateBluetoothGetBluetoothClassCache() {
+        invalidateCache(GET_BLUETOOTH_CLASS_API);
+    }
+
+    /** @hide */
+    public static void invalidateBluetoothGetUuidsCache() {
+        invalidateCache(GET_UUIDS_API);
+    }
+
+    /** @hide */
+    public static void invalidateBluetoothGetMetadataCache() {
+        invalidateCache(GET_METADATA_API);
+    }
+
+    /**
+     * Invalidates the caches of all the remote device properties, for when devices are added or
+     * removed.
+     *
+     * @hide
+     */
+    public static void invalidateBluetoothDevicePropertyCaches() {
+        invalidateBluetoothGetNameCache();
+        invalidateBluetoothGetTypeCache();
+        invalidateBluetoothGetAliasCache();
+        invalidateBluetoothGetBluetoothClassCache();
+        invalidateBluetoothGetUuidsCache();
+    }
+
+    /** Queries a device property cache, rethrowing the binder errors of the uncached call. */
+    private <R> R queryDeviceProperty(
+            BluetoothCache<Pair<IBluetooth, Pair<AttributionSource, BluetoothDevice>>, R> cache,
+            IBluetooth service)
+            throws RemoteException {
+        try {
+            return cache.query(new Pair<>(service, new Pair<>(mAttributionSource, this)));
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof RemoteException remoteException) {
+                throw remoteException;
+            }
+            throw e;
+        }
+    }
+
     /**
      * Get the bond state of the remote device.
      *
@@ -2428,6 +2632,7 @@ public final class BluetoothDevice implements Parcelable, Attributable {
     @RequiresLegacyBluetoothPermission
     @RequiresBluetoothConnectPermission
     @RequiresPermission(BLUETOOTH_CONNECT)
+    @SuppressLint("AndroidFrameworkRequiresPermission") // IpcDataCache prevent lint enforcement
     public BluetoothClass getBluetoothClass() {
         if (DBG) log("getBluetoothClass()");
         final IBluetooth service = getService();
@@ -2436,7 +2641,7 @@ public final class BluetoothDevice implements Parcelable, Attributable {
             if (DBG) log(Log.getStackTraceString(new Throwable()));
         } else {
             try {
-                int classInt = service.getRemoteClass(this, mAttributionSource);
+                int classInt = queryDeviceProperty(sBluetoothClassCache, service);
                 if (classInt == BluetoothClass.ERROR) return null;
                 return new BluetoothClass(classInt);
             } catch (RemoteException e) {
@@ -2459,6 +2664,7 @@ public final class BluetoothDevice implements Parcelable, Attributable {
     @RequiresLegacyBluetoothPermission
     @RequiresBluetoothConnectPermission
     @RequiresPermission(BLUETOOTH_CONNECT)
+    @SuppressLint("AndroidFrameworkRequiresPermission") // IpcDataCache prevent lint enforcement
     public ParcelUuid[] getUuids() {
         if (DBG) log("getUuids()");
         final IBluetooth service = getService();
@@ -2467,8 +2673,9 @@ public final class BluetoothDevice implements Parcelable, Attributable {
             if (DBG) log(Log.getStackTraceString(new Throwable()));
         } else {
             try {
-                List<ParcelUuid> parcels = service.getRemoteUuids(this, mAttributionSource);
-                return parcels != null ? parcels.toArray(new ParcelUuid[parcels.size()]) : null;
+                ParcelUuid[] uuids =
+                        queryDeviceProperty(sBluetoothUuidsCache, service).orElse(null);
+                return uuids != null ? uuids.clone() : null;
             } catch (RemoteException e) {
                 Log.e(TAG, e.toString() + "\n" + Log.getStackTraceString(new Throwable()));
             }
@@ -3433,6 +3640,7 @@ public final class BluetoothDevice implements Parcelable, Attributable {
      */
     @SystemApi
     @RequiresPermission(allOf = {BLUETOOTH_CONNECT, BLUETOOTH_PRIVILEGED})
+    @SuppressLint("AndroidFrameworkRequiresPermission") // IpcDataCache prevent lint enforcement
     public @Nullable byte[] getMetadata(@MetadataKey int key) {
         if (DBG) log("getMetadata()");
         final IBluetooth service = getService();
@@ -3441,8 +3649,19 @@ public final class BluetoothDevice implements Parcelable, Attributable {
             if (DBG) log(Log.getStackTraceString(new Throwable()));
         } else {
             try {
-                return service.getMetadata(this, key, mAttributionSource);
-            } catch (RemoteException e) {
+                byte[] value =
+                        sBluetoothMetadataCache
+                                .query(
+                                        new Pair<>(
+                                                service,
+                                                new Pair<>(
+                                                        mAttributionSource, new Pair<>(this, key))))
+                                .orElse(null);
+                return value != null ? value.clone() : null;
+            } catch (RuntimeException e) {
+                if (!(e.getCause() instanceof RemoteException)) {
+                    throw e;
+                }
                 Log.e(TAG, e.toString() + "\n" + Log.getStackTraceString(new Throwable()));
             }
         }
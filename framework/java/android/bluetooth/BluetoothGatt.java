@@ -18,6 +18,7 @@ package android.bluetooth;
 
 import static android.Manifest.permission.BLUETOOTH_CONNECT;
 
+import android.annotation.FlaggedApi;
 import android.annotation.IntDef;
 import android.annotation.NonNull;
 import android.annotation.RequiresNoPermission;
@@ -31,15 +32,21 @@ import android.content.AttributionSource;
 import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
 import android.util.Log;
 
+import com.android.bluetooth.flags.Flags;
+
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 /**
  * Public API for the Bluetooth GATT Profile.
@@ -73,6 +80,9 @@ public final class BluetoothGatt implements BluetoothProfile {
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     private Boolean mDeviceBusy = false;
 
+    // Set when the application queues its read and write operations, see setOperationQueueEnabled
+    private volatile GattOperationQueue mOperationQueue;
+
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     private int mTransport;
 
@@ -401,6 +411,11 @@ public final class BluetoothGatt implements BluetoothProfile {
                     synchronized (mDeviceBusyLock) {
                         mDeviceBusy = false;
                     }
+
+                    final GattOperationQueue queue = mOperationQueue;
+                    if (!connected && queue != null) {
+                        queue.failAll(GATT_FAILURE);
+                    }
                 }
 
                 /**
@@ -513,10 +528,13 @@ public final class BluetoothGatt implements BluetoothProfile {
                             getCharacteristicById(mDevice, handle);
                     if (characteristic == null) {
                         Log.w(TAG, "onCharacteristicRead() failed to find characteristic!");
+                        completeOperation(GattOperationQueue.OP_READ_CHARACTERISTIC, handle, null);
                         return;
                     }
 
-                    runOrQueueCallback(
+                    completeOperation(
+                            GattOperationQueue.OP_READ_CHARACTERISTIC,
+                            handle,
                             new Runnable() {
                                 @Override
                                 public void run() {
@@ -559,7 +577,10 @@ public final class BluetoothGatt implements BluetoothProfile {
 
                     BluetoothGattCharacteristic characteristic =
                             getCharacteristicById(mDevice, handle);
-                    if (characteristic == null) return;
+                    if (characteristic == null) {
+                        completeOperation(GattOperationQueue.OP_WRITE_CHARACTERISTIC, handle, null);
+                        return;
+                    }
 
                     if ((status == GATT_INSUFFICIENT_AUTHENTICATION
                                     || status == GATT_INSUFFICIENT_ENCRYPTION)
@@ -598,7 +619,9 @@ public final class BluetoothGatt implements BluetoothProfile {
                     }
 
                     mAuthRetryState = AUTH_RETRY_STATE_IDLE;
-                    runOrQueueCallback(
+                    completeOperation(
+                            GattOperationQueue.OP_WRITE_CHARACTERISTIC,
+                            handle,
                             new Runnable() {
                                 @Override
                                 public void run() {
@@ -674,7 +697,10 @@ public final class BluetoothGatt implements BluetoothProfile {
                     }
 
                     BluetoothGattDescriptor descriptor = getDescriptorById(mDevice, handle);
-                    if (descriptor == null) return;
+                    if (descriptor == null) {
+                        completeOperation(GattOperationQueue.OP_READ_DESCRIPTOR, handle, null);
+                        return;
+                    }
 
                     if ((status == GATT_INSUFFICIENT_AUTHENTICATION
                                     || status == GATT_INSUFFICIENT_ENCRYPTION)
@@ -695,7 +721,9 @@ public final class BluetoothGatt implements BluetoothProfile {
 
                     mAuthRetryState = AUTH_RETRY_STATE_IDLE;
 
-                    runOrQueueCallback(
+                    completeOperation(
+                            GattOperationQueue.OP_READ_DESCRIPTOR,
+                            handle,
                             new Runnable() {
                                 @Override
                                 public void run() {
@@ -736,7 +764,10 @@ public final class BluetoothGatt implements BluetoothProfile {
                     }
 
                     BluetoothGattDescriptor descriptor = getDescriptorById(mDevice, handle);
-                    if (descriptor == null) return;
+                    if (descriptor == null) {
+                        completeOperation(GattOperationQueue.OP_WRITE_DESCRIPTOR, handle, null);
+                        return;
+                    }
 
                     if ((status == GATT_INSUFFICIENT_AUTHENTICATION
                                     || status == GATT_INSUFFICIENT_ENCRYPTION)
@@ -757,7 +788,9 @@ public final class BluetoothGatt implements BluetoothProfile {
 
                     mAuthRetryState = AUTH_RETRY_STATE_IDLE;
 
-                    runOrQueueCallback(
+                    completeOperation(
+                            GattOperationQueue.OP_WRITE_DESCRIPTOR,
+                            handle,
                             new Runnable() {
                                 @Override
                                 public void run() {
@@ -793,7 +826,9 @@ public final class BluetoothGatt implements BluetoothProfile {
                         mDeviceBusy = false;
                     }
 
-                    runOrQueueCallback(
+                    completeOperation(
+                            GattOperationQueue.OP_EXECUTE_WRITE,
+                            GattOperationQueue.ANY_HANDLE,
                             new Runnable() {
                                 @Override
                                 public void run() {
@@ -1029,6 +1064,12 @@ public final class BluetoothGatt implements BluetoothProfile {
         unregisterApp();
         mConnState = CONN_STATE_CLOSED;
         mAuthRetryState = AUTH_RETRY_STATE_IDLE;
+
+        final GattOperationQueue queue = mOperationQueue;
+        mOperationQueue = null;
+        if (queue != null) {
+            queue.clear();
+        }
     }
 
     /**
@@ -1064,6 +1105,20 @@ public final class BluetoothGatt implements BluetoothProfile {
         return null;
     }
 
+    /** Returns the first characteristic with the given UUID within a handle range. */
+    private BluetoothGattCharacteristic getCharacteristicByUuid(
+            UUID uuid, int startHandle, int endHandle) {
+        for (BluetoothGattService svc : mServices) {
+            for (BluetoothGattCharacteristic charac : svc.getCharacteristics()) {
+                int handle = charac.getInstanceId();
+                if (charac.getUuid().equals(uuid) && handle >= startHandle && handle <= endHandle) {
+                    return charac;
+                }
+            }
+        }
+        return null;
+    }
+
     /**
      * Returns a descriptor with id equal to instanceId.
      *
@@ -1098,6 +1153,69 @@ public final class BluetoothGatt implements BluetoothProfile {
         }
     }
 
+    /**
+     * Delivers the result of a read or write operation with {@link #runOrQueueCallback}. When the
+     * operation queue is enabled, the next queued operation is then dispatched, and the result of
+     * an operation that already timed out is dropped.
+     */
+    private void completeOperation(int type, int handle, Runnable cb) {
+        final GattOperationQueue queue = mOperationQueue;
+        if (queue == null) {
+            if (cb != null) runOrQueueCallback(cb);
+            return;
+        }
+        queue.complete(type, handle, cb == null ? null : () -> runOrQueueCallback(cb));
+    }
+
+    /**
+     * Queues a read or write operation. The device is marked busy while the operation is in
+     * flight, so that it is not lost if the queue is disabled in the meantime.
+     *
+     * @param sender sends the operation, returns false if it could not be sent
+     * @param notifier invokes the callback of the operation with a failure status
+     * @return false if the queue is full
+     */
+    private boolean enqueueOperation(
+            GattOperationQueue queue,
+            int type,
+            int handle,
+            BooleanSupplier sender,
+            IntConsumer notifier) {
+        return queue.enqueue(
+                new GattOperationQueue.Operation(type, handle) {
+                    @Override
+                    boolean dispatch() {
+                        synchronized (mDeviceBusyLock) {
+                            mDeviceBusy = true;
+                        }
+                        if (sender.getAsBoolean()) {
+                            return true;
+                        }
+                        synchronized (mDeviceBusyLock) {
+                            mDeviceBusy = false;
+                        }
+                        return false;
+                    }
+
+                    @Override
+                    void fail(int status) {
+                        mAuthRetryState = AUTH_RETRY_STATE_IDLE;
+                        notifier.accept(status);
+                    }
+                });
+    }
+
+    /** Invokes a callback of the application for an operation that failed. */
+    private void notifyOperationFailure(Consumer<BluetoothGattCallback> notifier) {
+        runOrQueueCallback(
+                () -> {
+                    final BluetoothGattCallback callback = mCallback;
+                    if (callback != null) {
+                        notifier.accept(callback);
+                    }
+                });
+    }
+
     /**
      * Register an application callback to start using GATT.
      *
@@ -1449,20 +1567,28 @@ public final class BluetoothGatt implements BluetoothProfile {
         BluetoothDevice device = service.getDevice();
         if (device == null) return false;
 
+        final String address = device.getAddress();
+        final int handle = characteristic.getInstanceId();
+        final GattOperationQueue queue = mOperationQueue;
+        if (queue != null) {
+            return enqueueOperation(
+                    queue,
+                    GattOperationQueue.OP_READ_CHARACTERISTIC,
+                    handle,
+                    () -> sendReadCharacteristic(address, handle),
+                    status ->
+                            notifyOperationFailure(
+                                    cb ->
+                                            cb.onCharacteristicRead(
+                                                    this, characteristic, new byte[0], status)));
+        }
+
         synchronized (mDeviceBusyLock) {
             if (mDeviceBusy) return false;
             mDeviceBusy = true;
         }
 
-        try {
-            mService.readCharacteristic(
-                    mClientIf,
-                    device.getAddress(),
-                    characteristic.getInstanceId(),
-                    AUTHENTICATION_NONE,
-                    mAttributionSource);
-        } catch (RemoteException e) {
-            Log.e(TAG, "", e);
+        if (!sendReadCharacteristic(address, handle)) {
             synchronized (mDeviceBusyLock) {
                 mDeviceBusy = false;
             }
@@ -1472,6 +1598,19 @@ public final class BluetoothGatt implements BluetoothProfile {
         return true;
     }
 
+    @RequiresBluetoothConnectPermission
+    @RequiresPermission(BLUETOOTH_CONNECT)
+    private boolean sendReadCharacteristic(String address, int handle) {
+        try {
+            mService.readCharacteristic(
+                    mClientIf, address, handle, AUTHENTICATION_NONE, mAttributionSource);
+        } catch (RemoteException e) {
+            Log.e(TAG, "", e);
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Reads the characteristic using its UUID from the associated remote device.
      *
@@ -1490,11 +1629,47 @@ public final class BluetoothGatt implements BluetoothProfile {
         if (VDBG) Log.d(TAG, "readUsingCharacteristicUuid() - uuid: " + uuid);
         if (mService == null || mClientIf == 0) return false;
 
+        final GattOperationQueue queue = mOperationQueue;
+        if (queue != null) {
+            // The handle of the characteristic read is only known once its value is received
+            return enqueueOperation(
+                    queue,
+                    GattOperationQueue.OP_READ_CHARACTERISTIC,
+                    GattOperationQueue.ANY_HANDLE,
+                    () -> sendReadUsingCharacteristicUuid(uuid, startHandle, endHandle),
+                    status -> {
+                        BluetoothGattCharacteristic characteristic =
+                                getCharacteristicByUuid(uuid, startHandle, endHandle);
+                        if (characteristic == null) {
+                            // Like a result received for an unknown characteristic
+                            Log.w(TAG, "readUsingCharacteristicUuid() failed: " + status);
+                            return;
+                        }
+                        notifyOperationFailure(
+                                cb ->
+                                        cb.onCharacteristicRead(
+                                                this, characteristic, new byte[0], status));
+                    });
+        }
+
         synchronized (mDeviceBusyLock) {
             if (mDeviceBusy) return false;
             mDeviceBusy = true;
         }
 
+        if (!sendReadUsingCharacteristicUuid(uuid, startHandle, endHandle)) {
+            synchronized (mDeviceBusyLock) {
+                mDeviceBusy = false;
+            }
+            return false;
+        }
+
+        return true;
+    }
+
+    @RequiresBluetoothConnectPermission
+    @RequiresPermission(BLUETOOTH_CONNECT)
+    private boolean sendReadUsingCharacteristicUuid(UUID uuid, int startHandle, int endHandle) {
         try {
             mService.readUsingCharacteristicUuid(
                     mClientIf,
@@ -1506,12 +1681,8 @@ public final class BluetoothGatt implements BluetoothProfile {
                     mAttributionSource);
         } catch (RemoteException e) {
             Log.e(TAG, "", e);
-            synchronized (mDeviceBusyLock) {
-                mDeviceBusy = false;
-            }
             return false;
         }
-
         return true;
     }
 
@@ -1609,6 +1780,37 @@ public final class BluetoothGatt implements BluetoothProfile {
             throw new IllegalArgumentException("Service must have a non-null device");
         }
 
+        final String address = device.getAddress();
+        final int handle = characteristic.getInstanceId();
+        final GattOperationQueue queue = mOperationQueue;
+        if (queue != null) {
+            // The application may reuse its buffer before the write is sent
+            final byte[] queuedValue = value.clone();
+            boolean queued =
+                    enqueueOperation(
+                            queue,
+                            GattOperationQueue.OP_WRITE_CHARACTERISTIC,
+                            handle,
+                            () -> {
+                                try {
+                                    return sendWriteCharacteristic(
+                                                    address, handle, writeType, queuedValue)
+                                            == BluetoothStatusCodes.SUCCESS;
+                                } catch (RemoteException e) {
+                                    Log.e(TAG, "", e);
+                                    return false;
+                                }
+                            },
+                            status ->
+                                    notifyOperationFailure(
+                                            cb ->
+                                                    cb.onCharacteristicWrite(
+                                                            this, characteristic, status)));
+            return queued
+                    ? BluetoothStatusCodes.SUCCESS
+                    : BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY;
+        }
+
         synchronized (mDeviceBusyLock) {
             if (mDeviceBusy) {
                 return BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY;
@@ -1618,25 +1820,7 @@ public final class BluetoothGatt implements BluetoothProfile {
 
         int requestStatus = BluetoothStatusCodes.ERROR_UNKNOWN;
         try {
-            for (int i = 0; i < WRITE_CHARACTERISTIC_MAX_RETRIES; i++) {
-                requestStatus =
-                        mService.writeCharacteristic(
-                                mClientIf,
-                                device.getAddress(),
-                                characteristic.getInstanceId(),
-                                writeType,
-                                AUTHENTICATION_NONE,
-                                value,
-                                mAttributionSource);
-                if (requestStatus != BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY) {
-                    break;
-                }
-                try {
-                    Thread.sleep(WRITE_CHARACTERISTIC_TIME_TO_WAIT);
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "", e);
-                }
-            }
+            requestStatus = sendWriteCharacteristic(address, handle, writeType, value);
         } catch (RemoteException e) {
             Log.e(TAG, "", e);
             synchronized (mDeviceBusyLock) {
@@ -1653,6 +1837,33 @@ public final class BluetoothGatt implements BluetoothProfile {
         return requestStatus;
     }
 
+    @RequiresBluetoothConnectPermission
+    @RequiresPermission(BLUETOOTH_CONNECT)
+    private int sendWriteCharacteristic(String address, int handle, int writeType, byte[] value)
+            throws RemoteException {
+        int requestStatus = BluetoothStatusCodes.ERROR_UNKNOWN;
+        for (int i = 0; i < WRITE_CHARACTERISTIC_MAX_RETRIES; i++) {
+            requestStatus =
+                    mService.writeCharacteristic(
+                            mClientIf,
+                            address,
+                            handle,
+                            writeType,
+                            AUTHENTICATION_NONE,
+                            value,
+                            mAttributionSource);
+            if (requestStatus != BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY) {
+                break;
+            }
+            try {
+                Thread.sleep(WRITE_CHARACTERISTIC_TIME_TO_WAIT);
+            } catch (InterruptedException e) {
+                Log.e(TAG, "", e);
+            }
+        }
+        return requestStatus;
+    }
+
     /**
      * Reads the value for a given descriptor from the associated remote device.
      *
@@ -1679,20 +1890,28 @@ public final class BluetoothGatt implements BluetoothProfile {
         BluetoothDevice device = service.getDevice();
         if (device == null) return false;
 
+        final String address = device.getAddress();
+        final int handle = descriptor.getInstanceId();
+        final GattOperationQueue queue = mOperationQueue;
+        if (queue != null) {
+            return enqueueOperation(
+                    queue,
+                    GattOperationQueue.OP_READ_DESCRIPTOR,
+                    handle,
+                    () -> sendReadDescriptor(address, handle),
+                    status ->
+                            notifyOperationFailure(
+                                    cb ->
+                                            cb.onDescriptorRead(
+                                                    this, descriptor, status, new byte[0])));
+        }
+
         synchronized (mDeviceBusyLock) {
             if (mDeviceBusy) return false;
             mDeviceBusy = true;
         }
 
-        try {
-            mService.readDescriptor(
-                    mClientIf,
-                    device.getAddress(),
-                    descriptor.getInstanceId(),
-                    AUTHENTICATION_NONE,
-                    mAttributionSource);
-        } catch (RemoteException e) {
-            Log.e(TAG, "", e);
+        if (!sendReadDescriptor(address, handle)) {
             synchronized (mDeviceBusyLock) {
                 mDeviceBusy = false;
             }
@@ -1702,6 +1921,19 @@ public final class BluetoothGatt implements BluetoothProfile {
         return true;
     }
 
+    @RequiresBluetoothConnectPermission
+    @RequiresPermission(BLUETOOTH_CONNECT)
+    private boolean sendReadDescriptor(String address, int handle) {
+        try {
+            mService.readDescriptor(
+                    mClientIf, address, handle, AUTHENTICATION_NONE, mAttributionSource);
+        } catch (RemoteException e) {
+            Log.e(TAG, "", e);
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Write the value of a given descriptor to the associated remote device.
      *
@@ -1768,6 +2000,40 @@ public final class BluetoothGatt implements BluetoothProfile {
             throw new IllegalArgumentException("Service must have a non-null device");
         }
 
+        final GattOperationQueue queue = mOperationQueue;
+        if (queue != null) {
+            final String address = device.getAddress();
+            final int handle = descriptor.getInstanceId();
+            // The application may reuse its buffer before the write is sent
+            final byte[] queuedValue = value.clone();
+            boolean queued =
+                    enqueueOperation(
+                            queue,
+                            GattOperationQueue.OP_WRITE_DESCRIPTOR,
+                            handle,
+                            () -> {
+                                try {
+                                    return mService.writeDescriptor(
+                                                    mClientIf,
+                                                    address,
+                                                    handle,
+                                                    AUTHENTICATION_NONE,
+                                                    queuedValue,
+                                                    mAttributionSource)
+                                            == BluetoothStatusCodes.SUCCESS;
+                                } catch (RemoteException e) {
+                                    Log.e(TAG, "", e);
+                                    return false;
+                                }
+                            },
+                            status ->
+                                    notifyOperationFailure(
+                                            cb -> cb.onDescriptorWrite(this, descriptor, status)));
+            return queued
+                    ? BluetoothStatusCodes.SUCCESS
+                    : BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY;
+        }
+
         synchronized (mDeviceBusyLock) {
             if (mDeviceBusy) return BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY;
             mDeviceBusy = true;
@@ -1842,15 +2108,24 @@ public final class BluetoothGatt implements BluetoothProfile {
         if (VDBG) Log.d(TAG, "executeReliableWrite() - device: " + mDevice);
         if (mService == null || mClientIf == 0) return false;
 
+        final GattOperationQueue queue = mOperationQueue;
+        if (queue != null) {
+            return enqueueOperation(
+                    queue,
+                    GattOperationQueue.OP_EXECUTE_WRITE,
+                    GattOperationQueue.ANY_HANDLE,
+                    this::sendExecuteReliableWrite,
+                    status ->
+                            notifyOperationFailure(
+                                    cb -> cb.onReliableWriteCompleted(this, status)));
+        }
+
         synchronized (mDeviceBusyLock) {
             if (mDeviceBusy) return false;
             mDeviceBusy = true;
         }
 
-        try {
-            mService.endReliableWrite(mClientIf, mDevice.getAddress(), true, mAttributionSource);
-        } catch (RemoteException e) {
-            Log.e(TAG, "", e);
+        if (!sendExecuteReliableWrite()) {
             synchronized (mDeviceBusyLock) {
                 mDeviceBusy = false;
             }
@@ -1860,6 +2135,63 @@ public final class BluetoothGatt implements BluetoothProfile {
         return true;
     }
 
+    @RequiresBluetoothConnectPermission
+    @RequiresPermission(BLUETOOTH_CONNECT)
+    private boolean sendExecuteReliableWrite() {
+        try {
+            mService.endReliableWrite(mClientIf, mDevice.getAddress(), true, mAttributionSource);
+        } catch (RemoteException e) {
+            Log.e(TAG, "", e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Enables or disables the queuing of read and write operations.
+     *
+     * <p>By default, a single operation may be in progress at a time: {@link #readCharacteristic},
+     * {@link #writeCharacteristic(BluetoothGattCharacteristic, byte[], int)}, {@link
+     * #readDescriptor}, {@link #writeDescriptor(BluetoothGattDescriptor, byte[])} and {@link
+     * #executeReliableWrite} fail while another operation is in progress, and have to be retried
+     * once its callback is invoked. When the queue is enabled, these operations are queued instead,
+     * and sent to the remote device one after the other as soon as the previous one completes.
+     * Their callbacks are invoked in the order the operations were issued.
+     *
+     * <p>Operations fail as if another operation was in progress when too many of them are queued.
+     * An operation that does not complete within 30 seconds is reported to its callback with
+     * {@link #GATT_FAILURE}. The next operation is only sent once the remote device answers it, its
+     * late result being dropped. Queued operations are reported to their callbacks with {@link
+     * #GATT_FAILURE} when the remote device disconnects.
+     *
+     * <p>This should be called before issuing any operation. Disabling the queue drops the
+     * operations not yet sent to the remote device.
+     *
+     * @param enable whether read and write operations are queued
+     */
+    @FlaggedApi(Flags.FLAG_GATT_CLIENT_OPERATION_QUEUE_API)
+    @RequiresNoPermission
+    public void setOperationQueueEnabled(boolean enable) {
+        if (DBG) Log.d(TAG, "setOperationQueueEnabled(" + enable + ") - device: " + mDevice);
+        if (!enable) {
+            final GattOperationQueue queue = mOperationQueue;
+            mOperationQueue = null;
+            if (queue != null) {
+                queue.clear();
+            }
+            return;
+        }
+        if (mOperationQueue == null) {
+            final Handler handler = mHandler;
+            mOperationQueue =
+                    new GattOperationQueue(
+                            new Handler(
+                                    handler != null
+                                            ? handler.getLooper()
+                                            : Looper.getMainLooper()));
+        }
+    }
+
     /**
      * Cancels a reliable write transaction for a given device.
      *
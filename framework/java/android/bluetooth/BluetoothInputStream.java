@@ -32,6 +32,9 @@ import java.io.InputStream;
 /*package*/ final class BluetoothInputStream extends InputStream {
     private BluetoothSocket mSocket;
 
+    // Reused by read(), so that reading byte by byte does not allocate
+    private final byte[] mSingleByte = new byte[1];
+
     /*package*/ BluetoothInputStream(BluetoothSocket s) {
         mSocket = s;
     }
@@ -55,10 +58,9 @@ import java.io.InputStream;
      * @since Android 1.5
      */
     public int read() throws IOException {
-        byte[] b = new byte[1];
-        int ret = mSocket.read(b, 0, 1);
+        int ret = mSocket.read(mSingleByte, 0, 1);
         if (ret == 1) {
-            return (int) b[0] & 0xff;
+            return (int) mSingleByte[0] & 0xff;
         } else {
             return -1;
         }
@@ -32,6 +32,9 @@ import java.io.OutputStream;
 /*package*/ final class BluetoothOutputStream extends OutputStream {
     private BluetoothSocket mSocket;
 
+    // Reused by write(int), so that writing byte by byte does not allocate
+    private final byte[] mSingleByte = new byte[1];
+
     /*package*/ BluetoothOutputStream(BluetoothSocket s) {
         mSocket = s;
     }
@@ -50,9 +53,8 @@ import java.io.OutputStream;
      * @since Android 1.0
      */
     public void write(int oneByte) throws IOException {
-        byte[] b = new byte[1];
-        b[0] = (byte) oneByte;
-        mSocket.write(b, 0, 1);
+        mSingleByte[0] = (byte) oneByte;
+        mSocket.write(mSingleByte, 0, 1);
     }
 
     /**
@@ -34,9 +34,12 @@ import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Log;
 
 import com.android.bluetooth.flags.Flags;
+import com.android.internal.annotations.VisibleForTesting;
 
 import java.io.Closeable;
 import java.io.FileDescriptor;
@@ -49,6 +52,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.Locale;
+import java.util.Objects;
 import java.util.UUID;
 
 /**
@@ -473,8 +477,30 @@ public final class BluetoothSocket implements Closeable {
      */
     /*package*/ static BluetoothSocket createSocketFromOpenFd(
             ParcelFileDescriptor pfd, BluetoothDevice device, ParcelUuid uuid) throws IOException {
-        BluetoothSocket bluetoothSocket =
-                new BluetoothSocket(device, TYPE_RFCOMM, true, true, -1, uuid);
+        return createSocketFromOpenFd(pfd, device, uuid, TYPE_RFCOMM);
+    }
+
+    /**
+     * Creates an L2CAP socket from a {@link ParcelFileDescriptor} which is already connected, with
+     * the packet sizes which would have been negotiated with the remote device.
+     */
+    @VisibleForTesting
+    /*package*/ static BluetoothSocket createL2capSocketFromOpenFd(
+            ParcelFileDescriptor pfd,
+            BluetoothDevice device,
+            int maxTxPacketSize,
+            int maxRxPacketSize)
+            throws IOException {
+        BluetoothSocket bluetoothSocket = createSocketFromOpenFd(pfd, device, null, TYPE_L2CAP);
+        bluetoothSocket.mMaxTxPacketSize = maxTxPacketSize;
+        bluetoothSocket.mMaxRxPacketSize = maxRxPacketSize;
+        return bluetoothSocket;
+    }
+
+    private static BluetoothSocket createSocketFromOpenFd(
+            ParcelFileDescriptor pfd, BluetoothDevice device, ParcelUuid uuid, int type)
+            throws IOException {
+        BluetoothSocket bluetoothSocket = new BluetoothSocket(device, type, true, true, -1, uuid);
 
         bluetoothSocket.mPfd = pfd;
         bluetoothSocket.mSocket = new LocalSocket(pfd.getFileDescriptor());
@@ -1037,6 +1063,112 @@ public final class BluetoothSocket implements Closeable {
         return length;
     }
 
+    /**
+     * Reads bytes from this socket into the given buffer.
+     *
+     * <p>Up to {@code dst.remaining()} bytes are read into the buffer, starting at its position,
+     * which is then advanced by the number of bytes read. This blocks until at least one byte is
+     * available, as {@link java.nio.channels.ReadableByteChannel#read} does.
+     *
+     * <p>Unlike the {@link #getInputStream() input stream}, this reads straight into {@code dst},
+     * heap or direct, and does not allocate: it is meant for high throughput transfers. For L2CAP
+     * sockets, a buffer with at least {@link #getMaxReceivePacketSize()} bytes remaining receives
+     * a whole packet without any intermediate copy.
+     *
+     * @param dst buffer receiving the bytes read
+     * @return the number of bytes read, possibly zero if {@code dst} has no remaining bytes, or -1
+     *     if the end of the stream was reached
+     * @throws IOException if the socket is not connected, or if an I/O error occurs
+     */
+    @FlaggedApi(Flags.FLAG_SOCKET_BYTE_BUFFER_API)
+    @RequiresNoPermission
+    public int read(@NonNull ByteBuffer dst) throws IOException {
+        Objects.requireNonNull(dst, "dst must not be null");
+        FileDescriptor fd = getConnectedFileDescriptor();
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        if ((mType == TYPE_L2CAP) || (mType == TYPE_L2CAP_LE)) {
+            if (mL2capBuffer == null) {
+                createL2capRxBuffer();
+            }
+            if (!mL2capBuffer.hasRemaining()) {
+                if (dst.remaining() >= mMaxRxPacketSize) {
+                    // A whole packet fits, the read will not truncate it
+                    return readFromFd(fd, dst);
+                }
+                if (fillL2capRxBuffer() == -1) {
+                    return -1;
+                }
+            }
+            int length = Math.min(dst.remaining(), mL2capBuffer.remaining());
+            dst.put(mL2capBuffer.array(), mL2capBuffer.position(), length);
+            mL2capBuffer.position(mL2capBuffer.position() + length);
+            return length;
+        }
+        return readFromFd(fd, dst);
+    }
+
+    /**
+     * Writes the bytes remaining in the given buffer to this socket.
+     *
+     * <p>All of {@code src.remaining()} bytes are written, starting at the position of the buffer,
+     * which is then advanced to its limit. For L2CAP sockets, the bytes are sent in packets of at
+     * most {@link #getMaxTransmitPacketSize()} bytes.
+     *
+     * <p>Unlike the {@link #getOutputStream() output stream}, this writes straight from {@code
+     * src}, heap or direct, and does not allocate: it is meant for high throughput transfers.
+     *
+     * @param src buffer holding the bytes to write
+     * @return the number of bytes written
+     * @throws IOException if the socket is not connected, or if an I/O error occurs
+     */
+    @FlaggedApi(Flags.FLAG_SOCKET_BYTE_BUFFER_API)
+    @RequiresNoPermission
+    public int write(@NonNull ByteBuffer src) throws IOException {
+        Objects.requireNonNull(src, "src must not be null");
+        FileDescriptor fd = getConnectedFileDescriptor();
+        int length = src.remaining();
+        int packetSize =
+                ((mType == TYPE_L2CAP) || (mType == TYPE_L2CAP_LE)) && mMaxTxPacketSize > 0
+                        ? mMaxTxPacketSize
+                        : Integer.MAX_VALUE;
+        int limit = src.limit();
+        try {
+            while (src.hasRemaining()) {
+                // Slice the buffer in packets by moving its limit, rather than copying it
+                src.limit(src.position() + Math.min(src.remaining(), packetSize));
+                while (src.hasRemaining()) {
+                    Os.write(fd, src);
+                }
+                src.limit(limit);
+            }
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        } finally {
+            src.limit(limit);
+        }
+        return length;
+    }
+
+    private FileDescriptor getConnectedFileDescriptor() throws IOException {
+        LocalSocket socket = mSocket;
+        if (mSocketState != SocketState.CONNECTED || socket == null) {
+            throw new IOException("bt socket is not connected");
+        }
+        return socket.getFileDescriptor();
+    }
+
+    private static int readFromFd(FileDescriptor fd, ByteBuffer dst) throws IOException {
+        try {
+            int ret = Os.read(fd, dst);
+            // Like the input stream of the socket, report the end of the stream as -1 and not 0
+            return ret == 0 ? -1 : ret;
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+    }
+
     @Override
     public void close() throws IOException {
         Log.d(
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import android.annotation.Nullable;
+import android.os.Handler;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Queue of the read and write operations of a {@link BluetoothGatt} client, used once {@link
+ * BluetoothGatt#setOperationQueueEnabled} is called.
+ *
+ * <p>A single operation may be in flight at a time. Instead of rejecting the operations issued in
+ * the meantime, they are queued and the next one is dispatched as soon as the result of the
+ * previous one is delivered. The queue is bounded, and an operation that does not complete in time
+ * is failed. The remote device is still processing it though: the following operations are only
+ * dispatched once its late result is received, or the queue is failed as the link drops, which
+ * the stack does once the ATT transaction times out.
+ *
+ * @hide
+ */
+final class GattOperationQueue {
+    private static final String TAG = "GattOperationQueue";
+
+    static final int OP_READ_CHARACTERISTIC = 1;
+    static final int OP_WRITE_CHARACTERISTIC = 2;
+    static final int OP_READ_DESCRIPTOR = 3;
+    static final int OP_WRITE_DESCRIPTOR = 4;
+    static final int OP_EXECUTE_WRITE = 5;
+
+    /** Handle of an operation, or of a result, that is not tied to an attribute. */
+    static final int ANY_HANDLE = -1;
+
+    static final int MAX_QUEUED_OPERATIONS = 64;
+
+    // Same as the ATT transaction timeout: past it, the remote device will not answer anymore.
+    static final long OPERATION_TIMEOUT_MS = 30000;
+
+    /** Operation waiting in the queue. */
+    abstract static class Operation {
+        final int mType;
+        final int mHandle;
+
+        Operation(int type, int handle) {
+            mType = type;
+            mHandle = handle;
+        }
+
+        /** Sends the operation to the remote device. Returns false if it could not be sent. */
+        abstract boolean dispatch();
+
+        /** Reports the failure of the operation to the application. */
+        abstract void fail(int status);
+
+        boolean matches(int type, int handle) {
+            return mType == type
+                    && (mHandle == ANY_HANDLE || handle == ANY_HANDLE || mHandle == handle);
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final Handler mHandler;
+
+    @GuardedBy("mLock")
+    private final ArrayDeque<Operation> mPending = new ArrayDeque<>();
+
+    @GuardedBy("mLock")
+    private Operation mInFlight;
+
+    // Whether mInFlight timed out and was failed already
+    @GuardedBy("mLock")
+    private boolean mInFlightTimedOut = false;
+
+    /** @param handler handler on which the operations are timed out */
+    GattOperationQueue(Handler handler) {
+        mHandler = handler;
+    }
+
+    /** Queues an operation, and dispatches it if idle. Returns false if the queue is full. */
+    boolean enqueue(Operation operation) {
+        synchronized (mLock) {
+            if (mPending.size() >= MAX_QUEUED_OPERATIONS) {
+                Log.w(TAG, "enqueue() - queue full, rejecting operation " + operation.mType);
+                return false;
+            }
+            mPending.add(operation);
+        }
+        dispatchNext();
+        return true;
+    }
+
+    /**
+     * Called with the result of an operation. If it completes the operation in flight, {@code
+     * onCompleted} delivers the result and the next operation is dispatched. The result of an
+     * operation that already timed out is dropped, as its failure was reported instead.
+     */
+    void complete(int type, int handle, @Nullable Runnable onCompleted) {
+        boolean timedOut;
+        synchronized (mLock) {
+            if (mInFlight == null || !mInFlight.matches(type, handle)) {
+                Log.w(TAG, "complete() - dropping result " + type + " for handle " + handle);
+                return;
+            }
+            mHandler.removeCallbacksAndMessages(mInFlight);
+            mInFlight = null;
+            timedOut = mInFlightTimedOut;
+            mInFlightTimedOut = false;
+        }
+        if (timedOut) {
+            Log.w(TAG, "complete() - dropping late result " + type + " for handle " + handle);
+        } else if (onCompleted != null) {
+            onCompleted.run();
+        }
+        dispatchNext();
+    }
+
+    /**
+     * Fails the queued operations with {@code status}, in order, as the remote device will not
+     * answer them anymore. The operation in flight is failed too, unless it timed out already.
+     */
+    void failAll(int status) {
+        List<Operation> failed = new ArrayList<>();
+        synchronized (mLock) {
+            if (mInFlight != null) {
+                mHandler.removeCallbacksAndMessages(mInFlight);
+                if (!mInFlightTimedOut) {
+                    failed.add(mInFlight);
+                }
+                mInFlight = null;
+                mInFlightTimedOut = false;
+            }
+            failed.addAll(mPending);
+            mPending.clear();
+        }
+        for (Operation operation : failed) {
+            operation.fail(status);
+        }
+    }
+
+    /** Drops the queued operations, without reporting them. */
+    void clear() {
+        synchronized (mLock) {
+            mPending.clear();
+            if (mInFlight != null) {
+                mHandler.removeCallbacksAndMessages(mInFlight);
+                mInFlight = null;
+                mInFlightTimedOut = false;
+            }
+        }
+    }
+
+    int size() {
+        synchronized (mLock) {
+            return mPending.size() + (mInFlight != null ? 1 : 0);
+        }
+    }
+
+    private void dispatchNext() {
+        while (true) {
+            Operation operation;
+            synchronized (mLock) {
+                if (mInFlight != null || mPending.isEmpty()) {
+                    return;
+                }
+                operation = mPending.poll();
+                mInFlight = operation;
+                mHandler.postDelayed(() -> onTimeout(operation), operation, OPERATION_TIMEOUT_MS);
+            }
+            // The result may be delivered on another thread before dispatch() returns
+            if (operation.dispatch()) {
+                return;
+            }
+            if (takeInFlight(operation)) {
+                operation.fail(BluetoothGatt.GATT_FAILURE);
+            }
+        }
+    }
+
+    private void onTimeout(Operation operation) {
+        synchronized (mLock) {
+            if (mInFlight != operation || mInFlightTimedOut) {
+                return;
+            }
+            // Stays in flight: the remote device may not take another request until it answers
+            mInFlightTimedOut = true;
+        }
+        Log.w(TAG, "onTimeout() - operation " + operation.mType + " did not complete");
+        operation.fail(BluetoothGatt.GATT_FAILURE);
+    }
+
+    private boolean takeInFlight(Operation operation) {
+        synchronized (mLock) {
+            if (mInFlight != operation) {
+                return false;
+            }
+            mHandler.removeCallbacksAndMessages(operation);
+            mInFlight = null;
+            boolean timedOut = mInFlightTimedOut;
+            mInFlightTimedOut = false;
+            // The failure of an operation that timed out was reported already
+            return !timedOut;
+        }
+    }
+}
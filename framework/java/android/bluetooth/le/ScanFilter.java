@@ -467,8 +467,9 @@ public final class ScanFilter implements Parcelable {
 
         // UUID match.
         if (mServiceUuid != null
-                && !matchesServiceUuids(
-                        mServiceUuid, mServiceUuidMask, scanRecord.getServiceUuids())) {
+                && !scanRecord.matchesServiceUuid(
+                        mServiceUuid.getUuid(),
+                        mServiceUuidMask == null ? null : mServiceUuidMask.getUuid())) {
             return false;
         }
 
@@ -483,28 +484,23 @@ public final class ScanFilter implements Parcelable {
 
         // Service data match
         if (mServiceDataUuid != null) {
-            if (!matchesPartialData(
-                    mServiceData, mServiceDataMask, scanRecord.getServiceData(mServiceDataUuid))) {
+            if (!scanRecord.matchesServiceData(mServiceDataUuid, mServiceData, mServiceDataMask)) {
                 return false;
             }
         }
 
         // Manufacturer data match.
         if (mManufacturerId >= 0 && mManufacturerData != null) {
-            if (!matchesPartialData(
-                    mManufacturerData,
-                    mManufacturerDataMask,
-                    scanRecord.getManufacturerSpecificData(mManufacturerId))) {
+            if (!scanRecord.matchesManufacturerData(
+                    mManufacturerId, mManufacturerData, mManufacturerDataMask)) {
                 return false;
             }
         }
 
         // Advertising data type match
         if (mAdvertisingDataType > 0) {
-            byte[] advertisingData = scanRecord.getAdvertisingDataMap().get(mAdvertisingDataType);
-            if (advertisingData == null
-                    || !matchesPartialData(
-                            mAdvertisingData, mAdvertisingDataMask, advertisingData)) {
+            if (!scanRecord.matchesAdvertisingData(
+                    mAdvertisingDataType, mAdvertisingData, mAdvertisingDataMask)) {
                 return false;
             }
         }
@@ -38,6 +38,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 import java.util.function.Predicate;
 
 /** Represents a scan record from Bluetooth LE scan. */
@@ -339,36 +340,64 @@ public final class ScanRecord {
      */
     public static final int DATA_TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
 
-    // Flags of the advertising data.
-    private final int mAdvertiseFlags;
+    // Raw bytes of scan record.
+    private final byte[] mBytes;
 
-    @Nullable private final List<ParcelUuid> mServiceUuids;
-    @Nullable private final List<ParcelUuid> mServiceSolicitationUuids;
+    // Table of the AD structures found in mBytes, as (type, offset, length) triples where offset
+    // and length delimit the AD data without its length and type octets.
+    private final int[] mFieldTable;
+    private final int mFieldCount;
 
-    private final SparseArray<byte[]> mManufacturerSpecificData;
+    // False if one of the AD structures is malformed. Only the raw bytes and the advertising data
+    // map are exposed for such records, all other fields are left unset.
+    private final boolean mValid;
 
-    private final Map<ParcelUuid, byte[]> mServiceData;
+    // Fields decoded from mBytes on first access.
+    private volatile DecodedFields mDecodedFields;
+    private volatile Map<Integer, byte[]> mAdvertisingDataMap;
 
-    // Transmission power level(in dB).
-    private final int mTxPowerLevel;
+    private static final int FIELD_TYPE = 0;
+    private static final int FIELD_OFFSET = 1;
+    private static final int FIELD_LENGTH = 2;
+    private static final int FIELD_SIZE = 3;
 
-    // Local name of the Bluetooth LE device.
-    private final String mDeviceName;
+    /** Fields of a scan record, decoded together on first access. */
+    private static final class DecodedFields {
+        // Flags of the advertising data.
+        int mAdvertiseFlags = -1;
 
-    // Raw bytes of scan record.
-    private final byte[] mBytes;
+        @Nullable List<ParcelUuid> mServiceUuids;
+        @Nullable List<ParcelUuid> mServiceSolicitationUuids;
+
+        SparseArray<byte[]> mManufacturerSpecificData;
 
-    private final Map<Integer, byte[]> mAdvertisingDataMap;
+        Map<ParcelUuid, byte[]> mServiceData;
+
+        // Transmission power level(in dB).
+        int mTxPowerLevel = Integer.MIN_VALUE;
+
+        // Local name of the Bluetooth LE device.
+        String mDeviceName;
+
+        // Transport Discovery data.
+        TransportDiscoveryData mTransportDiscoveryData;
+    }
 
-    // Transport Discovery data.
-    private final TransportDiscoveryData mTransportDiscoveryData;
+    private DecodedFields getDecodedFields() {
+        DecodedFields fields = mDecodedFields;
+        if (fields == null) {
+            fields = decodeFields();
+            mDecodedFields = fields;
+        }
+        return fields;
+    }
 
     /**
      * Returns the advertising flags indicating the discoverable mode and capability of the device.
      * Returns -1 if the flag field is not set.
      */
     public int getAdvertiseFlags() {
-        return mAdvertiseFlags;
+        return getDecodedFields().mAdvertiseFlags;
     }
 
     /**
@@ -376,7 +405,7 @@ public final class ScanRecord {
      * bluetooth GATT services.
      */
     public List<ParcelUuid> getServiceUuids() {
-        return mServiceUuids;
+        return getDecodedFields().mServiceUuids;
     }
 
     /**
@@ -385,7 +414,7 @@ public final class ScanRecord {
      */
     @NonNull
     public List<ParcelUuid> getServiceSolicitationUuids() {
-        return mServiceSolicitationUuids;
+        return getDecodedFields().mServiceSolicitationUuids;
     }
 
     /**
@@ -393,7 +422,7 @@ public final class ScanRecord {
      * data.
      */
     public SparseArray<byte[]> getManufacturerSpecificData() {
-        return mManufacturerSpecificData;
+        return getDecodedFields().mManufacturerSpecificData;
     }
 
     /**
@@ -402,15 +431,16 @@ public final class ScanRecord {
      */
     @Nullable
     public byte[] getManufacturerSpecificData(int manufacturerId) {
-        if (mManufacturerSpecificData == null) {
+        SparseArray<byte[]> manufacturerSpecificData = getManufacturerSpecificData();
+        if (manufacturerSpecificData == null) {
             return null;
         }
-        return mManufacturerSpecificData.get(manufacturerId);
+        return manufacturerSpecificData.get(manufacturerId);
     }
 
     /** Returns a map of service UUID and its corresponding service data. */
     public Map<ParcelUuid, byte[]> getServiceData() {
-        return mServiceData;
+        return getDecodedFields().mServiceData;
     }
 
     /**
@@ -419,10 +449,11 @@ public final class ScanRecord {
      */
     @Nullable
     public byte[] getServiceData(ParcelUuid serviceDataUuid) {
-        if (serviceDataUuid == null || mServiceData == null) {
+        Map<ParcelUuid, byte[]> serviceData = getServiceData();
+        if (serviceDataUuid == null || serviceData == null) {
             return null;
         }
-        return mServiceData.get(serviceDataUuid);
+        return serviceData.get(serviceDataUuid);
     }
 
     /**
@@ -433,13 +464,13 @@ public final class ScanRecord {
      * <p><code>pathloss = txPowerLevel - rssi</code>
      */
     public int getTxPowerLevel() {
-        return mTxPowerLevel;
+        return getDecodedFields().mTxPowerLevel;
     }
 
     /** Returns the local name of the BLE device. This is a UTF-8 encoded string. */
     @Nullable
     public String getDeviceName() {
-        return mDeviceName;
+        return getDecodedFields().mDeviceName;
     }
 
     /**
@@ -448,7 +479,16 @@ public final class ScanRecord {
      * (https://www.bluetooth.com/specifications/assigned-numbers/)
      */
     public @NonNull Map<Integer, byte[]> getAdvertisingDataMap() {
-        return mAdvertisingDataMap;
+        Map<Integer, byte[]> advertisingDataMap = mAdvertisingDataMap;
+        if (advertisingDataMap == null) {
+            advertisingDataMap = new HashMap<Integer, byte[]>();
+            for (int i = 0; i < mFieldCount; i++) {
+                advertisingDataMap.put(
+                        fieldType(i), extractBytes(mBytes, fieldOffset(i), fieldLength(i)));
+            }
+            mAdvertisingDataMap = advertisingDataMap;
+        }
+        return advertisingDataMap;
     }
 
     /**
@@ -459,7 +499,7 @@ public final class ScanRecord {
     @SystemApi
     @Nullable
     public TransportDiscoveryData getTransportDiscoveryData() {
-        return mTransportDiscoveryData;
+        return getDecodedFields().mTransportDiscoveryData;
     }
 
     /** Returns raw bytes of scan record. */
@@ -487,27 +527,232 @@ public final class ScanRecord {
         return false;
     }
 
-    private ScanRecord(
-            List<ParcelUuid> serviceUuids,
-            List<ParcelUuid> serviceSolicitationUuids,
-            SparseArray<byte[]> manufacturerData,
-            Map<ParcelUuid, byte[]> serviceData,
-            int advertiseFlags,
-            int txPowerLevel,
-            String localName,
-            Map<Integer, byte[]> advertisingDataMap,
-            TransportDiscoveryData transportDiscoveryData,
-            byte[] bytes) {
-        mServiceSolicitationUuids = serviceSolicitationUuids;
-        mServiceUuids = serviceUuids;
-        mManufacturerSpecificData = manufacturerData;
-        mServiceData = serviceData;
-        mDeviceName = localName;
-        mAdvertiseFlags = advertiseFlags;
-        mTxPowerLevel = txPowerLevel;
-        mAdvertisingDataMap = advertisingDataMap;
-        mTransportDiscoveryData = transportDiscoveryData;
+    /**
+     * Check if one of the service UUIDs of this record matches {@code uuid} under {@code mask},
+     * without decoding the record.
+     */
+    boolean matchesServiceUuid(@NonNull UUID uuid, @Nullable UUID mask) {
+        if (!mValid) {
+            return false;
+        }
+        for (int i = 0; i < mFieldCount; i++) {
+            int uuidLength;
+            switch (fieldType(i)) {
+                case DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL:
+                case DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE:
+                    uuidLength = BluetoothUuid.UUID_BYTES_16_BIT;
+                    break;
+                case DATA_TYPE_SERVICE_UUIDS_32_BIT_PARTIAL:
+                case DATA_TYPE_SERVICE_UUIDS_32_BIT_COMPLETE:
+                    uuidLength = BluetoothUuid.UUID_BYTES_32_BIT;
+                    break;
+                case DATA_TYPE_SERVICE_UUIDS_128_BIT_PARTIAL:
+                case DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE:
+                    uuidLength = BluetoothUuid.UUID_BYTES_128_BIT;
+                    break;
+                default:
+                    continue;
+            }
+            int pos = fieldOffset(i);
+            for (int dataLength = fieldLength(i); dataLength > 0; dataLength -= uuidLength) {
+                if (maskedEquals(
+                        uuidMsbAt(mBytes, pos, uuidLength),
+                        uuidLsbAt(mBytes, pos, uuidLength),
+                        uuid,
+                        mask)) {
+                    return true;
+                }
+                pos += uuidLength;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if the service data of {@code serviceDataUuid} starts with {@code data} under {@code
+     * dataMask}, without decoding the record.
+     */
+    boolean matchesServiceData(
+            @NonNull ParcelUuid serviceDataUuid, @NonNull byte[] data, @Nullable byte[] dataMask) {
+        if (!mValid) {
+            return false;
+        }
+        UUID uuid = serviceDataUuid.getUuid();
+        // Later AD structures override earlier ones with the same UUID.
+        for (int i = mFieldCount - 1; i >= 0; i--) {
+            int serviceUuidLength = serviceDataUuidLength(fieldType(i));
+            if (serviceUuidLength == 0) {
+                continue;
+            }
+            int pos = fieldOffset(i);
+            if (maskedEquals(
+                    uuidMsbAt(mBytes, pos, serviceUuidLength),
+                    uuidLsbAt(mBytes, pos, serviceUuidLength),
+                    uuid,
+                    null)) {
+                return matchesPartialData(
+                        data,
+                        dataMask,
+                        pos + serviceUuidLength,
+                        fieldLength(i) - serviceUuidLength);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if the manufacturer specific data of {@code manufacturerId} starts with {@code data}
+     * under {@code dataMask}, without decoding the record.
+     */
+    boolean matchesManufacturerData(
+            int manufacturerId, @NonNull byte[] data, @Nullable byte[] dataMask) {
+        if (!mValid) {
+            return false;
+        }
+        if (!Flags.scanRecordManufacturerDataMerge()) {
+            // Later AD structures override earlier ones with the same manufacturer id.
+            for (int i = mFieldCount - 1; i >= 0; i--) {
+                if (isManufacturerData(i, manufacturerId)) {
+                    return matchesPartialData(
+                            data, dataMask, fieldOffset(i) + 2, fieldLength(i) - 2);
+                }
+            }
+            return false;
+        }
+
+        // AD structures with the same manufacturer id are concatenated.
+        boolean found = false;
+        int matched = 0;
+        for (int i = 0; i < mFieldCount; i++) {
+            if (!isManufacturerData(i, manufacturerId)) {
+                continue;
+            }
+            found = true;
+            int pos = fieldOffset(i) + 2;
+            int end = pos + fieldLength(i) - 2;
+            for (; pos < end && matched < data.length; pos++, matched++) {
+                if (!maskedEquals(mBytes[pos], data[matched], dataMask, matched)) {
+                    return false;
+                }
+            }
+        }
+        return found && matched == data.length;
+    }
+
+    /**
+     * Check if the advertising data of type {@code advertisingDataType} starts with {@code data}
+     * under {@code dataMask}, without decoding the record. A {@code null} pattern only checks that
+     * the type is present.
+     */
+    boolean matchesAdvertisingData(
+            int advertisingDataType, @Nullable byte[] data, @Nullable byte[] dataMask) {
+        // Later AD structures override earlier ones with the same type.
+        for (int i = mFieldCount - 1; i >= 0; i--) {
+            if (fieldType(i) == advertisingDataType) {
+                return data == null
+                        || matchesPartialData(data, dataMask, fieldOffset(i), fieldLength(i));
+            }
+        }
+        return false;
+    }
+
+    private boolean isManufacturerData(int field, int manufacturerId) {
+        if (fieldType(field) != DATA_TYPE_MANUFACTURER_SPECIFIC_DATA) {
+            return false;
+        }
+        int pos = fieldOffset(field);
+        return manufacturerId == (((mBytes[pos + 1] & 0xFF) << 8) + (mBytes[pos] & 0xFF));
+    }
+
+    // Check whether the data pattern matches the AD data at [offset, offset + length).
+    private boolean matchesPartialData(byte[] data, byte[] dataMask, int offset, int length) {
+        if (length < data.length) {
+            return false;
+        }
+        for (int i = 0; i < data.length; i++) {
+            if (!maskedEquals(mBytes[offset + i], data[i], dataMask, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean maskedEquals(byte parsed, byte expected, byte[] dataMask, int index) {
+        if (dataMask == null) {
+            return parsed == expected;
+        }
+        return (dataMask[index] & parsed) == (dataMask[index] & expected);
+    }
+
+    private static boolean maskedEquals(long msb, long lsb, UUID uuid, UUID mask) {
+        if (mask == null) {
+            return msb == uuid.getMostSignificantBits() && lsb == uuid.getLeastSignificantBits();
+        }
+        return (lsb & mask.getLeastSignificantBits())
+                        == (uuid.getLeastSignificantBits() & mask.getLeastSignificantBits())
+                && (msb & mask.getMostSignificantBits())
+                        == (uuid.getMostSignificantBits() & mask.getMostSignificantBits());
+    }
+
+    // Same conversion as BluetoothUuid#parseUuidFrom, without allocating.
+    private static long uuidMsbAt(byte[] bytes, int pos, int uuidLength) {
+        if (uuidLength == BluetoothUuid.UUID_BYTES_128_BIT) {
+            return littleEndianLongAt(bytes, pos + 8);
+        }
+        long shortUuid = bytes[pos] & 0xFF;
+        shortUuid += (bytes[pos + 1] & 0xFF) << 8;
+        if (uuidLength == BluetoothUuid.UUID_BYTES_32_BIT) {
+            shortUuid += (bytes[pos + 2] & 0xFF) << 16;
+            shortUuid += (bytes[pos + 3] & 0xFF) << 24;
+        }
+        return BluetoothUuid.BASE_UUID.getUuid().getMostSignificantBits() + (shortUuid << 32);
+    }
+
+    private static long uuidLsbAt(byte[] bytes, int pos, int uuidLength) {
+        if (uuidLength == BluetoothUuid.UUID_BYTES_128_BIT) {
+            return littleEndianLongAt(bytes, pos);
+        }
+        return BluetoothUuid.BASE_UUID.getUuid().getLeastSignificantBits();
+    }
+
+    private static long littleEndianLongAt(byte[] bytes, int pos) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (bytes[pos + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static int serviceDataUuidLength(int fieldType) {
+        switch (fieldType) {
+            case DATA_TYPE_SERVICE_DATA_16_BIT:
+                return BluetoothUuid.UUID_BYTES_16_BIT;
+            case DATA_TYPE_SERVICE_DATA_32_BIT:
+                return BluetoothUuid.UUID_BYTES_32_BIT;
+            case DATA_TYPE_SERVICE_DATA_128_BIT:
+                return BluetoothUuid.UUID_BYTES_128_BIT;
+            default:
+                return 0;
+        }
+    }
+
+    private int fieldType(int field) {
+        return mFieldTable[field * FIELD_SIZE + FIELD_TYPE];
+    }
+
+    private int fieldOffset(int field) {
+        return mFieldTable[field * FIELD_SIZE + FIELD_OFFSET];
+    }
+
+    private int fieldLength(int field) {
+        return mFieldTable[field * FIELD_SIZE + FIELD_LENGTH];
+    }
+
+    private ScanRecord(byte[] bytes, int[] fieldTable, int fieldCount, boolean valid) {
         mBytes = bytes;
+        mFieldTable = fieldTable;
+        mFieldCount = fieldCount;
+        mValid = valid;
     }
 
     /**
@@ -518,6 +763,9 @@ public final class ScanRecord {
      * <p>All numerical multi-byte entities and values shall use little-endian <strong>byte</strong>
      * order.
      *
+     * <p>Only the boundaries of the AD structures are parsed here, the fields of the record are
+     * decoded from the raw bytes on first access.
+     *
      * @param scanRecord The scan record of Bluetooth LE advertisement and/or scan response.
      * @hide
      */
@@ -527,204 +775,265 @@ public final class ScanRecord {
             return null;
         }
 
+        // First pass counts the AD structures so that the table is allocated at its exact size.
+        int fieldCount = 0;
+        boolean valid = true;
         int currentPos = 0;
-        int advertiseFlag = -1;
+        while (currentPos < scanRecord.length) {
+            // length is unsigned int.
+            int length = scanRecord[currentPos++] & 0xFF;
+            if (length == 0) {
+                break;
+            }
+            // Note the length includes the length of the field type itself.
+            int dataLength = length - 1;
+            if (currentPos + 1 + dataLength > scanRecord.length) {
+                valid = false;
+                break;
+            }
+            // fieldType is unsigned int.
+            int fieldType = scanRecord[currentPos++] & 0xFF;
+            fieldCount++;
+            if (!isValidField(scanRecord, fieldType, currentPos, dataLength)) {
+                valid = false;
+                break;
+            }
+            currentPos += dataLength;
+        }
+
+        int[] fieldTable = new int[fieldCount * FIELD_SIZE];
+        currentPos = 0;
+        for (int i = 0; i < fieldCount; i++) {
+            int dataLength = (scanRecord[currentPos++] & 0xFF) - 1;
+            fieldTable[i * FIELD_SIZE + FIELD_TYPE] = scanRecord[currentPos++] & 0xFF;
+            fieldTable[i * FIELD_SIZE + FIELD_OFFSET] = currentPos;
+            fieldTable[i * FIELD_SIZE + FIELD_LENGTH] = dataLength;
+            currentPos += dataLength;
+        }
+
+        if (!valid) {
+            Log.e(TAG, "unable to parse scan record: " + Arrays.toString(scanRecord));
+            // As the record is invalid, ignore all the parsed results for this packet
+            // and return an empty record with raw scanRecord bytes in results
+        }
+        return new ScanRecord(scanRecord, fieldTable, fieldCount, valid);
+    }
+
+    // Check that the AD data at [currentPos, currentPos + dataLength) can be decoded as fieldType.
+    private static boolean isValidField(
+            byte[] scanRecord, int fieldType, int currentPos, int dataLength) {
+        switch (fieldType) {
+            case DATA_TYPE_FLAGS:
+            case DATA_TYPE_TX_POWER_LEVEL:
+                return currentPos < scanRecord.length;
+            case DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL:
+            case DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE:
+            case DATA_TYPE_SERVICE_SOLICITATION_UUIDS_16_BIT:
+                return isValidUuidList(
+                        scanRecord, currentPos, dataLength, BluetoothUuid.UUID_BYTES_16_BIT);
+            case DATA_TYPE_SERVICE_UUIDS_32_BIT_PARTIAL:
+            case DATA_TYPE_SERVICE_UUIDS_32_BIT_COMPLETE:
+            case DATA_TYPE_SERVICE_SOLICITATION_UUIDS_32_BIT:
+                return isValidUuidList(
+                        scanRecord, currentPos, dataLength, BluetoothUuid.UUID_BYTES_32_BIT);
+            case DATA_TYPE_SERVICE_UUIDS_128_BIT_PARTIAL:
+            case DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE:
+            case DATA_TYPE_SERVICE_SOLICITATION_UUIDS_128_BIT:
+                return isValidUuidList(
+                        scanRecord, currentPos, dataLength, BluetoothUuid.UUID_BYTES_128_BIT);
+            case DATA_TYPE_SERVICE_DATA_16_BIT:
+            case DATA_TYPE_SERVICE_DATA_32_BIT:
+            case DATA_TYPE_SERVICE_DATA_128_BIT:
+                return dataLength >= serviceDataUuidLength(fieldType);
+            case DATA_TYPE_MANUFACTURER_SPECIFIC_DATA:
+                // The first two bytes of the manufacturer specific data are
+                // manufacturer ids in little endian.
+                return dataLength >= 2;
+            case DATA_TYPE_TRANSPORT_DISCOVERY_DATA:
+                return isValidTransportDiscoveryData(scanRecord, currentPos, dataLength);
+            default:
+                return true;
+        }
+    }
+
+    // UUIDs are read by whole uuidLength chunks, possibly past the end of the AD structure.
+    private static boolean isValidUuidList(
+            byte[] scanRecord, int currentPos, int dataLength, int uuidLength) {
+        int uuidCount = (dataLength + uuidLength - 1) / uuidLength;
+        return currentPos + uuidCount * uuidLength <= scanRecord.length;
+    }
+
+    // Mirrors the parsing done by TransportDiscoveryData(byte[]), which only tolerates truncation.
+    private static boolean isValidTransportDiscoveryData(
+            byte[] scanRecord, int currentPos, int dataLength) {
+        int end = currentPos + dataLength;
+        int pos = currentPos;
+        while (end - pos >= 3) {
+            int transportDataLength = scanRecord[pos + 2];
+            if (transportDataLength < 0) {
+                return false;
+            }
+            pos += 3 + transportDataLength;
+        }
+        return true;
+    }
+
+    private DecodedFields decodeFields() {
+        DecodedFields fields = new DecodedFields();
+        if (!mValid) {
+            return fields;
+        }
+
+        byte[] scanRecord = mBytes;
         List<ParcelUuid> serviceUuids = new ArrayList<ParcelUuid>();
         List<ParcelUuid> serviceSolicitationUuids = new ArrayList<ParcelUuid>();
-        String localName = null;
-        int txPowerLevel = Integer.MIN_VALUE;
-
         SparseArray<byte[]> manufacturerData = new SparseArray<byte[]>();
         Map<ParcelUuid, byte[]> serviceData = new ArrayMap<ParcelUuid, byte[]>();
-        HashMap<Integer, byte[]> advertisingDataMap = new HashMap<Integer, byte[]>();
-
-        TransportDiscoveryData transportDiscoveryData = null;
 
-        try {
-            while (currentPos < scanRecord.length) {
-                // length is unsigned int.
-                int length = scanRecord[currentPos++] & 0xFF;
-                if (length == 0) {
+        for (int i = 0; i < mFieldCount; i++) {
+            int fieldType = fieldType(i);
+            int currentPos = fieldOffset(i);
+            int dataLength = fieldLength(i);
+            switch (fieldType) {
+                case DATA_TYPE_FLAGS:
+                    fields.mAdvertiseFlags = scanRecord[currentPos] & 0xFF;
                     break;
-                }
-                // Note the length includes the length of the field type itself.
-                int dataLength = length - 1;
-                // fieldType is unsigned int.
-                int fieldType = scanRecord[currentPos++] & 0xFF;
-                byte[] advertisingData = extractBytes(scanRecord, currentPos, dataLength);
-                advertisingDataMap.put(fieldType, advertisingData);
-                switch (fieldType) {
-                    case DATA_TYPE_FLAGS:
-                        advertiseFlag = scanRecord[currentPos] & 0xFF;
-                        break;
-                    case DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL:
-                    case DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE:
-                        parseServiceUuid(
-                                scanRecord,
-                                currentPos,
-                                dataLength,
-                                BluetoothUuid.UUID_BYTES_16_BIT,
-                                serviceUuids);
-                        break;
-                    case DATA_TYPE_SERVICE_UUIDS_32_BIT_PARTIAL:
-                    case DATA_TYPE_SERVICE_UUIDS_32_BIT_COMPLETE:
-                        parseServiceUuid(
-                                scanRecord,
-                                currentPos,
-                                dataLength,
-                                BluetoothUuid.UUID_BYTES_32_BIT,
-                                serviceUuids);
-                        break;
-                    case DATA_TYPE_SERVICE_UUIDS_128_BIT_PARTIAL:
-                    case DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE:
-                        parseServiceUuid(
-                                scanRecord,
-                                currentPos,
-                                dataLength,
-                                BluetoothUuid.UUID_BYTES_128_BIT,
-                                serviceUuids);
-                        break;
-                    case DATA_TYPE_SERVICE_SOLICITATION_UUIDS_16_BIT:
-                        parseServiceSolicitationUuid(
-                                scanRecord,
-                                currentPos,
-                                dataLength,
-                                BluetoothUuid.UUID_BYTES_16_BIT,
-                                serviceSolicitationUuids);
-                        break;
-                    case DATA_TYPE_SERVICE_SOLICITATION_UUIDS_32_BIT:
-                        parseServiceSolicitationUuid(
-                                scanRecord,
-                                currentPos,
-                                dataLength,
-                                BluetoothUuid.UUID_BYTES_32_BIT,
-                                serviceSolicitationUuids);
-                        break;
-                    case DATA_TYPE_SERVICE_SOLICITATION_UUIDS_128_BIT:
-                        parseServiceSolicitationUuid(
-                                scanRecord,
-                                currentPos,
-                                dataLength,
-                                BluetoothUuid.UUID_BYTES_128_BIT,
-                                serviceSolicitationUuids);
-                        break;
-                    case DATA_TYPE_LOCAL_NAME_SHORT:
-                    case DATA_TYPE_LOCAL_NAME_COMPLETE:
-                        localName = new String(extractBytes(scanRecord, currentPos, dataLength));
-                        break;
-                    case DATA_TYPE_TX_POWER_LEVEL:
-                        txPowerLevel = scanRecord[currentPos];
-                        break;
-                    case DATA_TYPE_SERVICE_DATA_16_BIT:
-                    case DATA_TYPE_SERVICE_DATA_32_BIT:
-                    case DATA_TYPE_SERVICE_DATA_128_BIT:
-                        int serviceUuidLength = BluetoothUuid.UUID_BYTES_16_BIT;
-                        if (fieldType == DATA_TYPE_SERVICE_DATA_32_BIT) {
-                            serviceUuidLength = BluetoothUuid.UUID_BYTES_32_BIT;
-                        } else if (fieldType == DATA_TYPE_SERVICE_DATA_128_BIT) {
-                            serviceUuidLength = BluetoothUuid.UUID_BYTES_128_BIT;
-                        }
-
-                        byte[] serviceDataUuidBytes =
-                                extractBytes(scanRecord, currentPos, serviceUuidLength);
-                        ParcelUuid serviceDataUuid =
-                                BluetoothUuid.parseUuidFrom(serviceDataUuidBytes);
-                        byte[] serviceDataArray =
-                                extractBytes(
-                                        scanRecord,
-                                        currentPos + serviceUuidLength,
-                                        dataLength - serviceUuidLength);
-                        serviceData.put(serviceDataUuid, serviceDataArray);
-                        break;
-                    case DATA_TYPE_MANUFACTURER_SPECIFIC_DATA:
-                        // The first two bytes of the manufacturer specific data are
-                        // manufacturer ids in little endian.
-                        int manufacturerId =
-                                ((scanRecord[currentPos + 1] & 0xFF) << 8)
-                                        + (scanRecord[currentPos] & 0xFF);
-                        byte[] manufacturerDataBytes =
-                                extractBytes(scanRecord, currentPos + 2, dataLength - 2);
-                        if (Flags.scanRecordManufacturerDataMerge()) {
-                            if (manufacturerData.contains(manufacturerId)) {
-                                byte[] firstValue = manufacturerData.get(manufacturerId);
-                                ByteBuffer buffer =
-                                        ByteBuffer.allocate(
-                                                firstValue.length + manufacturerDataBytes.length);
-                                buffer.put(firstValue);
-                                buffer.put(manufacturerDataBytes);
-                                manufacturerData.put(manufacturerId, buffer.array());
-                            } else {
-                                manufacturerData.put(manufacturerId, manufacturerDataBytes);
-                            }
+                case DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL:
+                case DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE:
+                    parseServiceUuid(
+                            scanRecord,
+                            currentPos,
+                            dataLength,
+                            BluetoothUuid.UUID_BYTES_16_BIT,
+                            serviceUuids);
+                    break;
+                case DATA_TYPE_SERVICE_UUIDS_32_BIT_PARTIAL:
+                case DATA_TYPE_SERVICE_UUIDS_32_BIT_COMPLETE:
+                    parseServiceUuid(
+                            scanRecord,
+                            currentPos,
+                            dataLength,
+                            BluetoothUuid.UUID_BYTES_32_BIT,
+                            serviceUuids);
+                    break;
+                case DATA_TYPE_SERVICE_UUIDS_128_BIT_PARTIAL:
+                case DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE:
+                    parseServiceUuid(
+                            scanRecord,
+                            currentPos,
+                            dataLength,
+                            BluetoothUuid.UUID_BYTES_128_BIT,
+                            serviceUuids);
+                    break;
+                case DATA_TYPE_SERVICE_SOLICITATION_UUIDS_16_BIT:
+                    parseServiceSolicitationUuid(
+                            scanRecord,
+                            currentPos,
+                            dataLength,
+                            BluetoothUuid.UUID_BYTES_16_BIT,
+                            serviceSolicitationUuids);
+                    break;
+                case DATA_TYPE_SERVICE_SOLICITATION_UUIDS_32_BIT:
+                    parseServiceSolicitationUuid(
+                            scanRecord,
+                            currentPos,
+                            dataLength,
+                            BluetoothUuid.UUID_BYTES_32_BIT,
+                            serviceSolicitationUuids);
+                    break;
+                case DATA_TYPE_SERVICE_SOLICITATION_UUIDS_128_BIT:
+                    parseServiceSolicitationUuid(
+                            scanRecord,
+                            currentPos,
+                            dataLength,
+                            BluetoothUuid.UUID_BYTES_128_BIT,
+                            serviceSolicitationUuids);
+                    break;
+                case DATA_TYPE_LOCAL_NAME_SHORT:
+                case DATA_TYPE_LOCAL_NAME_COMPLETE:
+                    fields.mDeviceName =
+                            new String(extractBytes(scanRecord, currentPos, dataLength));
+                    break;
+                case DATA_TYPE_TX_POWER_LEVEL:
+                    fields.mTxPowerLevel = scanRecord[currentPos];
+                    break;
+                case DATA_TYPE_SERVICE_DATA_16_BIT:
+                case DATA_TYPE_SERVICE_DATA_32_BIT:
+                case DATA_TYPE_SERVICE_DATA_128_BIT:
+                    int serviceUuidLength = serviceDataUuidLength(fieldType);
+                    byte[] serviceDataUuidBytes =
+                            extractBytes(scanRecord, currentPos, serviceUuidLength);
+                    ParcelUuid serviceDataUuid = BluetoothUuid.parseUuidFrom(serviceDataUuidBytes);
+                    byte[] serviceDataArray =
+                            extractBytes(
+                                    scanRecord,
+                                    currentPos + serviceUuidLength,
+                                    dataLength - serviceUuidLength);
+                    serviceData.put(serviceDataUuid, serviceDataArray);
+                    break;
+                case DATA_TYPE_MANUFACTURER_SPECIFIC_DATA:
+                    // The first two bytes of the manufacturer specific data are
+                    // manufacturer ids in little endian.
+                    int manufacturerId =
+                            ((scanRecord[currentPos + 1] & 0xFF) << 8)
+                                    + (scanRecord[currentPos] & 0xFF);
+                    byte[] manufacturerDataBytes =
+                            extractBytes(scanRecord, currentPos + 2, dataLength - 2);
+                    if (Flags.scanRecordManufacturerDataMerge()) {
+                        if (manufacturerData.contains(manufacturerId)) {
+                            byte[] firstValue = manufacturerData.get(manufacturerId);
+                            ByteBuffer buffer =
+                                    ByteBuffer.allocate(
+                                            firstValue.length + manufacturerDataBytes.length);
+                            buffer.put(firstValue);
+                            buffer.put(manufacturerDataBytes);
+                            manufacturerData.put(manufacturerId, buffer.array());
                         } else {
                             manufacturerData.put(manufacturerId, manufacturerDataBytes);
                         }
-                        break;
-                    case DATA_TYPE_TRANSPORT_DISCOVERY_DATA:
-                        // -1 / +1 to include the type in the extract
-                        byte[] transportDiscoveryDataBytes =
-                                extractBytes(scanRecord, currentPos - 1, dataLength + 1);
-                        transportDiscoveryData =
-                                new TransportDiscoveryData(transportDiscoveryDataBytes);
-                        break;
-
-                    default:
-                        // Just ignore, we don't handle such data type.
-                        break;
-                }
-                currentPos += dataLength;
-            }
+                    } else {
+                        manufacturerData.put(manufacturerId, manufacturerDataBytes);
+                    }
+                    break;
+                case DATA_TYPE_TRANSPORT_DISCOVERY_DATA:
+                    // -1 / +1 to include the type in the extract
+                    byte[] transportDiscoveryDataBytes =
+                            extractBytes(scanRecord, currentPos - 1, dataLength + 1);
+                    fields.mTransportDiscoveryData =
+                            new TransportDiscoveryData(transportDiscoveryDataBytes);
+                    break;
 
-            if (serviceUuids.isEmpty()) {
-                serviceUuids = null;
+                default:
+                    // Just ignore, we don't handle such data type.
+                    break;
             }
-            return new ScanRecord(
-                    serviceUuids,
-                    serviceSolicitationUuids,
-                    manufacturerData,
-                    serviceData,
-                    advertiseFlag,
-                    txPowerLevel,
-                    localName,
-                    advertisingDataMap,
-                    transportDiscoveryData,
-                    scanRecord);
-        } catch (Exception e) {
-            Log.e(TAG, "unable to parse scan record: " + Arrays.toString(scanRecord));
-            // As the record is invalid, ignore all the parsed results for this packet
-            // and return an empty record with raw scanRecord bytes in results
-            return new ScanRecord(
-                    null,
-                    null,
-                    null,
-                    null,
-                    -1,
-                    Integer.MIN_VALUE,
-                    null,
-                    advertisingDataMap,
-                    null,
-                    scanRecord);
         }
+
+        fields.mServiceUuids = serviceUuids.isEmpty() ? null : serviceUuids;
+        fields.mServiceSolicitationUuids = serviceSolicitationUuids;
+        fields.mManufacturerSpecificData = manufacturerData;
+        fields.mServiceData = serviceData;
+        return fields;
     }
 
     @Override
     public String toString() {
         return "ScanRecord [mAdvertiseFlags="
-                + mAdvertiseFlags
+                + getAdvertiseFlags()
                 + ", mServiceUuids="
-                + mServiceUuids
+                + getServiceUuids()
                 + ", mServiceSolicitationUuids="
-                + mServiceSolicitationUuids
+                + getServiceSolicitationUuids()
                 + ", mManufacturerSpecificData="
-                + BluetoothLeUtils.toString(mManufacturerSpecificData)
+                + BluetoothLeUtils.toString(getManufacturerSpecificData())
                 + ", mServiceData="
-                + BluetoothLeUtils.toString(mServiceData)
+                + BluetoothLeUtils.toString(getServiceData())
                 + ", mTxPowerLevel="
-                + mTxPowerLevel
+                + getTxPowerLevel()
                 + ", mDeviceName="
-                + mDeviceName
+                + getDeviceName()
                 + ", mTransportDiscoveryData="
-                + mTransportDiscoveryData
+                + getTransportDiscoveryData()
                 + "]";
     }
 
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.content.AttributionSource;
+import android.os.Handler;
+import android.os.ParcelUuid;
+import android.os.RemoteException;
+import android.os.test.TestLooper;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+import org.mockito.verification.VerificationMode;
+
+import java.util.List;
+import java.util.UUID;
+
+/** Test cases for the operation queue of {@link BluetoothGatt}. */
+@SmallTest
+@RunWith(JUnit4.class)
+public class BluetoothGattTest {
+    private static final String REMOTE_ADDRESS = "00:01:02:03:04:05";
+    private static final int CLIENT_IF = 5;
+    private static final UUID SERVICE_UUID =
+            UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+    private static final UUID FIRST_UUID = UUID.fromString("00002a19-0000-1000-8000-00805f9b34fb");
+    private static final UUID SECOND_UUID = UUID.fromString("00002a1a-0000-1000-8000-00805f9b34fb");
+    private static final int FIRST_HANDLE = 3;
+    private static final int SECOND_HANDLE = 5;
+    private static final byte[] VALUE = {1, 2, 3};
+
+    private final IBluetoothGatt mService = mock(IBluetoothGatt.class);
+    private final BluetoothGattCallback mCallback = mock(BluetoothGattCallback.class);
+
+    private TestLooper mLooper;
+    private BluetoothGatt mGatt;
+    private IBluetoothGattCallback mGattCallback;
+    private BluetoothGattCharacteristic mFirstCharacteristic;
+    private BluetoothGattCharacteristic mSecondCharacteristic;
+
+    @Before
+    public void setUp() throws Exception {
+        mLooper = new TestLooper();
+        BluetoothDevice device =
+                BluetoothAdapter.getDefaultAdapter().getRemoteDevice(REMOTE_ADDRESS);
+        mGatt =
+                new BluetoothGatt(
+                        mService,
+                        device,
+                        BluetoothDevice.TRANSPORT_LE,
+                        false,
+                        BluetoothDevice.PHY_LE_1M_MASK,
+                        AttributionSource.myAttributionSource());
+        mGatt.connect(false, mCallback, new Handler(mLooper.getLooper()));
+
+        ArgumentCaptor<IBluetoothGattCallback> gattCallback =
+                ArgumentCaptor.forClass(IBluetoothGattCallback.class);
+        verify(mService).registerClient(any(), gattCallback.capture(), eq(false), any());
+        mGattCallback = gattCallback.getValue();
+        mGattCallback.onClientRegistered(BluetoothGatt.GATT_SUCCESS, CLIENT_IF);
+        mGattCallback.onClientConnectionState(
+                BluetoothGatt.GATT_SUCCESS, CLIENT_IF, true, REMOTE_ADDRESS);
+
+        BluetoothGattService service =
+                new BluetoothGattService(
+                        SERVICE_UUID, 1, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        mFirstCharacteristic = createReadableCharacteristic(FIRST_UUID, FIRST_HANDLE);
+        mSecondCharacteristic = createReadableCharacteristic(SECOND_UUID, SECOND_HANDLE);
+        service.addCharacteristic(mFirstCharacteristic);
+        service.addCharacteristic(mSecondCharacteristic);
+        mGattCallback.onSearchComplete(
+                REMOTE_ADDRESS, List.of(service), BluetoothGatt.GATT_SUCCESS);
+        mLooper.dispatchAll();
+
+        mGatt.setOperationQueueEnabled(true);
+    }
+
+    @Test
+    public void operationQueue_timeout_waitsForLateResultBeforeNextOperation() throws Exception {
+        mGatt.readCharacteristic(mFirstCharacteristic);
+        mGatt.readCharacteristic(mSecondCharacteristic);
+
+        mLooper.moveTimeForward(GattOperationQueue.OPERATION_TIMEOUT_MS);
+        mLooper.dispatchAll();
+
+        verify(mCallback)
+                .onCharacteristicRead(
+                        eq(mGatt),
+                        eq(mFirstCharacteristic),
+                        any(),
+                        eq(BluetoothGatt.GATT_FAILURE));
+        // The remote device did not answer yet, it would not take another request
+        verifyReadSent(SECOND_HANDLE, never());
+
+        mGattCallback.onCharacteristicRead(
+                REMOTE_ADDRESS, BluetoothGatt.GATT_SUCCESS, FIRST_HANDLE, VALUE);
+        mLooper.dispatchAll();
+
+        verify(mCallback, never())
+                .onCharacteristicRead(any(), any(), any(), eq(BluetoothGatt.GATT_SUCCESS));
+        verifyReadSent(SECOND_HANDLE, times(1));
+    }
+
+    @Test
+    public void operationQueue_timeoutThenDisconnection_failsNextOperation() throws Exception {
+        mGatt.readCharacteristic(mFirstCharacteristic);
+        mGatt.readCharacteristic(mSecondCharacteristic);
+
+        mLooper.moveTimeForward(GattOperationQueue.OPERATION_TIMEOUT_MS);
+        mLooper.dispatchAll();
+        mGattCallback.onClientConnectionState(
+                BluetoothGatt.GATT_SUCCESS, CLIENT_IF, false, REMOTE_ADDRESS);
+        mLooper.dispatchAll();
+
+        verifyReadSent(SECOND_HANDLE, never());
+        verify(mCallback, times(1))
+                .onCharacteristicRead(
+                        eq(mGatt),
+                        eq(mFirstCharacteristic),
+                        any(),
+                        eq(BluetoothGatt.GATT_FAILURE));
+        verify(mCallback)
+                .onCharacteristicRead(
+                        eq(mGatt),
+                        eq(mSecondCharacteristic),
+                        any(),
+                        eq(BluetoothGatt.GATT_FAILURE));
+    }
+
+    @Test
+    public void operationQueue_disconnection_failsPendingOperations() throws Exception {
+        mGatt.readCharacteristic(mFirstCharacteristic);
+        mGatt.readCharacteristic(mSecondCharacteristic);
+
+        mGattCallback.onClientConnectionState(
+                BluetoothGatt.GATT_SUCCESS, CLIENT_IF, false, REMOTE_ADDRESS);
+        mLooper.dispatchAll();
+
+        verify(mCallback)
+                .onCharacteristicRead(
+                        eq(mGatt),
+                        eq(mFirstCharacteristic),
+                        any(),
+                        eq(BluetoothGatt.GATT_FAILURE));
+        verify(mCallback)
+                .onCharacteristicRead(
+                        eq(mGatt),
+                        eq(mSecondCharacteristic),
+                        any(),
+                        eq(BluetoothGatt.GATT_FAILURE));
+    }
+
+    @Test
+    public void readUsingCharacteristicUuid_queuedSendFails_reportsFailureToCallback()
+            throws Exception {
+        doThrow(new RemoteException())
+                .when(mService)
+                .readUsingCharacteristicUuid(
+                        anyInt(), any(), any(), anyInt(), anyInt(), anyInt(), any());
+        mGatt.readCharacteristic(mFirstCharacteristic);
+        mGatt.readUsingCharacteristicUuid(SECOND_UUID, 1, 0xffff);
+
+        mGattCallback.onCharacteristicRead(
+                REMOTE_ADDRESS, BluetoothGatt.GATT_SUCCESS, FIRST_HANDLE, VALUE);
+        mLooper.dispatchAll();
+
+        verify(mService)
+                .readUsingCharacteristicUuid(
+                        eq(CLIENT_IF),
+                        eq(REMOTE_ADDRESS),
+                        eq(new ParcelUuid(SECOND_UUID)),
+                        eq(1),
+                        eq(0xffff),
+                        anyInt(),
+                        any());
+        verify(mCallback)
+                .onCharacteristicRead(
+                        eq(mGatt),
+                        eq(mSecondCharacteristic),
+                        any(),
+                        eq(BluetoothGatt.GATT_FAILURE));
+    }
+
+    private void verifyReadSent(int handle, VerificationMode mode) throws Exception {
+        verify(mService, mode)
+                .readCharacteristic(eq(CLIENT_IF), eq(REMOTE_ADDRESS), eq(handle), anyInt(), any());
+    }
+
+    private static BluetoothGattCharacteristic createReadableCharacteristic(UUID uuid, int handle) {
+        return new BluetoothGattCharacteristic(
+                uuid,
+                handle,
+                BluetoothGattCharacteristic.PROPERTY_READ,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import android.os.ParcelFileDescriptor;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.filters.MediumTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** Test cases for the {@link ByteBuffer} reads and writes of {@link BluetoothSocket}. */
+@MediumTest
+@RunWith(JUnit4.class)
+public class BluetoothSocketTest {
+    private static final String TAG = "BluetoothSocketTest";
+
+    private static final String REMOTE_ADDRESS = "00:01:02:03:04:05";
+    private static final ParcelUuid SERVICE_UUID =
+            ParcelUuid.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    private static final int BENCHMARK_SIZE = 16 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int L2CAP_PACKET_SIZE = 64;
+
+    private BluetoothSocket mLocalSocket;
+    private BluetoothSocket mRemoteSocket;
+
+    @Before
+    public void setUp() throws IOException {
+        ParcelFileDescriptor[] pair = ParcelFileDescriptor.createSocketPair();
+        BluetoothDevice device =
+                BluetoothAdapter.getDefaultAdapter().getRemoteDevice(REMOTE_ADDRESS);
+        mLocalSocket = BluetoothSocket.createSocketFromOpenFd(pair[0], device, SERVICE_UUID);
+        mRemoteSocket = BluetoothSocket.createSocketFromOpenFd(pair[1], device, SERVICE_UUID);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mLocalSocket.close();
+        mRemoteSocket.close();
+    }
+
+    @Test
+    public void writeAndRead_directAndHeapBuffers_transferBytes() throws IOException {
+        ByteBuffer src = ByteBuffer.allocateDirect(4);
+        src.put(new byte[] {1, 2, 3, 4}).flip();
+        ByteBuffer dst = ByteBuffer.allocate(8);
+        dst.position(2);
+
+        assertThat(mLocalSocket.write(src)).isEqualTo(4);
+        assertThat(src.hasRemaining()).isFalse();
+        assertThat(mRemoteSocket.read(dst)).isEqualTo(4);
+
+        assertThat(dst.position()).isEqualTo(6);
+        assertThat(dst.array()).isEqualTo(new byte[] {0, 0, 1, 2, 3, 4, 0, 0});
+    }
+
+    @Test
+    public void read_emptyBuffer_returnsZero() throws IOException {
+        assertThat(mRemoteSocket.read(ByteBuffer.allocate(0))).isEqualTo(0);
+    }
+
+    @Test
+    public void read_remoteClosed_returnsEndOfStream() throws IOException {
+        mLocalSocket.close();
+
+        assertThat(mRemoteSocket.read(ByteBuffer.allocate(4))).isEqualTo(-1);
+    }
+
+    @Test
+    public void readAndWrite_closedSocket_throw() throws IOException {
+        mLocalSocket.close();
+
+        assertThrows(IOException.class, () -> mLocalSocket.read(ByteBuffer.allocate(4)));
+        assertThrows(IOException.class, () -> mLocalSocket.write(ByteBuffer.allocate(4)));
+    }
+
+    @Test
+    public void l2capRead_bufferFitsPacket_readsWholePacket() throws IOException {
+        BluetoothSocket[] sockets = createL2capSocketPair();
+        sockets[0].getOutputStream().write(createBytes(L2CAP_PACKET_SIZE));
+        sockets[0].getOutputStream().write(createBytes(10));
+        ByteBuffer dst = ByteBuffer.allocateDirect(L2CAP_PACKET_SIZE + 8);
+
+        // Read straight into dst, which gets one packet at a time
+        assertThat(sockets[1].read(dst)).isEqualTo(L2CAP_PACKET_SIZE);
+        assertThat(sockets[1].read(dst)).isEqualTo(8);
+
+        byte[] received = new byte[L2CAP_PACKET_SIZE + 8];
+        dst.flip().get(received);
+        assertThat(Arrays.copyOf(received, L2CAP_PACKET_SIZE))
+                .isEqualTo(createBytes(L2CAP_PACKET_SIZE));
+        assertThat(Arrays.copyOfRange(received, L2CAP_PACKET_SIZE, received.length))
+                .isEqualTo(Arrays.copyOf(createBytes(10), 8));
+        closeAll(sockets);
+    }
+
+    @Test
+    public void l2capRead_bufferSmallerThanPacket_copiesRestOfPacketOnNextReads()
+            throws IOException {
+        BluetoothSocket[] sockets = createL2capSocketPair();
+        sockets[0].getOutputStream().write(createBytes(50));
+        sockets[0].getOutputStream().write(createBytes(20));
+        ByteBuffer dst = ByteBuffer.allocate(20);
+
+        assertThat(sockets[1].read(dst)).isEqualTo(20);
+        assertThat(dst.array()).isEqualTo(Arrays.copyOfRange(createBytes(50), 0, 20));
+        dst.clear();
+        assertThat(sockets[1].read(dst)).isEqualTo(20);
+        assertThat(dst.array()).isEqualTo(Arrays.copyOfRange(createBytes(50), 20, 40));
+        dst.clear();
+        // The end of the packet, and not the start of the next one
+        assertThat(sockets[1].read(dst)).isEqualTo(10);
+        assertThat(Arrays.copyOf(dst.array(), 10))
+                .isEqualTo(Arrays.copyOfRange(createBytes(50), 40, 50));
+        dst.clear();
+        assertThat(sockets[1].read(dst)).isEqualTo(20);
+        assertThat(dst.array()).isEqualTo(createBytes(20));
+        closeAll(sockets);
+    }
+
+    @Test
+    public void l2capWrite_bufferLargerThanPacket_sendsPacketsOfMaxSize() throws IOException {
+        BluetoothSocket[] sockets = createL2capSocketPair();
+        ByteBuffer src = ByteBuffer.allocateDirect(2 * L2CAP_PACKET_SIZE + 10 + 4);
+        src.put(createBytes(src.capacity())).position(2).limit(src.capacity() - 2);
+
+        assertThat(sockets[0].write(src)).isEqualTo(2 * L2CAP_PACKET_SIZE + 10);
+
+        assertThat(src.position()).isEqualTo(src.capacity() - 2);
+        assertThat(src.limit()).isEqualTo(src.capacity() - 2);
+        byte[] packet = new byte[L2CAP_PACKET_SIZE];
+        InputStream in = sockets[1].getInputStream();
+        assertThat(in.read(packet)).isEqualTo(L2CAP_PACKET_SIZE);
+        assertThat(packet).isEqualTo(Arrays.copyOfRange(createBytes(src.capacity()), 2, 66));
+        assertThat(in.read(packet)).isEqualTo(L2CAP_PACKET_SIZE);
+        assertThat(packet).isEqualTo(Arrays.copyOfRange(createBytes(src.capacity()), 66, 130));
+        assertThat(in.read(packet)).isEqualTo(10);
+        assertThat(Arrays.copyOf(packet, 10))
+                .isEqualTo(Arrays.copyOfRange(createBytes(src.capacity()), 130, 140));
+        closeAll(sockets);
+    }
+
+    @Test
+    public void l2capWrite_bufferSmallerThanPacket_sendsOnePacket() throws IOException {
+        BluetoothSocket[] sockets = createL2capSocketPair();
+        ByteBuffer src = ByteBuffer.wrap(createBytes(10));
+
+        assertThat(sockets[0].write(src)).isEqualTo(10);
+        assertThat(src.hasRemaining()).isFalse();
+        ByteBuffer dst = ByteBuffer.allocate(L2CAP_PACKET_SIZE);
+        assertThat(sockets[1].read(dst)).isEqualTo(10);
+        assertThat(Arrays.copyOf(dst.array(), 10)).isEqualTo(createBytes(10));
+        closeAll(sockets);
+    }
+
+    @Test
+    public void singleByteStreamReadsAndWrites_transferBytes() throws IOException {
+        OutputStream out = mLocalSocket.getOutputStream();
+        InputStream in = mRemoteSocket.getInputStream();
+
+        out.write(0x12);
+        out.write(0xff);
+
+        assertThat(in.read()).isEqualTo(0x12);
+        assertThat(in.read()).isEqualTo(0xff);
+    }
+
+    /**
+     * Transfers {@link #BENCHMARK_SIZE} bytes over a socket pair, through the streams and through
+     * direct buffers, and logs the throughput of each.
+     */
+    @Test
+    @LargeTest
+    public void benchmark_streamsAndByteBuffers() throws Exception {
+        runBenchmark(
+                "streams",
+                () -> {
+                    byte[] chunk = new byte[CHUNK_SIZE];
+                    OutputStream out = mLocalSocket.getOutputStream();
+                    for (int sent = 0; sent < BENCHMARK_SIZE; sent += CHUNK_SIZE) {
+                        out.write(chunk);
+                    }
+                },
+                () -> {
+                    byte[] chunk = new byte[CHUNK_SIZE];
+                    InputStream in = mRemoteSocket.getInputStream();
+                    int received = 0;
+                    while (received < BENCHMARK_SIZE) {
+                        received += in.read(chunk);
+                    }
+                    return received;
+                });
+        runBenchmark(
+                "direct buffers",
+                () -> {
+                    ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+                    for (int sent = 0; sent < BENCHMARK_SIZE; sent += CHUNK_SIZE) {
+                        chunk.clear();
+                        mLocalSocket.write(chunk);
+                    }
+                },
+                () -> {
+                    ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+                    int received = 0;
+                    while (received < BENCHMARK_SIZE) {
+                        chunk.clear();
+                        received += mRemoteSocket.read(chunk);
+                    }
+                    return received;
+                });
+    }
+
+    /** Returns connected L2CAP sockets, which keep the boundaries of the packets sent. */
+    private static BluetoothSocket[] createL2capSocketPair() throws IOException {
+        ParcelFileDescriptor[] pair = ParcelFileDescriptor.createReliableSocketPair();
+        BluetoothDevice device =
+                BluetoothAdapter.getDefaultAdapter().getRemoteDevice(REMOTE_ADDRESS);
+        return new BluetoothSocket[] {
+            BluetoothSocket.createL2capSocketFromOpenFd(
+                    pair[0], device, L2CAP_PACKET_SIZE, L2CAP_PACKET_SIZE),
+            BluetoothSocket.createL2capSocketFromOpenFd(
+                    pair[1], device, L2CAP_PACKET_SIZE, L2CAP_PACKET_SIZE)
+        };
+    }
+
+    private static void closeAll(BluetoothSocket[] sockets) throws IOException {
+        for (BluetoothSocket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    private static byte[] createBytes(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) i;
+        }
+        return bytes;
+    }
+
+    private interface Writer {
+        void write() throws IOException;
+    }
+
+    private interface Reader {
+        int read() throws IOException;
+    }
+
+    /** Transfers {@link #BENCHMARK_SIZE} bytes with the writer and the reader. */
+    private static void runBenchmark(String name, Writer writer, Reader reader) throws Exception {
+        AtomicReference<IOException> writeError = new AtomicReference<>();
+        Thread writerThread =
+                new Thread(
+                        () -> {
+                            try {
+                                writer.write();
+                            } catch (IOException e) {
+                                writeError.set(e);
+                            }
+                        });
+
+        long startMillis = SystemClock.elapsedRealtime();
+        writerThread.start();
+        int received = reader.read();
+        long elapsedMillis = Math.max(1, SystemClock.elapsedRealtime() - startMillis);
+        writerThread.join();
+
+        assertThat(writeError.get()).isNull();
+        assertThat(received).isEqualTo(BENCHMARK_SIZE);
+        long megabytes = BENCHMARK_SIZE / (1024 * 1024);
+        Log.i(TAG, String.format(Locale.US, "%s: %d MB/s", name, megabytes * 1000 / elapsedMillis));
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import static android.bluetooth.GattOperationQueue.OP_READ_CHARACTERISTIC;
+import static android.bluetooth.GattOperationQueue.OP_WRITE_CHARACTERISTIC;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Handler;
+import android.os.test.TestLooper;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Test cases for {@link GattOperationQueue}. */
+@SmallTest
+@RunWith(JUnit4.class)
+public class GattOperationQueueTest {
+    private final List<String> mEvents = new ArrayList<>();
+
+    private TestLooper mLooper;
+    private GattOperationQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mLooper = new TestLooper();
+        mQueue = new GattOperationQueue(new Handler(mLooper.getLooper()));
+    }
+
+    @Test
+    public void enqueue_dispatchesOneOperationAtATime() {
+        assertThat(mQueue.enqueue(new FakeOperation(OP_READ_CHARACTERISTIC, 1, true))).isTrue();
+        assertThat(mQueue.enqueue(new FakeOperation(OP_READ_CHARACTERISTIC, 2, true))).isTrue();
+        assertThat(mQueue.enqueue(new FakeOperation(OP_WRITE_CHARACTERISTIC, 3, true))).isTrue();
+
+        assertThat(mEvents).containsExactly("dispatch 1");
+
+        mQueue.complete(OP_READ_CHARACTERISTIC, 1, () -> mEvents.add("result 1"));
+        mQueue.complete(OP_READ_CHARACTERISTIC, 2, () -> mEvents.add("result 2"));
+
+        assertThat(mEvents)
+                .containsExactly("dispatch 1", "result 1", "dispatch 2", "result 2", "dispatch 3")
+                .inOrder();
+        assertThat(mQueue.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void enqueue_queueFull_rejectsOperation() {
+        for (int i = 0; i <= GattOperationQueue.MAX_QUEUED_OPERATIONS; i++) {
+            assertThat(mQueue.enqueue(new FakeOperation(OP_READ_CHARACTERISTIC, i, true)))
+                    .isTrue();
+        }
+
+        assertThat(mQueue.enqueue(new FakeOperation(OP_READ_CHARACTERISTIC, 0, true))).isFalse();
+    }
+
+    @Test
+    public void enqueue_dispatchFails_failsOperationAndDispatchesNext() {
+        mQueue.enqueue(new FakeOperation(OP_READ_CHARACTERISTIC, 1, false));
+        mQueue.enqueue(new FakeOperation(OP_READ_CHARACTERISTIC, 2, false));
+        mQueue.enqueue(new FakeOperation(OP_READ_CHARACTERISTIC, 3, true));
+
+        assertThat(mEvents)
+                .containsExactly("dispatch 1", "fail 1", "dispatch 2", "fail 2", "dispatch 3")
+                .inOrder();
+    }
+
+    @Test
+    public void timeout_failsOperationAndDispatchesNextOnLateResult() {
+        mQueue.enqueue(new FakeOperation(OP_READ_CHARACTERISTIC, 1, true));
+        mQueue.enqueue(new FakeOperation(OP_READ_CHARACTERISTIC, 2, true));
+
+        mLooper.moveTimeForward(GattOperationQueue.OPERATION_TIMEOUT_MS);
+        mLooper.dispatchAll();
+
+        assertThat(mEvents).containsExactly("dispatch 1", "fail 1").inOrder();
+        assertThat(mQueue.size()).isEqualTo(2);
+
+        mQueue.complete(OP_READ_CHARACTERISTIC, 1, () -> mEvents.add("result 1"));
+
+        assertThat(mEvents).containsExactly("dispatch 1", "fail 1", "dispatch 2").inOrder();
+        assertThat(mQueue.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void timeout_thenClear_dropsNextOperation() {
+        mQueue.enqueue(new FakeOperation(OP_READ_CHARACTERISTIC, 1, true));
+        mQueue.enqueue(new FakeOperation(OP_READ_CHARACTERISTIC, 2, true));
+
+        mLooper.moveTimeForward(GattOperationQueue.OPERATION_TIMEOUT_MS);
+        mLooper.dispatchAll();
+        mQueue.clear();
+        mQueue.complete(OP_READ_CHARACTERISTIC, 1, () -> mEvents.add("result 1"));
+
+        assertThat(mEvents).containsExactly("dispatch 1", "fail 1").inOrder();
+        assertThat(mQueue.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void complete_anyHandle_matchesOperation() {
+        mQueue.enqueue(
+                new FakeOperation(OP_READ_CHARACTERISTIC, GattOperationQueue.ANY_HANDLE, true));
+
+        mQueue.complete(OP_READ_CHARACTERISTIC, 42, () -> mEvents.add("result 42"));
+
+        assertThat(mEvents).containsExactly("dispatch -1", "result 42").inOrder();
+        assertThat(mQueue.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void clear_dropsOperationsAndTimeouts() {
+        mQueue.enqueue(new FakeOperation(OP_READ_CHARACTERISTIC, 1, true));
+        mQueue.enqueue(new FakeOperation(OP_READ_CHARACTERISTIC, 2, true));
+
+        mQueue.clear();
+        mLooper.moveTimeForward(GattOperationQueue.OPERATION_TIMEOUT_MS);
+        mLooper.dispatchAll();
+
+        assertThat(mEvents).containsExactly("dispatch 1");
+        assertThat(mQueue.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void failAll_failsOperationsInOrderAndDropsTimeouts() {
+        mQueue.enqueue(new FakeOperation(OP_READ_CHARACTERISTIC, 1, true));
+        mQueue.enqueue(new FakeOperation(OP_READ_CHARACTERISTIC, 2, true));
+        mQueue.enqueue(new FakeOperation(OP_WRITE_CHARACTERISTIC, 3, true));
+
+        mQueue.failAll(BluetoothGatt.GATT_FAILURE);
+        mLooper.moveTimeForward(GattOperationQueue.OPERATION_TIMEOUT_MS);
+        mLooper.dispatchAll();
+
+        assertThat(mEvents).containsExactly("dispatch 1", "fail 1", "fail 2", "fail 3").inOrder();
+        assertThat(mQueue.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void timeout_thenFailAll_failsTimedOutOperationOnce() {
+        mQueue.enqueue(new FakeOperation(OP_READ_CHARACTERISTIC, 1, true));
+        mQueue.enqueue(new FakeOperation(OP_READ_CHARACTERISTIC, 2, true));
+
+        mLooper.moveTimeForward(GattOperationQueue.OPERATION_TIMEOUT_MS);
+        mLooper.dispatchAll();
+        mQueue.failAll(BluetoothGatt.GATT_FAILURE);
+
+        assertThat(mEvents).containsExactly("dispatch 1", "fail 1", "fail 2").inOrder();
+        assertThat(mQueue.size()).isEqualTo(0);
+    }
+
+    private class FakeOperation extends GattOperationQueue.Operation {
+        private final boolean mSent;
+
+        FakeOperation(int type, int handle, boolean sent) {
+            super(type, handle);
+            mSent = sent;
+        }
+
+        @Override
+        boolean dispatch() {
+            mEvents.add("dispatch " + mHandle);
+            return mSent;
+        }
+
+        @Override
+        void fail(int status) {
+            mEvents.add("fail " + mHandle);
+        }
+    }
+}
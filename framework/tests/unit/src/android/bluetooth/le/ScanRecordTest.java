@@ -261,6 +261,120 @@ public class ScanRecordTest {
         assertThat(data.getServiceData().get(uuid2)).isEqualTo(new byte[] {0x50, 0x64});
     }
 
+    @Test
+    public void testParserInvalidRecord() {
+        byte[] scanRecord =
+                new byte[] {
+                    0x02,
+                    0x01,
+                    0x1a, // advertising flags
+                    0x04,
+                    0x09,
+                    0x50,
+                    0x65,
+                    0x64, // name
+                    0x02,
+                    (byte) 0xff,
+                    (byte) 0xe0, // manufacturer specific data without manufacturer id
+                    0x02,
+                    0x0A,
+                    (byte) 0xec, // tx power level, never reached
+                };
+
+        ScanRecord data = ScanRecord.parseFromBytes(scanRecord);
+
+        assertThat(data.getBytes()).isEqualTo(scanRecord);
+        assertThat(data.getAdvertiseFlags()).isEqualTo(-1);
+        assertThat(data.getDeviceName()).isNull();
+        assertThat(data.getTxPowerLevel()).isEqualTo(Integer.MIN_VALUE);
+        assertThat(data.getServiceUuids()).isNull();
+        assertThat(data.getManufacturerSpecificData()).isNull();
+        assertThat(data.getServiceData()).isNull();
+        assertThat(data.getAdvertisingDataMap().keySet()).containsExactly(0x01, 0x09, 0xff);
+        assertThat(data.matchesManufacturerData(0x00E0, new byte[0], null)).isFalse();
+        assertThat(data.matchesAdvertisingData(0x09, new byte[] {0x50}, null)).isTrue();
+    }
+
+    @Test
+    public void testMatchersWithoutDecoding() {
+        byte[] scanRecord =
+                new byte[] {
+                    0x05,
+                    0x02,
+                    0x0b,
+                    0x11,
+                    0x0a,
+                    0x11, // 16 bit service uuids
+                    0x05,
+                    0x16,
+                    0x0b,
+                    0x11,
+                    0x50,
+                    0x64, // service data
+                    0x05,
+                    (byte) 0xff,
+                    (byte) 0xe0,
+                    0x00,
+                    0x02,
+                    0x15, // manufacturer specific data
+                };
+        ParcelUuid uuid1 = ParcelUuid.fromString("0000110A-0000-1000-8000-00805F9B34FB");
+        ParcelUuid uuid2 = ParcelUuid.fromString("0000110B-0000-1000-8000-00805F9B34FB");
+        ParcelUuid uuid3 = ParcelUuid.fromString("0000110C-0000-1000-8000-00805F9B34FB");
+
+        ScanRecord data = ScanRecord.parseFromBytes(scanRecord);
+
+        assertThat(data.matchesServiceUuid(uuid1.getUuid(), null)).isTrue();
+        assertThat(data.matchesServiceUuid(uuid2.getUuid(), null)).isTrue();
+        assertThat(data.matchesServiceUuid(uuid3.getUuid(), null)).isFalse();
+        ParcelUuid mask = ParcelUuid.fromString("FFFFFF00-FFFF-FFFF-FFFF-FFFFFFFFFFFF");
+        assertThat(data.matchesServiceUuid(uuid3.getUuid(), mask.getUuid())).isTrue();
+
+        assertThat(data.matchesServiceData(uuid2, new byte[] {0x50}, null)).isTrue();
+        assertThat(data.matchesServiceData(uuid2, new byte[] {0x50, 0x64, 0x00}, null)).isFalse();
+        assertThat(data.matchesServiceData(uuid1, new byte[] {0x50}, null)).isFalse();
+
+        assertThat(data.matchesManufacturerData(0x00E0, new byte[] {0x02, 0x15}, null)).isTrue();
+        assertThat(data.matchesManufacturerData(0x00E0, new byte[] {0x03}, null)).isFalse();
+        assertThat(
+                        data.matchesManufacturerData(
+                                0x00E0, new byte[] {0x03}, new byte[] {(byte) 0xfe}))
+                .isTrue();
+        assertThat(data.matchesManufacturerData(0x00E1, new byte[0], null)).isFalse();
+
+        assertThat(data.matchesAdvertisingData(0x16, new byte[] {0x0b, 0x11}, null)).isTrue();
+        assertThat(data.matchesAdvertisingData(0x09, null, null)).isFalse();
+    }
+
+    @Test
+    public void testMatchersMultipleManufacturerSpecificData() {
+        mSetFlagsRule.enableFlags(Flags.FLAG_SCAN_RECORD_MANUFACTURER_DATA_MERGE);
+
+        byte[] scanRecord =
+                new byte[] {
+                    0x05,
+                    (byte) 0xff,
+                    (byte) 0xe0,
+                    0x00,
+                    0x02,
+                    0x15, // manufacturer specific data #1
+                    0x05,
+                    (byte) 0xff,
+                    (byte) 0xe0,
+                    0x00,
+                    0x04,
+                    0x16, // manufacturer specific data #2
+                };
+
+        ScanRecord data = ScanRecord.parseFromBytes(scanRecord);
+
+        assertThat(data.matchesManufacturerData(0x00E0, new byte[] {0x02, 0x15, 0x04}, null))
+                .isTrue();
+        assertThat(data.matchesManufacturerData(0x00E0, new byte[] {0x02, 0x15, 0x05}, null))
+                .isFalse();
+        assertThat(data.matchesManufacturerData(0x00E0, new byte[5], null)).isFalse();
+    }
+
     private static void assertMatchesAnyField(String record, BytesMatcher matcher) {
         assertThat(ScanRecord.parseFromBytes(hexStringToByteArray(record)).matchesAnyField(matcher))
                 .isTrue();